@@ -14,6 +14,8 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.zip.GZIPInputStream;
 
+import org.sunflow.system.ObjReader;
+
 import wblut.geom.WB_ExplicitTriangle;
 import wblut.geom.WB_Point3d;
 
@@ -86,6 +88,9 @@ public class HEC_FromObjFile extends HEC_Creator {
 		if (path == null)
 			return new HE_Mesh();
 		final File file = new File(path);
+		if (!file.getName().toLowerCase().endsWith(".gz")) {
+			return createFromMappedFile();
+		}
 		InputStream is = createInputStream(file);
 		if (is == null)
 			return new HE_Mesh();
@@ -138,6 +143,41 @@ public class HEC_FromObjFile extends HEC_Creator {
 	
 	}
 	
+	/**
+	 * Creates the mesh from an uncompressed file, using the memory mapped
+	 * parallel reader of sunflow in double precision mode.
+	 *
+	 * @return the hE mesh
+	 */
+	private HE_Mesh createFromMappedFile() {
+		final ObjReader reader = new ObjReader(path, true);
+		try {
+			reader.read();
+		} catch (final IOException e) {
+			e.printStackTrace();
+			return new HE_Mesh();
+		}
+		final double[] coords = reader.getVerticesDouble();
+		final WB_Point3d[] vertices = new WB_Point3d[coords.length / 3];
+		for (int i = 0, j = 0; i < vertices.length; i++, j += 3) {
+			vertices[i] = new WB_Point3d(scale * coords[j], scale
+					* coords[j + 1], scale * coords[j + 2]);
+		}
+		// the HEC_FromFacelist wants the face data as int[][]
+		final int[] indices = reader.getFaces();
+		final int[] sizes = reader.getFaceSizes();
+		final int[][] faces = new int[sizes.length][];
+		for (int i = 0, j = 0; i < sizes.length; j += sizes[i], i++) {
+			faces[i] = new int[sizes[i]];
+			System.arraycopy(indices, j, faces[i], 0, sizes[i]);
+		}
+		final HEC_FromFacelist creator = new HEC_FromFacelist();
+		creator.setVertices(vertices);
+		creator.setFaces(faces);
+		creator.setDuplicate(true);
+		return new HE_Mesh(creator);
+	}
+
 	//Code excerpts form processing.core
 
 	/**
@@ -272,17 +272,25 @@ public class PolygonBuilder extends AbstractObject3D implements SunflowRenderabl
             points[i * 3 + 1] = positions.get(i).getY();
             points[i * 3 + 2] = positions.get(i).getZ();
         }
+        int[] indices = new int[triangles.size()];
+        for (int i = 0; i < triangles.size(); i++) {
+            indices[i] = triangles.get(i);
+        }
+        
+        // vertices added without a normal get a smooth one computed from the
+        // triangles
+        float[] smooth = normals.contains(null) ? TriangleMesh.generateNormals(indices, points) : null;
         float[] ns = new float[normals.size() * 3];
         for (int i = 0; i < normals.size(); i++) {
+            if (normals.get(i) == null) {
+                System.arraycopy(smooth, i * 3, ns, i * 3, 3);
+                continue;
+            }
             ns[i * 3] = normals.get(i).getX();
             ns[i * 3 + 1] = normals.get(i).getY();
             ns[i * 3 + 2] = normals.get(i).getZ();
         }
         
-        int[] indices = new int[triangles.size()];
-        for (int i = 0; i < triangles.size(); i++) {
-            indices[i] = triangles.get(i);
-        }
         Logger.log("Points: " + positions.size() + " normals: " + normals.size() + " indices: " + indices.length);
         pl.addPoints("points", InterpolationType.VERTEX, points);
         pl.addIntegerArray("triangles", indices);
@@ -39,6 +39,7 @@ import javax.swing.filechooser.FileFilter;
 import javax.swing.plaf.metal.DefaultMetalTheme;
 import javax.swing.plaf.metal.MetalLookAndFeel;
 
+import org.sunflow.AnimationRenderer;
 import org.sunflow.Benchmark;
 import org.sunflow.RealtimeBenchmark;
 import org.sunflow.SunflowAPI;
@@ -144,6 +145,10 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             System.out.println("  -dumpkd          Dump KDTree to an obj file for visualization");
             System.out.println("  -buildonly       Do not call render method after loading the scene");
             System.out.println("  -showaa          Display sampling levels per pixel for bucket renderer");
+            System.out.println("  -showsamples     Display number of rays per pixel for bucket renderer");
+            System.out.println("  -showcost        Display time spent per pixel for bucket renderer");
+            System.out.println("  -stats filename  Saves render statistics as JSON to the specified filename");
+            System.out.println("                   #'s get expanded to the current frame number");
             System.out.println("  -nogi            Disable any global illumination engines in the scene");
             System.out.println("  -nocaustics      Disable any caustic engine in the scene");
             System.out.println("  -pathgi n        Use path tracing with n samples to render global illumination");
@@ -181,6 +186,9 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             int threads = 0;
             boolean lowPriority = true;
             boolean showAA = false;
+            boolean showSamples = false;
+            boolean showCost = false;
+            String statsFilename = null;
             boolean noGI = false;
             boolean noCaustics = false;
             int pathGI = 0;
@@ -235,6 +243,17 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 } else if (args[i].equals("-showaa")) {
                     showAA = true;
                     i++;
+                } else if (args[i].equals("-showsamples")) {
+                    showSamples = true;
+                    i++;
+                } else if (args[i].equals("-showcost")) {
+                    showCost = true;
+                    i++;
+                } else if (args[i].equals("-stats")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    statsFilename = args[i + 1];
+                    i += 2;
                 } else if (args[i].equals("-nogi")) {
                     noGI = true;
                     i++;
@@ -373,8 +392,12 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 filename = "output.#.png";
                 UI.printWarning(Module.GUI, "Animation output was not specified - defaulting to: \"%s\"", filename);
             }
+            // animations keep the scene alive between frames and only update
+            // what changed
+            AnimationRenderer animation = frameStart < frameStop ? new AnimationRenderer(input) : null;
+            FileDisplay fileDisplay = null;
             for (int frameNumber = frameStart; frameNumber <= frameStop; frameNumber++) {
-                SunflowAPI api = SunflowAPI.create(input, frameNumber);
+                SunflowAPI api = animation != null ? animation.getFrame(frameNumber) : SunflowAPI.create(input, frameNumber);
                 if (api == null)
                     continue;
                 if (noRender)
@@ -392,6 +415,10 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 if (bucketOrder != null)
                     api.parameter("bucket.order", bucketOrder);
                 api.parameter("aa.display", showAA);
+                api.parameter("aa.display.samples", showSamples);
+                api.parameter("aa.display.cost", showCost);
+                if (statsFilename != null)
+                    api.parameter("stats.file", statsFilename.replace("#", String.format("%04d", frameNumber)));
                 api.parameter("threads", threads);
                 api.parameter("threads.lowPriority", lowPriority);
                 if (bakingName != null) {
@@ -410,7 +437,7 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                     api.parameter("caustics", "none");
                 api.parameter("sampler", sampler);
                 api.options(SunflowAPI.DEFAULT_OPTIONS);
-                if (shaderOverride != null) {
+                if (shaderOverride != null && api.lookupShader("ambocc") == null) {
                     api.shader("ambocc", shaderOverride);
                     api.shaderOverride("ambocc", true);
                 }
@@ -429,11 +456,20 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                         }
                     } else if (currentFilename != null && currentFilename.equals("imgpipe")) {
                         display = new ImgPipeDisplay();
+                    } else if (animation != null) {
+                        // write each frame while the next one renders
+                        if (fileDisplay == null)
+                            fileDisplay = new FileDisplay(currentFilename, true);
+                        else
+                            fileDisplay.setFilename(currentFilename);
+                        display = fileDisplay;
                     } else
                         display = new FileDisplay(currentFilename);
                 }
                 api.render(SunflowAPI.DEFAULT_OPTIONS, display);
             }
+            if (fileDisplay != null)
+                fileDisplay.waitForSave();
         } else {
             MetalLookAndFeel.setCurrentTheme(new DefaultMetalTheme());
             SunflowGUI gui = new SunflowGUI();
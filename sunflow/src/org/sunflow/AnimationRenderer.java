@@ -0,0 +1,61 @@
+package org.sunflow;
+
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Creates the scenes for a range of animation frames while keeping a single
+ * {@link SunflowAPI} object alive between them. Procedural scenes are built
+ * again for every frame, but only the objects whose parameters changed are
+ * updated in the scene which is rendered. This lets acceleration structures,
+ * tesselations and lighting computations of unchanged objects be reused, so a
+ * camera fly-through only pays for rendering after the first frame. Scene
+ * files other than java code do not depend on the frame number and are only
+ * parsed once.
+ */
+public class AnimationRenderer {
+    private final String filename;
+    private SunflowAPI api;
+
+    /**
+     * Creates an animation renderer for the specified scene file.
+     * 
+     * @param filename scene file to load
+     */
+    public AnimationRenderer(String filename) {
+        this.filename = filename;
+        api = null;
+    }
+
+    /**
+     * Get the scene for the specified frame. The same object is returned for
+     * every frame, updated as required. Any changes made to it outside of the
+     * build method are kept across frames.
+     * 
+     * @param frameNumber frame to build
+     * @return the scene for this frame, or <code>null</code> if it could not
+     *         be created
+     */
+    public SunflowAPI getFrame(int frameNumber) {
+        if (api == null) {
+            api = SunflowAPI.create(filename, frameNumber, filename != null && filename.endsWith(".java"));
+            return api;
+        }
+        if (filename == null || !filename.endsWith(".java")) {
+            api.setCurrentFrame(frameNumber);
+            api.keepLighting();
+            return api;
+        }
+        UI.printInfo(Module.API, "Build script running for frame %d ...", frameNumber);
+        SunflowAPI frame = api.buildFrame(frameNumber);
+        if (frame == null)
+            return null;
+        Timer t = new Timer();
+        t.start();
+        int changed = api.updateFrom(frame);
+        t.end();
+        UI.printInfo(Module.API, "Updated %d changed objects in %s", changed, t.toString());
+        return api;
+    }
+}
@@ -0,0 +1,450 @@
+package org.sunflow;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.Filter;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.ParameterList;
+import org.sunflow.core.Ray;
+import org.sunflow.core.SampleSequence;
+import org.sunflow.core.Tesselatable;
+import org.sunflow.core.ParameterList.InterpolationType;
+import org.sunflow.core.accel.BoundingIntervalHierarchy;
+import org.sunflow.core.accel.KDTree;
+import org.sunflow.core.accel.UniformGrid;
+import org.sunflow.core.camera.PinholeLens;
+import org.sunflow.core.display.FileDisplay;
+import org.sunflow.core.filter.FilterFactory;
+import org.sunflow.core.primitive.TriangleMesh;
+import org.sunflow.core.sequence.HaltonSequence;
+import org.sunflow.core.sequence.SobolSequence;
+import org.sunflow.core.shader.ConstantShader;
+import org.sunflow.core.tesselatable.Teapot;
+import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.Point3;
+import org.sunflow.math.QMC;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.BenchmarkTest;
+import org.sunflow.system.MicroBenchmarkFramework;
+import org.sunflow.system.UI;
+import org.sunflow.system.UserInterface;
+import org.sunflow.system.UI.Module;
+import org.sunflow.system.UI.PrintLevel;
+
+/**
+ * Micro and meso benchmarks of the kernels the renderer spends most of its
+ * time in. Unlike {@link Benchmark}, which times complete renders, each kernel
+ * is run in isolation on generated data so regressions can be traced to a
+ * single piece of code.
+ */
+public class KernelBenchmark implements UserInterface {
+    private static final int MESH_SIZE = 256; // 2 * 256 * 256 triangles
+    private static final int RAYS = 1 << 16;
+
+    private final ArrayList<Kernel> kernels;
+    private TriangleMesh mesh;
+    private float[] meshPoints;
+    private int[] meshTriangles;
+    private Ray[] rays;
+    private boolean verbose;
+
+    public static void main(String[] args) {
+        double warmup = 2, time = 5;
+        boolean list = false, verbose = false;
+        ArrayList<String> patterns = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-warmup") && i < args.length - 1)
+                warmup = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-time") && i < args.length - 1)
+                time = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-list"))
+                list = true;
+            else if (args[i].equals("-v"))
+                verbose = true;
+            else if (args[i].startsWith("-")) {
+                System.out.println("Kernel benchmark options:");
+                System.out.println("  -list             List the available kernels");
+                System.out.println("  -warmup seconds   Time each kernel is run before measuring (default: 2)");
+                System.out.println("  -time seconds     Time each kernel is measured for (default: 5)");
+                System.out.println("  -v                Show all output of the renderer");
+                System.out.println("  name ...          Only run the kernels whose name contains one of the given strings");
+                return;
+            } else
+                patterns.add(args[i]);
+        }
+        KernelBenchmark benchmark = new KernelBenchmark(verbose);
+        MicroBenchmarkFramework framework = list ? null : new MicroBenchmarkFramework(warmup, time);
+        for (Kernel k : benchmark.kernels) {
+            boolean selected = patterns.isEmpty();
+            for (String p : patterns)
+                selected |= k.name.contains(p);
+            if (!selected)
+                continue;
+            if (list)
+                System.out.println(k.name);
+            else
+                framework.execute(k.name, k, k.operations);
+        }
+    }
+
+    public KernelBenchmark(boolean verbose) {
+        UI.set(this);
+        this.verbose = verbose;
+        kernels = new ArrayList<Kernel>();
+        // micro benchmarks
+        kernels.add(new Kernel("qmc.halton", 1 << 20) {
+            public void kernelMain() {
+                double s = 0;
+                for (int i = 0; i < operations; i++)
+                    s += QMC.halton(i & 3, i);
+                sink += s;
+            }
+        });
+        kernels.add(new Kernel("sequence.halton", 1 << 18) {
+            private SampleSequence sequence = new HaltonSequence();
+            private double[] values = new double[4];
+
+            public void kernelMain() {
+                double s = 0;
+                for (int i = 0; i < operations; i++) {
+                    sequence.get(0, i, values);
+                    s += values[0] + values[1] + values[2] + values[3];
+                }
+                sink += s;
+            }
+        });
+        kernels.add(new Kernel("sequence.sobol", 1 << 18) {
+            private SampleSequence sequence = new SobolSequence();
+            private double[] values = new double[4];
+
+            public void kernelMain() {
+                double s = 0;
+                for (int i = 0; i < operations; i++) {
+                    sequence.get(0, i, values);
+                    s += values[0] + values[1] + values[2] + values[3];
+                }
+                sink += s;
+            }
+        });
+        kernels.add(new Kernel("matrix4.transform", 1 << 20) {
+            private Matrix4 m = Matrix4.rotate(1, 2, 3, 0.5f).multiply(Matrix4.scale(2, 3, 4)).multiply(Matrix4.translation(1, 2, 3));
+
+            public void kernelMain() {
+                float x = 1, y = 2, z = 3;
+                for (int i = 0; i < operations; i++) {
+                    float tx = m.transformPX(x, y, z);
+                    float ty = m.transformPY(x, y, z);
+                    float tz = m.transformPZ(x, y, z);
+                    x = m.transformVX(tx, ty, tz) * 0.1f;
+                    y = m.transformVY(tx, ty, tz) * 0.1f;
+                    z = m.transformVZ(tx, ty, tz) * 0.1f;
+                }
+                sink += x + y + z;
+            }
+        });
+        kernels.add(new Kernel("matrix4.transform.batch", 1 << 20) {
+            private Matrix4 m = Matrix4.rotate(1, 2, 3, 0.5f).multiply(Matrix4.scale(0.5f, 0.3f, 0.2f));
+            private float[] x = new float[1024];
+            private float[] y = new float[1024];
+            private float[] z = new float[1024];
+
+            public void kernelMain() {
+                for (int i = 0; i < x.length; i++) {
+                    x[i] = i;
+                    y[i] = 2 * i;
+                    z[i] = 3 * i;
+                }
+                for (int i = 0; i < operations; i += x.length)
+                    m.transformP(x, y, z, 0, x.length);
+                sink += x[1] + y[2] + z[3];
+            }
+        });
+        kernels.add(new Kernel("ray.transform", 1 << 20) {
+            private Matrix4 m = Matrix4.rotate(1, 2, 3, 0.5f).multiply(Matrix4.translation(1, 2, 3));
+            private Ray local = new Ray(0, 0, 0, 0, 0, 1);
+
+            public void kernelMain() {
+                Ray[] rays = getRays();
+                float s = 0;
+                for (int i = 0; i < operations; i++)
+                    s += rays[i & (RAYS - 1)].transform(m, local).dz;
+                sink += s;
+            }
+        });
+        kernels.add(new Kernel("matrix4.multiply", 1 << 18) {
+            private Matrix4 a = Matrix4.rotate(1, 2, 3, 0.5f);
+            private Matrix4 b = Matrix4.translation(1, 2, 3);
+
+            public void kernelMain() {
+                Matrix4 m = Matrix4.IDENTITY;
+                for (int i = 0; i < operations; i++)
+                    m = (i & 1) == 0 ? a.multiply(b) : m.multiply(a);
+                sink += m.determinant();
+            }
+        });
+        kernels.add(new Kernel("matrix4.inverse", 1 << 18) {
+            private Matrix4 m = Matrix4.rotate(1, 2, 3, 0.5f).multiply(Matrix4.scale(2, 3, 4)).multiply(Matrix4.translation(1, 2, 3));
+
+            public void kernelMain() {
+                float s = 0;
+                for (int i = 0; i < operations; i++)
+                    s += m.inverse().determinant();
+                sink += s;
+            }
+        });
+        kernels.add(new Kernel("color.madd", 1 << 20) {
+            private Color a = new Color(0.1f, 0.2f, 0.3f);
+            private Color b = new Color(0.7f, 0.5f, 0.3f);
+
+            public void kernelMain() {
+                Color c = Color.black();
+                for (int i = 0; i < operations; i++)
+                    c.madd(0.5f, a).mul(b).add(a);
+                sink += c.getLuminance();
+            }
+        });
+        kernels.add(new Kernel("color.rgbe", 1 << 20) {
+            public void kernelMain() {
+                Color c = new Color();
+                int s = 0;
+                for (int i = 0; i < operations; i++) {
+                    c.set(i * 1e-3f, 0.5f, 2.0f);
+                    s += c.setRGBE(c.toRGBE()).toRGB();
+                }
+                sink += s;
+            }
+        });
+        for (String name : new String[] { "box", "triangle", "gaussian", "mitchell", "catmull-rom", "blackman-harris", "sinc", "lanczos" }) {
+            final Filter filter = FilterFactory.get(name);
+            kernels.add(new Kernel("filter." + name, 1 << 20) {
+                public void kernelMain() {
+                    float s = 0;
+                    float d = filter.getSize() / operations;
+                    float x = -0.5f * filter.getSize();
+                    for (int i = 0; i < operations; i++, x += d)
+                        s += filter.get(x);
+                    sink += s;
+                }
+            });
+        }
+        kernels.add(new Kernel("mesh.intersect", RAYS) {
+            private IntersectionState state = new IntersectionState();
+
+            public void kernelMain() {
+                TriangleMesh mesh = getMesh();
+                Ray[] rays = getRays();
+                int n = mesh.getNumPrimitives();
+                int hits = 0;
+                for (int i = 0; i < operations; i++) {
+                    Ray r = rays[i];
+                    r.setMax(Float.POSITIVE_INFINITY);
+                    // every other ray is tested against the triangle it aims
+                    // at, so both hits and misses are measured
+                    mesh.intersectPrimitive(r, (i * 7919 + (i & 1)) % n, state);
+                    if (r.getMax() < Float.POSITIVE_INFINITY)
+                        hits++;
+                }
+                sink += hits;
+            }
+        });
+        // meso benchmarks
+        for (final String type : new String[] { "kdtree", "bih", "uniformgrid" }) {
+            kernels.add(new Kernel("accel." + type + ".build", 1) {
+                public void kernelMain() {
+                    AccelerationStructure accel = createAccel(type);
+                    accel.build(getMesh());
+                    sink += accel.hashCode();
+                }
+            });
+            kernels.add(new Kernel("accel." + type + ".trace", RAYS) {
+                private AccelerationStructure accel;
+                private IntersectionState state = new IntersectionState();
+
+                @Override
+                public void kernelBegin() {
+                    if (accel == null) {
+                        accel = createAccel(type);
+                        accel.build(getMesh());
+                    }
+                }
+
+                public void kernelMain() {
+                    Ray[] rays = getRays();
+                    int hits = 0;
+                    for (int i = 0; i < operations; i++) {
+                        Ray r = rays[i];
+                        r.setMax(Float.POSITIVE_INFINITY);
+                        accel.intersect(r, state);
+                        if (r.getMax() < Float.POSITIVE_INFINITY)
+                            hits++;
+                    }
+                    sink += hits;
+                }
+            });
+        }
+        kernels.add(new Kernel("mesh.normals", 1) {
+            public void kernelMain() {
+                getMesh();
+                sink += TriangleMesh.generateNormals(meshTriangles, meshPoints, 1)[0];
+            }
+        });
+        kernels.add(new Kernel("shading.primary", 128 * 128) {
+            private SunflowAPI api;
+
+            @Override
+            public void kernelBegin() {
+                if (api == null)
+                    api = createShadingScene();
+            }
+
+            public void kernelMain() {
+                // creates and shades a shading state for every pixel, the
+                // pixels are rendered by a separate thread so allocations
+                // made while shading are not counted
+                api.render(SunflowAPI.DEFAULT_OPTIONS, new FileDisplay(false));
+            }
+        });
+    }
+
+    /**
+     * A bumpy sphere with the poles cut off, so it has no degenerate
+     * triangles. The bumps make sure the acceleration structures have to deal
+     * with triangles of varying orientation.
+     */
+    private TriangleMesh getMesh() {
+        if (mesh != null)
+            return mesh;
+        int n = MESH_SIZE;
+        meshPoints = new float[3 * (n + 1) * (n + 1)];
+        for (int j = 0, i = 0; j <= n; j++) {
+            double theta = Math.PI * (0.05 + 0.9 * j / n);
+            for (int k = 0; k <= n; k++, i += 3) {
+                double phi = 2 * Math.PI * k / n;
+                double r = 1 + 0.05 * Math.sin(13 * theta) * Math.sin(17 * phi);
+                meshPoints[i + 0] = (float) (r * Math.sin(theta) * Math.cos(phi));
+                meshPoints[i + 1] = (float) (r * Math.sin(theta) * Math.sin(phi));
+                meshPoints[i + 2] = (float) (r * Math.cos(theta));
+            }
+        }
+        meshTriangles = new int[6 * n * n];
+        for (int j = 0, i = 0; j < n; j++) {
+            for (int k = 0; k < n; k++, i += 6) {
+                int v = j * (n + 1) + k;
+                meshTriangles[i + 0] = v;
+                meshTriangles[i + 1] = v + n + 1;
+                meshTriangles[i + 2] = v + 1;
+                meshTriangles[i + 3] = v + 1;
+                meshTriangles[i + 4] = v + n + 1;
+                meshTriangles[i + 5] = v + n + 2;
+            }
+        }
+        ParameterList pl = new ParameterList();
+        pl.addIntegerArray("triangles", meshTriangles);
+        pl.addPoints("points", InterpolationType.VERTEX, meshPoints);
+        mesh = new TriangleMesh();
+        mesh.update(pl, null);
+        return mesh;
+    }
+
+    /**
+     * Rays from random points around the mesh towards random triangles.
+     */
+    private Ray[] getRays() {
+        if (rays != null)
+            return rays;
+        TriangleMesh mesh = getMesh();
+        BoundingBox bounds = mesh.getWorldBounds(null);
+        float radius = bounds.getExtents().length();
+        Random random = new Random(1);
+        rays = new Ray[RAYS];
+        Point3 p = new Point3();
+        for (int i = 0; i < RAYS; i++) {
+            Vector3 d = new Vector3((float) random.nextGaussian(), (float) random.nextGaussian(), (float) random.nextGaussian()).normalize();
+            Point3 o = new Point3(radius * d.x, radius * d.y, radius * d.z);
+            int tri = (i * 7919) % mesh.getNumPrimitives();
+            Point3 c = new Point3();
+            for (int k = 0; k < 3; k++) {
+                mesh.getPoint(tri, k, p);
+                c.x += p.x / 3;
+                c.y += p.y / 3;
+                c.z += p.z / 3;
+            }
+            rays[i] = new Ray(o, c);
+        }
+        return rays;
+    }
+
+    private static AccelerationStructure createAccel(String name) {
+        if (name.equals("kdtree"))
+            return new KDTree();
+        else if (name.equals("bih"))
+            return new BoundingIntervalHierarchy();
+        else
+            return new UniformGrid();
+    }
+
+    private static SunflowAPI createShadingScene() {
+        SunflowAPI api = new SunflowAPI();
+        api.parameter("threads", 1);
+        api.parameter("resolutionX", 128);
+        api.parameter("resolutionY", 128);
+        api.parameter("sampler", "fast");
+        api.options(SunflowAPI.DEFAULT_OPTIONS);
+        api.parameter("eye", new Point3(0, -30, 20));
+        api.parameter("target", new Point3(0, 0, 8));
+        api.parameter("up", new Vector3(0, 0, 1));
+        api.parameter("fov", 45.0f);
+        api.camera("camera", new PinholeLens());
+        api.parameter("camera", "camera");
+        api.options(SunflowAPI.DEFAULT_OPTIONS);
+        api.parameter("color", new Color(0.5f, 0.5f, 0.5f));
+        api.shader("shader", new ConstantShader());
+        api.geometry("teapot", (Tesselatable) new Teapot());
+        api.parameter("shaders", "shader");
+        api.instance("teapot.instance", "teapot");
+        return api;
+    }
+
+    public void print(Module m, PrintLevel level, String s) {
+        if (verbose || m == Module.BENCH || level == PrintLevel.ERROR)
+            System.out.println(UI.formatOutput(m, level, s));
+    }
+
+    public void taskStart(String s, int min, int max) {
+        // progress display not needed
+    }
+
+    public void taskStop() {
+        // progress display not needed
+    }
+
+    public void taskUpdate(int current) {
+        // progress display not needed
+    }
+
+    /**
+     * A named kernel which performs a fixed number of operations per call.
+     * Results are accumulated into a field so the JIT compiler can't
+     * eliminate the work.
+     */
+    private static abstract class Kernel implements BenchmarkTest {
+        final String name;
+        final int operations;
+        double sink;
+
+        Kernel(String name, int operations) {
+            this.name = name;
+            this.operations = operations;
+        }
+
+        public void kernelBegin() {
+        }
+
+        public void kernelEnd() {
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package org.sunflow;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 
 import org.sunflow.core.Camera;
+import org.sunflow.core.CameraLens;
 import org.sunflow.core.Geometry;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSource;
@@ -14,6 +17,7 @@ import org.sunflow.core.RenderObject;
 import org.sunflow.core.Scene;
 import org.sunflow.core.Shader;
 import org.sunflow.core.Tesselatable;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.FastHashMap;
@@ -22,6 +26,10 @@ final class RenderObjectMap {
     private FastHashMap<String, RenderObjectHandle> renderObjects;
     private boolean rebuildInstanceList;
     private boolean rebuildLightList;
+    private HashSet<Instance> changedInstances;
+    private boolean lightingChanged;
+    // names of the instances referring to each geometry, shader and modifier
+    private IdentityHashMap<RenderObject, HashSet<String>> references;
 
     private enum RenderObjectType {
         UNKNOWN, SHADER, MODIFIER, GEOMETRY, INSTANCE, LIGHT, CAMERA, OPTIONS
@@ -30,6 +38,9 @@ final class RenderObjectMap {
     RenderObjectMap() {
         renderObjects = new FastHashMap<String, RenderObjectHandle>();
         rebuildInstanceList = rebuildLightList = false;
+        lightingChanged = false;
+        changedInstances = new HashSet<Instance>();
+        references = new IdentityHashMap<RenderObject, HashSet<String>>();
     }
 
     final boolean has(String name) {
@@ -39,46 +50,50 @@ final class RenderObjectMap {
     final void remove(String name) {
         RenderObjectHandle obj = renderObjects.get(name);
         if (obj == null) {
-            UI.printWarning(Module.API, "Unable to remove \"%s\" - object was not defined yet");
+            UI.printWarning(Module.API, "Unable to remove \"%s\" - object was not defined yet", name);
             return;
         }
         UI.printDetailed(Module.API, "Removing object \"%s\"", name);
         renderObjects.remove(name);
-        // scan through all objects to make sure we don't have any
-        // references to the old object still around
+        if (obj.type != RenderObjectType.CAMERA && obj.type != RenderObjectType.OPTIONS)
+            lightingChanged = true;
+        // clear the references to the old object using the index of
+        // instance dependencies
         switch (obj.type) {
-            case SHADER:
+            case SHADER: {
                 Shader s = obj.getShader();
-                for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
-                    Instance i = e.getValue().getInstance();
-                    if (i != null) {
-                        UI.printWarning(Module.API, "Removing shader \"%s\" from instance \"%s\"", name, e.getKey());
-                        i.removeShader(s);
+                HashSet<String> names = references.remove(s);
+                if (names != null) {
+                    for (String n : names) {
+                        UI.printWarning(Module.API, "Removing shader \"%s\" from instance \"%s\"", name, n);
+                        lookupInstance(n).removeShader(s);
                     }
                 }
                 break;
-            case MODIFIER:
+            }
+            case MODIFIER: {
                 Modifier m = obj.getModifier();
-                for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
-                    Instance i = e.getValue().getInstance();
-                    if (i != null) {
-                        UI.printWarning(Module.API, "Removing modifier \"%s\" from instance \"%s\"", name, e.getKey());
-                        i.removeModifier(m);
+                HashSet<String> names = references.remove(m);
+                if (names != null) {
+                    for (String n : names) {
+                        UI.printWarning(Module.API, "Removing modifier \"%s\" from instance \"%s\"", name, n);
+                        lookupInstance(n).removeModifier(m);
                     }
                 }
                 break;
+            }
             case GEOMETRY: {
-                Geometry g = obj.getGeometry();
-                for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
-                    Instance i = e.getValue().getInstance();
-                    if (i != null && i.hasGeometry(g)) {
-                        UI.printWarning(Module.API, "Removing instance \"%s\" because it referenced geometry \"%s\"", e.getKey(), name);
-                        remove(e.getKey());
+                HashSet<String> names = references.remove(obj.getGeometry());
+                if (names != null) {
+                    for (String n : names) {
+                        UI.printWarning(Module.API, "Removing instance \"%s\" because it referenced geometry \"%s\"", n, name);
+                        remove(n);
                     }
                 }
                 break;
             }
             case INSTANCE:
+                removeReferences(name, obj);
                 rebuildInstanceList = true;
                 break;
             case LIGHT:
@@ -103,13 +118,28 @@ final class RenderObjectMap {
                 UI.printError(Module.API, "Unable to update \"%s\" - removing", name);
                 remove(name);
             } else {
+                // only the camera and output options can change without
+                // affecting the lighting
+                if (obj.type == RenderObjectType.OPTIONS) {
+                    if (obj.getOptions().wasModified()) {
+                        UI.printDetailed(Module.API, "Option \"%s\" changed - lighting will be recomputed", obj.getOptions().getModifiedName());
+                        lightingChanged = true;
+                    }
+                } else if (obj.type != RenderObjectType.CAMERA)
+                    lightingChanged = true;
                 switch (obj.type) {
-                    case GEOMETRY:
-                    case INSTANCE:
-                        rebuildInstanceList = true;
+                    case GEOMETRY: {
+                        // the instances of the geometry need new bounds
+                        HashSet<String> names = references.get(obj.getGeometry());
+                        if (names != null)
+                            for (String n : names)
+                                changedInstances.add(lookupInstance(n));
                         break;
-                    case LIGHT:
-                        rebuildLightList = true;
+                    }
+                    case INSTANCE:
+                        removeReferences(name, obj);
+                        addReferences(name, obj);
+                        changedInstances.add(obj.getInstance());
                         break;
                     default:
                         break;
@@ -119,7 +149,57 @@ final class RenderObjectMap {
         return success;
     }
 
+    private void addReferences(String name, RenderObjectHandle obj) {
+        Instance i = obj.getInstance();
+        ArrayList<RenderObject> dependencies = new ArrayList<RenderObject>();
+        dependencies.add(i.getGeometry());
+        for (int j = 0; j < i.getNumShaders(); j++)
+            if (i.getShader(j) != null)
+                dependencies.add(i.getShader(j));
+        for (int j = 0; j < i.getNumModifiers(); j++)
+            if (i.getModifier(j) != null)
+                dependencies.add(i.getModifier(j));
+        for (RenderObject o : dependencies) {
+            HashSet<String> names = references.get(o);
+            if (names == null)
+                references.put(o, names = new HashSet<String>());
+            names.add(name);
+        }
+        obj.dependencies = dependencies.toArray(new RenderObject[dependencies.size()]);
+    }
+
+    private void removeReferences(String name, RenderObjectHandle obj) {
+        if (obj.dependencies == null)
+            return;
+        for (RenderObject o : obj.dependencies) {
+            HashSet<String> names = references.get(o);
+            if (names != null) {
+                names.remove(name);
+                if (names.isEmpty())
+                    references.remove(o);
+            }
+        }
+        obj.dependencies = null;
+    }
+
     final void updateScene(Scene scene) {
+        if (lightingChanged) {
+            scene.invalidateLighting();
+            lightingChanged = false;
+        }
+        if (!rebuildInstanceList && !changedInstances.isEmpty()) {
+            UI.printInfo(Module.API, "Updating bounds of %d scene instances ...", changedInstances.size());
+            for (Instance i : changedInstances) {
+                BoundingBox bounds = i.getBounds();
+                i.updateBounds();
+                // instances which become infinite or finite change lists
+                if ((bounds == null) != (i.getBounds() == null))
+                    rebuildInstanceList = true;
+            }
+            if (!rebuildInstanceList)
+                scene.updateInstanceBounds();
+        }
+        changedInstances.clear();
         if (rebuildInstanceList) {
             UI.printInfo(Module.API, "Building scene instance list for rendering ...");
             int numInfinite = 0, numInstance = 0;
@@ -163,6 +243,14 @@ final class RenderObjectMap {
             scene.setLightList(lightList.toArray(new LightSource[lightList.size()]));
             rebuildLightList = false;
         }
+        // name shaders in the render statistics
+        IdentityHashMap<Object, String> shaderNames = new IdentityHashMap<Object, String>();
+        for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
+            Shader shader = e.getValue().getShader();
+            if (shader != null)
+                shaderNames.put(shader, e.getKey());
+        }
+        scene.setShaderNames(shaderNames);
     }
 
     final void put(String name, Shader shader) {
@@ -183,20 +271,67 @@ final class RenderObjectMap {
 
     final void put(String name, Instance instance) {
         renderObjects.put(name, new RenderObjectHandle(instance));
+        rebuildInstanceList = true;
     }
 
     final void put(String name, LightSource light) {
         renderObjects.put(name, new RenderObjectHandle(light));
+        rebuildLightList = true;
     }
 
-    final void put(String name, Camera camera) {
-        renderObjects.put(name, new RenderObjectHandle(camera));
+    final void put(String name, CameraLens lens) {
+        renderObjects.put(name, new RenderObjectHandle(lens));
     }
 
     final void put(String name, Options options) {
         renderObjects.put(name, new RenderObjectHandle(options));
     }
 
+    /**
+     * Move an object declared in another map into this one. The object must
+     * be updated with this map's parameters afterwards so its references to
+     * other objects are resolved in this map.
+     * 
+     * @param name name of the object
+     * @param map map the object was declared in
+     */
+    final void transfer(String name, RenderObjectMap map) {
+        RenderObjectHandle obj = new RenderObjectHandle(map.renderObjects.get(name));
+        renderObjects.put(name, obj);
+        if (obj.type == RenderObjectType.INSTANCE)
+            rebuildInstanceList = true;
+        else if (obj.type == RenderObjectType.LIGHT)
+            rebuildLightList = true;
+    }
+
+    /**
+     * Get the class of the object the specified object was declared with. For
+     * geometry and cameras this is the class of the tesselatable or primitive
+     * list, and of the lens.
+     * 
+     * @param name name of the object
+     * @return class the object was declared with, or <code>null</code> if the
+     *         object was not found
+     */
+    final Class<?> getDeclaredClass(String name) {
+        RenderObjectHandle obj = renderObjects.get(name);
+        return obj == null ? null : obj.declaredClass;
+    }
+
+    /**
+     * Get the names of the instances referring to the specified object.
+     * 
+     * @param name name of a geometry, shader or modifier
+     * @return names of the instances referring to the object
+     */
+    final ArrayList<String> getReferences(String name) {
+        ArrayList<String> names = new ArrayList<String>();
+        RenderObjectHandle obj = renderObjects.get(name);
+        if (obj != null && references.containsKey(obj.obj))
+            names.addAll(references.get(obj.obj));
+        return names;
+    }
+
     final Geometry lookupGeometry(String name) {
         if (name == null)
             return null;
@@ -249,45 +384,62 @@ final class RenderObjectMap {
     private static final class RenderObjectHandle {
         private final RenderObject obj;
         private final RenderObjectType type;
+        private final Class<?> declaredClass;
+        // objects an instance refers to
+        private RenderObject[] dependencies;
 
         private RenderObjectHandle(Shader shader) {
             obj = shader;
             type = RenderObjectType.SHADER;
+            declaredClass = shader.getClass();
         }
 
         private RenderObjectHandle(Modifier modifier) {
             obj = modifier;
             type = RenderObjectType.MODIFIER;
+            declaredClass = modifier.getClass();
         }
 
         private RenderObjectHandle(Tesselatable tesselatable) {
             obj = new Geometry(tesselatable);
             type = RenderObjectType.GEOMETRY;
+            declaredClass = tesselatable.getClass();
         }
 
         private RenderObjectHandle(PrimitiveList prims) {
             obj = new Geometry(prims);
             type = RenderObjectType.GEOMETRY;
+            declaredClass = prims.getClass();
         }
 
         private RenderObjectHandle(Instance instance) {
             obj = instance;
             type = RenderObjectType.INSTANCE;
+            declaredClass = instance.getClass();
         }
 
         private RenderObjectHandle(LightSource light) {
             obj = light;
             type = RenderObjectType.LIGHT;
+            declaredClass = light.getClass();
         }
 
-        private RenderObjectHandle(Camera camera) {
-            obj = camera;
+        private RenderObjectHandle(CameraLens lens) {
+            obj = new Camera(lens);
             type = RenderObjectType.CAMERA;
+            declaredClass = lens.getClass();
+        }
+
+        private RenderObjectHandle(RenderObjectHandle handle) {
+            obj = handle.obj;
+            type = handle.type;
+            declaredClass = handle.declaredClass;
         }
 
         private RenderObjectHandle(Options options) {
             obj = options;
             type = RenderObjectType.OPTIONS;
+            declaredClass = options.getClass();
         }
 
         private boolean update(ParameterList pl, SunflowAPI api) {
@@ -4,6 +4,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.codehaus.janino.ClassBodyEvaluator;
 import org.codehaus.janino.CompileException;
@@ -63,6 +67,12 @@ public class SunflowAPI {
     private ParameterList parameterList;
     private RenderObjectMap renderObjects;
     private int currentFrame;
+    // parameters of every update made by the build method, recorded to
+    // compare animation frames
+    private LinkedHashMap<String, ArrayList<ParameterList>> updates;
+    private boolean recordUpdates;
+    // set for the frames of an animation, whose changes are tracked
+    private boolean keepLighting;
 
     /**
      * This is a quick system test which verifies that the user has launched
@@ -279,6 +289,8 @@ public class SunflowAPI {
      */
     public void remove(String name) {
         renderObjects.remove(name);
+        if (updates != null)
+            updates.remove(name);
     }
 
     /**
@@ -291,8 +303,18 @@ public class SunflowAPI {
      *         <code>false</code> if the update failed
      */
     public boolean update(String name) {
+        ParameterList pl = recordUpdates ? new ParameterList(parameterList) : null;
         boolean success = renderObjects.update(name, parameterList, this);
         parameterList.clear(success);
+        if (recordUpdates) {
+            if (success) {
+                ArrayList<ParameterList> list = updates.get(name);
+                if (list == null)
+                    updates.put(name, list = new ArrayList<ParameterList>());
+                list.add(pl);
+            } else
+                updates.remove(name);
+        }
         return success;
     }
 
@@ -513,7 +535,7 @@ public class SunflowAPI {
                 parameterList.clear(true);
                 return;
             }
-            renderObjects.put(name, new Camera(lens));
+            renderObjects.put(name, lens);
         }
         // update existing shader (only if it is valid)
         if (lookupCamera(name) != null)
@@ -634,6 +656,12 @@ public class SunflowAPI {
      * @param display display object
      */
     public final void render(String optionsName, Display display) {
+        // global illumination and caustic photons are only kept between the
+        // frames of an animation, since other changes made to the objects
+        // of the scene can't be detected
+        if (!keepLighting)
+            scene.invalidateLighting();
+        keepLighting = false;
         renderObjects.updateScene(scene);
         Options opt = lookupOptions(optionsName);
         if (opt == null)
@@ -729,6 +757,20 @@ public class SunflowAPI {
      * @return a valid SunflowAPI object or <code>null</code> on failure
      */
     public static SunflowAPI create(String filename, int frameNumber) {
+        return create(filename, frameNumber, false);
+    }
+
+    /**
+     * Create an API object from the specified file, optionally recording the
+     * updates made by the build method so the scene can later be compared
+     * with other frames of the same script.
+     * 
+     * @param filename filename to load
+     * @param frameNumber frame number to build
+     * @param record if <code>true</code>, updates are recorded
+     * @return a valid SunflowAPI object or <code>null</code> on failure
+     */
+    static SunflowAPI create(String filename, int frameNumber, boolean record) {
         if (filename == null)
             return new SunflowAPI();
         SunflowAPI api = null;
@@ -767,7 +809,9 @@ public class SunflowAPI {
             UI.printInfo(Module.API, "Build script running ...");
             t.start();
             api.setCurrentFrame(frameNumber);
+            api.startRecording(record);
             api.build();
+            api.recordUpdates = false;
             t.end();
             UI.printInfo(Module.API, "Build script time: %s", t.toString());
         } else {
@@ -777,6 +821,127 @@ public class SunflowAPI {
         return api;
     }
 
+    private void startRecording(boolean record) {
+        recordUpdates = record;
+        updates = record ? new LinkedHashMap<String, ArrayList<ParameterList>>() : null;
+    }
+
+    /**
+     * Run the build method of this procedural scene for another frame in a new
+     * API object of the same class. The updates made by the build method are
+     * recorded so they can be compared with this scene by
+     * {@link #updateFrom(SunflowAPI)}.
+     * 
+     * @param frameNumber frame number to build
+     * @return a new API object, or <code>null</code> if this object's class
+     *         could not be instantiated
+     */
+    final SunflowAPI buildFrame(int frameNumber) {
+        SunflowAPI api;
+        try {
+            api = getClass().getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            UI.printError(Module.API, "Unable to create frame %d: %s", frameNumber, e.getMessage());
+            return null;
+        }
+        api.includeSearchPath = includeSearchPath;
+        api.textureSearchPath = textureSearchPath;
+        api.setCurrentFrame(frameNumber);
+        api.startRecording(true);
+        Timer t = new Timer();
+        t.start();
+        api.build();
+        t.end();
+        api.recordUpdates = false;
+        UI.printInfo(Module.API, "Build script time: %s", t.toString());
+        return api;
+    }
+
+    /**
+     * Bring this scene up to date with another frame built from the same
+     * script. Only the objects whose recorded updates differ are updated
+     * again, so the acceleration structures, tesselations and lighting
+     * computed for unchanged objects are kept. Objects are compared by class
+     * and parameters only, so any state set outside of the parameter lists
+     * must be reflected in a parameter for the change to be picked up. Both
+     * scenes must have been recorded.
+     * 
+     * @param frame scene built for the new frame
+     * @return number of objects which were updated or removed
+     */
+    final int updateFrom(SunflowAPI frame) {
+        // first find every object which must be removed, because it is no
+        // longer declared or was declared with another class, and the
+        // instances which refer to these objects, before changing anything
+        ArrayList<String> removed = new ArrayList<String>();
+        HashSet<String> dependents = new HashSet<String>();
+        for (String name : updates.keySet()) {
+            if (!renderObjects.has(name))
+                continue;
+            if (!frame.updates.containsKey(name) || renderObjects.getDeclaredClass(name) != frame.renderObjects.getDeclaredClass(name)) {
+                removed.add(name);
+                dependents.addAll(renderObjects.getReferences(name));
+            }
+        }
+        int changed = 0;
+        for (String name : removed) {
+            // removing a geometry also removes its instances
+            if (renderObjects.has(name))
+                renderObjects.remove(name);
+            if (!frame.updates.containsKey(name))
+                changed++;
+        }
+        // bring over the new objects, then update them in declaration order
+        // so they can refer to each other
+        HashSet<String> transferred = new HashSet<String>();
+        for (String name : frame.updates.keySet()) {
+            if (!renderObjects.has(name)) {
+                renderObjects.transfer(name, frame.renderObjects);
+                transferred.add(name);
+            }
+        }
+        for (Map.Entry<String, ArrayList<ParameterList>> e : frame.updates.entrySet()) {
+            String name = e.getKey();
+            ArrayList<ParameterList> records = e.getValue();
+            if (!transferred.contains(name) && !dependents.contains(name) && isSame(updates.get(name), records))
+                continue;
+            for (ParameterList pl : records) {
+                parameterList = new ParameterList(pl);
+                if (!renderObjects.update(name, parameterList, this)) {
+                    // the update worked in the frame's scene, this should
+                    // not happen unless the scene refers to removed objects
+                    UI.printError(Module.API, "Unable to update \"%s\" for frame %d", name, frame.currentFrame);
+                }
+                parameterList.clear(false);
+            }
+            changed++;
+        }
+        parameterList = new ParameterList();
+        updates = frame.updates;
+        currentFrame = frame.currentFrame;
+        keepLighting = true;
+        return changed;
+    }
+
+    /**
+     * Keep the global illumination and caustic photons computed by the last
+     * render for the next one, unless objects other than the camera are
+     * changed in the meantime. Used between the frames of an animation whose
+     * scene is not rebuilt.
+     */
+    final void keepLighting() {
+        keepLighting = true;
+    }
+
+    private static boolean isSame(ArrayList<ParameterList> a, ArrayList<ParameterList> b) {
+        if (a == null || a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++)
+            if (!a.get(i).hasSameValues(b.get(i)))
+                return false;
+        return true;
+    }
+
     /**
      * Compile the specified code string via Janino. The code must implement a
      * build method as described above. The build method is not called on the
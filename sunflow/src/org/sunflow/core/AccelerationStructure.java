@@ -16,4 +16,15 @@ public interface AccelerationStructure {
      * @param istate state to store the intersection into
      */
     public void intersect(Ray r, IntersectionState istate);
+
+    /**
+     * Find any intersection of the specified ray with the geometry in local
+     * space. Traversal stops as soon as a hit is recorded, so the recorded
+     * intersection is not necessarily the closest one. This is used for
+     * occlusion queries such as shadow rays.
+     * 
+     * @param r ray in local space
+     * @param istate state to store the intersection into
+     */
+    public void intersectAny(Ray r, IntersectionState istate);
 }
\ No newline at end of file
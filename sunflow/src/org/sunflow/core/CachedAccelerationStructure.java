@@ -0,0 +1,29 @@
+package org.sunflow.core;
+
+import org.sunflow.system.BinaryCache;
+
+/**
+ * Represents an {@link AccelerationStructure} which can be stored in a
+ * {@link BinaryCache} and restored from it instead of being rebuilt.
+ */
+public interface CachedAccelerationStructure extends AccelerationStructure {
+    /**
+     * Restore the acceleration structure for the specified primitive list
+     * from the cache. This replaces a call to
+     * {@link AccelerationStructure#build(PrimitiveList)}.
+     * 
+     * @param primitives primitives the cached structure was built for
+     * @param cache cache to read from
+     * @return <code>true</code> if the structure was restored,
+     *         <code>false</code> if the cache does not contain it
+     */
+    public boolean load(PrimitiveList primitives, BinaryCache cache);
+
+    /**
+     * Store the structure built by the last call to
+     * {@link AccelerationStructure#build(PrimitiveList)} into the cache.
+     * 
+     * @param cache cache to write to
+     */
+    public void save(BinaryCache cache);
+}
@@ -0,0 +1,19 @@
+package org.sunflow.core;
+
+import org.sunflow.system.BinaryCache;
+
+/**
+ * Represents a {@link Tesselatable} object whose tesselation can be stored in
+ * a {@link BinaryCache}. The same cache is used to store the acceleration
+ * structure built over the tesselated primitives, so that both can be
+ * reloaded without any processing.
+ */
+public interface CachedTesselatable extends Tesselatable {
+    /**
+     * Get the cache backing the last tesselation of this object.
+     * 
+     * @return cache object, or <code>null</code> if caching is disabled or
+     *         failed
+     */
+    public BinaryCache getCache();
+}
@@ -1,7 +1,9 @@
 package org.sunflow.core;
 
 /**
- * Represents a multi-pixel image filter kernel.
+ * Represents a multi-pixel image filter kernel. Filters are separable: the
+ * value of the kernel at offset (x, y) is <code>get(x) * get(y)</code>, so
+ * renderers can filter the rows and the columns of an image in two passes.
  */
 public interface Filter {
     /**
@@ -14,13 +16,12 @@ public interface Filter {
     public float getSize();
 
     /**
-     * Get value of the filter at offset (x, y). The filter should never be
-     * called with values beyond its extents but should return 0 in those cases
-     * anyway.
+     * Get value of the filter along one axis at offset x. The filter should
+     * never be called with values beyond its extents but should return 0 in
+     * those cases anyway.
      * 
-     * @param x x offset in pixels
-     * @param y y offset in pixels
-     * @return value of the filter at the specified location
+     * @param x offset in pixels
+     * @return value of the filter at the specified offset
      */
-    public float get(float x, float y);
+    public float get(float x);
 }
\ No newline at end of file
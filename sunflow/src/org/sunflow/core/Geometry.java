@@ -4,6 +4,7 @@ import org.sunflow.SunflowAPI;
 import org.sunflow.core.accel.NullAccelerator;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
+import org.sunflow.system.BinaryCache;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -90,7 +91,14 @@ public class Geometry implements RenderObject {
             tesselate();
         if (builtAccel == 0)
             build();
-        accel.intersect(r, state);
+        if (state.anyHit)
+            accel.intersectAny(r, state);
+        else
+            accel.intersect(r, state);
+    }
+
+    void intersectPrimitive(Ray r, int id, IntersectionState state) {
+        primitives.intersectPrimitive(r, id, state);
     }
 
     private synchronized void tesselate() {
@@ -117,7 +125,19 @@ public class Geometry implements RenderObject {
             if (n >= 1000)
                 UI.printInfo(Module.GEOM, "Building acceleration structure for %d primitives ...", n);
             accel = AccelerationStructureFactory.create(acceltype, n, true);
-            accel.build(primitives);
+            BinaryCache cache = tesselatable instanceof CachedTesselatable ? ((CachedTesselatable) tesselatable).getCache() : null;
+            if (cache != null && accel instanceof CachedAccelerationStructure) {
+                CachedAccelerationStructure cached = (CachedAccelerationStructure) accel;
+                if (!cached.load(primitives, cache)) {
+                    accel.build(primitives);
+                    cached.save(cache);
+                }
+            } else
+                accel.build(primitives);
+            // write out everything added to the cache by the tesselation and
+            // the acceleration structure
+            if (cache != null && cache.isModified())
+                cache.save();
         } else {
             // create an empty accelerator to avoid having to check for null
             // pointers in the intersect method
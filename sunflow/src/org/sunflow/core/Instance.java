@@ -11,11 +11,22 @@ import org.sunflow.system.UI.Module;
 /**
  * This represents an instance of a {@link Geometry} into the scene. This class
  * maps object space to world space and maintains a list of shaders and
- * modifiers attached to the surface.
+ * modifiers attached to the surface. Motion blurred instances blend several
+ * transforms over the shutter interval, the transform methods of this class
+ * use the first one while the ones of {@link ShadingState} follow the time
+ * of the ray.
  */
 public class Instance implements RenderObject {
     private Matrix4 o2w;
     private Matrix4 w2o;
+    // object to world transforms over the shutter and their inverses, null
+    // if not moving
+    private Matrix4[] steps;
+    private Matrix4[] inverses;
+    // set when o2w only translates, the offsets are taken from both matrices
+    private boolean translationOnly;
+    private float o2wX, o2wY, o2wZ;
+    private float w2oX, w2oY, w2oZ;
     private BoundingBox bounds;
     private Geometry geometry;
     private Shader[] shaders;
@@ -56,26 +67,158 @@ public class Instance implements RenderObject {
                     UI.printWarning(Module.GEOM, "Modifier \"%s\" was not declared yet - ignoring", modifierNames[i]);
             }
         }
-        Matrix4 transform = pl.getMatrix("transform", o2w);
-        if (transform != o2w) {
-            o2w = transform;
-            if (o2w != null) {
-                w2o = o2w.inverse();
-                if (w2o == null) {
-                    UI.printError(Module.GEOM, "Unable to compute transform inverse - determinant is: %g", o2w.determinant());
+        int n = pl.getInt("transform.steps", 0);
+        if (n > 0) {
+            // motion blur - get the transform for each step
+            Matrix4[] transforms = new Matrix4[n];
+            Matrix4[] transformInverses = new Matrix4[n];
+            for (int i = 0; i < n; i++) {
+                transforms[i] = pl.getMatrix(String.format("transform[%d]", i), null);
+                if (transforms[i] == null) {
+                    UI.printError(Module.GEOM, "Instance matrix for step %d was not specified!", i + 1);
                     return false;
                 }
-            } else
-                o2w = w2o = null;
+                transformInverses[i] = transforms[i].inverse();
+                if (transformInverses[i] == null) {
+                    UI.printError(Module.GEOM, "Unable to compute transform inverse for step %d - determinant is: %g", i + 1, transforms[i].determinant());
+                    return false;
+                }
+            }
+            if (!setTransform(transforms[0]))
+                return false;
+            steps = n > 1 ? transforms : null;
+            inverses = n > 1 ? transformInverses : null;
+        } else {
+            Matrix4 transform = pl.getMatrix("transform", o2w);
+            if (transform != o2w) {
+                steps = inverses = null;
+                if (!setTransform(transform))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean setTransform(Matrix4 transform) {
+        o2w = transform;
+        if (o2w != null && o2w.isIdentity())
+            o2w = null;
+        if (o2w != null) {
+            w2o = o2w.inverse();
+            if (w2o == null) {
+                UI.printError(Module.GEOM, "Unable to compute transform inverse - determinant is: %g", o2w.determinant());
+                return false;
+            }
+        } else
+            o2w = w2o = null;
+        translationOnly = o2w != null && o2w.isTranslation() && w2o.isTranslation();
+        if (translationOnly) {
+            o2wX = o2w.transformPX(0, 0, 0);
+            o2wY = o2w.transformPY(0, 0, 0);
+            o2wZ = o2w.transformPZ(0, 0, 0);
+            w2oX = w2o.transformPX(0, 0, 0);
+            w2oY = w2o.transformPY(0, 0, 0);
+            w2oZ = w2o.transformPZ(0, 0, 0);
         }
         return true;
     }
 
     /**
-     * Recompute world space bounding box of this instance.
+     * Recompute world space bounding box of this instance. Moving instances
+     * get the union of the bounds at each step, which contains the instance
+     * at any time since the steps are blended linearly.
      */
     public void updateBounds() {
         bounds = geometry.getWorldBounds(o2w);
+        if (steps != null && bounds != null) {
+            bounds = new BoundingBox(bounds);
+            for (int i = 1; i < steps.length && bounds != null; i++) {
+                BoundingBox b = geometry.getWorldBounds(steps[i]);
+                // a null box is infinite
+                if (b == null)
+                    bounds = null;
+                else
+                    bounds.include(b);
+            }
+        }
+    }
+
+    /**
+     * Checks to see if this instance has a transform that changes over the
+     * shutter interval.
+     * 
+     * @return <code>true</code> if the instance is motion blurred
+     */
+    public boolean isMoving() {
+        return steps != null;
+    }
+
+    /**
+     * Get the object to world transform at the specified time. This is the
+     * static transform if the instance is not moving.
+     * 
+     * @param time time in [0,1) over the shutter interval
+     * @return object to world transform, <code>null</code> if identity
+     */
+    public Matrix4 getObjectToWorld(float time) {
+        if (steps == null)
+            return o2w;
+        Matrix4 m = new Matrix4();
+        blendTransforms(time, m, null);
+        return m;
+    }
+
+    /**
+     * Get the world to object transform at the specified time. For moving
+     * instances this is the inverse of the blended transform, so that rays
+     * and shading points agree with each other.
+     * 
+     * @param time time in [0,1) over the shutter interval
+     * @return world to object transform, <code>null</code> if identity
+     */
+    public Matrix4 getWorldToObject(float time) {
+        if (steps == null)
+            return w2o;
+        Matrix4 m = new Matrix4();
+        blendTransforms(time, new Matrix4(), m);
+        return m;
+    }
+
+    /**
+     * Get the transforms of this moving instance at the time of the rays of
+     * the specified intersection state. They are blended and inverted once
+     * per time and kept by the state, so that testing the same ray against
+     * the instance many times does not redo the work.
+     * 
+     * @param state intersection state of the calling thread
+     * @param o2w object to world transform, may be <code>null</code>
+     * @param w2o world to object transform, may be <code>null</code>
+     */
+    void getTransforms(IntersectionState state, Matrix4 o2w, Matrix4 w2o) {
+        updateTransforms(state);
+        if (o2w != null)
+            o2w.set(state.motionO2W);
+        if (w2o != null)
+            w2o.set(state.motionW2O);
+    }
+
+    private void updateTransforms(IntersectionState state) {
+        if (state.motionSteps != steps || state.motionTime != state.time) {
+            blendTransforms(state.time, state.motionO2W, state.motionW2O);
+            state.motionSteps = steps;
+            state.motionTime = state.time;
+        }
+    }
+
+    private void blendTransforms(float time, Matrix4 o2w, Matrix4 w2o) {
+        float nt = time * (steps.length - 1);
+        int idx0 = Math.min((int) nt, steps.length - 1);
+        int idx1 = Math.min(idx0 + 1, steps.length - 1);
+        Matrix4.blend(steps[idx0], steps[idx1], nt - idx0, o2w);
+        // blending two invertible matrices can still be singular, use the
+        // closest step in that case
+        if (w2o != null && o2w.inverse(w2o) == null)
+            w2o.set(inverses[Math.round(nt)]);
     }
 
     /**
@@ -130,13 +273,43 @@ public class Instance implements RenderObject {
     }
 
     void intersect(Ray r, IntersectionState state) {
-        Ray localRay = r.transform(w2o);
+        Ray localRay = getLocalRay(r, state);
         state.current = this;
         geometry.intersect(localRay, state);
         // FIXME: transfer max distance to current ray
         r.setMax(localRay.getMax());
     }
 
+    /**
+     * Intersect the ray with a single primitive of this instance. The
+     * geometry must already have been intersected by a previous ray so that
+     * its primitives are available.
+     */
+    void intersectPrimitive(Ray r, int id, IntersectionState state) {
+        Ray localRay = getLocalRay(r, state);
+        state.current = this;
+        geometry.intersectPrimitive(localRay, id, state);
+        r.setMax(localRay.getMax());
+    }
+
+    /**
+     * Get the ray in object space at the time of the ray. The world space ray
+     * is used directly when there is no transform, otherwise the result is
+     * stored in a ray owned by the intersection state, which is only valid
+     * until the next instance is intersected.
+     */
+    private Ray getLocalRay(Ray r, IntersectionState state) {
+        if (steps != null) {
+            updateTransforms(state);
+            return r.transform(state.motionW2O, state.localRay);
+        }
+        if (o2w == null)
+            return r;
+        if (translationOnly)
+            return r.translate(w2oX, w2oY, w2oZ, state.localRay);
+        return r.transform(w2o, state.localRay);
+    }
+
     /**
      * Prepare the shading state for shader invocation. This also runs the
      * currently attached surface modifier.
@@ -152,6 +325,24 @@ public class Instance implements RenderObject {
             state.getModifier().modify(state);
     }
 
+    /**
+     * Get the number of entries in the instance's shader list.
+     * 
+     * @return number of shaders
+     */
+    public int getNumShaders() {
+        return shaders == null ? 0 : shaders.length;
+    }
+
+    /**
+     * Get the number of entries in the instance's modifier list.
+     * 
+     * @return number of modifiers
+     */
+    public int getNumModifiers() {
+        return modifiers == null ? 0 : modifiers.length;
+    }
+
     /**
      * Get a shader for the instance's list.
      * 
@@ -185,7 +376,23 @@ public class Instance implements RenderObject {
      * @return transformed position
      */
     public Point3 transformObjectToWorld(Point3 p) {
-        return o2w == null ? new Point3(p) : o2w.transformP(p);
+        return transformObjectToWorld(p, new Point3());
+    }
+
+    /**
+     * Transform the given point from object space to world space, storing the
+     * result in dest, which may be p itself.
+     * 
+     * @param p object space position to transform
+     * @param dest point to store the result in
+     * @return dest
+     */
+    public Point3 transformObjectToWorld(Point3 p, Point3 dest) {
+        if (o2w == null)
+            return dest.set(p);
+        if (translationOnly)
+            return dest.set(p.x + o2wX, p.y + o2wY, p.z + o2wZ);
+        return o2w.transformP(p, dest);
     }
 
     /**
@@ -196,7 +403,23 @@ public class Instance implements RenderObject {
      * @return transformed position
      */
     public Point3 transformWorldToObject(Point3 p) {
-        return o2w == null ? new Point3(p) : w2o.transformP(p);
+        return transformWorldToObject(p, new Point3());
+    }
+
+    /**
+     * Transform the given point from world space to object space, storing the
+     * result in dest, which may be p itself.
+     * 
+     * @param p world space position to transform
+     * @param dest point to store the result in
+     * @return dest
+     */
+    public Point3 transformWorldToObject(Point3 p, Point3 dest) {
+        if (o2w == null)
+            return dest.set(p);
+        if (translationOnly)
+            return dest.set(p.x + w2oX, p.y + w2oY, p.z + w2oZ);
+        return w2o.transformP(p, dest);
     }
 
     /**
@@ -207,7 +430,21 @@ public class Instance implements RenderObject {
      * @return transformed normal
      */
     public Vector3 transformNormalObjectToWorld(Vector3 n) {
-        return o2w == null ? new Vector3(n) : w2o.transformTransposeV(n);
+        return transformNormalObjectToWorld(n, new Vector3());
+    }
+
+    /**
+     * Transform the given normal from object space to world space, storing the
+     * result in dest, which may be n itself.
+     * 
+     * @param n object space normal to transform
+     * @param dest vector to store the result in
+     * @return dest
+     */
+    public Vector3 transformNormalObjectToWorld(Vector3 n, Vector3 dest) {
+        if (o2w == null || translationOnly)
+            return dest.set(n);
+        return w2o.transformTransposeV(n, dest);
     }
 
     /**
@@ -218,7 +455,21 @@ public class Instance implements RenderObject {
      * @return transformed normal
      */
     public Vector3 transformNormalWorldToObject(Vector3 n) {
-        return o2w == null ? new Vector3(n) : o2w.transformTransposeV(n);
+        return transformNormalWorldToObject(n, new Vector3());
+    }
+
+    /**
+     * Transform the given normal from world space to object space, storing the
+     * result in dest, which may be n itself.
+     * 
+     * @param n world space normal to transform
+     * @param dest vector to store the result in
+     * @return dest
+     */
+    public Vector3 transformNormalWorldToObject(Vector3 n, Vector3 dest) {
+        if (o2w == null || translationOnly)
+            return dest.set(n);
+        return o2w.transformTransposeV(n, dest);
     }
 
     /**
@@ -229,7 +480,21 @@ public class Instance implements RenderObject {
      * @return transformed vector
      */
     public Vector3 transformVectorObjectToWorld(Vector3 v) {
-        return o2w == null ? new Vector3(v) : o2w.transformV(v);
+        return transformVectorObjectToWorld(v, new Vector3());
+    }
+
+    /**
+     * Transform the given vector from object space to world space, storing the
+     * result in dest, which may be v itself.
+     * 
+     * @param v object space vector to transform
+     * @param dest vector to store the result in
+     * @return dest
+     */
+    public Vector3 transformVectorObjectToWorld(Vector3 v, Vector3 dest) {
+        if (o2w == null || translationOnly)
+            return dest.set(v);
+        return o2w.transformV(v, dest);
     }
 
     /**
@@ -240,14 +505,33 @@ public class Instance implements RenderObject {
      * @return transformed vector
      */
     public Vector3 transformVectorWorldToObject(Vector3 v) {
-        return o2w == null ? new Vector3(v) : w2o.transformV(v);
+        return transformVectorWorldToObject(v, new Vector3());
+    }
+
+    /**
+     * Transform the given vector from world space to object space, storing the
+     * result in dest, which may be v itself.
+     * 
+     * @param v world space vector to transform
+     * @param dest vector to store the result in
+     * @return dest
+     */
+    public Vector3 transformVectorWorldToObject(Vector3 v, Vector3 dest) {
+        if (o2w == null || translationOnly)
+            return dest.set(v);
+        return w2o.transformV(v, dest);
     }
 
     PrimitiveList getBakingPrimitives() {
         return geometry.getBakingPrimitives();
     }
 
-    Geometry getGeometry() {
+    /**
+     * Get the geometry this instance refers to.
+     * 
+     * @return instanced geometry
+     */
+    public Geometry getGeometry() {
         return geometry;
     }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package org.sunflow.core;
 
+import org.sunflow.math.Matrix4;
+
 /**
  * This class is used to store ray/object intersections. It also provides
  * additional data to assist {@link AccelerationStructure} objects with
@@ -7,12 +9,31 @@ package org.sunflow.core;
  */
 public final class IntersectionState {
     private static final int MAX_STACK_SIZE = 64;
+    private static final int MAX_POOL_DEPTH = 32;
     float u, v;
     Instance instance;
     int id;
     private final StackNode[] stack;
     private final float[] rstack;
     Instance current;
+    boolean anyHit;
+    Instance occluder;
+    int occluderId;
+    ShadingCache shadingCache;
+    int shadingCacheGeneration;
+    private final ShadingState[] statePool;
+    private final Ray[] rayPool;
+    private ShadingState[] freeStates;
+    private int numFreeStates;
+    final Ray localRay; // object space ray of the instance being intersected
+    float time; // shutter time of the rays being traced, in [0,1)
+    // transforms of moving instances blended at motionTime, for motionSteps
+    final Matrix4 motionO2W;
+    final Matrix4 motionW2O;
+    Matrix4[] motionSteps;
+    float motionTime;
+    final RenderStatistics stats;
+    int statsGeneration;
 
     /**
      * Traversal stack node, helps with tree-based {@link AccelerationStructure}
@@ -32,6 +53,51 @@ public final class IntersectionState {
         for (int i = 0; i < stack.length; i++)
             stack[i] = new StackNode();
         rstack = new float[53 * 256];
+        statePool = new ShadingState[MAX_POOL_DEPTH];
+        rayPool = new Ray[MAX_POOL_DEPTH];
+        freeStates = new ShadingState[MAX_POOL_DEPTH];
+        localRay = new Ray();
+        motionO2W = new Matrix4();
+        motionW2O = new Matrix4();
+        stats = new RenderStatistics();
+    }
+
+    /**
+     * Get the number of traversal steps and primitive tests counted so far by
+     * the thread owning this state. Unlike timings, this measure of tracing
+     * work does not depend on machine load or JIT warm-up.
+     * 
+     * @return traversal steps plus primitive tests
+     */
+    public final long getTraversalWork() {
+        return stats.traversalSteps + stats.primitiveTests;
+    }
+
+    /**
+     * Count a node visited by an {@link AccelerationStructure} while tracing
+     * a ray.
+     */
+    public final void countTraversalStep() {
+        stats.traversalSteps++;
+    }
+
+    /**
+     * Count ray-primitive intersection tests made by an
+     * {@link AccelerationStructure}.
+     * 
+     * @param n number of primitives tested
+     */
+    public final void countPrimitiveTests(int n) {
+        stats.primitiveTests += n;
+    }
+
+    /**
+     * Count a single ray-primitive intersection test. Loops which may stop
+     * early once any hit is found count their tests one at a time, so the
+     * primitives they skip are not counted.
+     */
+    public final void countPrimitiveTest() {
+        stats.primitiveTests++;
     }
 
     /**
@@ -62,6 +128,64 @@ public final class IntersectionState {
         return rstack;
     }
 
+    /**
+     * Get the recycled shading state for the specified depth along the current
+     * path. Only one state per depth is alive at any time since a path is
+     * traced depth first by a single thread.
+     * 
+     * @param depth number of states created before this one along the path
+     * @return a recycled state, or <code>null</code> if the path is too deep
+     *         to be pooled
+     */
+    final ShadingState getShadingState(int depth) {
+        if (depth >= MAX_POOL_DEPTH)
+            return null;
+        if (statePool[depth] == null)
+            statePool[depth] = new ShadingState();
+        return statePool[depth];
+    }
+
+    /**
+     * Get a shading state which is not in use. Unlike the states of the depth
+     * pool, these are handed out to callers which may hold several of them at
+     * once, and are only reused after being released.
+     * 
+     * @return a released state, or a new one if there are none
+     */
+    final ShadingState getFreeState() {
+        return numFreeStates > 0 ? freeStates[--numFreeStates] : new ShadingState();
+    }
+
+    /**
+     * Release a shading state obtained from {@link #getFreeState()} once
+     * nothing can refer to it anymore.
+     * 
+     * @param state state to release
+     */
+    final void releaseState(ShadingState state) {
+        if (numFreeStates == freeStates.length) {
+            ShadingState[] states = new ShadingState[2 * freeStates.length];
+            System.arraycopy(freeStates, 0, states, 0, numFreeStates);
+            freeStates = states;
+        }
+        freeStates[numFreeStates++] = state;
+    }
+
+    /**
+     * Get the recycled ray for the specified depth along the current path.
+     * 
+     * @param depth depth of the shading state which owns the ray
+     * @return a recycled ray, or a new one if the path is too deep to be
+     *         pooled
+     */
+    final Ray getRay(int depth) {
+        if (depth >= MAX_POOL_DEPTH)
+            return new Ray();
+        if (rayPool[depth] == null)
+            rayPool[depth] = new Ray();
+        return rayPool[depth];
+    }
+
     /**
      * Checks to see if a hit has been recorded.
      * 
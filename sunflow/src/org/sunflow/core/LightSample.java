@@ -90,6 +90,13 @@ public class LightSample {
         lspec = s.copy();
     }
 
+    final void scaleRadiance(float s) {
+        if (ldiff != null)
+            ldiff.mul(s);
+        if (lspec != null)
+            lspec.mul(s);
+    }
+
     /**
      * Compute a dot product between the current shadow ray direction and the
      * specified vector.
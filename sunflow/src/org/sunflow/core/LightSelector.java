@@ -0,0 +1,178 @@
+package org.sunflow.core;
+
+/**
+ * Power based importance table over a set of light sources. Provides constant
+ * time selection of a light through an alias table, as well as a binary search
+ * over the cumulative power for photon emission. Lights reporting no power
+ * (typically infinite lights such as image based lights) can never be picked
+ * by the table and are exposed separately so they can always be sampled.
+ */
+final class LightSelector {
+    private final int[] lights; // indices of lights with positive power
+    private final int[] always; // indices of lights with no power
+    private final float[] cdf; // cumulative power over all lights
+    private final float[] pdf; // selection probability per light
+    private final float[] aliasProb;
+    private final int[] alias;
+    private final float totalPower;
+
+    LightSelector(LightSource[] sources) {
+        cdf = new float[sources.length];
+        pdf = new float[sources.length];
+        int numPowered = 0;
+        float sum = 0;
+        for (int i = 0; i < sources.length; i++) {
+            float power = Math.max(0, sources[i].getPower());
+            sum += power;
+            cdf[i] = sum;
+            pdf[i] = power;
+            if (power > 0)
+                numPowered++;
+        }
+        totalPower = sum;
+        lights = new int[numPowered];
+        always = new int[sources.length - numPowered];
+        for (int i = 0, a = 0, b = 0; i < sources.length; i++) {
+            if (pdf[i] > 0)
+                lights[a++] = i;
+            else
+                always[b++] = i;
+        }
+        if (totalPower > 0) {
+            for (int i = 0; i < pdf.length; i++)
+                pdf[i] /= totalPower;
+        }
+        // build alias table (Vose's method) over the powered lights
+        int n = lights.length;
+        aliasProb = new float[n];
+        alias = new int[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        float[] scaled = new float[n];
+        int ns = 0, nl = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = pdf[lights[i]] * n;
+            if (scaled[i] < 1)
+                small[ns++] = i;
+            else
+                large[nl++] = i;
+        }
+        while (ns > 0 && nl > 0) {
+            int s = small[--ns];
+            int l = large[--nl];
+            aliasProb[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1;
+            if (scaled[l] < 1)
+                small[ns++] = l;
+            else
+                large[nl++] = l;
+        }
+        // leftovers are only due to round-off
+        while (nl > 0) {
+            int l = large[--nl];
+            aliasProb[l] = 1;
+            alias[l] = l;
+        }
+        while (ns > 0) {
+            int s = small[--ns];
+            aliasProb[s] = 1;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * Get the total power of all lights.
+     * 
+     * @return sum of light powers
+     */
+    final float getTotalPower() {
+        return totalPower;
+    }
+
+    /**
+     * Get the number of lights which can be picked by {@link #sample(double)}.
+     * 
+     * @return number of lights with positive power
+     */
+    final int getNumSelectable() {
+        return lights.length;
+    }
+
+    /**
+     * Get the indices of the lights which must always be sampled because they
+     * have no power estimate.
+     * 
+     * @return array of light indices
+     */
+    final int[] getUnselectable() {
+        return always;
+    }
+
+    /**
+     * Get the probability with which the specified light is picked.
+     * 
+     * @param i light index
+     * @return probability of selection
+     */
+    final float getProbability(int i) {
+        return pdf[i];
+    }
+
+    /**
+     * Pick a light proportionally to its power in constant time. The table
+     * must contain at least one selectable light.
+     * 
+     * @param rand random value in [0,1)
+     * @return index of the chosen light
+     */
+    final int sample(double rand) {
+        double x = rand * lights.length;
+        int i = Math.min((int) x, lights.length - 1);
+        return lights[(x - i) < aliasProb[i] ? i : alias[i]];
+    }
+
+    /**
+     * Find the light whose cumulative power interval contains the specified
+     * value using a binary search.
+     * 
+     * @param value value in [0,totalPower)
+     * @return index of the light, or -1 if the value lies past the end of the
+     *         table
+     */
+    final int search(double value) {
+        if (cdf.length == 0 || value >= cdf[cdf.length - 1])
+            return -1;
+        int lo = 0;
+        int hi = cdf.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (value < cdf[mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Get the cumulative power of all lights before the specified one.
+     * 
+     * @param i light index
+     * @return start of the light's cumulative power interval
+     */
+    final float getCumulativeStart(int i) {
+        return i == 0 ? 0 : cdf[i - 1];
+    }
+
+    /**
+     * Get the cumulative power of all lights up to and including the specified
+     * one.
+     * 
+     * @param i light index
+     * @return end of the light's cumulative power interval
+     */
+    final float getCumulativeEnd(int i) {
+        return cdf[i];
+    }
+}
@@ -1,10 +1,13 @@
 package org.sunflow.core;
 
+import java.util.ArrayList;
+
 import org.sunflow.core.gi.GIEngineFactory;
 import org.sunflow.core.photonmap.CausticPhotonMap;
+import org.sunflow.core.sequence.HaltonSequence;
+import org.sunflow.core.sequence.SampleSequenceFactory;
 import org.sunflow.image.Color;
 import org.sunflow.math.Point3;
-import org.sunflow.math.QMC;
 import org.sunflow.math.Vector3;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
@@ -16,6 +19,8 @@ class LightServer {
 
     // lighting
     private LightSource[] lights;
+    private LightSelector lightSelector;
+    private int maxLights;
 
     // shading override
     private Shader shaderOverride;
@@ -30,29 +35,16 @@ class LightServer {
     private CausticPhotonMapInterface causticPhotonMap;
     private GIEngine giEngine;
     private int photonCounter;
+    private String caustics;
+    private boolean rebuildLighting;
+    private SampleSequence sampleSequence;
 
     // shading cache
-    private CacheEntry[] shadingCache;
+    private static final int SHADING_CACHE_SIZE = 8192;
+    private boolean shadingCache;
     private float shadingCacheResolution;
-    private long cacheLookups;
-    private long cacheEmptyEntryMisses;
-    private long cacheWrongEntryMisses;
-    private long cacheEntryAdditions;
-    private long cacheHits;
-
-    private static class CacheEntry {
-        int cx, cy;
-        Sample first;
-    }
-
-    private static class Sample {
-        Instance i;
-        Shader s;
-        // int prim;
-        float nx, ny, nz;
-        Color c;
-        Sample next; // linked list
-    }
+    private int shadingCacheGeneration;
+    private ArrayList<ShadingCache> shadingCaches;
 
     LightServer(Scene scene) {
         this.scene = scene;
@@ -66,18 +58,41 @@ class LightServer {
         maxReflectionDepth = 4;
         maxRefractionDepth = 4;
 
+        lightSelector = null;
+        maxLights = 0;
+
+        shadingCacheGeneration = 0;
+        shadingCaches = new ArrayList<ShadingCache>();
+
         causticPhotonMap = null;
         giEngine = null;
+        caustics = null;
+        rebuildLighting = true;
+        sampleSequence = new HaltonSequence();
 
         shadingCache(0);
     }
 
     void setLights(LightSource[] lights) {
         this.lights = lights;
+        lightSelector = null;
+        rebuildLighting = true;
+    }
+
+    /**
+     * Discard the global illumination engine and caustic photons on the next
+     * build because the scene they were computed for has changed.
+     */
+    void invalidateLighting() {
+        rebuildLighting = true;
+    }
+
+    SampleSequence getSampleSequence() {
+        return sampleSequence;
     }
 
     void shadingCache(float shadingRate) {
-        shadingCache = shadingRate > 0 ? new CacheEntry[4096] : null;
+        shadingCache = shadingRate > 0;
         shadingCacheResolution = (float) (1 / Math.sqrt(shadingRate));
     }
 
@@ -86,6 +101,8 @@ class LightServer {
     }
 
     void setShaderOverride(Shader shader, boolean photonOverride) {
+        if (shader != shaderOverride || photonOverride != shaderOverridePhotons)
+            rebuildLighting = true;
         shaderOverride = shader;
         shaderOverridePhotons = photonOverride;
     }
@@ -95,21 +112,31 @@ class LightServer {
         maxDiffuseDepth = options.getInt("depths.diffuse", maxDiffuseDepth);
         maxReflectionDepth = options.getInt("depths.reflection", maxReflectionDepth);
         maxRefractionDepth = options.getInt("depths.refraction", maxRefractionDepth);
-        giEngine = GIEngineFactory.create(options);
-        String caustics = options.getString("caustics", null);
-        if (caustics == null || caustics.equals("none"))
-            causticPhotonMap = null;
-        else if (caustics != null && caustics.equals("kd"))
-            causticPhotonMap = new CausticPhotonMap(options);
-        else {
-            UI.printWarning(Module.LIGHT, "Unrecognized caustics photon map engine \"%s\" - ignoring", caustics);
-            causticPhotonMap = null;
+        maxLights = options.getInt("lights.max", maxLights);
+        float shadingRate = options.getFloat("shadingcache.rate", shadingCache ? 1 / (shadingCacheResolution * shadingCacheResolution) : 0);
+        shadingCache(shadingRate);
+        sampleSequence = SampleSequenceFactory.create(options.getString("sampler.sequence", "halton"));
+        // the gi engine and photons only depend on the scene, not on the
+        // camera, so they can be kept if nothing else changed
+        boolean rebuild = rebuildLighting;
+        if (rebuild) {
+            giEngine = GIEngineFactory.create(options);
+            caustics = options.getString("caustics", null);
+            if (caustics == null || caustics.equals("none"))
+                causticPhotonMap = null;
+            else if (caustics != null && caustics.equals("kd"))
+                causticPhotonMap = new CausticPhotonMap(options);
+            else {
+                UI.printWarning(Module.LIGHT, "Unrecognized caustics photon map engine \"%s\" - ignoring", caustics);
+                causticPhotonMap = null;
+            }
         }
 
         // validate options
         maxDiffuseDepth = Math.max(0, maxDiffuseDepth);
         maxReflectionDepth = Math.max(0, maxReflectionDepth);
         maxRefractionDepth = Math.max(0, maxRefractionDepth);
+        maxLights = Math.max(0, maxLights);
 
         Timer t = new Timer();
         t.start();
@@ -117,52 +144,77 @@ class LightServer {
         int numLightSamples = 0;
         for (int i = 0; i < lights.length; i++)
             numLightSamples += lights[i].getNumSamples();
-        // initialize gi engine
-        if (giEngine != null) {
-            if (!giEngine.init(scene))
+        // build light selection table
+        lightSelector = new LightSelector(lights);
+        if (rebuild) {
+            // initialize gi engine
+            if (giEngine != null) {
+                if (!giEngine.init(scene))
+                    return false;
+            }
+
+            if (!calculatePhotons(causticPhotonMap, "caustic", 0))
                 return false;
+            rebuildLighting = false;
         }
-
-        if (!calculatePhotons(causticPhotonMap, "caustic", 0))
-            return false;
         t.end();
-        cacheLookups = 0;
-        cacheHits = 0;
-        cacheEmptyEntryMisses = 0;
-        cacheWrongEntryMisses = 0;
-        cacheEntryAdditions = 0;
-        if (shadingCache != null) {
-            // clear shading cache
-            for (int i = 0; i < shadingCache.length; i++)
-                shadingCache[i] = null;
+        // invalidate the per-thread shading caches from previous renders
+        synchronized (shadingCaches) {
+            shadingCacheGeneration++;
+            shadingCaches.clear();
         }
         UI.printInfo(Module.LIGHT, "Light Server stats:");
         UI.printInfo(Module.LIGHT, "  * Light sources found: %d", lights.length);
         UI.printInfo(Module.LIGHT, "  * Light samples:       %d", numLightSamples);
+        if (useLightSelection())
+            UI.printInfo(Module.LIGHT, "  * Light selection:     %d of %d per shading point", maxLights, lightSelector.getNumSelectable());
+        else
+            UI.printInfo(Module.LIGHT, "  * Light selection:     all");
         UI.printInfo(Module.LIGHT, "  * Max raytrace depth:");
         UI.printInfo(Module.LIGHT, "      - Diffuse          %d", maxDiffuseDepth);
         UI.printInfo(Module.LIGHT, "      - Reflection       %d", maxReflectionDepth);
         UI.printInfo(Module.LIGHT, "      - Refraction       %d", maxRefractionDepth);
         UI.printInfo(Module.LIGHT, "  * GI engine            %s", options.getString("gi.engine", "none"));
         UI.printInfo(Module.LIGHT, "  * Caustics:            %s", caustics == null ? "none" : caustics);
+        UI.printInfo(Module.LIGHT, "  * Sample sequence:     %s", options.getString("sampler.sequence", "halton"));
         UI.printInfo(Module.LIGHT, "  * Shader override:     %b", shaderOverride);
         UI.printInfo(Module.LIGHT, "  * Photon override:     %b", shaderOverridePhotons);
-        UI.printInfo(Module.LIGHT, "  * Shading cache:       %s", shadingCache == null ? "off" : "on");
+        UI.printInfo(Module.LIGHT, "  * Shading cache:       %s", shadingCache ? "on" : "off");
+        UI.printInfo(Module.LIGHT, "  * Lighting:            %s", rebuild ? "rebuilt" : "reused from previous render");
         UI.printInfo(Module.LIGHT, "  * Build time:          %s", t.toString());
         return true;
     }
 
     void showStats() {
-        if (shadingCache == null)
+        if (!shadingCache)
             return;
-        int numUsedEntries = 0;
-        for (CacheEntry e : shadingCache)
-            numUsedEntries += (e != null) ? 1 : 0;
+        // merge statistics from all threads
+        long numEntries = 0;
+        long numUsedEntries = 0;
+        long cacheLookups = 0;
+        long cacheHits = 0;
+        long cacheEmptyEntryMisses = 0;
+        long cacheWrongEntryMisses = 0;
+        long cacheEntryAdditions = 0;
+        int numCaches;
+        synchronized (shadingCaches) {
+            numCaches = shadingCaches.size();
+            for (ShadingCache c : shadingCaches) {
+                numEntries += c.size();
+                numUsedEntries += c.usedEntries;
+                cacheLookups += c.lookups;
+                cacheHits += c.hits;
+                cacheEmptyEntryMisses += c.emptyEntryMisses;
+                cacheWrongEntryMisses += c.wrongEntryMisses;
+                cacheEntryAdditions += c.entryAdditions;
+            }
+        }
         UI.printInfo(Module.LIGHT, "Shading cache stats:");
-        UI.printInfo(Module.LIGHT, "  * Used entries:        %d (%d%%)", numUsedEntries, (100 * numUsedEntries) / shadingCache.length);
+        UI.printInfo(Module.LIGHT, "  * Thread caches:       %d", numCaches);
+        UI.printInfo(Module.LIGHT, "  * Used entries:        %d (%d%%)", numUsedEntries, numEntries == 0 ? 0 : (100 * numUsedEntries) / numEntries);
         UI.printInfo(Module.LIGHT, "  * Lookups:             %d", cacheLookups);
         UI.printInfo(Module.LIGHT, "  * Hits:                %d", cacheHits);
-        UI.printInfo(Module.LIGHT, "  * Hit rate:            %d%%", (100 * cacheHits) / cacheLookups);
+        UI.printInfo(Module.LIGHT, "  * Hit rate:            %d%%", cacheLookups == 0 ? 0 : (100 * cacheHits) / cacheLookups);
         UI.printInfo(Module.LIGHT, "  * Empty entry misses:  %d", cacheEmptyEntryMisses);
         UI.printInfo(Module.LIGHT, "  * Wrong entry misses:  %d", cacheWrongEntryMisses);
         UI.printInfo(Module.LIGHT, "  * Entry adds:          %d", cacheEntryAdditions);
@@ -175,13 +227,10 @@ class LightServer {
             UI.printError(Module.LIGHT, "Unable to trace %s photons, no lights in scene", type);
             return false;
         }
-        final float[] histogram = new float[lights.length];
-        histogram[0] = lights[0].getPower();
-        for (int i = 1; i < lights.length; i++)
-            histogram[i] = histogram[i - 1] + lights[i].getPower();
+        final LightSelector selector = lightSelector != null ? lightSelector : new LightSelector(lights);
         UI.printInfo(Module.LIGHT, "Tracing %s photons ...", type);
         int numEmittedPhotons = map.numEmit();
-        if (numEmittedPhotons <= 0 || histogram[histogram.length - 1] <= 0) {
+        if (numEmittedPhotons <= 0 || selector.getTotalPower() <= 0) {
             UI.printError(Module.LIGHT, "Photon mapping enabled, but no %s photons to emit", type);
             return false;
         }
@@ -200,6 +249,9 @@ class LightServer {
             photonThreads[i] = new Thread(new Runnable() {
                 public void run() {
                     IntersectionState istate = new IntersectionState();
+                    Point3 pt = new Point3();
+                    Vector3 dir = new Vector3();
+                    double[] rnd = new double[5];
                     for (int i = start; i < end; i++) {
                         synchronized (LightServer.this) {
                             UI.taskUpdate(photonCounter);
@@ -210,25 +262,25 @@ class LightServer {
 
                         int qmcI = i + seed;
 
-                        double rand = QMC.halton(0, qmcI) * histogram[histogram.length - 1];
-                        int j = 0;
-                        while (rand >= histogram[j] && j < histogram.length)
-                            j++;
+                        sampleSequence.get(0, qmcI, rnd);
+                        double rand = rnd[0] * selector.getTotalPower();
+                        int j = selector.search(rand);
                         // make sure we didn't pick a zero-probability light
-                        if (j == histogram.length)
+                        if (j < 0)
                             continue;
 
-                        double randX1 = (j == 0) ? rand / histogram[0] : (rand - histogram[j]) / (histogram[j] - histogram[j - 1]);
-                        double randY1 = QMC.halton(1, qmcI);
-                        double randX2 = QMC.halton(2, qmcI);
-                        double randY2 = QMC.halton(3, qmcI);
-                        Point3 pt = new Point3();
-                        Vector3 dir = new Vector3();
+                        float start = selector.getCumulativeStart(j);
+                        double randX1 = (rand - start) / (selector.getCumulativeEnd(j) - start);
+                        double randY1 = rnd[1];
+                        double randX2 = rnd[2];
+                        double randY2 = rnd[3];
                         Color power = new Color();
                         lights[j].getPhoton(randX1, randY1, randX2, randY2, pt, dir, power);
                         power.mul(scale);
-                        Ray r = new Ray(pt, dir);
-                        scene.trace(r, istate);
+                        Ray r = istate.getRay(0).set(pt, dir);
+                        // photons are spread over the shutter interval
+                        istate.time = (float) rnd[4];
+                        scene.trace(r, istate, RenderStatistics.PHOTON);
                         if (istate.hit())
                             shadePhoton(ShadingState.createPhotonState(r, istate, qmcI, map, LightServer.this), power);
                     }
@@ -268,7 +320,7 @@ class LightServer {
         if (previous.getDiffuseDepth() >= maxDiffuseDepth)
             return;
         IntersectionState istate = previous.getIntersectionState();
-        scene.trace(r, istate);
+        scene.trace(r, istate, RenderStatistics.PHOTON);
         if (previous.getIntersectionState().hit()) {
             // create a new shading context
             ShadingState state = ShadingState.createDiffuseBounceState(previous, r, 0);
@@ -280,7 +332,7 @@ class LightServer {
         if (previous.getReflectionDepth() >= maxReflectionDepth)
             return;
         IntersectionState istate = previous.getIntersectionState();
-        scene.trace(r, istate);
+        scene.trace(r, istate, RenderStatistics.PHOTON);
         if (previous.getIntersectionState().hit()) {
             // create a new shading context
             ShadingState state = ShadingState.createReflectionBounceState(previous, r, 0);
@@ -292,7 +344,7 @@ class LightServer {
         if (previous.getRefractionDepth() >= maxRefractionDepth)
             return;
         IntersectionState istate = previous.getIntersectionState();
-        scene.trace(r, istate);
+        scene.trace(r, istate, RenderStatistics.PHOTON);
         if (previous.getIntersectionState().hit()) {
             // create a new shading context
             ShadingState state = ShadingState.createRefractionBounceState(previous, r, 0);
@@ -309,26 +361,32 @@ class LightServer {
 
     }
 
-    ShadingState getRadiance(float rx, float ry, int i, Ray r, IntersectionState istate) {
-        scene.trace(r, istate);
+    ShadingState getRadiance(float rx, float ry, double lensU, double lensV, double time, int i, Ray r, IntersectionState istate) {
+        scene.trace(r, istate, RenderStatistics.EYE);
         if (istate.hit()) {
             ShadingState state = ShadingState.createState(istate, rx, ry, r, i, this);
+            state.setCameraSample(lensU, lensV, time);
             state.getInstance().prepareShadingState(state);
             Shader shader = getShader(state);
             if (shader == null) {
                 state.setResult(Color.BLACK);
                 return state;
             }
-            if (shadingCache != null) {
-                Color c = lookupShadingCache(state, shader);
-                if (c != null) {
-                    state.setResult(c);
-                    return state;
-                }
+            // don't cache samples with null normals
+            if (!shadingCache || state.getNormal() == null) {
+                state.setResult(shade(shader, state));
+                return state;
+            }
+            ShadingCache cache = getShadingCache(istate);
+            int cx = (int) (state.getRasterX() * shadingCacheResolution);
+            int cy = (int) (state.getRasterY() * shadingCacheResolution);
+            Color c = cache.lookup(state, shader, cx, cy);
+            if (c != null) {
+                state.setResult(c);
+                return state;
             }
-            state.setResult(shader.getRadiance(state));
-            if (shadingCache != null)
-                addShadingCache(state, shader, state.getResult());
+            state.setResult(shade(shader, state));
+            cache.add(state, shader, cx, cy, state.getResult());
             return state;
         } else
             return null;
@@ -337,7 +395,7 @@ class LightServer {
     void shadeBakeResult(ShadingState state) {
         Shader shader = getShader(state);
         if (shader != null)
-            state.setResult(shader.getRadiance(state));
+            state.setResult(shade(shader, state));
         else
             state.setResult(Color.BLACK);
     }
@@ -345,80 +403,31 @@ class LightServer {
     Color shadeHit(ShadingState state) {
         state.getInstance().prepareShadingState(state);
         Shader shader = getShader(state);
-        return (shader != null) ? shader.getRadiance(state) : Color.BLACK;
-    }
-
-    private static final int hash(int x, int y) {
-        // long bits = java.lang.Double.doubleToLongBits(x);
-        // bits ^= java.lang.Double.doubleToLongBits(y) * 31;
-        // return (((int) bits) ^ ((int) (bits >> 32)));
-        return x ^ y;
+        return (shader != null) ? shade(shader, state) : Color.BLACK;
     }
 
-    private synchronized Color lookupShadingCache(ShadingState state, Shader shader) {
-        if (state.getNormal() == null)
-            return null;
-        cacheLookups++;
-        int cx = (int) (state.getRasterX() * shadingCacheResolution);
-        int cy = (int) (state.getRasterY() * shadingCacheResolution);
-        int hash = hash(cx, cy);
-        CacheEntry e = shadingCache[hash & (shadingCache.length - 1)];
-        if (e == null) {
-            cacheEmptyEntryMisses++;
-            return null;
+    private Color shade(Shader shader, ShadingState state) {
+        RenderStatistics stats = state.getIntersectionState().stats;
+        long t = stats.begin();
+        try {
+            return shader.getRadiance(state);
+        } finally {
+            stats.end(shader, t);
+            state.releaseGatherStates();
         }
-        // entry maps to correct pixel
-        if (e.cx == cx && e.cy == cy) {
-            // search further
-            for (Sample s = e.first; s != null; s = s.next) {
-                if (s.i != state.getInstance())
-                    continue;
-                // if (s.prim != state.getPrimitiveID())
-                // continue;
-                if (s.s != shader)
-                    continue;
-                if (state.getNormal().dot(s.nx, s.ny, s.nz) < 0.95f)
-                    continue;
-                // we have a match
-                cacheHits++;
-                return s.c;
-            }
-        } else
-            cacheWrongEntryMisses++;
-        return null;
     }
 
-    private synchronized void addShadingCache(ShadingState state, Shader shader, Color c) {
-        // don't cache samples with null normals
-        if (state.getNormal() == null)
-            return;
-        cacheEntryAdditions++;
-        int cx = (int) (state.getRasterX() * shadingCacheResolution);
-        int cy = (int) (state.getRasterY() * shadingCacheResolution);
-        int h = hash(cx, cy) & (shadingCache.length - 1);
-        CacheEntry e = shadingCache[h];
-        // new entry ?
-        if (e == null)
-            e = shadingCache[h] = new CacheEntry();
-        Sample s = new Sample();
-        s.i = state.getInstance();
-        // s.prim = state.getPrimitiveID();
-        s.s = shader;
-        s.c = c;
-        s.nx = state.getNormal().x;
-        s.ny = state.getNormal().y;
-        s.nz = state.getNormal().z;
-        if (e.cx == cx && e.cy == cy) {
-            // same pixel - just add to the front of the list
-            s.next = e.first;
-            e.first = s;
-        } else {
-            // different pixel - new list
-            e.cx = cx;
-            e.cy = cy;
-            s.next = null;
-            e.first = s;
+    private ShadingCache getShadingCache(IntersectionState istate) {
+        // each rendering thread owns its cache through its intersection state
+        if (istate.shadingCache == null || istate.shadingCacheGeneration != shadingCacheGeneration) {
+            ShadingCache cache = new ShadingCache(SHADING_CACHE_SIZE);
+            synchronized (shadingCaches) {
+                shadingCaches.add(cache);
+                istate.shadingCacheGeneration = shadingCacheGeneration;
+            }
+            istate.shadingCache = cache;
         }
+        return istate.shadingCache;
     }
 
     Color traceGlossy(ShadingState previous, Ray r, int i) {
@@ -426,7 +435,7 @@ class LightServer {
         if (previous.getReflectionDepth() >= maxReflectionDepth || previous.getDiffuseDepth() > 0)
             return Color.BLACK;
         IntersectionState istate = previous.getIntersectionState();
-        scene.trace(r, istate);
+        scene.trace(r, istate, RenderStatistics.GLOSSY);
         return istate.hit() ? shadeHit(ShadingState.createGlossyBounceState(previous, r, i)) : Color.BLACK;
     }
 
@@ -435,7 +444,7 @@ class LightServer {
         if (previous.getReflectionDepth() >= maxReflectionDepth || previous.getDiffuseDepth() > 0)
             return Color.BLACK;
         IntersectionState istate = previous.getIntersectionState();
-        scene.trace(r, istate);
+        scene.trace(r, istate, RenderStatistics.REFLECTION);
         return istate.hit() ? shadeHit(ShadingState.createReflectionBounceState(previous, r, i)) : Color.BLACK;
     }
 
@@ -444,7 +453,7 @@ class LightServer {
         if (previous.getRefractionDepth() >= maxRefractionDepth || previous.getDiffuseDepth() > 0)
             return Color.BLACK;
         IntersectionState istate = previous.getIntersectionState();
-        scene.trace(r, istate);
+        scene.trace(r, istate, RenderStatistics.REFRACTION);
         return istate.hit() ? shadeHit(ShadingState.createRefractionBounceState(previous, r, i)) : Color.BLACK;
     }
 
@@ -452,26 +461,56 @@ class LightServer {
         if (previous.getDiffuseDepth() >= maxDiffuseDepth)
             return null;
         IntersectionState istate = previous.getIntersectionState();
-        scene.trace(r, istate);
+        scene.trace(r, istate, RenderStatistics.GATHER);
         return istate.hit() ? ShadingState.createFinalGatherState(previous, r, i) : null;
     }
 
     Color getGlobalRadiance(ShadingState state) {
         if (giEngine == null)
             return Color.BLACK;
-        return giEngine.getGlobalRadiance(state);
+        RenderStatistics stats = state.getIntersectionState().stats;
+        long t = stats.begin();
+        try {
+            return giEngine.getGlobalRadiance(state);
+        } finally {
+            stats.end(giEngine, t);
+        }
     }
 
     Color getIrradiance(ShadingState state, Color diffuseReflectance) {
         // no gi engine, or we have already exceeded number of available bounces
         if (giEngine == null || state.getDiffuseDepth() >= maxDiffuseDepth)
             return Color.BLACK;
-        return giEngine.getIrradiance(state, diffuseReflectance);
+        RenderStatistics stats = state.getIntersectionState().stats;
+        long t = stats.begin();
+        try {
+            return giEngine.getIrradiance(state, diffuseReflectance);
+        } finally {
+            stats.end(giEngine, t);
+        }
+    }
+
+    private boolean useLightSelection() {
+        return maxLights > 0 && lightSelector != null && lightSelector.getNumSelectable() > maxLights;
     }
 
     void initLightSamples(ShadingState state) {
-        for (LightSource l : lights)
-            l.getSamples(state);
+        if (!useLightSelection()) {
+            for (LightSource l : lights)
+                l.getSamples(state);
+            return;
+        }
+        // lights without a power estimate are always sampled
+        for (int j : lightSelector.getUnselectable())
+            lights[j].getSamples(state);
+        // pick a bounded number of the remaining lights proportionally to
+        // their power, weighting each sample by its inverse probability
+        for (int k = 0; k < maxLights; k++) {
+            int j = lightSelector.sample(state.getLightSelectionRandom(k, maxLights));
+            state.setLightSampleScale(1.0f / (maxLights * lightSelector.getProbability(j)));
+            lights[j].getSamples(state);
+        }
+        state.setLightSampleScale(1);
     }
 
     void initCausticSamples(ShadingState state) {
@@ -7,12 +7,49 @@ import org.sunflow.util.FastHashMap;
  * This holds rendering objects as key, value pairs.
  */
 public final class Options extends ParameterList implements RenderObject {
+    // first option changed by the last update which can affect the lighting
+    private String modifiedName;
+
     public boolean update(ParameterList pl, SunflowAPI api) {
         // take all attributes, and update them into the current set
+        modifiedName = null;
         for (FastHashMap.Entry<String, Parameter> e : pl.list) {
-            list.put(e.getKey(), e.getValue());
+            Parameter p = list.put(e.getKey(), e.getValue());
+            if (modifiedName == null && (p == null || !p.hasSameValue(e.getValue())) && !isOutputOption(e.getKey()))
+                modifiedName = e.getKey();
             e.getValue().check();
         }
         return true;
     }
+
+    /**
+     * Options which only control what is displayed or written out, like a
+     * statistics file named after each frame, and never the lighting.
+     */
+    private static boolean isOutputOption(String name) {
+        return name.startsWith("stats.") || name.startsWith("aa.display");
+    }
+
+    /**
+     * Checks if the last update changed the value of any option which can
+     * affect the lighting. Setting options to the values they already have,
+     * or changing options which only control the output, does not count as a
+     * change.
+     * 
+     * @return <code>true</code> if some options were changed by the last
+     *         update, <code>false</code> otherwise
+     */
+    public boolean wasModified() {
+        return modifiedName != null;
+    }
+
+    /**
+     * Get the name of the first option changed by the last update, as
+     * reported by {@link #wasModified()}.
+     * 
+     * @return option name, or <code>null</code> if nothing was changed
+     */
+    public String getModifiedName() {
+        return modifiedName;
+    }
 }
\ No newline at end of file
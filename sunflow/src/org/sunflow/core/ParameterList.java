@@ -1,5 +1,7 @@
 package org.sunflow.core;
 
+import java.util.Arrays;
+
 import org.sunflow.image.Color;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.Point2;
@@ -34,6 +36,42 @@ public class ParameterList {
         numVerts = numFaces = numFaceVerts = 0;
     }
 
+    /**
+     * Creates a copy of the specified ParameterList. The parameter values are
+     * shared with the original list.
+     * 
+     * @param pl list to copy
+     */
+    public ParameterList(ParameterList pl) {
+        list = new FastHashMap<String, Parameter>();
+        for (FastHashMap.Entry<String, Parameter> e : pl.list)
+            list.put(e.getKey(), e.getValue());
+        numVerts = pl.numVerts;
+        numFaces = pl.numFaces;
+        numFaceVerts = pl.numFaceVerts;
+    }
+
+    /**
+     * Checks if the specified list holds the same parameters with the same
+     * values as this one.
+     * 
+     * @param pl list to compare to
+     * @return <code>true</code> if both lists are identical,
+     *         <code>false</code> otherwise
+     */
+    public boolean hasSameValues(ParameterList pl) {
+        if (numVerts != pl.numVerts || numFaces != pl.numFaces || numFaceVerts != pl.numFaceVerts)
+            return false;
+        if (list.size() != pl.list.size())
+            return false;
+        for (FastHashMap.Entry<String, Parameter> e : list) {
+            Parameter p = pl.list.get(e.getKey());
+            if (p == null || !p.hasSameValue(e.getValue()))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Clears the list of all its members. If some members were never used, a
      * warning will be printed to remind the user something may be wrong.
@@ -631,6 +669,20 @@ public class ParameterList {
             checked = true;
         }
 
+        protected boolean hasSameValue(Parameter p) {
+            if (type != p.type || interp != p.interp)
+                return false;
+            if (obj instanceof float[])
+                return Arrays.equals((float[]) obj, (float[]) p.obj);
+            if (obj instanceof int[])
+                return Arrays.equals((int[]) obj, (int[]) p.obj);
+            if (obj instanceof String[])
+                return Arrays.equals((String[]) obj, (String[]) p.obj);
+            if (obj instanceof Color)
+                return Arrays.equals(((Color) obj).getRGB(), ((Color) p.obj).getRGB());
+            return obj.equals(p.obj);
+        }
+
         public String toString() {
             return String.format("%s%s[%d]", interp == InterpolationType.NONE ? "" : interp.name().toLowerCase() + " ", type.name().toLowerCase(), size());
         }
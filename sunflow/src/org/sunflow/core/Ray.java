@@ -16,7 +16,7 @@ public final class Ray {
     private float tMax;
     private static final float EPSILON = 0;// 0.01f;
 
-    private Ray() {
+    Ray() {
     }
 
     /**
@@ -56,6 +56,19 @@ public final class Ray {
      * @param d ray direction (need not be normalized)
      */
     public Ray(Point3 o, Vector3 d) {
+        set(o, d);
+    }
+
+    /**
+     * Resets this ray to point from the given origin to the given direction.
+     * The ray is given infinite length. This allows ray objects to be recycled
+     * rather than reallocated.
+     * 
+     * @param o ray origin
+     * @param d ray direction (need not be normalized)
+     * @return reference to this ray
+     */
+    final Ray set(Point3 o, Vector3 d) {
         ox = o.x;
         oy = o.y;
         oz = o.z;
@@ -68,6 +81,7 @@ public final class Ray {
         dz *= in;
         tMin = EPSILON;
         tMax = Float.POSITIVE_INFINITY;
+        return this;
     }
 
     /**
@@ -103,16 +117,51 @@ public final class Ray {
     public Ray transform(Matrix4 m) {
         if (m == null)
             return this;
-        Ray r = new Ray();
-        r.ox = m.transformPX(ox, oy, oz);
-        r.oy = m.transformPY(ox, oy, oz);
-        r.oz = m.transformPZ(ox, oy, oz);
-        r.dx = m.transformVX(dx, dy, dz);
-        r.dy = m.transformVY(dx, dy, dz);
-        r.dz = m.transformVZ(dx, dy, dz);
-        r.tMin = tMin;
-        r.tMax = tMax;
-        return r;
+        return transform(m, new Ray());
+    }
+
+    /**
+     * Transform this ray by the given matrix and store the result in dest,
+     * which must not be this ray. This avoids allocating a new ray for every
+     * instance a ray enters.
+     * 
+     * @param m matrix to transform the ray by
+     * @param dest ray to store the result in
+     * @return dest
+     */
+    public Ray transform(Matrix4 m, Ray dest) {
+        dest.ox = m.transformPX(ox, oy, oz);
+        dest.oy = m.transformPY(ox, oy, oz);
+        dest.oz = m.transformPZ(ox, oy, oz);
+        dest.dx = m.transformVX(dx, dy, dz);
+        dest.dy = m.transformVY(dx, dy, dz);
+        dest.dz = m.transformVZ(dx, dy, dz);
+        dest.tMin = tMin;
+        dest.tMax = tMax;
+        return dest;
+    }
+
+    /**
+     * Offset the origin of this ray by the given vector and store the result
+     * in dest, which may be this ray. This is the same as transforming the
+     * ray by a translation matrix, but cheaper.
+     * 
+     * @param x x component of the translation
+     * @param y y component of the translation
+     * @param z z component of the translation
+     * @param dest ray to store the result in
+     * @return dest
+     */
+    public Ray translate(float x, float y, float z, Ray dest) {
+        dest.ox = ox + x;
+        dest.oy = oy + y;
+        dest.oz = oz + z;
+        dest.dx = dx;
+        dest.dy = dy;
+        dest.dz = dz;
+        dest.tMin = tMin;
+        dest.tMax = tMax;
+        return dest;
     }
 
     /**
@@ -0,0 +1,24 @@
+package org.sunflow.core;
+
+/**
+ * Represents an {@link AccelerationStructure} which can be updated in place
+ * when the bounds of its primitives change, as long as no primitives are added
+ * or removed. This is much cheaper than a rebuild but the quality of the
+ * structure degrades as primitives move away from where they were at build
+ * time.
+ */
+public interface RefittableAccelerationStructure extends AccelerationStructure {
+    /**
+     * Update the structure built by the last call to
+     * {@link AccelerationStructure#build(PrimitiveList)} to the current bounds
+     * of its primitives. The number of primitives must not have changed.
+     * 
+     * @param maxCostIncrease how much worse than the freshly built structure
+     *            the refit structure may become, as a ratio of estimated
+     *            traversal costs
+     * @return <code>true</code> if the structure was refit,
+     *         <code>false</code> if it has degraded too much and must be
+     *         rebuilt
+     */
+    public boolean refit(float maxCostIncrease);
+}
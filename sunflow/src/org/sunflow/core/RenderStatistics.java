@@ -0,0 +1,233 @@
+package org.sunflow.core;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Counters gathered while rendering a frame. Each thread updates its own
+ * instance, reached through its {@link IntersectionState}, so the hot paths
+ * need no synchronization. The per-thread instances are merged by the
+ * {@link Scene} once the frame is done. Attributing time to shaders and global
+ * illumination engines requires reading the clock around every call and is
+ * only done when enabled.
+ */
+public final class RenderStatistics {
+    static final int EYE = 0;
+    static final int SHADOW = 1;
+    static final int REFLECTION = 2;
+    static final int REFRACTION = 3;
+    static final int GLOSSY = 4;
+    static final int GATHER = 5;
+    static final int PHOTON = 6;
+    private static final String[] RAY_TYPES = { "eye", "shadow",
+            "reflection", "refraction", "glossy", "gather", "photon" };
+
+    final long[] rays;
+    long traversalSteps;
+    long primitiveTests;
+
+    // time attribution: calls and exclusive time per shader or gi engine
+    private boolean timing;
+    private final IdentityHashMap<Object, long[]> times;
+    private long[] childTimes;
+    private int depth;
+
+    // bucket coordinates and render times
+    private final ArrayList<long[]> buckets;
+
+    RenderStatistics() {
+        rays = new long[RAY_TYPES.length];
+        times = new IdentityHashMap<Object, long[]>();
+        childTimes = new long[16];
+        buckets = new ArrayList<long[]>();
+    }
+
+    void reset(boolean timing) {
+        this.timing = timing;
+        Arrays.fill(rays, 0);
+        traversalSteps = primitiveTests = 0;
+        times.clear();
+        depth = 0;
+        buckets.clear();
+    }
+
+    /**
+     * Start timing a call to a shader or global illumination engine.
+     * 
+     * @return start time to pass to {@link #end(Object, long)}
+     */
+    long begin() {
+        if (!timing)
+            return 0;
+        if (depth == childTimes.length) {
+            long[] t = new long[2 * depth];
+            System.arraycopy(childTimes, 0, t, 0, depth);
+            childTimes = t;
+        }
+        childTimes[depth++] = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Stop timing a call and attribute the time spent in it, minus the time of
+     * the calls nested in it, to the specified object.
+     * 
+     * @param key shader or global illumination engine which was called
+     * @param start value returned by the matching call to {@link #begin()}
+     */
+    void end(Object key, long start) {
+        if (!timing)
+            return;
+        long elapsed = System.nanoTime() - start;
+        depth--;
+        long[] t = times.get(key);
+        if (t == null)
+            times.put(key, t = new long[2]);
+        t[0]++;
+        t[1] += elapsed - childTimes[depth];
+        if (depth > 0)
+            childTimes[depth - 1] += elapsed;
+    }
+
+    /**
+     * Record the time it took to render a bucket.
+     * 
+     * @param bx bucket x coordinate
+     * @param by bucket y coordinate
+     * @param nanos render time in nanoseconds
+     */
+    public void addBucket(int bx, int by, long nanos) {
+        buckets.add(new long[] { bx, by, nanos });
+    }
+
+    void add(RenderStatistics s) {
+        timing |= s.timing;
+        for (int i = 0; i < rays.length; i++)
+            rays[i] += s.rays[i];
+        traversalSteps += s.traversalSteps;
+        primitiveTests += s.primitiveTests;
+        for (Map.Entry<Object, long[]> e : s.times.entrySet()) {
+            long[] t = times.get(e.getKey());
+            if (t == null)
+                times.put(e.getKey(), t = new long[2]);
+            t[0] += e.getValue()[0];
+            t[1] += e.getValue()[1];
+        }
+        buckets.addAll(s.buckets);
+    }
+
+    private long getTotalRays() {
+        long n = 0;
+        for (long r : rays)
+            n += r;
+        return n;
+    }
+
+    private ArrayList<Map.Entry<Object, long[]>> getSortedTimes() {
+        ArrayList<Map.Entry<Object, long[]>> list = new ArrayList<Map.Entry<Object, long[]>>(times.entrySet());
+        Collections.sort(list, new Comparator<Map.Entry<Object, long[]>>() {
+            public int compare(Map.Entry<Object, long[]> a, Map.Entry<Object, long[]> b) {
+                return a.getValue()[1] < b.getValue()[1] ? 1 : (a.getValue()[1] == b.getValue()[1] ? 0 : -1);
+            }
+        });
+        return list;
+    }
+
+    private static String getName(Object o, Map<Object, String> names) {
+        String name = names.get(o);
+        return name != null ? name : o.getClass().getSimpleName();
+    }
+
+    void print(Timer renderTime, Map<Object, String> names) {
+        long total = getTotalRays();
+        double seconds = renderTime.seconds();
+        UI.printInfo(Module.SCENE, "Render stats:");
+        UI.printInfo(Module.SCENE, "  * Render time:         %s", renderTime);
+        UI.printInfo(Module.SCENE, "  * Rays traced:         %d (%.0f per second)", total, seconds > 0 ? total / seconds : 0);
+        for (int i = 0; i < rays.length; i++)
+            if (rays[i] > 0)
+                UI.printInfo(Module.SCENE, "      - %-17s%d", RAY_TYPES[i], rays[i]);
+        UI.printInfo(Module.SCENE, "  * Traversal steps:     %.2f per ray", total > 0 ? (double) traversalSteps / total : 0);
+        UI.printInfo(Module.SCENE, "  * Primitive tests:     %.2f per ray", total > 0 ? (double) primitiveTests / total : 0);
+        if (!buckets.isEmpty()) {
+            long sum = 0;
+            long[] slowest = buckets.get(0);
+            for (long[] b : buckets) {
+                sum += b[2];
+                if (b[2] > slowest[2])
+                    slowest = b;
+            }
+            UI.printInfo(Module.SCENE, "  * Buckets:             %d (average %s, slowest %s at %d, %d)", buckets.size(), Timer.toString(sum / buckets.size()), Timer.toString(slowest[2]), slowest[0], slowest[1]);
+        }
+        if (timing) {
+            UI.printInfo(Module.SCENE, "  * Shading time:");
+            for (Map.Entry<Object, long[]> e : getSortedTimes())
+                UI.printInfo(Module.SCENE, "      - %-17s%s (%d calls)", getName(e.getKey(), names), Timer.toString(e.getValue()[1]), e.getValue()[0]);
+        }
+    }
+
+    /**
+     * Write the statistics to a JSON file.
+     */
+    void save(String filename, Timer renderTime, int width, int height, int threads, Map<Object, String> names) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(filename));
+        try {
+            long total = getTotalRays();
+            out.println("{");
+            out.printf(Locale.US, "  \"resolution\": [%d, %d],%n", width, height);
+            out.printf(Locale.US, "  \"threads\": %d,%n", threads);
+            out.printf(Locale.US, "  \"renderSeconds\": %.6f,%n", renderTime.seconds());
+            out.println("  \"rays\": {");
+            for (int i = 0; i < rays.length; i++)
+                out.printf(Locale.US, "    \"%s\": %d,%n", RAY_TYPES[i], rays[i]);
+            out.printf(Locale.US, "    \"total\": %d%n", total);
+            out.println("  },");
+            out.printf(Locale.US, "  \"raysPerSecond\": %.1f,%n", renderTime.seconds() > 0 ? total / renderTime.seconds() : 0);
+            out.printf(Locale.US, "  \"traversalSteps\": %d,%n", traversalSteps);
+            out.printf(Locale.US, "  \"primitiveTests\": %d,%n", primitiveTests);
+            out.println("  \"shading\": [");
+            ArrayList<Map.Entry<Object, long[]>> sorted = getSortedTimes();
+            for (int i = 0; i < sorted.size(); i++) {
+                Map.Entry<Object, long[]> e = sorted.get(i);
+                String type = e.getKey() instanceof GIEngine ? "gi" : "shader";
+                out.printf(Locale.US, "    { \"name\": \"%s\", \"type\": \"%s\", \"class\": \"%s\", \"calls\": %d, \"seconds\": %.6f }%s%n", escape(getName(e.getKey(), names)), type, e.getKey().getClass().getName(), e.getValue()[0], e.getValue()[1] * 1e-9, i < sorted.size() - 1 ? "," : "");
+            }
+            out.println("  ],");
+            out.println("  \"buckets\": [");
+            for (int i = 0; i < buckets.size(); i++) {
+                long[] b = buckets.get(i);
+                out.printf(Locale.US, "    { \"x\": %d, \"y\": %d, \"seconds\": %.6f }%s%n", b[0], b[1], b[2] * 1e-9, i < buckets.size() - 1 ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                b.append('\\').append(c);
+            else if (c < 0x20)
+                b.append(String.format("\\u%04x", (int) c));
+            else
+                b.append(c);
+        }
+        return b.toString();
+    }
+}
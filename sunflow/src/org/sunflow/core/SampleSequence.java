@@ -0,0 +1,29 @@
+package org.sunflow.core;
+
+/**
+ * Represents a low discrepancy sequence of points in the unit hypercube,
+ * used to draw all the random numbers of the renderer. Implementations must
+ * be immutable so that all rendering threads can share them.
+ */
+public interface SampleSequence {
+    /**
+     * Get one coordinate of a point of the sequence.
+     * 
+     * @param dim dimension to sample
+     * @param i index of the point
+     * @return value of the coordinate in [0,1)
+     */
+    public double get(int dim, int i);
+
+    /**
+     * Get several consecutive coordinates of a point of the sequence at once.
+     * The array is filled with the coordinates <code>dim</code> to
+     * <code>dim + values.length - 1</code>, so it can be reused for all the
+     * points of a render.
+     * 
+     * @param dim first dimension to sample
+     * @param i index of the point
+     * @param values array receiving the coordinates
+     */
+    public void get(int dim, int i, double[] values);
+}
@@ -1,11 +1,17 @@
 package org.sunflow.core;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import org.sunflow.core.display.FrameDisplay;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -29,6 +35,7 @@ public class Scene {
     private AccelerationStructure bakingAccel;
 
     private boolean rebuildAccel;
+    private boolean refitAccel;
 
     // image size
     private int imageWidth;
@@ -37,6 +44,14 @@ public class Scene {
     // global options
     private int threads;
     private boolean lowPriority;
+    private int textureCacheMemory;
+    private Options lastOptions;
+
+    // render statistics
+    private final ArrayList<RenderStatistics> statistics;
+    private int statisticsGeneration;
+    private boolean statisticsTiming;
+    private Map<Object, String> shaderNames;
 
     /**
      * Creates an empty scene.
@@ -57,8 +72,16 @@ public class Scene {
         imageHeight = 480;
         threads = 0;
         lowPriority = true;
+        textureCacheMemory = -1;
+        lastOptions = null;
 
         rebuildAccel = true;
+        refitAccel = false;
+
+        statistics = new ArrayList<RenderStatistics>();
+        statisticsGeneration = 0;
+        statisticsTiming = false;
+        shaderNames = new IdentityHashMap<Object, String>();
     }
 
     /**
@@ -102,6 +125,38 @@ public class Scene {
         infiniteInstanceList = new InstanceList(infinite);
         instanceList = new InstanceList(instances);
         rebuildAccel = true;
+        lightServer.invalidateLighting();
+    }
+
+    /**
+     * Notify the scene that the bounds of some of its regular instances have
+     * changed, without any instances being added or removed. The instance
+     * acceleration structure will be refit instead of rebuilt if it supports
+     * it and has not degraded too much.
+     */
+    public void updateInstanceBounds() {
+        refitAccel = true;
+        lightServer.invalidateLighting();
+    }
+
+    /**
+     * Get the sequence all random numbers of the current render are drawn
+     * from, as selected by the <code>sampler.sequence</code> option. It is
+     * only valid once the lights have been built for the render.
+     * 
+     * @return sample sequence of the current render
+     */
+    public SampleSequence getSampleSequence() {
+        return lightServer.getSampleSequence();
+    }
+
+    /**
+     * Notify the scene that some objects other than the camera have changed.
+     * Global illumination data and caustic photons are only computed again
+     * after such a change, or when rendering with different options.
+     */
+    public void invalidateLighting() {
+        lightServer.invalidateLighting();
     }
 
     /**
@@ -127,6 +182,33 @@ public class Scene {
         lightServer.setShaderOverride(shader, photonOverride);
     }
 
+    /**
+     * Set the names under which shaders are reported in the render statistics.
+     * 
+     * @param names map from shader object to name
+     */
+    public void setShaderNames(Map<Object, String> names) {
+        shaderNames = names;
+    }
+
+    /**
+     * Get the statistics counters for the thread owning the specified
+     * intersection state. The counters are reset at the start of each frame.
+     * 
+     * @param state intersection state of the calling thread
+     * @return statistics counters of the calling thread
+     */
+    public RenderStatistics getStatistics(IntersectionState state) {
+        if (state.statsGeneration != statisticsGeneration) {
+            state.stats.reset(statisticsTiming);
+            synchronized (statistics) {
+                statistics.add(state.stats);
+            }
+            state.statsGeneration = statisticsGeneration;
+        }
+        return state.stats;
+    }
+
     /**
      * The provided instance will be considered for lightmap baking. If the
      * specified instance is <code>null</code>, lightmap baking will be
@@ -149,13 +231,15 @@ public class Scene {
      * @param time motion blur sampling variable
      * @param instance QMC instance seed
      * @return a shading state for the intersected primitive, or
-     *         <code>null</code> if nothing is seen through the specifieFd
+     *         <code>null</code> if nothing is seen through the specified
      *         point
      */
     public ShadingState getRadiance(IntersectionState istate, float rx, float ry, double lensU, double lensV, double time, int instance) {
+        // all the rays of this sample see moving instances at the same time
+        istate.time = (float) time;
         if (bakingPrimitives == null) {
             Ray r = camera.getRay(rx, ry, imageWidth, imageHeight, lensU, lensV, time);
-            return r != null ? lightServer.getRadiance(rx, ry, instance, r, istate) : null;
+            return r != null ? lightServer.getRadiance(rx, ry, lensU, lensV, time, instance, r, istate) : null;
         } else {
             Ray r = new Ray(rx / imageWidth, ry / imageHeight, -1, 0, 0, 1);
             traceBake(r, istate);
@@ -179,6 +263,16 @@ public class Scene {
         }
     }
 
+    /**
+     * Generate the eye ray through the specified raster position, used to
+     * compute ray differentials by finite differences.
+     * 
+     * @return the camera ray, or <code>null</code> if there is none
+     */
+    Ray getCameraRay(float rx, float ry, double lensU, double lensV, double time) {
+        return camera.getRay(rx, ry, imageWidth, imageHeight, lensU, lensV, time);
+    }
+
     /**
      * Get scene world space bounding box.
      * 
@@ -188,7 +282,8 @@ public class Scene {
         return instanceList.getWorldBounds(null);
     }
 
-    void trace(Ray r, IntersectionState state) {
+    void trace(Ray r, IntersectionState state, int type) {
+        getStatistics(state).rays[type]++;
         // reset object
         state.instance = null;
         state.current = null;
@@ -200,11 +295,32 @@ public class Scene {
     }
 
     Color traceShadow(Ray r, IntersectionState state) {
-        trace(r, state);
-        return state.hit() ? Color.WHITE : Color.BLACK;
+        getStatistics(state).rays[RenderStatistics.SHADOW]++;
+        // reset object
+        state.instance = null;
+        state.current = null;
+        state.anyHit = true;
+        // shadow rays traced by a thread are coherent, so the primitive which
+        // blocked the last one is likely to block this one as well
+        if (state.occluder != null)
+            state.occluder.intersectPrimitive(r, state.occluderId, state);
+        for (int i = 0; i < infiniteInstanceList.getNumPrimitives() && !state.hit(); i++)
+            infiniteInstanceList.intersectPrimitive(r, i, state);
+        if (!state.hit()) {
+            // reset for next accel structure
+            state.current = null;
+            intAccel.intersectAny(r, state);
+        }
+        state.anyHit = false;
+        if (!state.hit())
+            return Color.BLACK;
+        state.occluder = state.instance;
+        state.occluderId = state.id;
+        return Color.WHITE;
     }
 
     void traceBake(Ray r, IntersectionState state) {
+        getStatistics(state).rays[RenderStatistics.EYE]++;
         // set the instance as if tracing a regular instanced object
         state.current = bakingInstance;
         // reset object
@@ -246,9 +362,20 @@ public class Scene {
             return;
         }
 
+        // lighting computed with other options can't be reused
+        if (options != lastOptions)
+            lightServer.invalidateLighting();
+        lastOptions = options;
+
         // read from options
         threads = options.getInt("threads", 0);
         lowPriority = options.getBoolean("threads.lowPriority", true);
+        int memory = options.getInt("texture.cache.memory", 256);
+        if (memory != textureCacheMemory) {
+            // only resize the shared tile cache when the option changes
+            TextureCache.setMemoryBudget((long) memory << 20);
+            textureCacheMemory = memory;
+        }
         imageWidth = options.getInt("resolutionX", 640);
         imageHeight = options.getInt("resolutionY", 480);
         // limit resolution to 16k
@@ -270,30 +397,69 @@ public class Scene {
             acceltype = accelName;
         }
         UI.printInfo(Module.SCENE, "  * Instance accel:      %s", acceltype);
+        if (!rebuildAccel && refitAccel) {
+            // only instance bounds changed, try to update the structure
+            float maxCostIncrease = options.getFloat("accel.refit.threshold", 1.5f);
+            if (intAccel instanceof RefittableAccelerationStructure) {
+                rebuildAccel = !((RefittableAccelerationStructure) intAccel).refit(maxCostIncrease);
+                UI.printInfo(Module.SCENE, "  * Instance refit:      %s", rebuildAccel ? "degraded - rebuilding" : "done");
+            } else
+                rebuildAccel = true;
+        }
         if (rebuildAccel) {
             intAccel = AccelerationStructureFactory.create(acceltype, instanceList.getNumPrimitives(), false);
             intAccel.build(instanceList);
             rebuildAccel = false;
         }
+        refitAccel = false;
         UI.printInfo(Module.SCENE, "  * Scene bounds:        %s", getBounds());
         UI.printInfo(Module.SCENE, "  * Scene center:        %s", getBounds().getCenter());
         UI.printInfo(Module.SCENE, "  * Scene diameter:      %.2f", getBounds().getExtents().length());
         UI.printInfo(Module.SCENE, "  * Lightmap bake:       %s", bakingInstance != null ? (bakingViewDependent ? "view" : "ortho") : "off");
         if (sampler == null)
             return;
+        // start counting from scratch, including photon tracing
+        String statsFile = options.getString("stats.file", null);
+        statisticsTiming = options.getBoolean("stats.timing", statsFile != null);
+        synchronized (statistics) {
+            statistics.clear();
+            statisticsGeneration++;
+        }
         if (!lightServer.build(options))
             return;
         // render
         UI.printInfo(Module.SCENE, "Rendering ...");
         sampler.prepare(options, this, imageWidth, imageHeight);
+        Timer renderTime = new Timer();
+        renderTime.start();
         sampler.render(display);
+        renderTime.end();
         lightServer.showStats();
+        showStats(renderTime, statsFile);
         // discard baking tesselation/accel structure
         bakingPrimitives = null;
         bakingAccel = null;
         UI.printInfo(Module.SCENE, "Done.");
     }
 
+    private void showStats(Timer renderTime, String statsFile) {
+        // merge statistics from all threads
+        RenderStatistics total = new RenderStatistics();
+        synchronized (statistics) {
+            for (RenderStatistics s : statistics)
+                total.add(s);
+        }
+        total.print(renderTime, shaderNames);
+        if (statsFile == null)
+            return;
+        try {
+            total.save(statsFile, renderTime, imageWidth, imageHeight, getThreads(), shaderNames);
+            UI.printInfo(Module.SCENE, "Saved render statistics to \"%s\"", statsFile);
+        } catch (IOException e) {
+            UI.printError(Module.SCENE, "Unable to save render statistics to \"%s\": %s", statsFile, e.getMessage());
+        }
+    }
+
     /**
      * Create a photon map as prescribed by the given {@link PhotonStore}.
      * 
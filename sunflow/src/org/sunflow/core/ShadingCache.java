@@ -0,0 +1,127 @@
+package org.sunflow.core;
+
+import org.sunflow.image.Color;
+
+/**
+ * Fixed size, open addressing cache of shading results owned by a single
+ * rendering thread. Entries are keyed by a cell in raster space, the
+ * intersected instance, the shader and the shading normal. Since each thread
+ * owns its own cache no locking is required; statistics are kept locally and
+ * merged by the {@link LightServer} when rendering is over.
+ */
+final class ShadingCache {
+    private static final int MAX_PROBES = 8;
+
+    private final int mask;
+    private final int[] cells; // 2 per entry
+    private final Instance[] instances;
+    private final Shader[] shaders;
+    private final float[] normals; // 3 per entry
+    private final Color[] colors;
+
+    // statistics
+    int usedEntries;
+    long lookups;
+    long emptyEntryMisses;
+    long wrongEntryMisses;
+    long entryAdditions;
+    long hits;
+
+    /**
+     * Creates an empty cache.
+     * 
+     * @param size number of entries, must be a power of two
+     */
+    ShadingCache(int size) {
+        mask = size - 1;
+        cells = new int[2 * size];
+        instances = new Instance[size];
+        shaders = new Shader[size];
+        normals = new float[3 * size];
+        colors = new Color[size];
+    }
+
+    final int size() {
+        return mask + 1;
+    }
+
+    private static final int hash(int cx, int cy) {
+        int h = cx * 0x8da6b343 ^ cy * 0xd8163841;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Looks for a cached result matching the specified shading state. The
+     * cached color is returned without copying, like shader results it must
+     * not be modified.
+     * 
+     * @param state state being shaded, must have a valid normal
+     * @param shader shader which would be run
+     * @param cx raster cell x coordinate
+     * @param cy raster cell y coordinate
+     * @return the cached result, or <code>null</code>
+     */
+    final Color lookup(ShadingState state, Shader shader, int cx, int cy) {
+        lookups++;
+        Instance instance = state.getInstance();
+        float nx = state.getNormal().x;
+        float ny = state.getNormal().y;
+        float nz = state.getNormal().z;
+        for (int p = 0, h = hash(cx, cy); p < MAX_PROBES; p++, h++) {
+            int e = h & mask;
+            if (instances[e] == null) {
+                emptyEntryMisses++;
+                return null;
+            }
+            if (cells[2 * e] != cx || cells[2 * e + 1] != cy)
+                continue;
+            if (instances[e] != instance || shaders[e] != shader)
+                continue;
+            if (nx * normals[3 * e] + ny * normals[3 * e + 1] + nz * normals[3 * e + 2] < 0.95f)
+                continue;
+            // we have a match
+            hits++;
+            return colors[e];
+        }
+        wrongEntryMisses++;
+        return null;
+    }
+
+    /**
+     * Stores a shading result. The first free slot along the probe sequence is
+     * used. When there is none, a slot belonging to another raster cell is
+     * evicted, or the first slot if all of them belong to the current cell.
+     * 
+     * @param state state which was shaded, must have a valid normal
+     * @param shader shader which was run
+     * @param cx raster cell x coordinate
+     * @param cy raster cell y coordinate
+     * @param c shading result, it is referenced, not copied
+     */
+    final void add(ShadingState state, Shader shader, int cx, int cy, Color c) {
+        entryAdditions++;
+        int h = hash(cx, cy);
+        int slot = h & mask;
+        for (int p = 0; p < MAX_PROBES; p++, h++) {
+            int e = h & mask;
+            if (instances[e] == null) {
+                usedEntries++;
+                slot = e;
+                break;
+            }
+            if (cells[2 * e] != cx || cells[2 * e + 1] != cy) {
+                // stale entry from another cell, keep looking for a free one
+                if (cells[2 * slot] == cx && cells[2 * slot + 1] == cy)
+                    slot = e;
+            }
+        }
+        cells[2 * slot] = cx;
+        cells[2 * slot + 1] = cy;
+        instances[slot] = state.getInstance();
+        shaders[slot] = shader;
+        normals[3 * slot] = state.getNormal().x;
+        normals[3 * slot + 1] = state.getNormal().y;
+        normals[3 * slot + 2] = state.getNormal().z;
+        colors[slot] = c;
+    }
+}
@@ -13,7 +13,11 @@ import org.sunflow.math.Vector3;
 
 /**
  * Represents a point to be shaded and provides various options for the shading
- * of this point, including spawning of new rays.
+ * of this point, including spawning of new rays. Shading states are recycled
+ * by the renderer along each path, so a state and the points and vectors it
+ * returns should not be kept once the shading call that received them has
+ * returned. States returned by {@link #traceFinalGather(Ray, int)} are only
+ * recycled once that call has returned as well.
  */
 public final class ShadingState implements Iterable<LightSample> {
     private IntersectionState istate;
@@ -29,12 +33,16 @@ public final class ShadingState implements Iterable<LightSample> {
     private boolean behind;
     private float hitU, hitV;
     private Instance instance;
+    // transforms of a moving instance at the time of the ray
+    private Matrix4 o2w, w2o;
+    private Matrix4 motionO2W, motionW2O;
     private int primitiveID;
     private Ray r;
     private int d; // quasi monte carlo instance variables
     private int i; // quasi monte carlo instance variables
-    private double qmcD0I;
+    private double qmcD0I; // computed on first use
     private double qmcD1I;
+    private boolean qmcValid;
     private Shader shader;
     private Modifier modifier;
     private int diffuseDepth;
@@ -43,10 +51,41 @@ public final class ShadingState implements Iterable<LightSample> {
     private boolean includeLights;
     private boolean includeSpecular;
     private LightSample lightSample;
+    private float lightSampleScale;
     private PhotonStore map;
+    private int poolDepth;
+    // final gather states traced from this state, recycled once it is done
+    private ShadingState[] gatherStates;
+    private int numGatherStates;
+    // storage recycled by init()
+    private Point3 pStorage;
+    private Vector3 nStorage;
+    private Point2 texStorage;
+    private Vector3 ngStorage;
+    // ray differentials, computed on first use
+    private ShadingState previous;
+    private int differentialSource;
+    private boolean differentialsComputed;
+    private boolean differentialsValid;
+    private double lensU, lensV, time;
+    private boolean hasSurfaceDerivatives;
+    private Vector3 dOdx, dOdy, dDdx, dDdy;
+    private Vector3 dPdx, dPdy;
+    private Vector3 dPdu, dPdv;
+    private float dudx, dudy, dvdx, dvdy;
+    private float curvature;
+    private static final int DIFFERENTIALS_NONE = 0;
+    private static final int DIFFERENTIALS_CAMERA = 1;
+    private static final int DIFFERENTIALS_REFLECTION = 2;
+    private static final int DIFFERENTIALS_REFRACTION = 3;
+    // light selection draws from its own dimensions, one per depth, past the
+    // two dimensions used by each state along all but very long paths (much
+    // higher halton dimensions are poorly distributed over few samples)
+    private static final int LIGHT_SELECTION_DIMENSION = 40;
+    private static final int LIGHT_SELECTION_DEPTHS = 16;
 
     static ShadingState createPhotonState(Ray r, IntersectionState istate, int i, PhotonStore map, LightServer server) {
-        ShadingState s = new ShadingState(null, istate, r, i, 4);
+        ShadingState s = create(null, istate, r, i, 4);
         s.server = server;
         s.map = map;
         return s;
@@ -54,7 +93,10 @@ public final class ShadingState implements Iterable<LightSample> {
     }
 
     static ShadingState createState(IntersectionState istate, float rx, float ry, Ray r, int i, LightServer server) {
-        ShadingState s = new ShadingState(null, istate, r, i, 4);
+        // eye states are returned to the renderer, which may hold several of
+        // them, so they are not recycled
+        ShadingState s = new ShadingState();
+        s.reset(null, istate, r, i, 4, 0);
         s.server = server;
         s.rx = rx;
         s.ry = ry;
@@ -62,13 +104,13 @@ public final class ShadingState implements Iterable<LightSample> {
     }
 
     static ShadingState createDiffuseBounceState(ShadingState previous, Ray r, int i) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
+        ShadingState s = create(previous, previous.istate, r, i, 2);
         s.diffuseDepth++;
         return s;
     }
 
     static ShadingState createGlossyBounceState(ShadingState previous, Ray r, int i) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
+        ShadingState s = create(previous, previous.istate, r, i, 2);
         s.includeLights = false;
         s.includeSpecular = false;
         s.reflectionDepth++;
@@ -76,38 +118,98 @@ public final class ShadingState implements Iterable<LightSample> {
     }
 
     static ShadingState createReflectionBounceState(ShadingState previous, Ray r, int i) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
+        ShadingState s = create(previous, previous.istate, r, i, 2);
         s.reflectionDepth++;
+        s.differentialSource = DIFFERENTIALS_REFLECTION;
         return s;
     }
 
     static ShadingState createRefractionBounceState(ShadingState previous, Ray r, int i) {
-        ShadingState s = new ShadingState(previous, previous.istate, r, i, 2);
+        ShadingState s = create(previous, previous.istate, r, i, 2);
         s.refractionDepth++;
+        s.differentialSource = DIFFERENTIALS_REFRACTION;
         return s;
     }
 
     static ShadingState createFinalGatherState(ShadingState state, Ray r, int i) {
-        ShadingState finalGatherState = new ShadingState(state, state.istate, r, i, 2);
+        // final gather states are returned to the caller, which may trace
+        // more rays while holding them, so they do not come from the depth
+        // pool but are recycled once the state which traced them is done
+        ShadingState finalGatherState = state.istate.getFreeState();
+        finalGatherState.reset(state, state.istate, r, i, 2, state.poolDepth + 1);
+        if (state.gatherStates == null)
+            state.gatherStates = new ShadingState[4];
+        else if (state.numGatherStates == state.gatherStates.length) {
+            ShadingState[] states = new ShadingState[2 * state.gatherStates.length];
+            System.arraycopy(state.gatherStates, 0, states, 0, state.numGatherStates);
+            state.gatherStates = states;
+        }
+        state.gatherStates[state.numGatherStates++] = finalGatherState;
         finalGatherState.diffuseDepth++;
         finalGatherState.includeLights = false;
         finalGatherState.includeSpecular = false;
         return finalGatherState;
     }
 
-    private ShadingState(ShadingState previous, IntersectionState istate, Ray r, int i, int d) {
+    private static ShadingState create(ShadingState previous, IntersectionState istate, Ray r, int i, int d) {
+        // states are recycled per depth since only one of them can be alive
+        // at a given depth of the current path
+        int depth = previous == null ? 0 : previous.poolDepth + 1;
+        ShadingState s = istate.getShadingState(depth);
+        if (s == null)
+            s = new ShadingState();
+        s.reset(previous, istate, r, i, d, depth);
+        return s;
+    }
+
+    ShadingState() {
+    }
+
+    /**
+     * Hand the final gather states traced from this state back to its
+     * intersection state for reuse. This is only safe once the shading of
+     * this state is complete.
+     */
+    final void releaseGatherStates() {
+        for (int k = 0; k < numGatherStates; k++) {
+            istate.releaseState(gatherStates[k]);
+            gatherStates[k] = null;
+        }
+        numGatherStates = 0;
+    }
+
+    private void reset(ShadingState previous, IntersectionState istate, Ray r, int i, int d, int depth) {
+        // the previous use of this state is over
+        releaseGatherStates();
         this.r = r;
         this.istate = istate;
         this.i = i;
         this.d = d;
+        this.poolDepth = depth;
         this.instance = istate.instance; // local copy
+        if (instance != null && instance.isMoving()) {
+            // pooled states keep their matrices, copied from the ones the
+            // intersection state blended for the hit
+            if (motionO2W == null) {
+                motionO2W = new Matrix4();
+                motionW2O = new Matrix4();
+            }
+            instance.getTransforms(istate, motionO2W, motionW2O);
+            o2w = motionO2W;
+            w2o = motionW2O;
+        } else
+            o2w = w2o = null;
         this.primitiveID = istate.id;
         this.hitU = istate.u;
         this.hitV = istate.v;
+        this.previous = previous;
         if (previous == null) {
             diffuseDepth = 0;
             reflectionDepth = 0;
             refractionDepth = 0;
+            server = null;
+            map = null;
+            rx = ry = 0;
         } else {
             diffuseDepth = previous.diffuseDepth;
             reflectionDepth = previous.reflectionDepth;
@@ -119,27 +221,78 @@ public final class ShadingState implements Iterable<LightSample> {
             this.i += previous.i;
             this.d += previous.d;
         }
+        // clear anything left over from the previous use of this object
+        p = null;
+        n = null;
+        tex = null;
+        ng = null;
+        basis = null;
+        shader = null;
+        modifier = null;
+        lightSample = null;
         behind = false;
         cosND = Float.NaN;
         includeLights = includeSpecular = true;
-        qmcD0I = QMC.halton(this.d, this.i);
-        qmcD1I = QMC.halton(this.d + 1, this.i);
+        lightSampleScale = 1;
+        qmcValid = false;
         result = null;
+        differentialSource = DIFFERENTIALS_NONE;
+        differentialsComputed = false;
+        hasSurfaceDerivatives = false;
+        curvature = 0;
     }
 
     final void setRay(Ray r) {
         this.r = r;
     }
 
+    /**
+     * Record the lens and time samples used to create the eye ray, so that
+     * the rays through the neighbouring pixels can be generated when the ray
+     * differentials are first needed.
+     */
+    final void setCameraSample(double lensU, double lensV, double time) {
+        this.lensU = lensU;
+        this.lensV = lensV;
+        this.time = time;
+        differentialSource = DIFFERENTIALS_CAMERA;
+    }
+
+    /**
+     * Set the partial derivatives of the surface position with respect to the
+     * texture coordinates, in world space. Primitives which can compute them
+     * should call this method from their
+     * {@link PrimitiveList#prepareShadingState(ShadingState)} method so that
+     * the texture space footprint of the shading point is available.
+     * 
+     * @param dpdu derivative of the position along u
+     * @param dpdv derivative of the position along v
+     */
+    public final void setSurfaceDerivatives(Vector3 dpdu, Vector3 dpdv) {
+        if (dPdu == null) {
+            dPdu = new Vector3();
+            dPdv = new Vector3();
+        }
+        dPdu.set(dpdu);
+        dPdv.set(dpdv);
+        hasSurfaceDerivatives = true;
+    }
+
     /**
      * Create objects needed for surface shading: point, normal, texture
      * coordinates and basis.
      */
     public final void init() {
-        p = new Point3();
-        n = new Vector3();
-        tex = new Point2();
-        ng = new Vector3();
+        if (pStorage == null) {
+            pStorage = new Point3();
+            nStorage = new Vector3();
+            texStorage = new Point2();
+            ngStorage = new Vector3();
+        }
+        p = pStorage.set(0, 0, 0);
+        n = nStorage.set(0, 0, 0);
+        tex = texStorage.set(0, 0);
+        ng = ngStorage.set(0, 0, 0);
         basis = null;
     }
 
@@ -157,6 +310,7 @@ public final class ShadingState implements Iterable<LightSample> {
         if (Vector3.dot(n, ng) < 0) {
             n.negate();
             basis.flipW();
+            curvature = -curvature;
         }
     }
 
@@ -174,6 +328,7 @@ public final class ShadingState implements Iterable<LightSample> {
             ng.negate();
             n.negate();
             basis.flipW();
+            curvature = -curvature;
             behind = true;
         }
         cosND = Math.max(-r.dot(n), 0); // can't be negative
@@ -222,6 +377,188 @@ public final class ShadingState implements Iterable<LightSample> {
         return behind;
     }
 
+    /**
+     * Set how fast the shading normal turns when moving along the surface,
+     * relative to the normal set by the primitive: 1 / r for the outside of
+     * a sphere of radius r, negative for concave surfaces and 0 for flat
+     * ones. This lets the footprint of rays reflected or refracted by curved
+     * surfaces spread as it should.
+     * 
+     * @param k curvature of the surface in world space
+     */
+    public final void setCurvature(float k) {
+        curvature = k;
+    }
+
+    /**
+     * Get the size of the area covered by one pixel around the shading point,
+     * in texture space. This is only known if the footprint is known and the
+     * primitive provided its surface derivatives. The value can be passed
+     * directly to {@link Texture#getPixel(float, float, float)}.
+     * 
+     * @return width of the pixel footprint in texture space, or 0 if it is
+     *         unknown
+     */
+    public final float getTextureFootprint() {
+        if (!computeDifferentials() || !hasSurfaceDerivatives)
+            return 0;
+        float wx = dudx * dudx + dvdx * dvdx;
+        float wy = dudy * dudy + dvdy * dvdy;
+        return (float) Math.sqrt(Math.max(wx, wy));
+    }
+
+    /**
+     * Compute the differentials of the incoming ray with respect to the
+     * raster position and transfer them to the surface. Rays which are not
+     * spawned by the camera start from the differentials of their parent
+     * state at the time they are needed, which is safe since the parent is
+     * kept alive while its children are shaded. Specular bounces are assumed
+     * to happen on a locally flat surface.
+     * 
+     * @return <code>true</code> if the differentials are valid
+     */
+    private boolean computeDifferentials() {
+        if (differentialsComputed)
+            return differentialsValid;
+        differentialsComputed = true;
+        differentialsValid = false;
+        if (differentialSource == DIFFERENTIALS_NONE || p == null || ng == null)
+            return false;
+        if (dOdx == null) {
+            dOdx = new Vector3();
+            dOdy = new Vector3();
+            dDdx = new Vector3();
+            dDdy = new Vector3();
+            dPdx = new Vector3();
+            dPdy = new Vector3();
+        }
+        switch (differentialSource) {
+            case DIFFERENTIALS_CAMERA: {
+                Scene scene = server.getScene();
+                Ray rdx = scene.getCameraRay(rx + 1, ry, lensU, lensV, time);
+                Ray rdy = scene.getCameraRay(rx, ry + 1, lensU, lensV, time);
+                if (rdx == null || rdy == null)
+                    return false;
+                dOdx.set(rdx.ox - r.ox, rdx.oy - r.oy, rdx.oz - r.oz);
+                dOdy.set(rdy.ox - r.ox, rdy.oy - r.oy, rdy.oz - r.oz);
+                dDdx.set(rdx.dx - r.dx, rdx.dy - r.dy, rdx.dz - r.dz);
+                dDdy.set(rdy.dx - r.dx, rdy.dy - r.dy, rdy.dz - r.dz);
+                break;
+            }
+            case DIFFERENTIALS_REFLECTION:
+            case DIFFERENTIALS_REFRACTION: {
+                if (previous == null || previous.n == null || !previous.computeDifferentials())
+                    return false;
+                dOdx.set(previous.dPdx);
+                dOdy.set(previous.dPdy);
+                Vector3 normal = previous.n;
+                Ray in = previous.r;
+                float k = previous.curvature;
+                if (differentialSource == DIFFERENTIALS_REFLECTION) {
+                    // r = d - 2 (d.n) n
+                    float cosI = in.dot(normal);
+                    reflect(in, normal, cosI, k, previous.dPdx, previous.dDdx, dDdx);
+                    reflect(in, normal, cosI, k, previous.dPdy, previous.dDdy, dDdy);
+                } else if (!refract(in, r, normal, k, previous.dPdx, previous.dDdx, dDdx) || !refract(in, r, normal, k, previous.dPdy, previous.dDdy, dDdy))
+                    return false;
+                break;
+            }
+            default:
+                return false;
+        }
+        // transfer the differentials to the plane tangent to the surface
+        float dn = r.dot(ng);
+        if (Math.abs(dn) < 1e-6f)
+            return false;
+        float t = (p.x - r.ox) * r.dx + (p.y - r.oy) * r.dy + (p.z - r.oz) * r.dz;
+        transfer(dOdx, dDdx, t, dn, dPdx);
+        transfer(dOdy, dDdy, t, dn, dPdy);
+        if (hasSurfaceDerivatives) {
+            // least squares solution of dp/dx = du/dx dp/du + dv/dx dp/dv
+            float a = Vector3.dot(dPdu, dPdu);
+            float b = Vector3.dot(dPdu, dPdv);
+            float c = Vector3.dot(dPdv, dPdv);
+            float det = a * c - b * b;
+            if (det == 0)
+                hasSurfaceDerivatives = false;
+            else {
+                float invdet = 1 / det;
+                float ux = Vector3.dot(dPdu, dPdx), vx = Vector3.dot(dPdv, dPdx);
+                float uy = Vector3.dot(dPdu, dPdy), vy = Vector3.dot(dPdv, dPdy);
+                dudx = (c * ux - b * vx) * invdet;
+                dvdx = (a * vx - b * ux) * invdet;
+                dudy = (c * uy - b * vy) * invdet;
+                dvdy = (a * vy - b * uy) * invdet;
+            }
+        }
+        differentialsValid = true;
+        return true;
+    }
+
+    private void transfer(Vector3 dO, Vector3 dD, float t, float dn, Vector3 dP) {
+        float px = dO.x + t * dD.x;
+        float py = dO.y + t * dD.y;
+        float pz = dO.z + t * dD.z;
+        float dt = -(px * ng.x + py * ng.y + pz * ng.z) / dn;
+        dP.set(px + dt * r.dx, py + dt * r.dy, pz + dt * r.dz);
+    }
+
+    /**
+     * Differentiate the mirror reflection of <code>d</code> about the normal
+     * <code>n</code>, which turns by <code>k</code> along the surface.
+     * 
+     * @param d incoming direction
+     * @param n surface normal
+     * @param dn dot product of <code>d</code> and <code>n</code>
+     * @param k curvature of the surface
+     * @param dP derivative of the hit point
+     * @param dD derivative of the incoming direction
+     * @param dest derivative of the reflected direction
+     */
+    static void reflect(Ray d, Vector3 n, float dn, float k, Vector3 dP, Vector3 dD, Vector3 dest) {
+        // the normal turns by k along the surface: dn/dx = k dp/dx
+        float ddn = Vector3.dot(dD, n) + k * d.dot(dP);
+        dest.set(dD.x - 2 * (dn * k * dP.x + ddn * n.x), dD.y - 2 * (dn * k * dP.y + ddn * n.y), dD.z - 2 * (dn * k * dP.z + ddn * n.z));
+    }
+
+    /**
+     * Differentiate the refraction of <code>d</code> into <code>t</code>
+     * through a surface with normal <code>n</code>, which turns by
+     * <code>k</code> along the surface. The refracted direction is
+     * <code>t = eta d + mu n</code> where the ratio of indices
+     * <code>eta = sinT / sinI</code> is recovered from the two directions and
+     * <code>mu</code> keeps <code>t</code> of unit length.
+     * 
+     * @param d incoming direction
+     * @param t refracted direction
+     * @param n surface normal
+     * @param k curvature of the surface
+     * @param dP derivative of the hit point
+     * @param dD derivative of the incoming direction
+     * @param dest derivative of the refracted direction
+     * @return <code>false</code> if the refracted direction grazes the
+     *         surface and its derivative is unbounded
+     */
+    static boolean refract(Ray d, Ray t, Vector3 n, float k, Vector3 dP, Vector3 dD, Vector3 dest) {
+        float cosI = d.dot(n);
+        float cosT = t.dot(n);
+        if (Math.abs(cosT) < 1e-4f)
+            return false;
+        // sines from cross products stay accurate near normal incidence,
+        // where the ratio of indices can no longer be recovered
+        float sinI = length(d.dy * n.z - d.dz * n.y, d.dz * n.x - d.dx * n.z, d.dx * n.y - d.dy * n.x);
+        float sinT = length(t.dy * n.z - t.dz * n.y, t.dz * n.x - t.dx * n.z, t.dx * n.y - t.dy * n.x);
+        float eta = sinI > 1e-4f ? sinT / sinI : 1;
+        float mu = cosT - eta * cosI;
+        float dmu = -(eta * t.dot(dD) + mu * k * t.dot(dP)) / cosT;
+        dest.set(eta * dD.x + mu * k * dP.x + dmu * n.x, eta * dD.y + mu * k * dP.y + dmu * n.y, eta * dD.z + mu * k * dP.z + dmu * n.z);
+        return true;
+    }
+
+    private static float length(float x, float y, float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
     final IntersectionState getIntersectionState() {
         return istate;
     }
@@ -253,6 +590,168 @@ public final class ShadingState implements Iterable<LightSample> {
         return instance;
     }
 
+    /**
+     * Transform the given point from object space to world space, following
+     * the intersected instance at the time of the ray. A new {@link Point3}
+     * object is returned.
+     * 
+     * @param p object space position to transform
+     * @return transformed position
+     */
+    public final Point3 transformObjectToWorld(Point3 p) {
+        return transformObjectToWorld(p, new Point3());
+    }
+
+    /**
+     * Transform the given point from object space to world space, following
+     * the intersected instance at the time of the ray, storing the result
+     * in dest, which may be p itself.
+     * 
+     * @param p object space position to transform
+     * @param dest point to store the result in
+     * @return dest
+     */
+    public final Point3 transformObjectToWorld(Point3 p, Point3 dest) {
+        if (o2w == null)
+            return instance.transformObjectToWorld(p, dest);
+        return o2w.transformP(p, dest);
+    }
+
+    /**
+     * Transform the given point from world space to object space, following
+     * the intersected instance at the time of the ray. A new {@link Point3}
+     * object is returned.
+     * 
+     * @param p world space position to transform
+     * @return transformed position
+     */
+    public final Point3 transformWorldToObject(Point3 p) {
+        return transformWorldToObject(p, new Point3());
+    }
+
+    /**
+     * Transform the given point from world space to object space, following
+     * the intersected instance at the time of the ray, storing the result
+     * in dest, which may be p itself.
+     * 
+     * @param p world space position to transform
+     * @param dest point to store the result in
+     * @return dest
+     */
+    public final Point3 transformWorldToObject(Point3 p, Point3 dest) {
+        if (w2o == null)
+            return instance.transformWorldToObject(p, dest);
+        return w2o.transformP(p, dest);
+    }
+
+    /**
+     * Transform the given normal from object space to world space, following
+     * the intersected instance at the time of the ray. A new {@link Vector3}
+     * object is returned.
+     * 
+     * @param n object space normal to transform
+     * @return transformed normal
+     */
+    public final Vector3 transformNormalObjectToWorld(Vector3 n) {
+        return transformNormalObjectToWorld(n, new Vector3());
+    }
+
+    /**
+     * Transform the given normal from object space to world space, following
+     * the intersected instance at the time of the ray, storing the result
+     * in dest, which may be n itself.
+     * 
+     * @param n object space normal to transform
+     * @param dest vector to store the result in
+     * @return dest
+     */
+    public final Vector3 transformNormalObjectToWorld(Vector3 n, Vector3 dest) {
+        if (w2o == null)
+            return instance.transformNormalObjectToWorld(n, dest);
+        return w2o.transformTransposeV(n, dest);
+    }
+
+    /**
+     * Transform the given normal from world space to object space, following
+     * the intersected instance at the time of the ray. A new {@link Vector3}
+     * object is returned.
+     * 
+     * @param n world space normal to transform
+     * @return transformed normal
+     */
+    public final Vector3 transformNormalWorldToObject(Vector3 n) {
+        return transformNormalWorldToObject(n, new Vector3());
+    }
+
+    /**
+     * Transform the given normal from world space to object space, following
+     * the intersected instance at the time of the ray, storing the result
+     * in dest, which may be n itself.
+     * 
+     * @param n world space normal to transform
+     * @param dest vector to store the result in
+     * @return dest
+     */
+    public final Vector3 transformNormalWorldToObject(Vector3 n, Vector3 dest) {
+        if (o2w == null)
+            return instance.transformNormalWorldToObject(n, dest);
+        return o2w.transformTransposeV(n, dest);
+    }
+
+    /**
+     * Transform the given vector from object space to world space, following
+     * the intersected instance at the time of the ray. A new {@link Vector3}
+     * object is returned.
+     * 
+     * @param v object space vector to transform
+     * @return transformed vector
+     */
+    public final Vector3 transformVectorObjectToWorld(Vector3 v) {
+        return transformVectorObjectToWorld(v, new Vector3());
+    }
+
+    /**
+     * Transform the given vector from object space to world space, following
+     * the intersected instance at the time of the ray, storing the result
+     * in dest, which may be v itself.
+     * 
+     * @param v object space vector to transform
+     * @param dest vector to store the result in
+     * @return dest
+     */
+    public final Vector3 transformVectorObjectToWorld(Vector3 v, Vector3 dest) {
+        if (o2w == null)
+            return instance.transformVectorObjectToWorld(v, dest);
+        return o2w.transformV(v, dest);
+    }
+
+    /**
+     * Transform the given vector from world space to object space, following
+     * the intersected instance at the time of the ray. A new {@link Vector3}
+     * object is returned.
+     * 
+     * @param v world space vector to transform
+     * @return transformed vector
+     */
+    public final Vector3 transformVectorWorldToObject(Vector3 v) {
+        return transformVectorWorldToObject(v, new Vector3());
+    }
+
+    /**
+     * Transform the given vector from world space to object space, following
+     * the intersected instance at the time of the ray, storing the result
+     * in dest, which may be v itself.
+     * 
+     * @param v world space vector to transform
+     * @param dest vector to store the result in
+     * @return dest
+     */
+    public final Vector3 transformVectorWorldToObject(Vector3 v, Vector3 dest) {
+        if (w2o == null)
+            return instance.transformVectorWorldToObject(v, dest);
+        return w2o.transformV(v, dest);
+    }
+
     /**
      * Get the primitive ID which was intersected
      * 
@@ -285,11 +784,18 @@ public final class ShadingState implements Iterable<LightSample> {
      * @param sample a valid light sample
      */
     public final void addSample(LightSample sample) {
+        // compensate for lights picked stochastically by the light server
+        if (lightSampleScale != 1)
+            sample.scaleRadiance(lightSampleScale);
         // add to list
         sample.next = lightSample;
         lightSample = sample;
     }
 
+    final void setLightSampleScale(float scale) {
+        lightSampleScale = scale;
+    }
+
     /**
      * Get a QMC sample from an infinite sequence.
      * 
@@ -298,13 +804,14 @@ public final class ShadingState implements Iterable<LightSample> {
      * @return pseudo-random value in [0,1)
      */
     public final double getRandom(int j, int dim) {
+        SampleSequence sequence = server.getSampleSequence();
         switch (dim) {
             case 0:
-                return QMC.mod1(qmcD0I + QMC.halton(0, j));
+                return QMC.mod1(getQMCD0I() + sequence.get(0, j));
             case 1:
-                return QMC.mod1(qmcD1I + QMC.halton(1, j));
+                return QMC.mod1(getQMCD1I() + sequence.get(1, j));
             default:
-                return QMC.mod1(QMC.halton(d + dim, i) + QMC.halton(dim, j));
+                return QMC.mod1(QMC.halton(d + dim, i) + sequence.get(dim, j));
         }
     }
 
@@ -319,14 +826,46 @@ public final class ShadingState implements Iterable<LightSample> {
      * @return pseudo-random value in [0,1)
      */
     public final double getRandom(int j, int dim, int n) {
+        SampleSequence sequence = server.getSampleSequence();
         switch (dim) {
             case 0:
-                return QMC.mod1(qmcD0I + (double) j / (double) n);
+                return QMC.mod1(getQMCD0I() + (double) j / (double) n);
             case 1:
-                return QMC.mod1(qmcD1I + QMC.halton(0, j));
+                return QMC.mod1(getQMCD1I() + sequence.get(0, j));
             default:
-                return QMC.mod1(QMC.halton(d + dim, i) + QMC.halton(dim - 1, j));
+                return QMC.mod1(QMC.halton(d + dim, i) + sequence.get(dim - 1, j));
+        }
+    }
+
+    /**
+     * Get a QMC sample used to pick one of n lights. The values are stratified
+     * over the n picks and come from dimensions reserved for light selection,
+     * so they are independent of the samples drawn by shaders and by the
+     * states of later bounces.
+     * 
+     * @param j pick number (starts from 0)
+     * @param n number of picks
+     * @return pseudo-random value in [0,1)
+     */
+    final double getLightSelectionRandom(int j, int n) {
+        int dim = LIGHT_SELECTION_DIMENSION + Math.min(poolDepth, LIGHT_SELECTION_DEPTHS - 1);
+        return QMC.mod1(QMC.halton(dim, i) + (double) j / (double) n);
+    }
+
+    private double getQMCD0I() {
+        // many states are never sampled, so the offsets of their first two
+        // dimensions are only computed when first needed
+        if (!qmcValid) {
+            qmcD0I = QMC.halton(d, i);
+            qmcD1I = QMC.halton(d + 1, i);
+            qmcValid = true;
         }
+        return qmcD0I;
+    }
+
+    private double getQMCD1I() {
+        getQMCD0I();
+        return qmcD1I;
     }
 
     /**
@@ -679,11 +1218,13 @@ public final class ShadingState implements Iterable<LightSample> {
 
     /**
      * Trace a final gather ray and return the intersection result as a new
-     * render state
+     * render state. The returned state stays valid while this state is being
+     * shaded, whatever other rays are traced in the meantime.
      * 
      * @param r ray to shoot
      * @param i instance of the ray
-     * @return new render state object corresponding to the intersection result
+     * @return render state object corresponding to the intersection result,
+     *         or <code>null</code> if nothing was hit
      */
     public final ShadingState traceFinalGather(Ray r, int i) {
         return server.traceFinalGather(this, r, i);
@@ -732,7 +1273,7 @@ public final class ShadingState implements Iterable<LightSample> {
             w.y = sinPhi * sinTheta;
             w.z = cosTheta;
             onb.transform(w);
-            Ray r = new Ray(p, w);
+            Ray r = istate.getRay(poolDepth + 1).set(p, w);
             r.setMax(maxDist);
             result.add(Color.blend(bright, dark, traceShadow(r)));
         }
@@ -800,7 +1341,7 @@ public final class ShadingState implements Iterable<LightSample> {
                 w = onb.transform(w, new Vector3());
                 float wn = Vector3.dot(w, n);
                 if (wn > 0)
-                    lr.madd(wn * mul, traceGlossy(new Ray(p, w), i));
+                    lr.madd(wn * mul, traceGlossy(istate.getRay(poolDepth + 1).set(p, w), i));
             }
         }
         lr.mul(spec).mul((power + 2) / (2.0f * (float) Math.PI));
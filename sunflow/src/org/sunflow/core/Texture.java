@@ -1,9 +1,12 @@
 package org.sunflow.core;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.sunflow.image.Bitmap;
 import org.sunflow.image.Color;
+import org.sunflow.image.TiledBitmap;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Vector3;
 import org.sunflow.system.UI;
@@ -13,9 +16,15 @@ import org.sunflow.system.UI.Module;
  * Represents a 2D texture, typically used by {@link Shader shaders}.
  */
 public class Texture {
+    // images smaller than this are kept in memory instead of being paged
+    private static final long MIN_PAGED_PIXELS = 1 << 22;
+    private static final AtomicInteger nextId = new AtomicInteger();
+
     private String filename;
     private boolean isLinear;
-    private Bitmap bitmap;
+    private TiledBitmap bitmap;
+    private SoftReference<Bitmap> decoded;
+    private final int id;
     private int loaded;
 
     /**
@@ -27,6 +36,7 @@ public class Texture {
     Texture(String filename, boolean isLinear) {
         this.filename = filename;
         this.isLinear = isLinear;
+        id = nextId.getAndIncrement();
         loaded = 0;
     }
 
@@ -35,21 +45,50 @@ public class Texture {
             return;
         try {
             UI.printInfo(Module.TEX, "Reading texture bitmap from: \"%s\" ...", filename);
-            bitmap = new Bitmap(filename, isLinear);
-            if (bitmap.getWidth() == 0 || bitmap.getHeight() == 0)
-                bitmap = null;
+            bitmap = TiledBitmap.open(filename, isLinear, MIN_PAGED_PIXELS);
         } catch (IOException e) {
             UI.printError(Module.TEX, "%s", e.getMessage());
         }
         loaded = 1;
     }
 
-    public Bitmap getBitmap() {
+    synchronized void close() {
+        if (bitmap != null)
+            bitmap.close();
+        decoded = null;
+    }
+
+    private TiledBitmap getTiledBitmap() {
         if (loaded == 0)
             load();
         return bitmap;
     }
 
+    /**
+     * Gets the full resolution image. The decoded image is kept for as long as
+     * memory allows, so repeated calls only decode the file once. This should
+     * only be used to preprocess the image, lookups should go through
+     * {@link #getPixel(float, float)}. The returned bitmap is shared and must
+     * not be modified.
+     * 
+     * @return the bitmap, or <code>null</code> if the image can't be read
+     */
+    public synchronized Bitmap getBitmap() {
+        Bitmap b = decoded == null ? null : decoded.get();
+        if (b != null)
+            return b;
+        try {
+            b = new Bitmap(filename, isLinear);
+        } catch (IOException e) {
+            UI.printError(Module.TEX, "%s", e.getMessage());
+            return null;
+        }
+        if (b.getWidth() == 0 || b.getHeight() == 0)
+            return null;
+        decoded = new SoftReference<Bitmap>(b);
+        return b;
+    }
+
     /**
      * Gets the color at location (x,y) in the texture. The lookup is performed
      * using the fractional component of the coordinates, treating the texture
@@ -61,54 +100,135 @@ public class Texture {
      * @return filtered color at location (x,y)
      */
     public Color getPixel(float x, float y) {
-        Bitmap bitmap = getBitmap();
+        TiledBitmap bitmap = getTiledBitmap();
+        if (bitmap == null)
+            return Color.BLACK;
+        return getPixel(bitmap, 0, x, y);
+    }
+
+    /**
+     * Gets the color at location (x,y) in the texture, filtered over the
+     * specified footprint. The two mip levels closest to the footprint are
+     * looked up as in {@link #getPixel(float, float)} and blended.
+     * 
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param width width of the lookup footprint in texture space, where the
+     *            whole texture is 1 unit wide
+     * @return filtered color at location (x,y)
+     */
+    public Color getPixel(float x, float y, float width) {
+        TiledBitmap bitmap = getTiledBitmap();
         if (bitmap == null)
             return Color.BLACK;
+        float texels = width * Math.max(bitmap.getWidth(0), bitmap.getHeight(0));
+        if (!(texels > 1))
+            return getPixel(bitmap, 0, x, y);
+        float lod = (float) (Math.log(texels) / Math.log(2));
+        int level = (int) lod;
+        if (level >= bitmap.getLevels() - 1)
+            return getPixel(bitmap, bitmap.getLevels() - 1, x, y);
+        float t = lod - level;
+        Color c = getPixel(bitmap, level, x, y).mul(1 - t);
+        return c.madd(t, getPixel(bitmap, level + 1, x, y));
+    }
+
+    private Color getPixel(TiledBitmap bitmap, int level, float x, float y) {
+        int w = bitmap.getWidth(level);
+        int h = bitmap.getHeight(level);
         x = x - (int) x;
         y = y - (int) y;
         if (x < 0)
             x++;
         if (y < 0)
             y++;
-        float dx = (float) x * (bitmap.getWidth() - 1);
-        float dy = (float) y * (bitmap.getHeight() - 1);
+        float dx = (float) x * (w - 1);
+        float dy = (float) y * (h - 1);
         int ix0 = (int) dx;
         int iy0 = (int) dy;
-        int ix1 = (ix0 + 1) % bitmap.getWidth();
-        int iy1 = (iy0 + 1) % bitmap.getHeight();
+        int ix1 = (ix0 + 1) % w;
+        int iy1 = (iy0 + 1) % h;
         float u = dx - ix0;
         float v = dy - iy0;
         u = u * u * (3.0f - (2.0f * u));
         v = v * v * (3.0f - (2.0f * v));
+        // most lookups fall within a single tile
+        int tx0 = ix0 >> TiledBitmap.TILE_BITS;
+        int ty0 = iy0 >> TiledBitmap.TILE_BITS;
+        int tx1 = ix1 >> TiledBitmap.TILE_BITS;
+        int ty1 = iy1 >> TiledBitmap.TILE_BITS;
+        int[] t00 = TextureCache.getTile(bitmap, id, level, tx0, ty0);
+        int[] t01 = ty1 == ty0 ? t00 : TextureCache.getTile(bitmap, id, level, tx0, ty1);
+        int[] t10 = tx1 == tx0 ? t00 : TextureCache.getTile(bitmap, id, level, tx1, ty0);
+        int[] t11 = tx1 == tx0 ? t01 : ty1 == ty0 ? t10 : TextureCache.getTile(bitmap, id, level, tx1, ty1);
+        int mask = TiledBitmap.TILE_SIZE - 1;
+        int px0 = ix0 & mask;
+        int py0 = (iy0 & mask) << TiledBitmap.TILE_BITS;
+        int px1 = ix1 & mask;
+        int py1 = (iy1 & mask) << TiledBitmap.TILE_BITS;
+        boolean isHDR = bitmap.isHDR();
         float k00 = (1.0f - u) * (1.0f - v);
-        Color c00 = bitmap.getPixel(ix0, iy0);
         float k01 = (1.0f - u) * v;
-        Color c01 = bitmap.getPixel(ix0, iy1);
         float k10 = u * (1.0f - v);
-        Color c10 = bitmap.getPixel(ix1, iy0);
         float k11 = u * v;
-        Color c11 = bitmap.getPixel(ix1, iy1);
-        Color c = Color.mul(k00, c00);
-        c.madd(k01, c01);
-        c.madd(k10, c10);
-        c.madd(k11, c11);
+        // decode the texels one after the other into a single temporary
+        Color t = new Color();
+        Color c = Color.mul(k00, decode(t00[py0 + px0], isHDR, t));
+        c.madd(k01, decode(t01[py1 + px0], isHDR, t));
+        c.madd(k10, decode(t10[py0 + px1], isHDR, t));
+        c.madd(k11, decode(t11[py1 + px1], isHDR, t));
         return c;
     }
 
+    private static Color decode(int pixel, boolean isHDR, Color dest) {
+        return isHDR ? dest.setRGBE(pixel) : dest.setRGB(pixel);
+    }
+
     public Vector3 getNormal(float x, float y, OrthoNormalBasis basis) {
-        float[] rgb = getPixel(x, y).getRGB();
+        return getNormal(x, y, basis, 0);
+    }
+
+    /**
+     * Gets the normal stored in the texture at location (x,y), filtered over
+     * the specified footprint.
+     * 
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param basis basis to transform the normal into
+     * @param width width of the lookup footprint in texture space
+     * @return normalized world space normal
+     */
+    public Vector3 getNormal(float x, float y, OrthoNormalBasis basis, float width) {
+        float[] rgb = getPixel(x, y, width).getRGB();
         return basis.transform(new Vector3(2 * rgb[0] - 1, 2 * rgb[1] - 1, 2 * rgb[2] - 1)).normalize();
     }
 
     public Vector3 getBump(float x, float y, OrthoNormalBasis basis, float scale) {
-        Bitmap bitmap = getBitmap();
+        return getBump(x, y, basis, scale, 0);
+    }
+
+    /**
+     * Gets the bumped normal for the height field stored in the texture at
+     * location (x,y). The slopes are measured across the footprint, or across
+     * one texel if the footprint is smaller, so that bumps too small to be
+     * resolved flatten out instead of aliasing.
+     * 
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param basis basis to transform the normal into
+     * @param scale height scale
+     * @param width width of the lookup footprint in texture space
+     * @return normalized world space normal
+     */
+    public Vector3 getBump(float x, float y, OrthoNormalBasis basis, float scale, float width) {
+        TiledBitmap bitmap = getTiledBitmap();
         if (bitmap == null)
             return basis.transform(new Vector3(0, 0, 1));
-        float dx = 1.0f / (bitmap.getWidth() - 1);
-        float dy = 1.0f / (bitmap.getHeight() - 1);
-        float b0 = getPixel(x, y).getLuminance();
-        float bx = getPixel(x + dx, y).getLuminance();
-        float by = getPixel(x, y + dy).getLuminance();
+        float dx = Math.max(1.0f / (bitmap.getWidth(0) - 1), width);
+        float dy = Math.max(1.0f / (bitmap.getHeight(0) - 1), width);
+        float b0 = getPixel(x, y, width).getLuminance();
+        float bx = getPixel(x + dx, y, width).getLuminance();
+        float by = getPixel(x, y + dy, width).getLuminance();
         return basis.transform(new Vector3(scale * (bx - b0) / dx, scale * (by - b0) / dy, 1)).normalize();
     }
 }
\ No newline at end of file
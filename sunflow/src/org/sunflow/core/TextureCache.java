@@ -1,16 +1,33 @@
 package org.sunflow.core;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.sunflow.image.TiledBitmap;
+import org.sunflow.system.Memory;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 /**
  * Maintains a cache of all loaded texture maps. This is usefull if the same
- * texture might be used more than once in your scene.
+ * texture might be used more than once in your scene. Tiles of paged textures
+ * are kept in a separate cache bounded by a memory budget, least recently used
+ * tiles are evicted first. The tile cache is split in independently locked
+ * stripes so threads rarely contend on lookups.
  */
 public final class TextureCache {
-    private static HashMap<String, Texture> textures = new HashMap<String, Texture>();
+    private static final int STRIPES = 16;
+    private static final int TILE_BYTES = 4 * TiledBitmap.TILE_PIXELS;
+
+    private static final ConcurrentHashMap<String, Texture> textures = new ConcurrentHashMap<String, Texture>();
+    private static final TileStripe[] stripes = new TileStripe[STRIPES];
+    private static volatile long memoryBudget = 256L << 20;
+
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new TileStripe();
+    }
 
     private TextureCache() {
     }
@@ -25,23 +42,103 @@ public final class TextureCache {
      * @return texture object
      * @see Texture
      */
-    public synchronized static Texture getTexture(String filename, boolean isLinear) {
-        if (textures.containsKey(filename)) {
+    public static Texture getTexture(String filename, boolean isLinear) {
+        Texture t = textures.get(filename);
+        if (t != null) {
             UI.printInfo(Module.TEX, "Using cached copy for file \"%s\" ...", filename);
-            return textures.get(filename);
+            return t;
         }
         UI.printInfo(Module.TEX, "Using file \"%s\" ...", filename);
-        Texture t = new Texture(filename, isLinear);
-        textures.put(filename, t);
-        return t;
+        t = new Texture(filename, isLinear);
+        Texture previous = textures.putIfAbsent(filename, t);
+        return previous != null ? previous : t;
     }
 
     /**
      * Flush all textures from the cache, this will cause them to be reloaded
      * anew the next time they are accessed.
      */
-    public synchronized static void flush() {
+    public static void flush() {
         UI.printInfo(Module.TEX, "Flushing texture cache");
+        for (Texture t : textures.values())
+            t.close();
         textures.clear();
+        for (TileStripe s : stripes)
+            s.clear();
+    }
+
+    /**
+     * Set the amount of memory used to hold tiles of paged textures. Tiles are
+     * evicted as needed if the budget is lowered.
+     * 
+     * @param bytes memory budget in bytes
+     */
+    public static void setMemoryBudget(long bytes) {
+        if (bytes == memoryBudget)
+            return;
+        UI.printInfo(Module.TEX, "Texture tile cache: %s", Memory.bytesToString(bytes));
+        memoryBudget = bytes;
+        for (TileStripe s : stripes)
+            s.trim();
+    }
+
+    /**
+     * Get the pixels of a tile of the specified bitmap, paging it in if
+     * required.
+     * 
+     * @param bitmap tiled bitmap
+     * @param id unique identifier of the bitmap
+     * @param level mip level
+     * @param tx horizontal tile index
+     * @param ty vertical tile index
+     * @return tile pixels
+     * @see TiledBitmap#getTile(int, int, int)
+     */
+    static int[] getTile(TiledBitmap bitmap, int id, int level, int tx, int ty) {
+        if (bitmap.isResident())
+            return bitmap.getTile(level, tx, ty);
+        long key = ((long) id << 43) | ((long) level << 38) | ((long) ty << 19) | tx;
+        long h = key * 0x9E3779B97F4A7C15L;
+        TileStripe s = stripes[(int) (h >>> 60) & (STRIPES - 1)];
+        int[] tile = s.get(key);
+        if (tile == null) {
+            // read outside of the lock, two threads may occasionally page in
+            // the same tile
+            tile = bitmap.getTile(level, tx, ty);
+            s.put(key, tile);
+        }
+        return tile;
+    }
+
+    private static final class TileStripe {
+        private final LinkedHashMap<Long, int[]> tiles;
+
+        TileStripe() {
+            tiles = new LinkedHashMap<Long, int[]>(64, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+                    return (long) size() * TILE_BYTES * STRIPES > memoryBudget;
+                }
+            };
+        }
+
+        synchronized int[] get(long key) {
+            return tiles.get(key);
+        }
+
+        synchronized void put(long key, int[] tile) {
+            tiles.put(key, tile);
+        }
+
+        synchronized void trim() {
+            while (!tiles.isEmpty() && (long) tiles.size() * TILE_BYTES * STRIPES > memoryBudget)
+                tiles.remove(tiles.keySet().iterator().next());
+        }
+
+        synchronized void clear() {
+            tiles.clear();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,22 +1,25 @@
 package org.sunflow.core.accel;
 
-import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.CachedAccelerationStructure;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RefittableAccelerationStructure;
 import org.sunflow.math.BoundingBox;
+import org.sunflow.system.BinaryCache;
 import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
 
-public class BoundingIntervalHierarchy implements AccelerationStructure {
+public class BoundingIntervalHierarchy implements CachedAccelerationStructure, RefittableAccelerationStructure {
     private int[] tree;
     private int[] objects;
     private PrimitiveList primitives;
     private BoundingBox bounds;
     private int maxPrims;
+    private float buildCost;
 
     public BoundingIntervalHierarchy() {
         maxPrims = 2;
@@ -36,7 +39,7 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
         BuildStats stats = new BuildStats();
         Timer t = new Timer();
         t.start();
-        buildHierarchy(tempTree, objects, stats);
+        buildCost = buildHierarchy(tempTree, objects, stats);
         t.end();
         UI.printDetailed(Module.ACCEL, "Trimming tree ...");
         tree = tempTree.trim();
@@ -141,13 +144,19 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
         }
     }
 
-    private void buildHierarchy(IntArray tempTree, int[] indices, BuildStats stats) {
+    /**
+     * Build the tree over the specified objects.
+     * 
+     * @return estimated traversal cost of the tree, as computed by
+     *         {@link #refitTree()}
+     */
+    private float buildHierarchy(IntArray tempTree, int[] indices, BuildStats stats) {
         // create space for the first node
         tempTree.add(3 << 30); // dummy leaf
         tempTree.add(0);
         tempTree.add(0);
         if (objects.length == 0)
-            return;
+            return 0;
         // seed bbox
         float[] gridBox = { bounds.getMinimum().x, bounds.getMaximum().x,
                 bounds.getMinimum().y, bounds.getMaximum().y,
@@ -156,7 +165,10 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                 bounds.getMinimum().y, bounds.getMaximum().y,
                 bounds.getMinimum().z, bounds.getMaximum().z };
         // seed subdivide function
-        subdivide(0, objects.length - 1, tempTree, indices, gridBox, nodeBox, 0, 1, stats);
+        float[] box = new float[6];
+        float cost = subdivide(0, objects.length - 1, tempTree, indices, gridBox, nodeBox, 0, 1, stats, box);
+        float area = getArea(box);
+        return area > 0 ? cost / area : 0;
     }
 
     private void createNode(IntArray tempTree, int nodeIndex, int left, int right) {
@@ -165,18 +177,24 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
         tempTree.set(nodeIndex + 1, right - left + 1);
     }
 
-    private void subdivide(int left, int right, IntArray tempTree, int[] indices, float[] gridBox, float[] nodeBox, int nodeIndex, int depth, BuildStats stats) {
+    /**
+     * Build the subtree for the specified range of objects.
+     * 
+     * @param box receives the bounds of the objects in the subtree
+     * @return traversal cost of the subtree, see {@link #refit(int, float[])}
+     */
+    private float subdivide(int left, int right, IntArray tempTree, int[] indices, float[] gridBox, float[] nodeBox, int nodeIndex, int depth, BuildStats stats, float[] box) {
         if ((right - left + 1) <= maxPrims || depth >= 64) {
             // write leaf node
             stats.updateLeaf(depth, right - left + 1);
             createNode(tempTree, nodeIndex, left, right);
-            return;
+            return getLeafCost(indices, left, right - left + 1, box);
         }
         // calculate extents
         int axis = -1, prevAxis, rightOrig;
         float clipL = Float.NaN, clipR = Float.NaN, prevClip = Float.NaN;
         float split = Float.NaN, prevSplit;
-        boolean wasLeft = true;
+        boolean wasLeft = true, hasParent = false;
         while (true) {
             prevAxis = axis;
             prevSplit = split;
@@ -249,8 +267,8 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                     // update nodebox and recurse
                     nodeBox[2 * axis + 0] = nodeL;
                     nodeBox[2 * axis + 1] = nodeR;
-                    subdivide(left, rightOrig, tempTree, indices, gridBox, nodeBox, nextIndex, depth + 1, stats);
-                    return;
+                    float cost = subdivide(left, rightOrig, tempTree, indices, gridBox, nodeBox, nextIndex, depth + 1, stats, box);
+                    return cost + getArea(box);
                 }
             }
             // ensure we are making progress in the subdivision
@@ -267,7 +285,7 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                     // we are stuck here - create a leaf
                     stats.updateLeaf(depth, right - left + 1);
                     createNode(tempTree, nodeIndex, left, right);
-                    return;
+                    return getLeafCost(indices, left, right - left + 1, box);
                 }
                 gridBox[2 * axis + 1] = split;
                 prevClip = Float.NaN;
@@ -285,7 +303,7 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                     // we are stuck here - create a leaf
                     stats.updateLeaf(depth, right - left + 1);
                     createNode(tempTree, nodeIndex, left, right);
-                    return;
+                    return getLeafCost(indices, left, right - left + 1, box);
                 }
                 gridBox[2 * axis + 0] = split;
                 prevClip = Float.NaN;
@@ -319,6 +337,7 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                     stats.updateLeaf(depth, 0);
                     // now we keep going as we are, with a new nodeIndex:
                     nodeIndex = nextIndex;
+                    hasParent = true;
                 }
                 break;
             }
@@ -359,18 +378,177 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
         nodeBoxR[2 * axis + 0] = clipR;
         // free memory
         gridBox = nodeBox = null;
-        // recurse
-        if (nl > 0)
-            subdivide(left, right, tempTree, indices, gridBoxL, nodeBoxL, nextIndex, depth + 1, stats);
-        else
+        // recurse, accumulating the cost the same way refit does
+        float cost = 0;
+        float[] childBox = new float[6];
+        for (int i = 0; i < 6; i += 2) {
+            box[i + 0] = Float.POSITIVE_INFINITY;
+            box[i + 1] = Float.NEGATIVE_INFINITY;
+        }
+        if (nl > 0) {
+            cost += subdivide(left, right, tempTree, indices, gridBoxL, nodeBoxL, nextIndex, depth + 1, stats, childBox);
+            union(box, childBox);
+        } else
             stats.updateLeaf(depth + 1, 0);
-        if (nr > 0)
-            subdivide(right + 1, rightOrig, tempTree, indices, gridBoxR, nodeBoxR, nextIndex + 3, depth + 1, stats);
-        else
+        if (nr > 0) {
+            cost += subdivide(right + 1, rightOrig, tempTree, indices, gridBoxR, nodeBoxR, nextIndex + 3, depth + 1, stats, childBox);
+            union(box, childBox);
+        } else
             stats.updateLeaf(depth + 1, 0);
+        cost += getArea(box);
+        // the node created for the empty space has this node as only child
+        if (hasParent)
+            cost += getArea(box);
+        return cost;
+    }
+
+    /**
+     * Compute the bounds of the objects of a leaf.
+     * 
+     * @param box receives the union of the object bounds
+     * @return traversal cost of the leaf
+     */
+    private float getLeafCost(int[] indices, int offset, int n, float[] box) {
+        for (int i = 0; i < 6; i += 2) {
+            box[i + 0] = Float.POSITIVE_INFINITY;
+            box[i + 1] = Float.NEGATIVE_INFINITY;
+        }
+        for (int j = offset; j < offset + n; j++) {
+            for (int i = 0; i < 6; i += 2) {
+                box[i + 0] = Math.min(box[i + 0], primitives.getPrimitiveBound(indices[j], i + 0));
+                box[i + 1] = Math.max(box[i + 1], primitives.getPrimitiveBound(indices[j], i + 1));
+            }
+        }
+        return n * getArea(box);
+    }
+
+    private static void union(float[] box, float[] other) {
+        for (int i = 0; i < 6; i += 2) {
+            box[i + 0] = Math.min(box[i + 0], other[i + 0]);
+            box[i + 1] = Math.max(box[i + 1], other[i + 1]);
+        }
+    }
+
+    public boolean load(PrimitiveList primitives, BinaryCache cache) {
+        int[] params = cache.getInts("bih.params");
+        if (params == null || params.length != 2 || params[0] != maxPrims || params[1] != primitives.getNumPrimitives())
+            return false;
+        int[] cachedTree = cache.getInts("bih.tree");
+        int[] cachedIndices = cache.getInts("bih.objects");
+        float[] cachedCost = cache.getFloats("bih.cost");
+        if (cachedTree == null || cachedIndices == null || cachedCost == null || cachedCost.length != 1)
+            return false;
+        this.primitives = primitives;
+        bounds = primitives.getWorldBounds(null);
+        tree = cachedTree;
+        objects = cachedIndices;
+        buildCost = cachedCost[0];
+        UI.printDetailed(Module.ACCEL, "BoundingIntervalHierarchy loaded from cache");
+        UI.printDetailed(Module.ACCEL, "  * Tree memory:    %s", Memory.sizeof(tree));
+        UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(objects));
+        return true;
+    }
+
+    public void save(BinaryCache cache) {
+        cache.put("bih.params", new int[] { maxPrims, primitives.getNumPrimitives() });
+        cache.put("bih.tree", tree);
+        cache.put("bih.objects", objects);
+        cache.put("bih.cost", new float[] { buildCost });
+    }
+
+    public boolean refit(float maxCostIncrease) {
+        Timer t = new Timer();
+        t.start();
+        bounds = primitives.getWorldBounds(null);
+        float cost = refitTree();
+        t.end();
+        UI.printDetailed(Module.ACCEL, "Refit tree in %s (cost %.2f, %.2f when built)", t, cost, buildCost);
+        return cost <= maxCostIncrease * buildCost;
+    }
+
+    /**
+     * Move the clipping planes of every node to the current bounds of the
+     * objects below it.
+     * 
+     * @return estimated traversal cost of the tree, relative to a single box
+     *         the size of the scene
+     */
+    private float refitTree() {
+        float[] box = new float[6];
+        float cost = refit(0, box);
+        float area = getArea(box);
+        return area > 0 ? cost / area : 0;
+    }
+
+    private float refit(int node, float[] box) {
+        int tn = tree[node];
+        int axis = tn >>> 30;
+        int offset = tn & ~(7 << 29);
+        if (axis == 3) {
+            // leaf - union of the object bounds
+            return getLeafCost(objects, offset, tree[node + 1], box);
+        }
+        if ((tn & (1 << 29)) != 0) {
+            // bvh2 node - clip to the extents of its only child
+            float cost = refit(offset, box);
+            tree[node + 1] = Float.floatToRawIntBits(box[2 * axis + 0]);
+            tree[node + 2] = Float.floatToRawIntBits(box[2 * axis + 1]);
+            return cost + getArea(box);
+        }
+        // missing children have infinite clipping planes
+        boolean hasLeft = Float.intBitsToFloat(tree[node + 1]) != Float.NEGATIVE_INFINITY;
+        boolean hasRight = Float.intBitsToFloat(tree[node + 2]) != Float.POSITIVE_INFINITY;
+        float cost = 0;
+        float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        if (hasLeft) {
+            cost += refit(offset, box);
+            tree[node + 1] = Float.floatToRawIntBits(box[2 * axis + 1]);
+            minX = box[0];
+            maxX = box[1];
+            minY = box[2];
+            maxY = box[3];
+            minZ = box[4];
+            maxZ = box[5];
+        }
+        if (hasRight) {
+            cost += refit(offset + 3, box);
+            tree[node + 2] = Float.floatToRawIntBits(box[2 * axis + 0]);
+            minX = Math.min(minX, box[0]);
+            maxX = Math.max(maxX, box[1]);
+            minY = Math.min(minY, box[2]);
+            maxY = Math.max(maxY, box[3]);
+            minZ = Math.min(minZ, box[4]);
+            maxZ = Math.max(maxZ, box[5]);
+        }
+        box[0] = minX;
+        box[1] = maxX;
+        box[2] = minY;
+        box[3] = maxY;
+        box[4] = minZ;
+        box[5] = maxZ;
+        return cost + getArea(box);
+    }
+
+    private static float getArea(float[] box) {
+        float dx = box[1] - box[0];
+        float dy = box[3] - box[2];
+        float dz = box[5] - box[4];
+        if (dx < 0 || dy < 0 || dz < 0)
+            return 0;
+        return dx * dy + dy * dz + dz * dx;
     }
 
     public void intersect(Ray r, IntersectionState state) {
+        intersect(r, state, false);
+    }
+
+    public void intersectAny(Ray r, IntersectionState state) {
+        intersect(r, state, true);
+    }
+
+    private void intersect(Ray r, IntersectionState state, boolean any) {
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
         float orgX = r.ox;
@@ -459,6 +637,7 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
 
         while (true) {
             pushloop: while (true) {
+                state.countTraversalStep();
                 int tn = tree[node];
                 int axis = tn & (7 << 29);
                 int offset = tn & ~(7 << 29);
@@ -556,7 +735,10 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                         // leaf - test some objects
                         int n = tree[node + 1];
                         while (n > 0) {
+                            state.countPrimitiveTest();
                             primitives.intersectPrimitive(r, objects[offset], state);
+                            if (any && state.hit())
+                                return;
                             n--;
                             offset++;
                         }
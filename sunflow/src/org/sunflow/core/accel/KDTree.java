@@ -3,20 +3,21 @@ package org.sunflow.core.accel;
 import java.io.FileWriter;
 import java.io.IOException;
 
-import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.CachedAccelerationStructure;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
+import org.sunflow.system.BinaryCache;
 import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
 
-public class KDTree implements AccelerationStructure {
+public class KDTree implements CachedAccelerationStructure {
     private int[] tree;
     private int[] primitives;
     private PrimitiveList primitiveList;
@@ -640,7 +641,39 @@ public class KDTree implements AccelerationStructure {
         task.splits = null;
     }
 
+    public boolean load(PrimitiveList primitives, BinaryCache cache) {
+        int[] params = cache.getInts("kdtree.params");
+        if (params == null || params.length != 2 || params[0] != maxPrims || params[1] != primitives.getNumPrimitives())
+            return false;
+        int[] cachedTree = cache.getInts("kdtree.tree");
+        int[] cachedIndices = cache.getInts("kdtree.primitives");
+        if (cachedTree == null || cachedIndices == null)
+            return false;
+        this.primitiveList = primitives;
+        bounds = primitives.getWorldBounds(null);
+        tree = cachedTree;
+        this.primitives = cachedIndices;
+        UI.printDetailed(Module.ACCEL, "KDTree loaded from cache");
+        UI.printDetailed(Module.ACCEL, "  * Tree memory:    %s", Memory.sizeof(tree));
+        UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(this.primitives));
+        return true;
+    }
+
+    public void save(BinaryCache cache) {
+        cache.put("kdtree.params", new int[] { maxPrims, primitiveList.getNumPrimitives() });
+        cache.put("kdtree.tree", tree);
+        cache.put("kdtree.primitives", this.primitives);
+    }
+
     public void intersect(Ray r, IntersectionState state) {
+        intersect(r, state, false);
+    }
+
+    public void intersectAny(Ray r, IntersectionState state) {
+        intersect(r, state, true);
+    }
+
+    private void intersect(Ray r, IntersectionState state, boolean any) {
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
         float orgX = r.ox;
@@ -711,6 +744,7 @@ public class KDTree implements AccelerationStructure {
         int node = 0;
 
         while (true) {
+            state.countTraversalStep();
             int tn = tree[node];
             int axis = tn & (3 << 30);
             int offset = tn & ~(3 << 30);
@@ -775,7 +809,10 @@ public class KDTree implements AccelerationStructure {
                     // leaf - test some objects
                     int n = tree[node + 1];
                     while (n > 0) {
+                        state.countPrimitiveTest();
                         primitiveList.intersectPrimitive(r, primitives[offset], state);
+                        if (any && state.hit())
+                            return;
                         n--;
                         offset++;
                     }
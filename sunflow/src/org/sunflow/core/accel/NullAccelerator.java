@@ -1,11 +1,11 @@
 package org.sunflow.core.accel;
 
-import org.sunflow.core.AccelerationStructure;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
+import org.sunflow.core.RefittableAccelerationStructure;
 
-public class NullAccelerator implements AccelerationStructure {
+public class NullAccelerator implements RefittableAccelerationStructure {
     private PrimitiveList primitives;
     private int n;
 
@@ -19,8 +19,21 @@ public class NullAccelerator implements AccelerationStructure {
         n = primitives.getNumPrimitives();
     }
 
+    public boolean refit(float maxCostIncrease) {
+        // nothing depends on the primitive bounds
+        return true;
+    }
+
     public void intersect(Ray r, IntersectionState state) {
+        state.countPrimitiveTests(n);
         for (int i = 0; i < n; i++)
             primitives.intersectPrimitive(r, i, state);
     }
+
+    public void intersectAny(Ray r, IntersectionState state) {
+        for (int i = 0; i < n && !state.hit(); i++) {
+            state.countPrimitiveTest();
+            primitives.intersectPrimitive(r, i, state);
+        }
+    }
 }
\ No newline at end of file
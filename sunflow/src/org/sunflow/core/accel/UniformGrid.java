@@ -100,6 +100,14 @@ public final class UniformGrid implements AccelerationStructure {
     }
 
     public void intersect(Ray r, IntersectionState state) {
+        intersect(r, state, false);
+    }
+
+    public void intersectAny(Ray r, IntersectionState state) {
+        intersect(r, state, true);
+    }
+
+    private void intersect(Ray r, IntersectionState state, boolean any) {
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
         float orgX = r.ox;
@@ -238,9 +246,14 @@ public final class UniformGrid implements AccelerationStructure {
         // trace through the grid
         for (;;) {
             if (tnextX < tnextY && tnextX < tnextZ) {
+                state.countTraversalStep();
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
+                    for (int i : cells[cell]) {
+                        state.countPrimitiveTest();
                         primitives.intersectPrimitive(r, i, state);
+                        if (any && state.hit())
+                            return;
+                    }
                     if (state.hit() && (r.getMax() < tnextX && r.getMax() < intervalMax))
                         return;
                 }
@@ -253,9 +266,14 @@ public final class UniformGrid implements AccelerationStructure {
                 tnextX += deltaX;
                 cell += cellstepX;
             } else if (tnextY < tnextZ) {
+                state.countTraversalStep();
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
+                    for (int i : cells[cell]) {
+                        state.countPrimitiveTest();
                         primitives.intersectPrimitive(r, i, state);
+                        if (any && state.hit())
+                            return;
+                    }
                     if (state.hit() && (r.getMax() < tnextY && r.getMax() < intervalMax))
                         return;
                 }
@@ -268,9 +286,14 @@ public final class UniformGrid implements AccelerationStructure {
                 tnextY += deltaY;
                 cell += cellstepY;
             } else {
+                state.countTraversalStep();
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
+                    for (int i : cells[cell]) {
+                        state.countPrimitiveTest();
                         primitives.intersectPrimitive(r, i, state);
+                        if (any && state.hit())
+                            return;
+                    }
                     if (state.hit() && (r.getMax() < tnextZ && r.getMax() < intervalMax))
                         return;
                 }
@@ -27,6 +27,8 @@ public class BucketOrderFactory {
             o = new HilbertBucketOrder();
         else if (order.equals("random"))
             o = new RandomBucketOrder();
+        else if (order.equals("cost"))
+            o = new CostBucketOrder();
         if (o == null) {
             UI.printWarning(Module.BCKT, "Unrecognized bucket ordering: \"%s\" - using hilbert", order);
             return new HilbertBucketOrder();
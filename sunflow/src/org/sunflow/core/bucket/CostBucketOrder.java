@@ -0,0 +1,61 @@
+package org.sunflow.core.bucket;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.sunflow.core.BucketOrder;
+
+/**
+ * Visits the most expensive parts of the image first, so that the render does
+ * not end with a few threads busy on slow buckets while the others are idle.
+ * The buckets are cut into short runs along a hilbert curve, which are sorted
+ * by decreasing cost. Buckets of a run are neighbours, so the threads working
+ * on a run at the same time share most of the geometry and textures they
+ * touch. The costs must be estimated by the renderer, without them the order
+ * is the same as the hilbert order.
+ */
+public class CostBucketOrder implements BucketOrder {
+    public int[] getBucketSequence(int nbw, int nbh) {
+        return new HilbertBucketOrder().getBucketSequence(nbw, nbh);
+    }
+
+    /**
+     * Computes the order in which the buckets should be rendered given an
+     * estimate of their cost.
+     * 
+     * @param nbw number of buckets in the X direction
+     * @param nbh number of buckets in the Y direction
+     * @param costs estimated cost of each bucket, in row major order
+     * @param runLength number of neighbouring buckets to keep together
+     * @return array of coordinates with interleaved X, Y of the positions of
+     *         buckets to be rendered.
+     */
+    public int[] getBucketSequence(int nbw, int nbh, long[] costs, int runLength) {
+        int[] hilbert = getBucketSequence(nbw, nbh);
+        int n = nbw * nbh;
+        int numRuns = (n + runLength - 1) / runLength;
+        final long[] runCosts = new long[numRuns];
+        for (int i = 0; i < n; i++)
+            runCosts[i / runLength] += costs[hilbert[2 * i + 0] + hilbert[2 * i + 1] * nbw];
+        Integer[] runs = new Integer[numRuns];
+        for (int i = 0; i < numRuns; i++)
+            runs[i] = i;
+        // the sort is stable, runs of equal cost stay in hilbert order
+        Arrays.sort(runs, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long ca = runCosts[a];
+                long cb = runCosts[b];
+                return ca > cb ? -1 : (ca == cb ? 0 : 1);
+            }
+        });
+        int[] coords = new int[2 * n];
+        int index = 0;
+        for (int run : runs) {
+            int first = run * runLength;
+            int last = Math.min(n, first + runLength);
+            System.arraycopy(hilbert, 2 * first, coords, index, 2 * (last - first));
+            index += 2 * (last - first);
+        }
+        return coords;
+    }
+}
@@ -3,10 +3,14 @@ package org.sunflow.core.display;
 import org.sunflow.core.Display;
 import org.sunflow.image.Bitmap;
 import org.sunflow.image.Color;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
 
 public class FileDisplay implements Display {
     private Bitmap bitmap;
     private String filename;
+    private boolean background;
+    private Thread saveThread;
 
     public FileDisplay(boolean saveImage) {
         // a constructor that allows the image to not be saved
@@ -16,8 +20,46 @@ public class FileDisplay implements Display {
     }
 
     public FileDisplay(String filename) {
+        this(filename, false);
+    }
+
+    /**
+     * Creates a display which saves the image to the specified file. If
+     * background saving is enabled, the image is written by a separate thread
+     * so that the next frame of an animation can start rendering right away.
+     * 
+     * @param filename file to save the image to
+     * @param background save images in the background
+     */
+    public FileDisplay(String filename, boolean background) {
         bitmap = null;
         this.filename = filename == null ? "output.png" : filename;
+        this.background = background;
+        saveThread = null;
+    }
+
+    /**
+     * Change the file the next image will be saved to. This allows the same
+     * display to be reused for all the frames of an animation.
+     * 
+     * @param filename file to save the next image to
+     */
+    public void setFilename(String filename) {
+        this.filename = filename == null ? "output.png" : filename;
+    }
+
+    /**
+     * Wait for the image being saved in the background, if any, to be written.
+     */
+    public void waitForSave() {
+        if (saveThread == null)
+            return;
+        try {
+            saveThread.join();
+        } catch (InterruptedException e) {
+            UI.printError(Module.DISP, "Interrupted while saving image");
+        }
+        saveThread = null;
     }
 
     public void imageBegin(int w, int h, int bucketSize) {
@@ -42,7 +84,24 @@ public class FileDisplay implements Display {
     }
 
     public void imageEnd() {
-        if (filename != null)
+        if (filename == null)
+            return;
+        if (!background) {
             bitmap.save(filename);
+            return;
+        }
+        // only keep one image waiting to be written
+        waitForSave();
+        final Bitmap b = bitmap;
+        final String f = filename;
+        saveThread = new Thread() {
+            @Override
+            public void run() {
+                b.save(f);
+            }
+        };
+        saveThread.start();
+        // the next image needs its own bitmap
+        bitmap = null;
     }
 }
\ No newline at end of file
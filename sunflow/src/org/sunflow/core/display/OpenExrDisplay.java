@@ -2,7 +2,8 @@ package org.sunflow.core.display;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 import java.util.zip.Deflater;
 
 import org.sunflow.core.Display;
@@ -26,14 +27,25 @@ public class OpenExrDisplay implements Display {
 
     private static final int NO_COMPRESSION = 0;
     private static final int RLE_COMPRESSION = 1;
-    // private static final int ZIPS_COMPRESSION = 2;
+    private static final int ZIPS_COMPRESSION = 2;
     private static final int ZIP_COMPRESSION = 3;
-    // private static final int PIZ_COMPRESSION = 4;
+    private static final int PIZ_COMPRESSION = 4;
     // private static final int PXR24_COMPRESSION = 5;
 
     private static final int RLE_MIN_RUN = 3;
     private static final int RLE_MAX_RUN = 127;
 
+    private static final int USHORT_RANGE = 1 << 16;
+    private static final int BITMAP_SIZE = USHORT_RANGE >> 3;
+    private static final int HUF_ENCSIZE = USHORT_RANGE + 1;
+    private static final int SHORT_ZEROCODE_RUN = 59;
+    private static final int LONG_ZEROCODE_RUN = 63;
+    private static final int SHORTEST_LONG_RUN = 2 + LONG_ZEROCODE_RUN - SHORT_ZEROCODE_RUN;
+    private static final int LONGEST_LONG_RUN = 255 + SHORTEST_LONG_RUN;
+    private static final int A_OFFSET = 1 << 15;
+    private static final int M_OFFSET = 1 << 15;
+    private static final int MOD_MASK = (1 << 16) - 1;
+
     private String filename;
     private RandomAccessFile file;
     private long[][] tileOffsets;
@@ -44,8 +56,6 @@ public class OpenExrDisplay implements Display {
     private int compression;
     private byte channelType;
     private int channelSize;
-    private byte[] tmpbuf;
-    private byte[] comprbuf;
 
     public OpenExrDisplay(String filename, String compression, String channelType) {
         this.filename = filename == null ? "output.exr" : filename;
@@ -55,6 +65,10 @@ public class OpenExrDisplay implements Display {
             this.compression = RLE_COMPRESSION;
         else if (compression.equals("zip"))
             this.compression = ZIP_COMPRESSION;
+        else if (compression.equals("zips"))
+            this.compression = ZIPS_COMPRESSION;
+        else if (compression.equals("piz"))
+            this.compression = PIZ_COMPRESSION;
         else {
             UI.printWarning(Module.DISP, "EXR - Compression type was not recognized - defaulting to zip");
             this.compression = ZIP_COMPRESSION;
@@ -92,12 +106,15 @@ public class OpenExrDisplay implements Display {
     public void imagePrepare(int x, int y, int w, int h, int id) {
     }
 
-    public synchronized void imageUpdate(int x, int y, int w, int h, Color[] data) {
+    public void imageUpdate(int x, int y, int w, int h, Color[] data) {
+        // figure out which openexr tile corresponds to this bucket
+        int tx = x / tileSize;
+        int ty = y / tileSize;
+        // the tile is encoded and compressed by the calling thread, only
+        // appending it to the file is serialized
+        byte[] tile = encodeTile(tx, ty, w, h, data);
         try {
-            // figure out which openexr tile corresponds to this bucket
-            int tx = x / tileSize;
-            int ty = y / tileSize;
-            writeTile(tx, ty, w, h, data);
+            writeTile(tx, ty, tile);
         } catch (IOException e) {
             UI.printError(Module.DISP, "EXR - %s", e.getMessage());
             e.printStackTrace();
@@ -207,14 +224,6 @@ public class OpenExrDisplay implements Display {
         tilesX = (int) ((w + tileSize - 1) / tileSize);
         tilesY = (int) ((h + tileSize - 1) / tileSize);
 
-        /*
-         * twice the space for the compressing buffer, as for ex. the compressor
-         * can actually increase the size of the data :) If that happens though,
-         * it is not saved into the file, but discarded
-         */
-        tmpbuf = new byte[tileSize * tileSize * channelSize * 3];
-        comprbuf = new byte[tileSize * tileSize * channelSize * 3 * 2];
-
         tileOffsets = new long[tilesX][tilesY];
 
         file.write("tiles".getBytes());
@@ -245,12 +254,19 @@ public class OpenExrDisplay implements Display {
                 file.write(ByteUtil.get8Bytes(tileOffsets[tx][ty]));
     }
 
-    private void writeTile(int tileX, int tileY, int w, int h, Color[] tile) throws IOException {
+    private synchronized void writeTile(int tileX, int tileY, byte[] tile) throws IOException {
+        tileOffsets[tileX][tileY] = file.getFilePointer();
+        file.write(tile);
+    }
+
+    /**
+     * Converts a bucket into a complete tile block, ready to be appended to the
+     * file. This is safe to call from several threads at once.
+     */
+    private byte[] encodeTile(int tileX, int tileY, int w, int h, Color[] tile) {
         byte[] rgb = new byte[4];
 
-        // setting comprSize to max integer so without compression things
-        // don't go awry
-        int pixptr = 0, writeSize = 0, comprSize = Integer.MAX_VALUE;
+        int pixptr = 0, writeSize = 0;
         int tileRangeX = (tileSize < w) ? tileSize : w;
         int tileRangeY = (tileSize < h) ? tileSize : h;
         int channelBase = tileRangeX * channelSize;
@@ -262,17 +278,8 @@ public class OpenExrDisplay implements Display {
         if ((tileSize != tileRangeY) && (tileY == 0))
             System.out.print(" bad Y alignment ");
 
-        tileOffsets[tileX][tileY] = file.getFilePointer();
-
-        // the tile header: tile's x&y coordinate, levels x&y coordinate and
-        // tilesize
-        file.write(ByteUtil.get4Bytes(tileX));
-        file.write(ByteUtil.get4Bytes(tileY));
-        file.write(ByteUtil.get4Bytes(0));
-        file.write(ByteUtil.get4Bytes(0));
-
-        // just in case
-        Arrays.fill(tmpbuf, (byte) 0);
+        writeSize = tileRangeX * tileRangeY * channelSize * 3;
+        byte[] data = new byte[writeSize];
 
         for (int ty = 0; ty < tileRangeY; ty++) {
             for (int tx = 0; tx < tileRangeX; tx++) {
@@ -280,14 +287,14 @@ public class OpenExrDisplay implements Display {
                 for (int component = 0; component < 3; component++) {
                     if (channelType == FLOAT) {
                         rgb = ByteUtil.get4Bytes(Float.floatToRawIntBits(rgbf[2 - component]));
-                        tmpbuf[(channelBase * component) + pixptr + 0] = rgb[0];
-                        tmpbuf[(channelBase * component) + pixptr + 1] = rgb[1];
-                        tmpbuf[(channelBase * component) + pixptr + 2] = rgb[2];
-                        tmpbuf[(channelBase * component) + pixptr + 3] = rgb[3];
+                        data[(channelBase * component) + pixptr + 0] = rgb[0];
+                        data[(channelBase * component) + pixptr + 1] = rgb[1];
+                        data[(channelBase * component) + pixptr + 2] = rgb[2];
+                        data[(channelBase * component) + pixptr + 3] = rgb[3];
                     } else if (channelType == HALF) {
                         rgb = ByteUtil.get2Bytes(ByteUtil.floatToHalf(rgbf[2 - component]));
-                        tmpbuf[(channelBase * component) + pixptr + 0] = rgb[0];
-                        tmpbuf[(channelBase * component) + pixptr + 1] = rgb[1];
+                        data[(channelBase * component) + pixptr + 0] = rgb[0];
+                        data[(channelBase * component) + pixptr + 1] = rgb[1];
                     }
                 }
                 pixptr += channelSize;
@@ -295,25 +302,31 @@ public class OpenExrDisplay implements Display {
             pixptr += (tileRangeX * channelSize * 2);
         }
 
-        writeSize = tileRangeX * tileRangeY * channelSize * 3;
-
-        if (compression != NO_COMPRESSION)
-            comprSize = compress(compression, tmpbuf, writeSize, comprbuf);
-
-        // lastly, write the size of the tile and the tile itself
-        // (compressed or not)
-        if (comprSize < writeSize) {
-            file.write(ByteUtil.get4Bytes(comprSize));
-            file.write(comprbuf, 0, comprSize);
-        } else {
-            file.write(ByteUtil.get4Bytes(writeSize));
-            file.write(tmpbuf, 0, writeSize);
+        // the compressed data is discarded if it is not any smaller
+        if (compression != NO_COMPRESSION) {
+            byte[] compressed = compress(data, tileRangeX, tileRangeY);
+            if (compressed != null && compressed.length < writeSize)
+                data = compressed;
         }
+
+        // the tile header: tile's x&y coordinate, levels x&y coordinate and
+        // tilesize, followed by the tile itself (compressed or not)
+        byte[] block = new byte[20 + data.length];
+        putInt(block, 0, tileX);
+        putInt(block, 4, tileY);
+        putInt(block, 8, 0);
+        putInt(block, 12, 0);
+        putInt(block, 16, data.length);
+        System.arraycopy(data, 0, block, 20, data.length);
+        return block;
     }
 
-    private static final int compress(int tp, byte[] in, int inSize, byte[] out) {
+    private byte[] compress(byte[] in, int nx, int ny) {
+        int inSize = in.length;
         if (inSize == 0)
-            return 0;
+            return null;
+        if (compression == PIZ_COMPRESSION)
+            return pizCompress(in, nx, ny, channelSize / 2);
 
         int t1 = 0, t2 = (inSize + 1) / 2;
         int inPtr = 0, ret;
@@ -321,45 +334,58 @@ public class OpenExrDisplay implements Display {
 
         // zip and rle treat the data first, in the same way so I'm not
         // repeating the code
-        if ((tp == ZIP_COMPRESSION) || (tp == RLE_COMPRESSION)) {
-            // reorder the pixel data ~ straight from ImfZipCompressor.cpp :)
-            while (true) {
-                if (inPtr < inSize)
-                    tmp[t1++] = in[inPtr++];
-                else
-                    break;
-
-                if (inPtr < inSize)
-                    tmp[t2++] = in[inPtr++];
-                else
-                    break;
-            }
+        // reorder the pixel data ~ straight from ImfZipCompressor.cpp :)
+        while (true) {
+            if (inPtr < inSize)
+                tmp[t1++] = in[inPtr++];
+            else
+                break;
+
+            if (inPtr < inSize)
+                tmp[t2++] = in[inPtr++];
+            else
+                break;
+        }
 
-            // Predictor ~ straight from ImfZipCompressor.cpp :)
-            t1 = 1;
-            int p = tmp[t1 - 1];
-            while (t1 < inSize) {
-                int d = (int) tmp[t1] - p + (128 + 256);
-                p = (int) tmp[t1];
-                tmp[t1] = (byte) d;
-                t1++;
-            }
+        // Predictor ~ straight from ImfZipCompressor.cpp :)
+        t1 = 1;
+        int p = tmp[t1 - 1];
+        while (t1 < inSize) {
+            int d = (int) tmp[t1] - p + (128 + 256);
+            p = (int) tmp[t1];
+            tmp[t1] = (byte) d;
+            t1++;
         }
 
-        // We'll just jump from here to the wanted compress/decompress stuff if
-        // need be
-        switch (tp) {
+        byte[] out;
+        switch (compression) {
             case ZIP_COMPRESSION:
+            case ZIPS_COMPRESSION:
+                // a tile is always compressed as a single block, so zips
+                // only differs from zip in name
                 Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
-                def.setInput(tmp, 0, inSize);
-                def.finish();
-                ret = def.deflate(out);
-                return ret;
+                try {
+                    def.setInput(tmp, 0, inSize);
+                    def.finish();
+                    out = new byte[inSize];
+                    ret = def.deflate(out);
+                    // output which doesn't fit is useless anyway
+                    if (!def.finished())
+                        return null;
+                } finally {
+                    def.end();
+                }
+                break;
             case RLE_COMPRESSION:
-                return rleCompress(tmp, inSize, out);
+                out = new byte[inSize * 2];
+                ret = rleCompress(tmp, inSize, out);
+                break;
             default:
-                return -1;
+                return null;
         }
+        byte[] result = new byte[ret];
+        System.arraycopy(out, 0, result, 0, ret);
+        return result;
     }
 
     private static final int rleCompress(byte[] in, int inLen, byte[] out) {
@@ -384,4 +410,338 @@ public class OpenExrDisplay implements Display {
         }
         return outWrite;
     }
-}
\ No newline at end of file
+
+    /**
+     * PIZ compression ~ after ImfPizCompressor.cpp. The 16 bit words of each
+     * channel are mapped onto a dense range, wavelet transformed and huffman
+     * encoded.
+     * 
+     * @param in tile data, one scanline of each channel after the other
+     * @param nx tile width
+     * @param ny tile height
+     * @param size number of 16 bit words per channel value
+     * @return compressed data
+     */
+    private static byte[] pizCompress(byte[] in, int nx, int ny, int size) {
+        // gather the words of each channel in a contiguous block
+        int lineWords = nx * size;
+        int channelWords = lineWords * ny;
+        int[] data = new int[3 * channelWords];
+        for (int y = 0, i = 0; y < ny; y++)
+            for (int c = 0; c < 3; c++)
+                for (int k = 0, d = c * channelWords + y * lineWords; k < lineWords; k++, i += 2)
+                    data[d + k] = (in[i] & 0xFF) | ((in[i + 1] & 0xFF) << 8);
+
+        // bitmap of the values which are present, zero is implied
+        byte[] bitmap = new byte[BITMAP_SIZE];
+        for (int v : data)
+            bitmap[v >> 3] |= 1 << (v & 7);
+        bitmap[0] &= ~1;
+        int minNonZero = BITMAP_SIZE - 1;
+        int maxNonZero = 0;
+        for (int i = 0; i < BITMAP_SIZE; i++) {
+            if (bitmap[i] != 0) {
+                if (minNonZero > i)
+                    minNonZero = i;
+                maxNonZero = i;
+            }
+        }
+
+        // remap the values onto 0..maxValue
+        int[] lut = new int[USHORT_RANGE];
+        int k = 0;
+        for (int i = 0; i < USHORT_RANGE; i++)
+            if (i == 0 || (bitmap[i >> 3] & (1 << (i & 7))) != 0)
+                lut[i] = k++;
+        int maxValue = k - 1;
+        for (int i = 0; i < data.length; i++)
+            data[i] = lut[data[i]];
+
+        for (int c = 0; c < 3; c++)
+            for (int j = 0; j < size; j++)
+                wav2Encode(data, c * channelWords + j, nx, size, ny, lineWords, maxValue);
+
+        byte[] huf = hufCompress(data);
+        int bitmapSize = minNonZero <= maxNonZero ? maxNonZero - minNonZero + 1 : 0;
+        byte[] out = new byte[8 + bitmapSize + huf.length];
+        putShort(out, 0, minNonZero);
+        putShort(out, 2, maxNonZero);
+        System.arraycopy(bitmap, minNonZero, out, 4, bitmapSize);
+        putInt(out, 4 + bitmapSize, huf.length);
+        System.arraycopy(huf, 0, out, 8 + bitmapSize, huf.length);
+        return out;
+    }
+
+    /**
+     * 2D haar wavelet transform ~ straight from ImfWav.cpp. Values are encoded
+     * with 14 bit arithmetic if the range allows it, which loses no precision
+     * and compresses better.
+     */
+    private static void wav2Encode(int[] in, int start, int nx, int ox, int ny, int oy, int mx) {
+        boolean w14 = mx < (1 << 14);
+        int n = (nx > ny) ? ny : nx;
+        int p = 1; // == 1 << level
+        int p2 = 2; // == 1 << (level + 1)
+
+        // hierarchical loop on smaller dimension n
+        while (p2 <= n) {
+            int py = start;
+            int ey = start + oy * (ny - p2);
+            int oy1 = oy * p;
+            int oy2 = oy * p2;
+            int ox1 = ox * p;
+            int ox2 = ox * p2;
+
+            for (; py <= ey; py += oy2) {
+                int px = py;
+                int ex = py + ox * (nx - p2);
+                for (; px <= ex; px += ox2) {
+                    int p01 = px + ox1;
+                    int p10 = px + oy1;
+                    int p11 = p10 + ox1;
+                    // 2D wavelet encoding
+                    int i0 = wenc(in[px], in[p01], w14);
+                    int i1 = wenc(in[p10], in[p11], w14);
+                    int j0 = wenc(i0 & 0xFFFF, i1 & 0xFFFF, w14);
+                    int j1 = wenc(i0 >>> 16, i1 >>> 16, w14);
+                    in[px] = j0 & 0xFFFF;
+                    in[p10] = j0 >>> 16;
+                    in[p01] = j1 & 0xFFFF;
+                    in[p11] = j1 >>> 16;
+                }
+                // encode (1D) odd column
+                if ((nx & p) != 0) {
+                    int p10 = px + oy1;
+                    int i0 = wenc(in[px], in[p10], w14);
+                    in[px] = i0 & 0xFFFF;
+                    in[p10] = i0 >>> 16;
+                }
+            }
+            // encode (1D) odd line
+            if ((ny & p) != 0) {
+                int ex = py + ox * (nx - p2);
+                for (int px = py; px <= ex; px += ox2) {
+                    int p01 = px + ox1;
+                    int i0 = wenc(in[px], in[p01], w14);
+                    in[px] = i0 & 0xFFFF;
+                    in[p01] = i0 >>> 16;
+                }
+            }
+            p = p2;
+            p2 <<= 1;
+        }
+    }
+
+    /**
+     * Encode a pair of values into their average and difference, packed as
+     * low and high 16 bits of the result.
+     */
+    private static int wenc(int a, int b, boolean w14) {
+        int l, h;
+        if (w14) {
+            short as = (short) a;
+            short bs = (short) b;
+            l = (as + bs) >> 1;
+            h = as - bs;
+        } else {
+            int ao = (a + A_OFFSET) & MOD_MASK;
+            l = (ao + b) >> 1;
+            h = ao - b;
+            if (h < 0)
+                l = (l + M_OFFSET) & MOD_MASK;
+        }
+        return (l & 0xFFFF) | (h << 16);
+    }
+
+    /**
+     * Huffman compression ~ straight from ImfHuf.cpp.
+     */
+    private static byte[] hufCompress(int[] raw) {
+        int[] freq = new int[HUF_ENCSIZE];
+        for (int v : raw)
+            freq[v]++;
+        long[] hcode = new long[HUF_ENCSIZE];
+        for (int i = 0; i < HUF_ENCSIZE; i++)
+            hcode[i] = freq[i];
+        int im = 0;
+        while (hcode[im] == 0)
+            im++;
+        int iM = hufBuildEncTable(hcode, im);
+
+        // the plain codes are an upper bound, runs are only used if shorter
+        long dataBits = 0;
+        for (int i = im; i < iM; i++)
+            dataBits += (long) freq[i] * (hcode[i] & 63);
+        BitWriter out = new BitWriter(20 + (6 * (iM - im + 1) + 7) / 8 + (int) ((dataBits + 7) / 8));
+        out.pos = 20;
+
+        // pack the code lengths, runs of zeros are stored compactly
+        for (int i = im; i <= iM; i++) {
+            int l = (int) (hcode[i] & 63);
+            if (l == 0) {
+                int zerun = 1;
+                while (i < iM && zerun < LONGEST_LONG_RUN && (hcode[i + 1] & 63) == 0) {
+                    i++;
+                    zerun++;
+                }
+                if (zerun >= 2) {
+                    if (zerun >= SHORTEST_LONG_RUN) {
+                        out.write(6, LONG_ZEROCODE_RUN);
+                        out.write(8, zerun - SHORTEST_LONG_RUN);
+                    } else
+                        out.write(6, SHORT_ZEROCODE_RUN + zerun - 2);
+                    continue;
+                }
+            }
+            out.write(6, l);
+        }
+        out.flush();
+        int tableLength = out.pos - 20;
+
+        // encode the data, the symbol after the last one marks runs
+        int dataStart = out.pos;
+        int s = raw[0];
+        int cs = 0;
+        for (int i = 1; i < raw.length; i++) {
+            if (s == raw[i] && cs < 255)
+                cs++;
+            else {
+                sendCode(out, hcode[s], cs, hcode[iM]);
+                cs = 0;
+            }
+            s = raw[i];
+        }
+        sendCode(out, hcode[s], cs, hcode[iM]);
+        int nBits = (out.pos - dataStart) * 8 + out.lc;
+        out.flush();
+
+        putInt(out.buf, 0, im);
+        putInt(out.buf, 4, iM);
+        putInt(out.buf, 8, tableLength);
+        putInt(out.buf, 12, nBits);
+        putInt(out.buf, 16, 0);
+        byte[] result = new byte[out.pos];
+        System.arraycopy(out.buf, 0, result, 0, out.pos);
+        return result;
+    }
+
+    /**
+     * Replace the symbol frequencies by canonical huffman codes, each code is
+     * stored as <code>length | (bits << 6)</code>. An extra symbol used to
+     * mark runs is added after the last one present.
+     * 
+     * @param frq symbol frequencies, replaced by their codes
+     * @param im first symbol present
+     * @return index of the run symbol
+     */
+    private static int hufBuildEncTable(final long[] frq, int im) {
+        int[] hlink = new int[HUF_ENCSIZE];
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(64, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long fa = frq[a];
+                long fb = frq[b];
+                return fa < fb ? -1 : (fa > fb ? 1 : 0);
+            }
+        });
+        int iM = im;
+        for (int i = im; i < HUF_ENCSIZE; i++) {
+            hlink[i] = i;
+            if (frq[i] != 0)
+                iM = i;
+        }
+        iM++;
+        frq[iM] = 1;
+        for (int i = im; i <= iM; i++)
+            if (frq[i] != 0)
+                heap.add(i);
+
+        // merge the two least frequent sets of symbols, every symbol in a
+        // merged set gets a code one bit longer
+        long[] scode = new long[HUF_ENCSIZE];
+        while (heap.size() > 1) {
+            int mm = heap.poll();
+            int m = heap.poll();
+            frq[m] += frq[mm];
+            heap.add(m);
+            for (int j = m;; j = hlink[j]) {
+                scode[j]++;
+                if (hlink[j] == j) {
+                    // merge the sets
+                    hlink[j] = mm;
+                    break;
+                }
+            }
+            for (int j = mm;; j = hlink[j]) {
+                scode[j]++;
+                if (hlink[j] == j)
+                    break;
+            }
+        }
+
+        // build a canonical code table from the code lengths
+        long[] n = new long[59];
+        for (int i = 0; i < HUF_ENCSIZE; i++)
+            n[(int) scode[i]]++;
+        long c = 0;
+        for (int i = 58; i > 0; i--) {
+            long nc = (c + n[i]) >> 1;
+            n[i] = c;
+            c = nc;
+        }
+        for (int i = 0; i < HUF_ENCSIZE; i++) {
+            int l = (int) scode[i];
+            frq[i] = l > 0 ? l | (n[l]++ << 6) : 0;
+        }
+        return iM;
+    }
+
+    private static void sendCode(BitWriter out, long sCode, int runCount, long runCode) {
+        int sLength = (int) (sCode & 63);
+        int runLength = (int) (runCode & 63);
+        if (sLength + runLength + 8 < sLength * runCount) {
+            out.write(sLength, sCode >> 6);
+            out.write(runLength, runCode >> 6);
+            out.write(8, runCount);
+        } else {
+            for (; runCount >= 0; runCount--)
+                out.write(sLength, sCode >> 6);
+        }
+    }
+
+    private static void putShort(byte[] b, int ofs, int i) {
+        b[ofs + 0] = (byte) (i & 0xFF);
+        b[ofs + 1] = (byte) ((i >> 8) & 0xFF);
+    }
+
+    private static void putInt(byte[] b, int ofs, int i) {
+        b[ofs + 0] = (byte) (i & 0xFF);
+        b[ofs + 1] = (byte) ((i >> 8) & 0xFF);
+        b[ofs + 2] = (byte) ((i >> 16) & 0xFF);
+        b[ofs + 3] = (byte) ((i >> 24) & 0xFF);
+    }
+
+    private static final class BitWriter {
+        private final byte[] buf;
+        private int pos;
+        private long c;
+        private int lc;
+
+        BitWriter(int size) {
+            buf = new byte[size];
+        }
+
+        void write(int n, long bits) {
+            c = (c << n) | bits;
+            lc += n;
+            while (lc >= 8)
+                buf[pos++] = (byte) (c >> (lc -= 8));
+        }
+
+        void flush() {
+            if (lc > 0)
+                buf[pos++] = (byte) (c << (8 - lc));
+            c = 0;
+            lc = 0;
+        }
+    }
+}
@@ -14,11 +14,8 @@ public class BlackmanHarrisFilter implements Filter {
         return s;
     }
 
-    public float get(float x, float y) {
-        return bh1d(x * inv) * bh1d(y * inv);
-    }
-
-    private float bh1d(float x) {
+    public float get(float x) {
+        x *= inv;
         if (x < -1.0f || x > 1.0f)
             return 0.0f;
         x = (x + 1) * 0.5f;
@@ -13,7 +13,7 @@ public class BoxFilter implements Filter {
         return s;
     }
 
-    public float get(float x, float y) {
+    public float get(float x) {
         return 1.0f;
     }
 }
\ No newline at end of file
@@ -7,11 +7,7 @@ public class CatmullRomFilter implements Filter {
         return 4.0f;
     }
 
-    public float get(float x, float y) {
-        return catrom1d(x) * catrom1d(y);
-    }
-
-    private float catrom1d(float x) {
+    public float get(float x) {
         x = Math.abs(x);
         float x2 = x * x;
         float x3 = x * x2;
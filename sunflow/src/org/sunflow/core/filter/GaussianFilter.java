@@ -15,9 +15,7 @@ public class GaussianFilter implements Filter {
         return s;
     }
 
-    public float get(float x, float y) {
-        float gx = (float) Math.exp(-x * x) + es2;
-        float gy = (float) Math.exp(-y * y) + es2;
-        return gx * gy;
+    public float get(float x) {
+        return (float) Math.exp(-x * x) + es2;
     }
 }
\ No newline at end of file
@@ -7,12 +7,8 @@ public class LanczosFilter implements Filter {
         return 4.0f;
     }
 
-    public float get(float x, float y) {
-        return sinc1d(x * 0.5f) * sinc1d(y * 0.5f);
-    }
-
-    private float sinc1d(float x) {
-        x = Math.abs(x);
+    public float get(float x) {
+        x = Math.abs(x * 0.5f);
         if (x < 1e-5f)
             return 1;
         if (x > 1.0f)
@@ -7,11 +7,7 @@ public class MitchellFilter implements Filter {
         return 4.0f;
     }
 
-    public float get(float x, float y) {
-        return mitchell(x) * mitchell(y);
-    }
-
-    private float mitchell(float x) {
+    public float get(float x) {
         final float B = 1 / 3.0f;
         final float C = 1 / 3.0f;
         final float SIXTH = 1 / 6.0f;
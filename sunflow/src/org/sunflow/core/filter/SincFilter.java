@@ -13,11 +13,7 @@ public class SincFilter implements Filter {
         return s;
     }
 
-    public float get(float x, float y) {
-        return sinc1d(x) * sinc1d(y);
-    }
-
-    private float sinc1d(float x) {
+    public float get(float x) {
         x = Math.abs(x);
         if (x < 0.0001f)
             return 1.0f;
@@ -14,7 +14,7 @@ public class TriangleFilter implements Filter {
         return s;
     }
 
-    public float get(float x, float y) {
-        return (1.0f - Math.abs(x * inv)) * (1.0f - Math.abs(y * inv));
+    public float get(float x) {
+        return 1.0f - Math.abs(x * inv);
     }
 }
\ No newline at end of file
@@ -153,8 +153,9 @@ public class InstantGI implements GIEngine {
         public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
             state.faceforward();
             PointLight vpl = new PointLight();
-            vpl.p = state.getPoint();
-            vpl.n = state.getNormal();
+            // copy the point and normal since shading states are recycled
+            vpl.p = new Point3(state.getPoint());
+            vpl.n = new Vector3(state.getNormal());
             vpl.power = power;
             synchronized (this) {
                 virtualLights.add(vpl);
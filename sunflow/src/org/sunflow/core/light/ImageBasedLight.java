@@ -13,20 +13,23 @@ import org.sunflow.core.Texture;
 import org.sunflow.core.TextureCache;
 import org.sunflow.image.Bitmap;
 import org.sunflow.image.Color;
+import org.sunflow.math.AliasTable2D;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.QMC;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
 
 public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     private Texture texture;
     private OrthoNormalBasis basis;
     private int numSamples;
+    private int samplingResolution;
     private float jacobian;
-    private float[] colHistogram;
-    private float[][] imageHistogram;
+    private AliasTable2D distribution;
     private Vector3[] samples;
     private Color[] colors;
 
@@ -34,6 +37,7 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
         texture = null;
         updateBasis(new Vector3(0, 0, -1), new Vector3(0, 1, 0));
         numSamples = 64;
+        samplingResolution = 1024;
     }
 
     private void updateBasis(Vector3 center, Vector3 up) {
@@ -47,6 +51,7 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     public boolean update(ParameterList pl, SunflowAPI api) {
         updateBasis(pl.getVector("center", null), pl.getVector("up", null));
         numSamples = pl.getInt("samples", numSamples);
+        int res = pl.getInt("sampling_resolution", samplingResolution);
 
         String filename = pl.getString("texture", null);
         if (filename != null)
@@ -55,66 +60,28 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
         // no texture provided
         if (texture == null)
             return false;
-        Bitmap b = texture.getBitmap();
-        if (b == null)
-            return false;
 
-        // rebuild histograms if this is a new texture
-        if (filename != null) {
-            imageHistogram = new float[b.getWidth()][b.getHeight()];
-            colHistogram = new float[b.getWidth()];
-            float du = 1.0f / b.getWidth();
-            float dv = 1.0f / b.getHeight();
-            for (int x = 0; x < b.getWidth(); x++) {
-                for (int y = 0; y < b.getHeight(); y++) {
-                    float u = (x + 0.5f) * du;
-                    float v = (y + 0.5f) * dv;
-                    Color c = texture.getPixel(u, v);
-                    // box filter the image
-                    // c.add(texture.getPixel(u + du, v));
-                    // c.add(texture.getPixel(u + du, v+ dv));
-                    // c.add(texture.getPixel(u, v + dv));
-                    // c.mul(0.25f);
-                    imageHistogram[x][y] = c.getLuminance() * (float) Math.sin(Math.PI * v);
-                    if (y > 0)
-                        imageHistogram[x][y] += imageHistogram[x][y - 1];
-                }
-                colHistogram[x] = imageHistogram[x][b.getHeight() - 1];
-                if (x > 0)
-                    colHistogram[x] += colHistogram[x - 1];
-                for (int y = 0; y < b.getHeight(); y++)
-                    imageHistogram[x][y] /= imageHistogram[x][b.getHeight() - 1];
-            }
-            for (int x = 0; x < b.getWidth(); x++)
-                colHistogram[x] /= colHistogram[b.getWidth() - 1];
-            jacobian = (float) (2 * Math.PI * Math.PI) / (b.getWidth() * b.getHeight());
+        // rebuild sampling tables if this is a new texture
+        if (filename != null || res != samplingResolution || distribution == null) {
+            Bitmap b = texture.getBitmap();
+            if (b == null)
+                return false;
+            samplingResolution = res;
+            buildDistribution(b);
         }
         // take fixed samples
         if (pl.getBoolean("fixed", samples != null)) {
             // Bitmap loc = new Bitmap(filename);
             samples = new Vector3[numSamples];
             colors = new Color[numSamples];
+            float[] uv = new float[2];
             for (int i = 0; i < numSamples; i++) {
                 double randX = (double) i / (double) numSamples;
                 double randY = QMC.halton(0, i);
-                int x = 0;
-                while (randX >= colHistogram[x] && x < colHistogram.length - 1)
-                    x++;
-                float[] rowHistogram = imageHistogram[x];
-                int y = 0;
-                while (randY >= rowHistogram[y] && y < rowHistogram.length - 1)
-                    y++;
-                // sample from (x, y)
-                float u = (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
-                float v = (float) ((y == 0) ? (randY / rowHistogram[0]) : ((randY - rowHistogram[y - 1]) / (rowHistogram[y] - rowHistogram[y - 1])));
-
-                float px = ((x == 0) ? colHistogram[0] : (colHistogram[x] - colHistogram[x - 1]));
-                float py = ((y == 0) ? rowHistogram[0] : (rowHistogram[y] - rowHistogram[y - 1]));
-
-                float su = (x + u) / colHistogram.length;
-                float sv = (y + v) / rowHistogram.length;
-
-                float invP = (float) Math.sin(sv * Math.PI) * jacobian / (numSamples * px * py);
+                float p = distribution.sample(randX, randY, uv);
+                float su = uv[0];
+                float sv = uv[1];
+                float invP = (float) Math.sin(sv * Math.PI) * jacobian / (numSamples * p);
                 samples[i] = getDirection(su, sv);
                 basis.transform(samples[i]);
                 colors[i] = texture.getPixel(su, sv).mul(invP);
@@ -129,6 +96,43 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
         return true;
     }
 
+    /**
+     * Builds the importance sampling tables from the luminance of the bitmap.
+     * Images wider than the sampling resolution are box filtered down first so
+     * the size of the tables stays bounded.
+     */
+    private void buildDistribution(Bitmap b) {
+        int w = b.getWidth();
+        int h = b.getHeight();
+        if (samplingResolution > 0 && w > samplingResolution) {
+            h = Math.max(1, (int) ((long) h * samplingResolution / w));
+            w = samplingResolution;
+        }
+        float[] weights = new float[w * h];
+        int[] counts = new int[w * h];
+        float[] rgb = new float[3];
+        Color c = new Color();
+        for (int y = 0; y < b.getHeight(); y++) {
+            int sy = (int) ((long) y * h / b.getHeight());
+            for (int x = 0; x < b.getWidth(); x++) {
+                int sx = (int) ((long) x * w / b.getWidth());
+                b.getPixel(x, y, rgb);
+                weights[sx * h + sy] += c.set(rgb[0], rgb[1], rgb[2]).getLuminance();
+                counts[sx * h + sy]++;
+            }
+        }
+        float dv = 1.0f / h;
+        for (int x = 0, i = 0; x < w; x++) {
+            for (int y = 0; y < h; y++, i++) {
+                float v = (y + 0.5f) * dv;
+                weights[i] = counts[i] > 0 ? weights[i] / counts[i] * (float) Math.sin(Math.PI * v) : 0;
+            }
+        }
+        distribution = new AliasTable2D(weights, w, h);
+        jacobian = (float) (2 * Math.PI * Math.PI);
+        UI.printInfo(Module.LIGHT, "Image based light sampling resolution: %dx%d", w, h);
+    }
+
     public void init(String name, SunflowAPI api) {
         // register this object with the api properly
         api.geometry(name, this);
@@ -176,28 +180,17 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     public void getSamples(ShadingState state) {
         if (samples == null) {
             int n = state.getDiffuseDepth() > 0 ? 1 : numSamples;
+            float[] uv = new float[2];
             for (int i = 0; i < n; i++) {
                 // random offset on unit square, we use the infinite version of
                 // getRandom because the light sampling is adaptive
                 double randX = state.getRandom(i, 0, n);
                 double randY = state.getRandom(i, 1, n);
-                int x = 0;
-                while (randX >= colHistogram[x] && x < colHistogram.length - 1)
-                    x++;
-                float[] rowHistogram = imageHistogram[x];
-                int y = 0;
-                while (randY >= rowHistogram[y] && y < rowHistogram.length - 1)
-                    y++;
-                // sample from (x, y)
-                float u = (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
-                float v = (float) ((y == 0) ? (randY / rowHistogram[0]) : ((randY - rowHistogram[y - 1]) / (rowHistogram[y] - rowHistogram[y - 1])));
-
-                float px = ((x == 0) ? colHistogram[0] : (colHistogram[x] - colHistogram[x - 1]));
-                float py = ((y == 0) ? rowHistogram[0] : (rowHistogram[y] - rowHistogram[y - 1]));
-
-                float su = (x + u) / colHistogram.length;
-                float sv = (y + v) / rowHistogram.length;
-                float invP = (float) Math.sin(sv * Math.PI) * jacobian / (n * px * py);
+                // sample from the importance tables
+                float p = distribution.sample(randX, randY, uv);
+                float su = uv[0];
+                float sv = uv[1];
+                float invP = (float) Math.sin(sv * Math.PI) * jacobian / (n * p);
                 Vector3 dir = getDirection(su, sv);
                 basis.transform(dir);
                 if (Vector3.dot(dir, state.getGeoNormal()) > 0) {
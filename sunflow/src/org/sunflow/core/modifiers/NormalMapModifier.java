@@ -23,7 +23,7 @@ public class NormalMapModifier implements Modifier {
 
     public void modify(ShadingState state) {
         // apply normal map
-        state.getNormal().set(normalMap.getNormal(state.getUV().x, state.getUV().y, state.getBasis()));
+        state.getNormal().set(normalMap.getNormal(state.getUV().x, state.getUV().y, state.getBasis(), state.getTextureFootprint()));
         state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
     }
 }
\ No newline at end of file
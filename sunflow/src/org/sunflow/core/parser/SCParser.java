@@ -5,7 +5,6 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -94,7 +93,7 @@ public class SCParser implements SceneParser {
     @Override
     public boolean parse(String filename, SunflowAPI api) {
         try {
-            parse(new FileReader(filename), filename, api);
+            parse(new Parser(filename), filename, api);
         }
         catch (FileNotFoundException e) {
             UI.printError(Module.API, "%s", e.getMessage());
@@ -115,13 +114,23 @@ public class SCParser implements SceneParser {
     }
     
     public boolean parse(Reader reader, String filename, SunflowAPI api) {
+        try {
+            return parse(new Parser(reader), filename, api);
+        }
+        catch (FileNotFoundException e) {
+            UI.printError(Module.API, "%s", e.getMessage());
+            return false;
+        }
+    }
+    
+    private boolean parse(Parser parser, String filename, SunflowAPI api) {
         String localDir = new File(filename).getAbsoluteFile().getParentFile().getAbsolutePath();
         numLightSamples = 1;
         Timer timer = new Timer();
         timer.start();
         UI.printInfo(Module.API, "Parsing \"%s\" ...", filename);
         try {
-            p = new Parser(reader);
+            p = parser;
             while (true) {
                 String token = p.getNextToken();
                 if (token == null)
@@ -149,6 +158,15 @@ public class SCParser implements SceneParser {
                     api.parameter("bucket.order", p.getNextToken());
                     api.options(SunflowAPI.DEFAULT_OPTIONS);
                 }
+                else if (token.equals("texture-cache")) {
+                    UI.printInfo(Module.API, "Reading texture cache settings ...");
+                    api.parameter("texture.cache.memory", p.getNextInt());
+                    api.options(SunflowAPI.DEFAULT_OPTIONS);
+                }
+                else if (token.equals("progressive")) {
+                    UI.printInfo(Module.API, "Reading progressive render settings ...");
+                    parseProgressiveBlock(api);
+                }
                 else if (token.equals("photons")) {
                     UI.printInfo(Module.API, "Reading photon settings ...");
                     parsePhotonBlock(api);
@@ -241,6 +259,8 @@ public class SCParser implements SceneParser {
         }
         if (p.peekNextToken("samples"))
             api.parameter("aa.samples", p.getNextInt());
+        if (p.peekNextToken("error"))
+            api.parameter("aa.error", p.getNextFloat());
         if (p.peekNextToken("contrast"))
             api.parameter("aa.contrast", p.getNextFloat());
         if (p.peekNextToken("filter"))
@@ -427,6 +447,14 @@ public class SCParser implements SceneParser {
             p.getNextFloat();
             p.getNextFloat();
         }
+        if (p.peekNextToken("max-lights")) {
+            api.parameter("lights.max", p.getNextInt());
+            api.options(SunflowAPI.DEFAULT_OPTIONS);
+        }
+        if (p.peekNextToken("shading-cache")) {
+            api.parameter("shadingcache.rate", p.getNextFloat());
+            api.options(SunflowAPI.DEFAULT_OPTIONS);
+        }
         p.checkNextToken("}");
     }
     
@@ -442,6 +470,22 @@ public class SCParser implements SceneParser {
         api.options(SunflowAPI.DEFAULT_OPTIONS);
     }
     
+    private void parseProgressiveBlock(SunflowAPI api) throws ParserException, IOException {
+        p.checkNextToken("{");
+        if (p.peekNextToken("samples"))
+            api.parameter("progressive.samples", p.getNextInt());
+        if (p.peekNextToken("noise"))
+            api.parameter("progressive.noise", p.getNextFloat());
+        if (p.peekNextToken("time"))
+            api.parameter("progressive.time", p.getNextFloat());
+        if (p.peekNextToken("checkpoint"))
+            api.parameter("progressive.checkpoint", p.getNextToken());
+        if (p.peekNextToken("checkpoint-interval"))
+            api.parameter("progressive.checkpoint.interval", p.getNextFloat());
+        p.checkNextToken("}");
+        api.options(SunflowAPI.DEFAULT_OPTIONS);
+    }
+
     private void parseCamera(SunflowAPI api) throws ParserException, IOException {
         p.checkNextToken("{");
         p.checkNextToken("type");
@@ -931,6 +975,8 @@ public class SCParser implements SceneParser {
                 api.parameter("normals", "vector", "vertex", parseFloatArray(np * 3));
             else if (p.peekNextToken("facevarying"))
                 api.parameter("normals", "vector", "facevarying", parseFloatArray(nt * 9));
+            else if (p.peekNextToken("smooth"))
+                api.parameter("smooth_normals", true);
             else
                 p.checkNextToken("none");
             // parse texture coordinates
@@ -1068,6 +1114,8 @@ public class SCParser implements SceneParser {
             api.parameter("filename", p.getNextToken());
             if (p.peekNextToken("smooth_normals"))
                 api.parameter("smooth_normals", p.getNextBoolean());
+            if (p.peekNextToken("cache"))
+                api.parameter("cache", p.getNextBoolean());
             api.geometry(name, new FileMesh());
         }
         else if (type.equals("bezier-mesh")) {
@@ -1114,8 +1162,19 @@ public class SCParser implements SceneParser {
         UI.printInfo(Module.API, "Reading instance: %s ...", name);
         p.checkNextToken("geometry");
         String geoname = p.getNextToken();
-        p.checkNextToken("transform");
-        api.parameter("transform", parseMatrix());
+        if (p.peekNextToken("steps")) {
+            // motion blurred instance
+            int n = p.getNextInt();
+            api.parameter("transform.steps", n);
+            for (int i = 0; i < n; i++) {
+                p.checkNextToken("transform");
+                api.parameter(String.format("transform[%d]", i), parseMatrix());
+            }
+        }
+        else {
+            p.checkNextToken("transform");
+            api.parameter("transform", parseMatrix());
+        }
         String[] shaders;
         if (p.peekNextToken("shaders")) {
             int n = p.getNextInt();
@@ -1258,6 +1317,8 @@ public class SCParser implements SceneParser {
             else
                 UI.printWarning(Module.API, "Samples keyword not found - defaulting to %d", samples);
             api.parameter("samples", samples);
+            if (p.peekNextToken("sampling-res"))
+                api.parameter("sampling_resolution", p.getNextInt());
             ImageBasedLight ibl = new ImageBasedLight();
             ibl.init(api.getUniqueName("ibl"), api);
         }
@@ -93,12 +93,12 @@ public class Plane implements PrimitiveList {
         state.init();
         state.getRay().getPoint(state.getPoint());
         Instance parent = state.getInstance();
-        Vector3 worldNormal = parent.transformNormalObjectToWorld(normal);
+        Vector3 worldNormal = state.transformNormalObjectToWorld(normal);
         state.getNormal().set(worldNormal);
         state.getGeoNormal().set(worldNormal);
         state.setShader(parent.getShader(0));
         state.setModifier(parent.getModifier(0));
-        Point3 p = parent.transformWorldToObject(state.getPoint());
+        Point3 p = state.transformWorldToObject(state.getPoint());
         float hu, hv;
         switch (k) {
             case 0: {
@@ -269,7 +269,7 @@ public class QuadMesh implements PrimitiveList {
         float nz = tanux * tanvy - tanuy * tanvx;
 
         Vector3 ng = new Vector3(nx, ny, nz);
-        ng = parent.transformNormalObjectToWorld(ng);
+        state.transformNormalObjectToWorld(ng, ng);
         ng.normalize();
         state.getGeoNormal().set(ng);
 
@@ -293,7 +293,7 @@ public class QuadMesh implements PrimitiveList {
                 state.getNormal().x = k00 * normals[i30 + 0] + k10 * normals[i31 + 0] + k11 * normals[i32 + 0] + k01 * normals[i33 + 0];
                 state.getNormal().y = k00 * normals[i30 + 1] + k10 * normals[i31 + 1] + k11 * normals[i32 + 1] + k01 * normals[i33 + 1];
                 state.getNormal().z = k00 * normals[i30 + 2] + k10 * normals[i31 + 2] + k11 * normals[i32 + 2] + k01 * normals[i33 + 2];
-                state.getNormal().set(parent.transformNormalObjectToWorld(state.getNormal()));
+                state.transformNormalObjectToWorld(state.getNormal(), state.getNormal());
                 state.getNormal().normalize();
                 break;
             }
@@ -303,7 +303,7 @@ public class QuadMesh implements PrimitiveList {
                 state.getNormal().x = k00 * normals[idx + 0] + k10 * normals[idx + 3] + k11 * normals[idx + 6] + k01 * normals[idx + 9];
                 state.getNormal().y = k00 * normals[idx + 1] + k10 * normals[idx + 4] + k11 * normals[idx + 7] + k01 * normals[idx + 10];
                 state.getNormal().z = k00 * normals[idx + 2] + k10 * normals[idx + 5] + k11 * normals[idx + 8] + k01 * normals[idx + 11];
-                state.getNormal().set(parent.transformNormalObjectToWorld(state.getNormal()));
+                state.transformNormalObjectToWorld(state.getNormal(), state.getNormal());
                 state.getNormal().normalize();
                 break;
             }
@@ -361,15 +361,17 @@ public class QuadMesh implements PrimitiveList {
                 state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
             } else {
                 float invdet = 1.f / determinant;
-                // Vector3 dpdu = new Vector3();
-                // dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
-                // dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
-                // dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
+                Vector3 dpdu = new Vector3();
+                dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
+                dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
+                dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
                 Vector3 dpdv = new Vector3();
                 dpdv.x = (-du2 * dp1.x + du1 * dp2.x) * invdet;
                 dpdv.y = (-du2 * dp1.y + du1 * dp2.y) * invdet;
                 dpdv.z = (-du2 * dp1.z + du1 * dp2.z) * invdet;
-                dpdv = parent.transformVectorObjectToWorld(dpdv);
+                state.transformVectorObjectToWorld(dpdu, dpdu);
+                state.transformVectorObjectToWorld(dpdv, dpdv);
+                state.setSurfaceDerivatives(dpdu, dpdv);
                 // create basis in world space
                 state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
             }
@@ -38,7 +38,7 @@ public class Sphere implements PrimitiveList {
         state.init();
         state.getRay().getPoint(state.getPoint());
         Instance parent = state.getInstance();
-        Point3 localPoint = parent.transformWorldToObject(state.getPoint());
+        Point3 localPoint = state.transformWorldToObject(state.getPoint());
         state.getNormal().set(localPoint.x, localPoint.y, localPoint.z);
         state.getNormal().normalize();
 
@@ -52,11 +52,20 @@ public class Sphere implements PrimitiveList {
         v.x = -2 * (float) Math.PI * state.getNormal().y;
         v.y = 2 * (float) Math.PI * state.getNormal().x;
         v.z = 0;
+        float cosPhi = (float) Math.cos(phi);
+        float sinPhi = (float) Math.sin(phi);
+        Vector3 dpdv = new Vector3();
+        dpdv.x = (float) Math.PI * state.getNormal().z * cosPhi;
+        dpdv.y = (float) Math.PI * state.getNormal().z * sinPhi;
+        dpdv.z = -(float) Math.PI * (float) Math.sin(theta);
         state.setShader(parent.getShader(0));
         state.setModifier(parent.getModifier(0));
         // into world space
-        Vector3 worldNormal = parent.transformNormalObjectToWorld(state.getNormal());
-        v = parent.transformVectorObjectToWorld(v);
+        Vector3 worldNormal = state.transformNormalObjectToWorld(state.getNormal());
+        float radius = state.transformVectorObjectToWorld(state.getNormal()).length();
+        state.transformVectorObjectToWorld(v, v);
+        state.setSurfaceDerivatives(v, state.transformVectorObjectToWorld(dpdv, dpdv));
+        state.setCurvature(1 / radius);
         state.getNormal().set(worldNormal);
         state.getNormal().normalize();
         state.getGeoNormal().set(state.getNormal());
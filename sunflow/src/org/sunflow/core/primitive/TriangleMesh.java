@@ -60,6 +60,110 @@ public class TriangleMesh implements PrimitiveList {
         }
     }
 
+    /**
+     * Compute smooth vertex normals for the specified mesh. Each vertex normal
+     * is the normalized sum of the unnormalized normals of the adjacent
+     * triangles, so larger triangles contribute more. Large meshes are
+     * processed by several threads. The result does not depend on the number
+     * of threads: the triangles around each vertex are gathered through a
+     * vertex to triangle adjacency table and always summed in order of their
+     * index.
+     * 
+     * @param triangles triangle vertex indices, 3 per triangle
+     * @param points vertex positions, 3 per vertex
+     * @return an array of normals, 3 per vertex
+     */
+    public static float[] generateNormals(int[] triangles, float[] points) {
+        return generateNormals(triangles, points, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Compute smooth vertex normals for the specified mesh using at most the
+     * specified number of threads.
+     * 
+     * @param triangles triangle vertex indices, 3 per triangle
+     * @param points vertex positions, 3 per vertex
+     * @param threads maximum number of threads to use
+     * @return an array of normals, 3 per vertex
+     * @see #generateNormals(int[], float[])
+     */
+    public static float[] generateNormals(final int[] triangles, final float[] points, int threads) {
+        final int numVerts = points.length / 3;
+        final int numTris = triangles.length / 3;
+        // build the vertex to triangle adjacency table, counting sort style
+        final int[] offsets = new int[numVerts + 1];
+        for (int i = 0; i < 3 * numTris; i++)
+            offsets[triangles[i] + 1]++;
+        for (int i = 0; i < numVerts; i++)
+            offsets[i + 1] += offsets[i];
+        final int[] adjacency = new int[3 * numTris];
+        int[] fill = offsets.clone();
+        for (int i = 0; i < 3 * numTris; i++)
+            adjacency[fill[triangles[i]]++] = i / 3;
+        fill = null;
+        final float[] normals = new float[3 * numVerts];
+        // split the vertices in blocks handed out to the threads
+        final int blockSize = 1 << 14;
+        final int numBlocks = (numVerts + blockSize - 1) / blockSize;
+        threads = Math.max(1, Math.min(threads, numBlocks));
+        if (threads == 1) {
+            generateNormals(triangles, points, offsets, adjacency, normals, 0, numVerts);
+            return normals;
+        }
+        final int[] nextBlock = { 0 };
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (true) {
+                        int b;
+                        synchronized (nextBlock) {
+                            b = nextBlock[0]++;
+                        }
+                        if (b >= numBlocks)
+                            return;
+                        generateNormals(triangles, points, offsets, adjacency, normals, b * blockSize, Math.min(numVerts, (b + 1) * blockSize));
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        return normals;
+    }
+
+    private static void generateNormals(int[] triangles, float[] points, int[] offsets, int[] adjacency, float[] normals, int v0, int v1) {
+        for (int v = v0; v < v1; v++) {
+            float nx = 0, ny = 0, nz = 0;
+            for (int j = offsets[v]; j < offsets[v + 1]; j++) {
+                int t = 3 * adjacency[j];
+                int i0 = 3 * triangles[t + 0];
+                int i1 = 3 * triangles[t + 1];
+                int i2 = 3 * triangles[t + 2];
+                float edge1x = points[i1 + 0] - points[i0 + 0];
+                float edge1y = points[i1 + 1] - points[i0 + 1];
+                float edge1z = points[i1 + 2] - points[i0 + 2];
+                float edge2x = points[i2 + 0] - points[i0 + 0];
+                float edge2y = points[i2 + 1] - points[i0 + 1];
+                float edge2z = points[i2 + 2] - points[i0 + 2];
+                nx += edge1y * edge2z - edge1z * edge2y;
+                ny += edge1z * edge2x - edge1x * edge2z;
+                nz += edge1x * edge2y - edge1y * edge2x;
+            }
+            float in = 1.0f / (float) Math.sqrt((nx * nx) + (ny * ny) + (nz * nz));
+            normals[3 * v + 0] = nx * in;
+            normals[3 * v + 1] = ny * in;
+            normals[3 * v + 2] = nz * in;
+        }
+    }
+
     public boolean update(ParameterList pl, SunflowAPI api) {
         boolean updatedTopology = false;
         {
@@ -93,6 +197,10 @@ public class TriangleMesh implements PrimitiveList {
         pl.setVertexCount(points.length / 3);
         pl.setFaceVertexCount(3 * (triangles.length / 3));
         FloatParameter normals = pl.getVectorArray("normals");
+        if (normals == null && pl.getBoolean("smooth_normals", false)) {
+            pl.addVectors("normals", InterpolationType.VERTEX, generateNormals(triangles, points));
+            normals = pl.getVectorArray("normals");
+        }
         if (normals != null)
             this.normals = normals;
         FloatParameter uvs = pl.getTexCoordArray("uvs");
@@ -379,7 +487,7 @@ public class TriangleMesh implements PrimitiveList {
         Point3 v1p = getPoint(index1);
         Point3 v2p = getPoint(index2);
         Vector3 ng = Point3.normal(v0p, v1p, v2p);
-        ng = parent.transformNormalObjectToWorld(ng);
+        state.transformNormalObjectToWorld(ng, ng);
         ng.normalize();
         state.getGeoNormal().set(ng);
         switch (normals.interp) {
@@ -396,8 +504,23 @@ public class TriangleMesh implements PrimitiveList {
                 state.getNormal().x = w * normals[i30 + 0] + u * normals[i31 + 0] + v * normals[i32 + 0];
                 state.getNormal().y = w * normals[i30 + 1] + u * normals[i31 + 1] + v * normals[i32 + 1];
                 state.getNormal().z = w * normals[i30 + 2] + u * normals[i31 + 2] + v * normals[i32 + 2];
-                state.getNormal().set(parent.transformNormalObjectToWorld(state.getNormal()));
+                state.transformNormalObjectToWorld(state.getNormal(), state.getNormal());
                 state.getNormal().normalize();
+                // estimate how fast the normals turn across the triangle
+                float k = (getCurvature(normals, index0, index1) + getCurvature(normals, index1, index2) + getCurvature(normals, index2, index0)) / 3;
+                // measure the object to world scale along the longest edge,
+                // the other ones may be degenerate
+                Vector3 edge = Point3.sub(v1p, v0p, new Vector3());
+                Vector3 edge1 = Point3.sub(v2p, v1p, new Vector3());
+                Vector3 edge2 = Point3.sub(v0p, v2p, new Vector3());
+                if (edge1.lengthSquared() > edge.lengthSquared())
+                    edge.set(edge1);
+                if (edge2.lengthSquared() > edge.lengthSquared())
+                    edge.set(edge2);
+                float length = edge.length();
+                float scale = length > 0 ? state.transformVectorObjectToWorld(edge, edge).length() / length : 0;
+                // a collapsing transform leaves the surface flat
+                state.setCurvature(scale > 0 && scale < Float.POSITIVE_INFINITY ? k / scale : 0);
                 break;
             }
             case FACEVARYING: {
@@ -406,7 +529,7 @@ public class TriangleMesh implements PrimitiveList {
                 state.getNormal().x = w * normals[idx + 0] + u * normals[idx + 3] + v * normals[idx + 6];
                 state.getNormal().y = w * normals[idx + 1] + u * normals[idx + 4] + v * normals[idx + 7];
                 state.getNormal().z = w * normals[idx + 2] + u * normals[idx + 5] + v * normals[idx + 8];
-                state.getNormal().set(parent.transformNormalObjectToWorld(state.getNormal()));
+                state.transformNormalObjectToWorld(state.getNormal(), state.getNormal());
                 state.getNormal().normalize();
                 break;
             }
@@ -459,15 +582,17 @@ public class TriangleMesh implements PrimitiveList {
                 state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
             } else {
                 float invdet = 1.f / determinant;
-                // Vector3 dpdu = new Vector3();
-                // dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
-                // dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
-                // dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
+                Vector3 dpdu = new Vector3();
+                dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
+                dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
+                dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
                 Vector3 dpdv = new Vector3();
                 dpdv.x = (-du2 * dp1.x + du1 * dp2.x) * invdet;
                 dpdv.y = (-du2 * dp1.y + du1 * dp2.y) * invdet;
                 dpdv.z = (-du2 * dp1.z + du1 * dp2.z) * invdet;
-                dpdv = parent.transformVectorObjectToWorld(dpdv);
+                state.transformVectorObjectToWorld(dpdu, dpdu);
+                state.transformVectorObjectToWorld(dpdv, dpdv);
+                state.setSurfaceDerivatives(dpdu, dpdv);
                 // create basis in world space
                 state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
             }
@@ -493,6 +618,22 @@ public class TriangleMesh implements PrimitiveList {
         }
     }
 
+    /**
+     * Rate at which the vertex normals turn along an edge, positive if they
+     * diverge.
+     */
+    private float getCurvature(float[] normals, int a, int b) {
+        a *= 3;
+        b *= 3;
+        float ex = points[a] - points[b];
+        float ey = points[a + 1] - points[b + 1];
+        float ez = points[a + 2] - points[b + 2];
+        float l2 = ex * ex + ey * ey + ez * ez;
+        if (l2 == 0)
+            return 0;
+        return ((normals[a] - normals[b]) * ex + (normals[a + 1] - normals[b + 1]) * ey + (normals[a + 2] - normals[b + 2]) * ez) / l2;
+    }
+
     protected Point3 getPoint(int i) {
         i *= 3;
         return new Point3(points[i], points[i + 1], points[i + 2]);
@@ -872,11 +1013,11 @@ public class TriangleMesh implements PrimitiveList {
             state.getPoint().y = w * v0p.y + u * v1p.y + v * v2p.y;
             state.getPoint().z = w * v0p.z + u * v1p.z + v * v2p.z;
             // move into world space
-            state.getPoint().set(parent.transformObjectToWorld(state.getPoint()));
+            state.transformObjectToWorld(state.getPoint(), state.getPoint());
 
             Vector3 ng = Point3.normal(v0p, v1p, v2p);
             if (parent != null)
-                ng = parent.transformNormalObjectToWorld(ng);
+                state.transformNormalObjectToWorld(ng, ng);
             ng.normalize();
             state.getGeoNormal().set(ng);
             switch (normals.interp) {
@@ -894,7 +1035,7 @@ public class TriangleMesh implements PrimitiveList {
                     state.getNormal().y = w * normals[i30 + 1] + u * normals[i31 + 1] + v * normals[i32 + 1];
                     state.getNormal().z = w * normals[i30 + 2] + u * normals[i31 + 2] + v * normals[i32 + 2];
                     if (parent != null)
-                        state.getNormal().set(parent.transformNormalObjectToWorld(state.getNormal()));
+                        state.transformNormalObjectToWorld(state.getNormal(), state.getNormal());
                     state.getNormal().normalize();
                     break;
                 }
@@ -905,7 +1046,7 @@ public class TriangleMesh implements PrimitiveList {
                     state.getNormal().y = w * normals[idx + 1] + u * normals[idx + 4] + v * normals[idx + 7];
                     state.getNormal().z = w * normals[idx + 2] + u * normals[idx + 5] + v * normals[idx + 8];
                     if (parent != null)
-                        state.getNormal().set(parent.transformNormalObjectToWorld(state.getNormal()));
+                        state.transformNormalObjectToWorld(state.getNormal(), state.getNormal());
                     state.getNormal().normalize();
                     break;
                 }
@@ -958,16 +1099,19 @@ public class TriangleMesh implements PrimitiveList {
                     state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
                 } else {
                     float invdet = 1.f / determinant;
-                    // Vector3 dpdu = new Vector3();
-                    // dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
-                    // dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
-                    // dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
+                    Vector3 dpdu = new Vector3();
+                    dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
+                    dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
+                    dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
                     Vector3 dpdv = new Vector3();
                     dpdv.x = (-du2 * dp1.x + du1 * dp2.x) * invdet;
                     dpdv.y = (-du2 * dp1.y + du1 * dp2.y) * invdet;
                     dpdv.z = (-du2 * dp1.z + du1 * dp2.z) * invdet;
-                    if (parent != null)
-                        dpdv = parent.transformVectorObjectToWorld(dpdv);
+                    if (parent != null) {
+                        state.transformVectorObjectToWorld(dpdu, dpdu);
+                        state.transformVectorObjectToWorld(dpdv, dpdv);
+                    }
+                    state.setSurfaceDerivatives(dpdu, dpdv);
                     // create basis in world space
                     state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
                 }
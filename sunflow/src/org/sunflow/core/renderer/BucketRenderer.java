@@ -7,10 +7,12 @@ import org.sunflow.core.ImageSampler;
 import org.sunflow.core.Instance;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.Options;
+import org.sunflow.core.SampleSequence;
 import org.sunflow.core.Scene;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.core.bucket.BucketOrderFactory;
+import org.sunflow.core.bucket.CostBucketOrder;
 import org.sunflow.core.filter.BoxFilter;
 import org.sunflow.core.filter.FilterFactory;
 import org.sunflow.image.Bitmap;
@@ -22,7 +24,15 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 public class BucketRenderer implements ImageSampler {
+    private static final int MIN_ADAPTIVE_SAMPLES = 4;
+    // errors of very dark samples are measured against this brightness
+    private static final float ERROR_FLOOR = 1.0f / 256.0f;
+    // size of the pixel blocks sampled by a single ray when estimating bucket
+    // costs
+    private static final int COST_PROBE_SIZE = 8;
+
     private Scene scene;
+    private SampleSequence sequence;
     private Display display;
     // resolution
     private int imageWidth;
@@ -31,6 +41,8 @@ public class BucketRenderer implements ImageSampler {
     private String bucketOrderName;
     private BucketOrder bucketOrder;
     private int bucketSize;
+    private int numBucketsX;
+    private int numBucketsY;
     private int bucketCounter;
     private int[] bucketCoords;
     private boolean dumpBuckets;
@@ -42,6 +54,9 @@ public class BucketRenderer implements ImageSampler {
     private float contrastThreshold;
     private boolean jitter;
     private boolean displayAA;
+    private boolean displaySamples;
+    private boolean displayCost;
+    private float errorThreshold;
 
     // derived quantities
     private double invSuperSampling;
@@ -51,18 +66,25 @@ public class BucketRenderer implements ImageSampler {
     private int[] sigma;
     private float thresh;
     private boolean useJitter;
+    private int minSuperSampling;
+    private long totalRays;
 
     // filtering
     private String filterName;
     private Filter filter;
     private int fs;
     private float fhs;
+    private float[] filterWeightsX;
+    private float[] filterWeightsY;
 
     public BucketRenderer() {
         bucketSize = 32;
         bucketOrderName = "hilbert";
         displayAA = false;
+        displaySamples = false;
+        displayCost = false;
         contrastThreshold = 0.1f;
+        errorThreshold = 0; // off by default
         filterName = "box";
         jitter = false; // off by default
         dumpBuckets = false; // for debugging only - not user settable
@@ -70,6 +92,7 @@ public class BucketRenderer implements ImageSampler {
 
     public boolean prepare(Options options, Scene scene, int w, int h) {
         this.scene = scene;
+        sequence = scene.getSampleSequence();
         imageWidth = w;
         imageHeight = h;
 
@@ -80,13 +103,16 @@ public class BucketRenderer implements ImageSampler {
         maxAADepth = options.getInt("aa.max", maxAADepth);
         superSampling = options.getInt("aa.samples", superSampling);
         displayAA = options.getBoolean("aa.display", displayAA);
+        displaySamples = options.getBoolean("aa.display.samples", displaySamples);
+        displayCost = options.getBoolean("aa.display.cost", displayCost);
+        errorThreshold = options.getFloat("aa.error", errorThreshold);
         jitter = options.getBoolean("aa.jitter", jitter);
         contrastThreshold = options.getFloat("aa.contrast", contrastThreshold);
 
         // limit bucket size and compute number of buckets in each direction
         bucketSize = MathUtils.clamp(bucketSize, 16, 512);
-        int numBucketsX = (imageWidth + bucketSize - 1) / bucketSize;
-        int numBucketsY = (imageHeight + bucketSize - 1) / bucketSize;
+        numBucketsX = (imageWidth + bucketSize - 1) / bucketSize;
+        numBucketsY = (imageHeight + bucketSize - 1) / bucketSize;
         bucketOrder = BucketOrderFactory.create(bucketOrderName);
         bucketCoords = bucketOrder.getBucketSequence(numBucketsX, numBucketsY);
         // validate AA options
@@ -94,6 +120,9 @@ public class BucketRenderer implements ImageSampler {
         maxAADepth = MathUtils.clamp(maxAADepth, minAADepth, 5);
         superSampling = MathUtils.clamp(superSampling, 1, 256);
         invSuperSampling = 1.0 / superSampling;
+        errorThreshold = Math.max(errorThreshold, 0);
+        // adaptive sampling starts with a few rays to estimate the variance
+        minSuperSampling = errorThreshold > 0 ? Math.min(MIN_ADAPTIVE_SAMPLES, superSampling) : superSampling;
         // compute AA stepping sizes
         subPixelSize = (maxAADepth > 0) ? (1 << maxAADepth) : 1;
         minStepSize = maxAADepth >= 0 ? 1 : 1 << (-maxAADepth);
@@ -116,6 +145,29 @@ public class BucketRenderer implements ImageSampler {
         }
         fhs = filter.getSize() * 0.5f;
         fs = (int) Math.ceil(subPixelSize * (fhs - 0.5f));
+        if (useJitter)
+            filterWeightsX = filterWeightsY = null;
+        else {
+            // without jitter the subpixels sit at the same offsets from every
+            // pixel center, so the filter weights can be computed once
+            filterWeightsX = new float[2 * fs + 1];
+            filterWeightsY = new float[2 * fs + 1];
+            float weightX = 0, weightY = 0;
+            for (int i = 0; i <= 2 * fs; i++) {
+                float d = (i - fs + 0.5f) / subPixelSize - 0.5f;
+                if (Math.abs(d) > fhs)
+                    continue;
+                // image rows are flipped vertically
+                filterWeightsX[i] = filter.get(d);
+                filterWeightsY[i] = filter.get(-d);
+                weightX += filterWeightsX[i];
+                weightY += filterWeightsY[i];
+            }
+            for (int i = 0; i <= 2 * fs; i++) {
+                filterWeightsX[i] /= weightX;
+                filterWeightsY[i] /= weightY;
+            }
+        }
 
         // prepare QMC sampling
         sigma = QMC.generateSigmaTable(subPixelSize << 7);
@@ -127,7 +179,12 @@ public class BucketRenderer implements ImageSampler {
             UI.printInfo(Module.BCKT, "  * Anti-aliasing:      %s -> %s (adaptive)", aaDepthToString(minAADepth), aaDepthToString(maxAADepth));
         else
             UI.printInfo(Module.BCKT, "  * Anti-aliasing:      %s (fixed)", aaDepthToString(minAADepth));
-        UI.printInfo(Module.BCKT, "  * Rays per sample:    %d", superSampling);
+        if (minSuperSampling < superSampling)
+            UI.printInfo(Module.BCKT, "  * Rays per sample:    %d -> %d (adaptive)", minSuperSampling, superSampling);
+        else
+            UI.printInfo(Module.BCKT, "  * Rays per sample:    %d", superSampling);
+        if (errorThreshold > 0)
+            UI.printInfo(Module.BCKT, "  * Error threshold:    %.4f", errorThreshold);
         UI.printInfo(Module.BCKT, "  * Subpixel jitter:    %s", useJitter ? "on" : (jitter ? "auto-off" : "off"));
         UI.printInfo(Module.BCKT, "  * Contrast threshold: %.2f", contrastThreshold);
         UI.printInfo(Module.BCKT, "  * Filter type:        %s", filterName);
@@ -143,8 +200,14 @@ public class BucketRenderer implements ImageSampler {
     public void render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, bucketSize);
+        if (bucketOrder instanceof CostBucketOrder && !estimateBucketCosts()) {
+            UI.printWarning(Module.BCKT, "Rendering aborted during bucket cost estimation");
+            display.imageEnd();
+            return;
+        }
         // set members variables
         bucketCounter = 0;
+        totalRays = 0;
         // start task
         UI.taskStart("Rendering", 0, bucketCoords.length);
         Timer timer = new Timer();
@@ -165,9 +228,89 @@ public class BucketRenderer implements ImageSampler {
         UI.taskStop();
         timer.end();
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
+        UI.printInfo(Module.BCKT, "Camera rays: %d (%.2f per pixel)", totalRays, (double) totalRays / ((long) imageWidth * imageHeight));
         display.imageEnd();
     }
 
+    /**
+     * Trace a single ray through blocks of pixels of each bucket and use the
+     * number of traversal steps and primitive tests it took as an estimate of
+     * the cost of the bucket. The rays also give a coarse preview of the
+     * image.
+     * 
+     * @return <code>true</code> if the estimation completed,
+     *         <code>false</code> if it was canceled
+     */
+    private boolean estimateBucketCosts() {
+        Timer timer = new Timer();
+        timer.start();
+        final long[] costs = new long[numBucketsX * numBucketsY];
+        bucketCounter = 0;
+        UI.taskStart("Estimating bucket costs", 0, costs.length);
+        Thread[] costThreads = new Thread[scene.getThreads()];
+        for (int i = 0; i < costThreads.length; i++) {
+            costThreads[i] = new Thread() {
+                public void run() {
+                    IntersectionState istate = new IntersectionState();
+                    // reset the counters for this frame before reading them
+                    scene.getStatistics(istate);
+                    while (true) {
+                        int b;
+                        synchronized (BucketRenderer.this) {
+                            if (bucketCounter >= costs.length)
+                                return;
+                            b = bucketCounter++;
+                            UI.taskUpdate(bucketCounter);
+                        }
+                        costs[b] = probeBucket(b % numBucketsX, b / numBucketsX, istate);
+                        if (UI.taskCanceled())
+                            return;
+                    }
+                }
+            };
+            costThreads[i].setPriority(scene.getThreadPriority());
+            costThreads[i].start();
+        }
+        for (int i = 0; i < costThreads.length; i++) {
+            try {
+                costThreads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.BCKT, "Bucket cost estimation thread %d of %d was interrupted", i + 1, costThreads.length);
+            }
+        }
+        boolean canceled = UI.taskCanceled();
+        UI.taskStop();
+        if (canceled)
+            return false;
+        // keep enough neighbouring buckets together for every thread to work
+        // on the same area of the image
+        int runLength = 4;
+        while (runLength < costThreads.length)
+            runLength *= 4;
+        bucketCoords = ((CostBucketOrder) bucketOrder).getBucketSequence(numBucketsX, numBucketsY, costs, runLength);
+        timer.end();
+        UI.printInfo(Module.BCKT, "Bucket cost estimation: %s", timer.toString());
+        return true;
+    }
+
+    private long probeBucket(int bx, int by, IntersectionState istate) {
+        int x0 = bx * bucketSize;
+        int y0 = by * bucketSize;
+        int x1 = Math.min(x0 + bucketSize, imageWidth);
+        int y1 = Math.min(y0 + bucketSize, imageHeight);
+        long start = istate.getTraversalWork();
+        for (int y = y0; y < y1; y += COST_PROBE_SIZE) {
+            for (int x = x0; x < x1; x += COST_PROBE_SIZE) {
+                int w = Math.min(COST_PROBE_SIZE, x1 - x);
+                int h = Math.min(COST_PROBE_SIZE, y1 - y);
+                int i = x + y * imageWidth;
+                ShadingState state = scene.getRadiance(istate, x + 0.5f * w, imageHeight - 1 - (y + 0.5f * h), QMC.halton(1, i), QMC.halton(2, i), QMC.halton(0, i), i);
+                display.imageFill(x, y, w, h, state != null ? state.getResult() : Color.BLACK);
+            }
+        }
+        return istate.getTraversalWork() - start;
+    }
+
     private class BucketThread extends Thread {
         private int threadID;
 
@@ -187,7 +330,9 @@ public class BucketRenderer implements ImageSampler {
                     by = bucketCoords[bucketCounter + 1];
                     bucketCounter += 2;
                 }
+                long start = System.nanoTime();
                 renderBucket(display, bx, by, threadID, istate);
+                scene.getStatistics(istate).addBucket(bx, by, System.nanoTime() - start);
                 if (UI.taskCanceled())
                     return;
             }
@@ -242,6 +387,16 @@ public class BucketRenderer implements ImageSampler {
         for (int x = 0; x < sbw - 1; x += maxStepSize)
             for (int y = 0; y < sbh - 1; y += maxStepSize)
                 refineSamples(samples, sbw, x, y, maxStepSize, thresh, istate);
+        if (minSuperSampling < superSampling) {
+            adaptSamples(samples, sbw, sbh, istate);
+            // interpolate again from the refined samples
+            for (ImageSample sample : samples)
+                if (!sample.sampled())
+                    sample.c = null;
+            for (int x = 0; x < sbw - 1; x += maxStepSize)
+                for (int y = 0; y < sbh - 1; y += maxStepSize)
+                    interpolateSamples(samples, sbw, x, y, maxStepSize);
+        }
         if (dumpBuckets) {
             UI.printInfo(Module.BCKT, "Dumping bucket [%d, %d] to file ...", bx, by);
             Bitmap bitmap = new Bitmap(sbw, sbh, true);
@@ -267,8 +422,79 @@ public class BucketRenderer implements ImageSampler {
                     bucketRGB[index] = new Color(sampled * invArea);
                 }
             }
+        } else if (displaySamples) {
+            // heatmap of the number of rays traced per pixel, from blue (none)
+            // to red (all subpixels with the maximum number of rays)
+            float invMaxRays = (float) invSuperSampling * invSubPixelSize * invSubPixelSize;
+            for (int y = 0, index = 0; y < bh; y++) {
+                for (int x = 0; x < bw; x++, index++) {
+                    int rays = 0;
+                    for (int i = 0; i < subPixelSize; i++) {
+                        for (int j = 0; j < subPixelSize; j++) {
+                            int sx = x * subPixelSize + fs + i;
+                            int sy = y * subPixelSize + fs + j;
+                            rays += samples[sx + sy * sbw].n;
+                        }
+                    }
+                    float t = MathUtils.clamp(rays * invMaxRays, 0, 1);
+                    bucketRGB[index] = t < 0.5f ? new Color(0, 2 * t, 1 - 2 * t) : new Color(2 * t - 1, 2 - 2 * t, 0);
+                }
+            }
+        } else if (displayCost) {
+            // heatmap of the time spent on each pixel, from blue (1us or less)
+            // to red (10ms or more) on a logarithmic scale
+            for (int y = 0, index = 0; y < bh; y++) {
+                for (int x = 0; x < bw; x++, index++) {
+                    long nanos = 0;
+                    for (int i = 0; i < subPixelSize; i++) {
+                        for (int j = 0; j < subPixelSize; j++) {
+                            int sx = x * subPixelSize + fs + i;
+                            int sy = y * subPixelSize + fs + j;
+                            nanos += samples[sx + sy * sbw].nanos;
+                        }
+                    }
+                    float t = MathUtils.clamp((float) Math.log10(Math.max(nanos, 1) * 1e-3) * 0.25f, 0, 1);
+                    bucketRGB[index] = t < 0.5f ? new Color(0, 2 * t, 1 - 2 * t) : new Color(2 * t - 1, 2 - 2 * t, 0);
+                }
+            }
+        } else if (filterWeightsX != null) {
+            // filter samples into pixels, the rows first and then the columns
+            int taps = 2 * fs + 1;
+            int rows = (bh - 1) * subPixelSize + taps;
+            int cols = (bw - 1) * subPixelSize + taps;
+            float[] sampleRGB = new float[3 * rows * cols];
+            for (int y = 0, index = 0; y < rows; y++)
+                for (int x = 0; x < cols; x++, index += 3)
+                    samples[x + y * sbw].c.getRGB(sampleRGB, index);
+            float[] rowRGB = new float[3 * rows * bw];
+            for (int y = 0, index = 0; y < rows; y++) {
+                for (int x = 0; x < bw; x++, index += 3) {
+                    float r = 0, g = 0, b = 0;
+                    for (int i = 0, s = 3 * (x * subPixelSize + y * cols); i < taps; i++, s += 3) {
+                        float f = filterWeightsX[i];
+                        r += f * sampleRGB[s + 0];
+                        g += f * sampleRGB[s + 1];
+                        b += f * sampleRGB[s + 2];
+                    }
+                    rowRGB[index + 0] = r;
+                    rowRGB[index + 1] = g;
+                    rowRGB[index + 2] = b;
+                }
+            }
+            for (int y = 0, index = 0; y < bh; y++) {
+                for (int x = 0; x < bw; x++, index++) {
+                    float r = 0, g = 0, b = 0;
+                    for (int j = 0, s = 3 * (x + y * subPixelSize * bw); j < taps; j++, s += 3 * bw) {
+                        float f = filterWeightsY[j];
+                        r += f * rowRGB[s + 0];
+                        g += f * rowRGB[s + 1];
+                        b += f * rowRGB[s + 2];
+                    }
+                    bucketRGB[index] = new Color(r, g, b);
+                }
+            }
         } else {
-            // filter samples into pixels
+            // filter jittered samples into pixels
             float cy = imageHeight - 1 - (y0 + 0.5f);
             for (int y = 0, index = 0; y < bh; y++, cy--) {
                 float cx = x0 + 0.5f;
@@ -283,7 +509,7 @@ public class BucketRenderer implements ImageSampler {
                             float dy = samples[s].ry - cy;
                             if (Math.abs(dy) > fhs)
                                 continue;
-                            float f = filter.get(dx, dy);
+                            float f = filter.get(dx) * filter.get(dy);
                             c.madd(f, samples[s].c);
                             weight += f;
                         }
@@ -295,21 +521,34 @@ public class BucketRenderer implements ImageSampler {
         }
         // update pixels
         display.imageUpdate(x0, y0, bw, bh, bucketRGB);
+        long rays = 0;
+        for (ImageSample sample : samples)
+            rays += sample.n;
+        synchronized (this) {
+            totalRays += rays;
+        }
     }
 
     private void computeSubPixel(ImageSample sample, IntersectionState istate) {
+        long start = displayCost ? System.nanoTime() : 0;
         float x = sample.rx;
         float y = sample.ry;
         double q0 = QMC.halton(1, sample.i);
         double q1 = QMC.halton(2, sample.i);
         double q2 = QMC.halton(3, sample.i);
-        if (superSampling > 1) {
+        if (minSuperSampling < superSampling) {
+            // adaptive sampling: start with a few rays, refineSamples adds
+            // more once the variance around the sample is known
+            traceRays(sample, minSuperSampling, istate);
+            sample.baseLum = sample.lum;
+            sample.baseLumSquared = sample.lumSquared;
+        } else if (superSampling > 1) {
             // multiple sampling
             sample.add(scene.getRadiance(istate, x, y, q1, q2, q0, sample.i));
             for (int i = 1; i < superSampling; i++) {
                 double time = QMC.mod1(q0 + i * invSuperSampling);
-                double lensU = QMC.mod1(q1 + QMC.halton(0, i));
-                double lensV = QMC.mod1(q2 + QMC.halton(1, i));
+                double lensU = QMC.mod1(q1 + sequence.get(0, i));
+                double lensV = QMC.mod1(q2 + sequence.get(1, i));
                 sample.add(scene.getRadiance(istate, x, y, lensU, lensV, time, sample.i + i));
             }
             sample.scale((float) invSuperSampling);
@@ -317,6 +556,107 @@ public class BucketRenderer implements ImageSampler {
             // single sample
             sample.set(scene.getRadiance(istate, x, y, q1, q2, q0, sample.i));
         }
+        if (displayCost)
+            sample.nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Trace rays through a subpixel until it has the specified number of rays.
+     * Unlike the stratified times used for a fixed number of rays, the times
+     * come from a sequence so any number of rays covers the whole shutter
+     * interval.
+     */
+    private void traceRays(ImageSample sample, int n, IntersectionState istate) {
+        double q0 = QMC.halton(1, sample.i);
+        double q1 = QMC.halton(2, sample.i);
+        double q2 = QMC.halton(3, sample.i);
+        for (int i = sample.n; i < n; i++) {
+            double time = QMC.mod1(q0 + sequence.get(2, i));
+            double lensU = QMC.mod1(q1 + sequence.get(0, i));
+            double lensV = QMC.mod1(q2 + sequence.get(1, i));
+            sample.addRay(scene.getRadiance(istate, sample.rx, sample.ry, lensU, lensV, time, sample.i + i));
+        }
+        sample.c = Color.mul(1.0f / sample.n, sample.sum);
+        sample.checkNanInf();
+    }
+
+    /**
+     * Add rays to every sampled subpixel of a bucket until the estimated
+     * relative error of its mean luminance is below the threshold, or it has
+     * the maximum number of rays. Rays are added in rounds which at most
+     * double the count, and the estimate is updated after each round. The
+     * variance of a subpixel is pooled from the within-subpixel variance of
+     * the first rays of its neighbours and of all of its own rays. Stopping as
+     * soon as a subpixel's own first rays look converged would favour those
+     * which happened to miss rare bright paths and darken the image.
+     */
+    private void adaptSamples(ImageSample[] samples, int sbw, int sbh, IntersectionState istate) {
+        int r = 2 * maxStepSize;
+        for (int y = 0, index = 0; y < sbh; y++) {
+            for (int x = 0; x < sbw; x++, index++) {
+                ImageSample s = samples[index];
+                if (!s.sampled())
+                    continue;
+                int n = 0;
+                float lum = 0, deviations = 0;
+                for (int j = Math.max(y - r, 0); j <= Math.min(y + r, sbh - 1); j++) {
+                    for (int i = Math.max(x - r, 0); i <= Math.min(x + r, sbw - 1); i++) {
+                        ImageSample t = samples[i + j * sbw];
+                        if (t == s || !t.sampled())
+                            continue;
+                        // variance of the rays within each subpixel, so edges
+                        // and gradients in the image don't count as noise
+                        n++;
+                        lum += t.baseLum;
+                        deviations += Math.max(0, t.baseLumSquared - t.baseLum * t.baseLum / minSuperSampling);
+                    }
+                }
+                if (n == 0)
+                    continue;
+                long start = displayCost ? System.nanoTime() : 0;
+                while (s.n < superSampling) {
+                    int rays = n * minSuperSampling + s.n;
+                    float mean = (lum + s.lum) / rays;
+                    float variance = (deviations + Math.max(0, s.lumSquared - s.lum * s.lum / s.n)) / (rays - n - 1);
+                    float error = errorThreshold * Math.max(Math.abs(mean), ERROR_FLOOR);
+                    // number of rays needed for the standard error of the
+                    // mean to reach the threshold
+                    double needed = variance / (error * error);
+                    if (needed <= s.n)
+                        break;
+                    traceRays(s, (int) Math.min(Math.ceil(needed), Math.min(2 * s.n, superSampling)), istate);
+                }
+                if (displayCost)
+                    s.nanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Interpolate the samples which were not computed, following the
+     * subdivision made by {@link #refineSamples}.
+     */
+    private void interpolateSamples(ImageSample[] samples, int sbw, int x, int y, int stepSize) {
+        int half = stepSize >> 1;
+        // the center of a cell is only sampled if the cell was subdivided
+        if (stepSize > minStepSize && samples[x + half + (y + half) * sbw].sampled()) {
+            interpolateSamples(samples, sbw, x, y, half);
+            interpolateSamples(samples, sbw, x + half, y, half);
+            interpolateSamples(samples, sbw, x, y + half, half);
+            interpolateSamples(samples, sbw, x + half, y + half, half);
+            return;
+        }
+        int dy = stepSize * sbw;
+        int i00 = x + y * sbw;
+        ImageSample s00 = samples[i00];
+        ImageSample s01 = samples[i00 + dy];
+        ImageSample s10 = samples[i00 + stepSize];
+        ImageSample s11 = samples[i00 + stepSize + dy];
+        float ds = 1.0f / stepSize;
+        for (int i = 0; i <= stepSize; i++)
+            for (int j = 0; j <= stepSize; j++)
+                if (!samples[x + i + (y + j) * sbw].processed())
+                    ImageSample.bilerp(samples[x + i + (y + j) * sbw], s00, s01, s10, s11, i * ds, j * ds);
     }
 
     private void refineSamples(ImageSample[] samples, int sbw, int x, int y, int stepSize, float thresh, IntersectionState istate) {
@@ -359,9 +699,15 @@ public class BucketRenderer implements ImageSampler {
         float rx, ry;
         int i, n;
         Color c;
+        // adaptive sampling only
+        Color sum;
+        float lum, lumSquared;
+        float baseLum, baseLumSquared;
         Instance instance;
         Shader shader;
         float nx, ny, nz;
+        // cost display only
+        long nanos;
 
         ImageSample(float rx, float ry, int i) {
             this.rx = rx;
@@ -409,6 +755,19 @@ public class BucketRenderer implements ImageSampler {
 
         }
 
+        final void addRay(ShadingState state) {
+            if (n == 0)
+                sum = Color.black();
+            if (state != null) {
+                Color r = state.getResult();
+                float lum = r.getLuminance();
+                lumSquared += lum * lum;
+                this.lum += lum;
+                sum.add(r);
+            }
+            n++;
+        }
+
         final void scale(float s) {
             c.mul(s);
         }
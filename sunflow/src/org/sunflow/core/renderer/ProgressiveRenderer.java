@@ -1,46 +1,137 @@
 package org.sunflow.core.renderer;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.PriorityBlockingQueue;
 
 import org.sunflow.core.Display;
 import org.sunflow.core.ImageSampler;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.Options;
+import org.sunflow.core.SampleSequence;
 import org.sunflow.core.Scene;
 import org.sunflow.core.ShadingState;
+import org.sunflow.image.AccumulationBuffer;
 import org.sunflow.image.Color;
+import org.sunflow.math.MathUtils;
 import org.sunflow.math.QMC;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
+/**
+ * Renders a quick low resolution preview of the image and then keeps refining
+ * it. Samples are accumulated per pixel over passes, each pass doubles the
+ * number of samples of the pixels which are still too noisy. The render stops
+ * once every pixel reached the maximum number of samples or the noise target,
+ * or when the time budget runs out. The accumulated samples can be saved to a
+ * checkpoint file, from which an interrupted render resumes.
+ */
 public class ProgressiveRenderer implements ImageSampler {
+    private static final int TILE_SIZE = 32;
+    // pixels need a few samples before their variance can be trusted
+    private static final int MIN_SAMPLES = 8;
+
     private Scene scene;
+    private SampleSequence sequence;
     private int imageWidth, imageHeight;
     private int[] sigma;
     private PriorityBlockingQueue<SmallBucket> smallBucketQueue;
     private Display display;
     private int counter, counterMax;
+    private int maxSamples;
+    private float noiseThreshold;
+    private float timeLimit;
+    private String checkpointFilename;
+    private float checkpointInterval;
+    private AccumulationBuffer buffer;
+    private long startTime;
+    private long lastCheckpoint;
+    private boolean checkpointing;
+    private volatile boolean canceled;
 
     public ProgressiveRenderer() {
         imageWidth = 640;
         imageHeight = 480;
         sigma = null;
         smallBucketQueue = null;
+        maxSamples = 16;
+        noiseThreshold = 0;
+        timeLimit = 0;
+        checkpointFilename = null;
+        checkpointInterval = 60;
     }
 
     public boolean prepare(Options options, Scene scene, int w, int h) {
         this.scene = scene;
+        sequence = scene.getSampleSequence();
         imageWidth = w;
         imageHeight = h;
+        // fetch options
+        maxSamples = MathUtils.clamp(options.getInt("progressive.samples", maxSamples), 1, 1 << 16);
+        noiseThreshold = Math.max(0, options.getFloat("progressive.noise", noiseThreshold));
+        timeLimit = Math.max(0, options.getFloat("progressive.time", timeLimit));
+        checkpointFilename = options.getString("progressive.checkpoint", checkpointFilename);
+        checkpointInterval = Math.max(0, options.getFloat("progressive.checkpoint.interval", checkpointInterval));
         // prepare table used by deterministic anti-aliasing
         sigma = QMC.generateSigmaTable(1 << 7);
+        UI.printInfo(Module.IPR, "Progressive renderer settings:");
+        UI.printInfo(Module.IPR, "  * Resolution:         %dx%d", imageWidth, imageHeight);
+        UI.printInfo(Module.IPR, "  * Samples per pixel:  %d", maxSamples);
+        UI.printInfo(Module.IPR, "  * Noise target:       %s", noiseThreshold > 0 ? String.format("%.4f", noiseThreshold) : "none");
+        UI.printInfo(Module.IPR, "  * Time budget:        %s", timeLimit > 0 ? Timer.toString(timeLimit) : "none");
+        UI.printInfo(Module.IPR, "  * Checkpoint:         %s", checkpointFilename != null ? checkpointFilename : "none");
         return true;
     }
 
     public void render(Display display) {
         this.display = display;
         display.imageBegin(imageWidth, imageHeight, 0);
+        Timer timer = new Timer();
+        timer.start();
+        startTime = lastCheckpoint = System.nanoTime();
+        canceled = false;
+        buffer = loadCheckpoint();
+        if (buffer != null) {
+            // show the image as far as it was rendered before
+            for (int y = 0; y < imageHeight; y += TILE_SIZE)
+                for (int x = 0; x < imageWidth; x += TILE_SIZE)
+                    updateTile(x, y, Math.min(TILE_SIZE, imageWidth - x), Math.min(TILE_SIZE, imageHeight - y));
+        } else {
+            buffer = new AccumulationBuffer(imageWidth, imageHeight);
+            renderPreview();
+        }
+        int pass = 1;
+        boolean done = canceled || outOfTime();
+        while (!done) {
+            int target = Math.min(maxSamples, 1 << Math.min(pass, 30));
+            done = !renderPass(pass, target) && target == maxSamples;
+            done |= canceled || outOfTime();
+            pass++;
+        }
+        if (checkpointFilename != null)
+            saveCheckpoint();
+        timer.end();
+        long total = 0;
+        float maxError = 0;
+        for (int y = 0; y < imageHeight; y++) {
+            for (int x = 0; x < imageWidth; x++) {
+                total += buffer.getSamples(x, y);
+                if (buffer.getSamples(x, y) > 1)
+                    maxError = Math.max(maxError, buffer.getError(x, y));
+            }
+        }
+        UI.printInfo(Module.IPR, "Rendering time: %s", timer.toString());
+        UI.printInfo(Module.IPR, "  * Average samples:    %.2f", (double) total / (imageWidth * imageHeight));
+        UI.printInfo(Module.IPR, "  * Largest error:      %.4f", maxError);
+        display.imageEnd();
+        // release memory
+        buffer = null;
+    }
+
+    private void renderPreview() {
         // create first bucket
         SmallBucket b = new SmallBucket();
         b.x = b.y = 0;
@@ -51,8 +142,6 @@ public class ProgressiveRenderer implements ImageSampler {
         smallBucketQueue = new PriorityBlockingQueue<SmallBucket>();
         smallBucketQueue.add(b);
         UI.taskStart("Progressive Render", 0, imageWidth * imageHeight);
-        Timer t = new Timer();
-        t.start();
         counter = 0;
         counterMax = imageWidth * imageHeight;
 
@@ -69,9 +158,179 @@ public class ProgressiveRenderer implements ImageSampler {
             }
         }
         UI.taskStop();
-        t.end();
-        UI.printInfo(Module.IPR, "Rendering time: %s", t.toString());
-        display.imageEnd();
+    }
+
+    /**
+     * Bring all pixels which are still noisy up to the specified number of
+     * samples. Tiles are refined noisiest first, so they are done if the
+     * render stops half way through the pass.
+     * 
+     * @param pass pass number
+     * @param target number of samples per pixel at the end of the pass
+     * @return <code>true</code> if any samples were taken
+     */
+    private boolean renderPass(int pass, final int target) {
+        final ArrayList<Tile> tiles = new ArrayList<Tile>();
+        int pixels = 0;
+        for (int y = 0; y < imageHeight; y += TILE_SIZE) {
+            for (int x = 0; x < imageWidth; x += TILE_SIZE) {
+                Tile t = new Tile(x, y, Math.min(TILE_SIZE, imageWidth - x), Math.min(TILE_SIZE, imageHeight - y));
+                for (int j = t.y; j < t.y + t.h; j++) {
+                    for (int i = t.x; i < t.x + t.w; i++) {
+                        if (!needsSamples(i, j, target))
+                            continue;
+                        t.pixels++;
+                        t.error = Math.max(t.error, buffer.getError(i, j));
+                    }
+                }
+                if (t.pixels > 0) {
+                    tiles.add(t);
+                    pixels += t.pixels;
+                }
+            }
+        }
+        if (tiles.isEmpty())
+            return false;
+        Collections.sort(tiles);
+        UI.taskStart(String.format("Progressive Pass %d", pass), 0, pixels);
+        counter = 0;
+        final int[] next = { 0 };
+        Thread[] renderThreads = new Thread[scene.getThreads()];
+        for (int i = 0; i < renderThreads.length; i++) {
+            final int id = i;
+            renderThreads[i] = new Thread() {
+                public void run() {
+                    IntersectionState istate = new IntersectionState();
+                    while (true) {
+                        if (UI.taskCanceled())
+                            canceled = true;
+                        if (canceled || outOfTime())
+                            return;
+                        Tile t;
+                        synchronized (next) {
+                            if (next[0] >= tiles.size())
+                                return;
+                            t = tiles.get(next[0]++);
+                        }
+                        display.imagePrepare(t.x, t.y, t.w, t.h, id);
+                        refineTile(istate, t, target);
+                        updateTile(t.x, t.y, t.w, t.h);
+                        synchronized (ProgressiveRenderer.this) {
+                            counter += t.pixels;
+                            UI.taskUpdate(counter);
+                        }
+                        if (checkpointFilename != null)
+                            checkpointIfDue();
+                    }
+                }
+            };
+            renderThreads[i].start();
+        }
+        for (int i = 0; i < renderThreads.length; i++) {
+            try {
+                renderThreads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.IPR, "Thread %d of %d was interrupted", i + 1, renderThreads.length);
+            }
+        }
+        UI.taskStop();
+        return true;
+    }
+
+    private boolean needsSamples(int x, int y, int target) {
+        int n = buffer.getSamples(x, y);
+        if (n >= target)
+            return false;
+        return noiseThreshold <= 0 || n < MIN_SAMPLES || buffer.getError(x, y) > noiseThreshold;
+    }
+
+    private void refineTile(IntersectionState istate, Tile t, int target) {
+        Color sum = new Color();
+        for (int y = t.y; y < t.y + t.h; y++) {
+            for (int x = t.x; x < t.x + t.w; x++) {
+                if (!needsSamples(x, y, target))
+                    continue;
+                int n = buffer.getSamples(x, y);
+                float lum2 = 0;
+                sum.set(Color.BLACK);
+                for (int k = n; k < target; k++) {
+                    Color c = renderSample(istate, x, y, k);
+                    float lum = c.getLuminance();
+                    lum2 += lum * lum;
+                    sum.add(c);
+                }
+                buffer.add(x, y, sum, lum2, target - n);
+            }
+        }
+    }
+
+    /**
+     * Compute the specified sample of a pixel. The first sample is taken at
+     * the center of the pixel.
+     */
+    private Color renderSample(IntersectionState istate, int x, int y, int k) {
+        int instance = ((x & (sigma.length - 1)) * sigma.length + sigma[y & (sigma.length - 1)]) + k * sigma.length * sigma.length;
+        float dx = (float) QMC.mod1(0.5 + sequence.get(0, k));
+        float dy = (float) QMC.mod1(0.5 + sequence.get(1, k));
+        double time = QMC.halton(1, instance);
+        double lensU = QMC.halton(2, instance);
+        double lensV = QMC.halton(3, instance);
+        ShadingState state = scene.getRadiance(istate, x + dx, imageHeight - 1 - (y + dy), lensU, lensV, time, instance);
+        return state != null ? state.getResult() : Color.BLACK;
+    }
+
+    /**
+     * Send the running mean of the specified region to the display.
+     */
+    private void updateTile(int x, int y, int w, int h) {
+        Color[] data = new Color[w * h];
+        for (int j = 0, index = 0; j < h; j++)
+            for (int i = 0; i < w; i++, index++)
+                data[index] = buffer.getMean(x + i, y + j);
+        display.imageUpdate(x, y, w, h, data);
+    }
+
+    private boolean outOfTime() {
+        return timeLimit > 0 && (System.nanoTime() - startTime) * 1e-9 >= timeLimit;
+    }
+
+    private AccumulationBuffer loadCheckpoint() {
+        if (checkpointFilename == null || !new File(checkpointFilename).exists())
+            return null;
+        try {
+            AccumulationBuffer b = AccumulationBuffer.load(checkpointFilename);
+            if (b.getWidth() != imageWidth || b.getHeight() != imageHeight) {
+                UI.printWarning(Module.IPR, "Ignoring checkpoint \"%s\" - resolution %dx%d does not match", checkpointFilename, b.getWidth(), b.getHeight());
+                return null;
+            }
+            UI.printInfo(Module.IPR, "Resuming from checkpoint \"%s\"", checkpointFilename);
+            return b;
+        } catch (IOException e) {
+            UI.printWarning(Module.IPR, "Unable to read checkpoint \"%s\": %s", checkpointFilename, e.getMessage());
+            return null;
+        }
+    }
+
+    private void checkpointIfDue() {
+        synchronized (this) {
+            if (checkpointing || (System.nanoTime() - lastCheckpoint) * 1e-9 < checkpointInterval)
+                return;
+            checkpointing = true;
+        }
+        saveCheckpoint();
+        synchronized (this) {
+            checkpointing = false;
+            lastCheckpoint = System.nanoTime();
+        }
+    }
+
+    private void saveCheckpoint() {
+        try {
+            buffer.save(checkpointFilename);
+            UI.printDetailed(Module.IPR, "Wrote checkpoint \"%s\"", checkpointFilename);
+        } catch (IOException e) {
+            UI.printWarning(Module.IPR, "Unable to write checkpoint \"%s\": %s", checkpointFilename, e.getMessage());
+        }
     }
 
     private class SmallBucketThread extends Thread {
@@ -85,8 +344,10 @@ public class ProgressiveRenderer implements ImageSampler {
                     counter += n;
                     UI.taskUpdate(counter);
                 }
-                if (UI.taskCanceled())
+                if (UI.taskCanceled()) {
+                    canceled = true;
                     return;
+                }
             }
         }
     }
@@ -105,12 +366,10 @@ public class ProgressiveRenderer implements ImageSampler {
                 // check to see if this is a pixel from a higher level tile
                 if (useMask && (x & mask) == 0 && (y & mask) == 0)
                     continue;
-                int instance = (x & (sigma.length - 1)) * sigma.length + sigma[y & (sigma.length - 1)];
-                double time = QMC.halton(1, instance);
-                double lensU = QMC.halton(2, instance);
-                double lensV = QMC.halton(3, instance);
-                ShadingState state = scene.getRadiance(istate, x, imageHeight - 1 - y, lensU, lensV, time, instance);
-                Color c = state != null ? state.getResult() : Color.BLACK;
+                // the preview sample is the first sample of the pixel
+                Color c = renderSample(istate, x, y, 0);
+                float lum = c.getLuminance();
+                buffer.add(x, y, c, lum * lum, 1);
                 pixels++;
                 // fill region
                 display.imageFill(x, y, Math.min(ds, imageWidth - x), Math.min(ds, imageHeight - y), c);
@@ -150,4 +409,26 @@ public class ProgressiveRenderer implements ImageSampler {
             return 1;
         }
     }
-}
\ No newline at end of file
+
+    // refinement tiles, sorted noisiest first
+    private static class Tile implements Comparable<Tile> {
+        int x, y, w, h;
+        int pixels;
+        float error;
+
+        Tile(int x, int y, int w, int h) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        public int compareTo(Tile o) {
+            if (error > o.error)
+                return -1;
+            if (error == o.error)
+                return 0;
+            return 1;
+        }
+    }
+}
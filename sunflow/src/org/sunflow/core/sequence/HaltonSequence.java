@@ -0,0 +1,19 @@
+package org.sunflow.core.sequence;
+
+import org.sunflow.core.SampleSequence;
+import org.sunflow.math.QMC;
+
+/**
+ * The Faure scrambled Halton sequence computed by {@link QMC#halton(int, int)}.
+ * This is the default sequence.
+ */
+public class HaltonSequence implements SampleSequence {
+    public double get(int dim, int i) {
+        return QMC.halton(dim, i);
+    }
+
+    public void get(int dim, int i, double[] values) {
+        for (int k = 0; k < values.length; k++)
+            values[k] = QMC.halton(dim + k, i);
+    }
+}
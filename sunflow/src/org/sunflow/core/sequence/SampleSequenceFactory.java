@@ -0,0 +1,18 @@
+package org.sunflow.core.sequence;
+
+import org.sunflow.core.SampleSequence;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+public final class SampleSequenceFactory {
+    public static final SampleSequence create(String name) {
+        if (name == null || name.equals("halton"))
+            return new HaltonSequence();
+        else if (name.equals("sobol"))
+            return new SobolSequence();
+        else {
+            UI.printWarning(Module.QMC, "Unrecognized sample sequence \"%s\" - using halton", name);
+            return new HaltonSequence();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.sunflow.core.sequence;
+
+import org.sunflow.core.SampleSequence;
+import org.sunflow.math.QMC;
+
+/**
+ * Sobol sequence with the direction numbers of Joe and Kuo, scrambled by a
+ * fixed random digital shift in each dimension. Any two dimensions form a
+ * well stratified pattern, which makes the first few dimensions converge
+ * faster than the Halton sequence. Points are computed with tables holding
+ * the combined direction numbers of each byte of the index. Dimensions past
+ * the tabulated ones come from the Halton sequence.
+ */
+public class SobolSequence implements SampleSequence {
+    // degree, coefficients and initial direction numbers of the primitive
+    // polynomials of dimensions 2 and up, the first dimension is the van der
+    // Corput sequence
+    private static final int[][] POLYNOMIALS = { { 1, 0, 1 },
+            { 2, 1, 1, 3 }, { 3, 1, 1, 3, 1 }, { 3, 2, 1, 1, 1 },
+            { 4, 1, 1, 1, 3, 3 }, { 4, 4, 1, 3, 5, 13 },
+            { 5, 2, 1, 1, 5, 5, 17 }, { 5, 4, 1, 1, 5, 5, 5 },
+            { 5, 7, 1, 1, 7, 11, 19 }, { 5, 11, 1, 1, 5, 1, 1 },
+            { 5, 13, 1, 1, 1, 3, 11 }, { 5, 14, 1, 3, 5, 5, 31 },
+            { 6, 1, 1, 3, 3, 9, 7, 49 }, { 6, 13, 1, 1, 1, 15, 21, 21 },
+            { 6, 16, 1, 3, 1, 13, 27, 49 } };
+    private static final int DIMENSIONS = POLYNOMIALS.length + 1;
+    // xor of the direction numbers selected by each value of the four bytes
+    // of the index, with the digital shift folded into the first byte
+    private static final int[][] TABLES = new int[DIMENSIONS][4 * 256];
+
+    static {
+        // digits of the shift drawn from a fixed linear congruential
+        // generator so images are reproducible
+        int seed = 0x12345678;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            int[] v = new int[32];
+            if (d == 0) {
+                for (int i = 0; i < 32; i++)
+                    v[i] = 1 << (31 - i);
+            } else {
+                int[] p = POLYNOMIALS[d - 1];
+                int s = p[0];
+                int a = p[1];
+                for (int i = 0; i < s; i++)
+                    v[i] = p[2 + i] << (31 - i);
+                for (int i = s; i < 32; i++) {
+                    v[i] = v[i - s] ^ (v[i - s] >>> s);
+                    for (int k = 1; k < s; k++)
+                        if (((a >>> (s - 1 - k)) & 1) != 0)
+                            v[i] ^= v[i - k];
+                }
+            }
+            seed = seed * 1664525 + 1013904223;
+            int shift = seed;
+            int[] table = TABLES[d];
+            for (int b = 0; b < 4; b++) {
+                for (int x = 0; x < 256; x++) {
+                    int bits = b == 0 ? shift : 0;
+                    for (int k = 0; k < 8; k++)
+                        if ((x & (1 << k)) != 0)
+                            bits ^= v[8 * b + k];
+                    table[256 * b + x] = bits;
+                }
+            }
+        }
+    }
+
+    public double get(int dim, int i) {
+        if (dim >= DIMENSIONS)
+            return QMC.halton(dim, i);
+        int[] table = TABLES[dim];
+        int bits = table[i & 0xFF] ^ table[256 + ((i >>> 8) & 0xFF)] ^ table[512 + ((i >>> 16) & 0xFF)] ^ table[768 + (i >>> 24)];
+        return (bits & 0xFFFFFFFFL) * (1.0 / 0x100000000L);
+    }
+
+    public void get(int dim, int i, double[] values) {
+        int b0 = i & 0xFF;
+        int b1 = 256 + ((i >>> 8) & 0xFF);
+        int b2 = 512 + ((i >>> 16) & 0xFF);
+        int b3 = 768 + (i >>> 24);
+        for (int k = 0, d = dim; k < values.length; k++, d++) {
+            if (d >= DIMENSIONS)
+                values[k] = QMC.halton(d, i);
+            else {
+                int[] table = TABLES[d];
+                int bits = table[b0] ^ table[b1] ^ table[b2] ^ table[b3];
+                values[k] = (bits & 0xFFFFFFFFL) * (1.0 / 0x100000000L);
+            }
+        }
+    }
+}
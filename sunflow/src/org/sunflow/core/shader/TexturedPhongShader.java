@@ -23,6 +23,6 @@ public class TexturedPhongShader extends PhongShader {
 
     @Override
     public Color getDiffuse(ShadingState state) {
-        return tex.getPixel(state.getUV().x, state.getUV().y);
+        return tex.getPixel(state.getUV().x, state.getUV().y, state.getTextureFootprint());
     }
 }
\ No newline at end of file
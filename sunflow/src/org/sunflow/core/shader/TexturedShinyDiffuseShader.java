@@ -22,6 +22,6 @@ public class TexturedShinyDiffuseShader extends ShinyDiffuseShader {
     }
 
     public Color getDiffuse(ShadingState state) {
-        return tex.getPixel(state.getUV().x, state.getUV().y);
+        return tex.getPixel(state.getUV().x, state.getUV().y, state.getTextureFootprint());
     }
 }
\ No newline at end of file
@@ -488,7 +488,7 @@ public class BezierMesh implements PrimitiveList, Tesselatable {
         float[] bv = bernstein(v);
         float[] bdv = bernsteinDeriv(v);
         getPatchPoint(u, v, patches[state.getPrimitiveID()], bu, bv, bdu, bdv, new Point3(), state.getNormal());
-        state.getNormal().set(parent.transformNormalObjectToWorld(state.getNormal()));
+        state.transformNormalObjectToWorld(state.getNormal(), state.getNormal());
         state.getNormal().normalize();
         state.getGeoNormal().set(state.getNormal());
         state.getUV().set(u, v);
@@ -1,12 +1,10 @@
 package org.sunflow.core.tesselatable;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -15,24 +13,24 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.CachedTesselatable;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.PrimitiveList;
-import org.sunflow.core.Tesselatable;
 import org.sunflow.core.ParameterList.InterpolationType;
 import org.sunflow.core.primitive.TriangleMesh;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
-import org.sunflow.math.Point3;
-import org.sunflow.math.Vector3;
+import org.sunflow.system.BinaryCache;
 import org.sunflow.system.Memory;
+import org.sunflow.system.ObjReader;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
-import org.sunflow.util.FloatArray;
-import org.sunflow.util.IntArray;
 
-public class FileMesh implements Tesselatable {
+public class FileMesh implements CachedTesselatable {
     private String filename = null;
     private boolean smoothNormals = false;
+    private boolean useCache = false;
+    private BinaryCache cache = null;
 
     public BoundingBox getWorldBounds(Matrix4 o2w) {
         // world bounds can't be computed without reading file
@@ -40,7 +38,29 @@ public class FileMesh implements Tesselatable {
         return null;
     }
 
+    public BinaryCache getCache() {
+        return cache;
+    }
+
     public PrimitiveList tesselate() {
+        cache = null;
+        if (useCache) {
+            try {
+                cache = new BinaryCache(filename, smoothNormals ? 1 : 0);
+                if (cache.load()) {
+                    int[] tris = cache.getInts("mesh.triangles");
+                    float[] verts = cache.getFloats("mesh.points");
+                    float[] normals = cache.getFloats("mesh.normals");
+                    if (tris != null && verts != null && (normals != null || !smoothNormals)) {
+                        UI.printInfo(Module.GEOM, "Read %d triangles from cache", tris.length / 3);
+                        return create(tris, verts, normals);
+                    }
+                }
+            } catch (IOException e) {
+                UI.printWarning(Module.GEOM, "Unable to cache mesh file \"%s\" - %s", filename, e.getMessage());
+                cache = null;
+            }
+        }
         if (filename.endsWith(".ra3")) {
             try {
                 UI.printInfo(Module.GEOM, "RA3 - Reading geometry: \"%s\" ...", filename);
@@ -71,51 +91,19 @@ public class FileMesh implements Tesselatable {
                 UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - I/O error occured", filename);
             }
         } else if (filename.endsWith(".obj")) {
-            int lineNumber = 1;
             try {
                 UI.printInfo(Module.GEOM, "OBJ - Reading geometry: \"%s\" ...", filename);
-                FloatArray verts = new FloatArray();
-                IntArray tris = new IntArray();
-                FileReader file = new FileReader(filename);
-                BufferedReader bf = new BufferedReader(file);
-                String line;
-                while ((line = bf.readLine()) != null) {
-                    if (line.startsWith("v")) {
-                        String[] v = line.split("\\s+");
-                        verts.add(Float.parseFloat(v[1]));
-                        verts.add(Float.parseFloat(v[2]));
-                        verts.add(Float.parseFloat(v[3]));
-                    } else if (line.startsWith("f")) {
-                        String[] f = line.split("\\s+");
-                        if (f.length == 5) {
-                            tris.add(Integer.parseInt(f[1]) - 1);
-                            tris.add(Integer.parseInt(f[2]) - 1);
-                            tris.add(Integer.parseInt(f[3]) - 1);
-                            tris.add(Integer.parseInt(f[1]) - 1);
-                            tris.add(Integer.parseInt(f[3]) - 1);
-                            tris.add(Integer.parseInt(f[4]) - 1);
-                        } else if (f.length == 4) {
-                            tris.add(Integer.parseInt(f[1]) - 1);
-                            tris.add(Integer.parseInt(f[2]) - 1);
-                            tris.add(Integer.parseInt(f[3]) - 1);
-                        }
-                    }
-                    if (lineNumber % 100000 == 0)
-                        UI.printInfo(Module.GEOM, "OBJ -   * Parsed %7d lines ...", lineNumber);
-                    lineNumber++;
-                }
-                file.close();
+                ObjReader reader = new ObjReader(filename);
+                reader.read();
+                UI.printInfo(Module.GEOM, "OBJ -   * Read %d vertices and %d faces", reader.getVertices().length / 3, reader.getFaceSizes().length);
                 UI.printInfo(Module.GEOM, "OBJ -   * Creating mesh ...");
-                return generate(tris.trim(), verts.trim(), smoothNormals);
+                return generate(reader.getTriangles(), reader.getVertices(), smoothNormals);
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
                 UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - file not found", filename);
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
-                UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - syntax error at line %d", lineNumber);
             } catch (IOException e) {
                 e.printStackTrace();
-                UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - I/O error occured", filename);
+                UI.printError(Module.GEOM, "Unable to read mesh file \"%s\" - %s", filename, e.getMessage());
             }
         } else if (filename.endsWith(".stl")) {
             try {
@@ -167,46 +155,24 @@ public class FileMesh implements Tesselatable {
     }
 
     private TriangleMesh generate(int[] tris, float[] verts, boolean smoothNormals) {
+        float[] normals = smoothNormals ? TriangleMesh.generateNormals(tris, verts) : null;
+        if (cache != null) {
+            // the cache is written out once the acceleration structure has
+            // been added to it
+            cache.put("mesh.triangles", tris);
+            cache.put("mesh.points", verts);
+            if (normals != null)
+                cache.put("mesh.normals", normals);
+        }
+        return create(tris, verts, normals);
+    }
+
+    private TriangleMesh create(int[] tris, float[] verts, float[] normals) {
         ParameterList pl = new ParameterList();
         pl.addIntegerArray("triangles", tris);
         pl.addPoints("points", InterpolationType.VERTEX, verts);
-        if (smoothNormals) {
-            float[] normals = new float[verts.length]; // filled with 0's
-            Point3 p0 = new Point3();
-            Point3 p1 = new Point3();
-            Point3 p2 = new Point3();
-            Vector3 n = new Vector3();
-            for (int i3 = 0; i3 < tris.length; i3 += 3) {
-                int v0 = tris[i3 + 0];
-                int v1 = tris[i3 + 1];
-                int v2 = tris[i3 + 2];
-                p0.set(verts[3 * v0 + 0], verts[3 * v0 + 1], verts[3 * v0 + 2]);
-                p1.set(verts[3 * v1 + 0], verts[3 * v1 + 1], verts[3 * v1 + 2]);
-                p2.set(verts[3 * v2 + 0], verts[3 * v2 + 1], verts[3 * v2 + 2]);
-                Point3.normal(p0, p1, p2, n); // compute normal
-                // add face normal to each vertex
-                // note that these are not normalized so this in fact weights
-                // each normal by the area of the triangle
-                normals[3 * v0 + 0] += n.x;
-                normals[3 * v0 + 1] += n.y;
-                normals[3 * v0 + 2] += n.z;
-                normals[3 * v1 + 0] += n.x;
-                normals[3 * v1 + 1] += n.y;
-                normals[3 * v1 + 2] += n.z;
-                normals[3 * v2 + 0] += n.x;
-                normals[3 * v2 + 1] += n.y;
-                normals[3 * v2 + 2] += n.z;
-            }
-            // normalize all the vectors
-            for (int i3 = 0; i3 < normals.length; i3 += 3) {
-                n.set(normals[i3 + 0], normals[i3 + 1], normals[i3 + 2]);
-                n.normalize();
-                normals[i3 + 0] = n.x;
-                normals[i3 + 1] = n.y;
-                normals[i3 + 2] = n.z;
-            }
+        if (normals != null)
             pl.addVectors("normals", InterpolationType.VERTEX, normals);
-        }
         TriangleMesh m = new TriangleMesh();
         if (m.update(pl, null))
             return m;
@@ -220,6 +186,7 @@ public class FileMesh implements Tesselatable {
         if (file != null)
             filename = api.resolveIncludeFilename(file);
         smoothNormals = pl.getBoolean("smooth_normals", smoothNormals);
+        useCache = pl.getBoolean("cache", useCache);
         return filename != null;
     }
 
@@ -0,0 +1,176 @@
+package org.sunflow.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Running sums of the samples taken in each pixel of an image. Besides the
+ * color, the sum of the squared luminance is kept so the variance of each pixel
+ * can be estimated. The buffer can be saved to disk and loaded back, which
+ * allows long renders to be interrupted and resumed.
+ */
+public final class AccumulationBuffer {
+    private static final int MAGIC = 0x42414653; // "SFAB"
+    private static final int VERSION = 1;
+    // errors of very dark pixels are measured against this brightness
+    private static final float ERROR_FLOOR = 1.0f / 256.0f;
+
+    private final int width;
+    private final int height;
+    private final int[] samples;
+    private final float[] rgb;
+    private final float[] lum2;
+
+    public AccumulationBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        samples = new int[width * height];
+        rgb = new float[3 * width * height];
+        lum2 = new float[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Add a batch of samples to a pixel. Batches may be added from several
+     * threads at once.
+     * 
+     * @param x pixel x coordinate
+     * @param y pixel y coordinate
+     * @param sum sum of the sample colors
+     * @param lumSquared sum of the squared luminance of the samples
+     * @param n number of samples
+     */
+    public synchronized void add(int x, int y, Color sum, float lumSquared, int n) {
+        int index = x + y * width;
+        float[] c = sum.getRGB();
+        rgb[3 * index + 0] += c[0];
+        rgb[3 * index + 1] += c[1];
+        rgb[3 * index + 2] += c[2];
+        lum2[index] += lumSquared;
+        samples[index] += n;
+    }
+
+    /**
+     * Get the number of samples taken so far in the specified pixel.
+     * 
+     * @param x pixel x coordinate
+     * @param y pixel y coordinate
+     * @return number of samples
+     */
+    public int getSamples(int x, int y) {
+        return samples[x + y * width];
+    }
+
+    /**
+     * Get the mean of the samples taken in the specified pixel.
+     * 
+     * @param x pixel x coordinate
+     * @param y pixel y coordinate
+     * @return mean color, black if the pixel has no samples yet
+     */
+    public Color getMean(int x, int y) {
+        int index = x + y * width;
+        int n = samples[index];
+        if (n == 0)
+            return Color.black();
+        float s = 1.0f / n;
+        return new Color(rgb[3 * index + 0] * s, rgb[3 * index + 1] * s, rgb[3 * index + 2] * s);
+    }
+
+    /**
+     * Estimate the relative error of the mean luminance of the specified pixel,
+     * that is the standard error of the mean divided by the mean.
+     * 
+     * @param x pixel x coordinate
+     * @param y pixel y coordinate
+     * @return relative error estimate, infinite if there are less than two
+     *         samples
+     */
+    public float getError(int x, int y) {
+        int index = x + y * width;
+        int n = samples[index];
+        if (n < 2)
+            return Float.POSITIVE_INFINITY;
+        float s = 1.0f / n;
+        float mean = (0.2989f * rgb[3 * index + 0] + 0.5866f * rgb[3 * index + 1] + 0.1145f * rgb[3 * index + 2]) * s;
+        float variance = Math.max(0, lum2[index] * s - mean * mean) * n / (n - 1);
+        return (float) Math.sqrt(variance * s) / Math.max(Math.abs(mean), ERROR_FLOOR);
+    }
+
+    /**
+     * Write the buffer to the specified file. The file is written under a
+     * temporary name first so a partially written file never replaces a good
+     * one.
+     * 
+     * @param filename file to write
+     * @throws IOException if the file could not be written
+     */
+    public synchronized void save(String filename) throws IOException {
+        File temp = new File(filename + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            for (int i = 0; i < samples.length; i++) {
+                out.writeInt(samples[i]);
+                out.writeFloat(rgb[3 * i + 0]);
+                out.writeFloat(rgb[3 * i + 1]);
+                out.writeFloat(rgb[3 * i + 2]);
+                out.writeFloat(lum2[i]);
+            }
+        } finally {
+            out.close();
+        }
+        File file = new File(filename);
+        if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("unable to rename temporary file");
+        }
+    }
+
+    /**
+     * Read a buffer previously written by {@link #save(String)}.
+     * 
+     * @param filename file to read
+     * @return the buffer stored in the file
+     * @throws IOException if the file could not be read or is not a valid
+     *             accumulation buffer
+     */
+    public static AccumulationBuffer load(String filename) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("unsupported format");
+            int width = in.readInt();
+            int height = in.readInt();
+            if (width <= 0 || height <= 0 || (long) width * height > 1 << 28)
+                throw new IOException("invalid resolution");
+            AccumulationBuffer buffer = new AccumulationBuffer(width, height);
+            for (int i = 0; i < buffer.samples.length; i++) {
+                buffer.samples[i] = in.readInt();
+                buffer.rgb[3 * i + 0] = in.readFloat();
+                buffer.rgb[3 * i + 1] = in.readFloat();
+                buffer.rgb[3 * i + 2] = in.readFloat();
+                buffer.lum2[i] = in.readFloat();
+            }
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,19 +1,47 @@
 package org.sunflow.image;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import javax.imageio.ImageIO;
 
+import org.sunflow.math.MathUtils;
+import org.sunflow.system.ByteUtil;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
+/**
+ * A 2D image held in memory. Low dynamic range images are stored as packed 8
+ * bit linear RGB values. High dynamic range images are stored as 3 half floats
+ * per pixel, or 3 floats per pixel when the values can't be represented
+ * exactly by half floats or the image is used as a render target. Rows are
+ * stored from the bottom of the image up.
+ */
 public class Bitmap {
-    private int[] pixels;
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+    // range of RGBE exponents whose values are exactly representable as half
+    // floats
+    private static final int MIN_HALF_EXPONENT = 113;
+    private static final int MAX_HALF_EXPONENT = 144;
+    // smallest number of pixels worth decoding with several threads
+    private static final int MIN_PARALLEL_PIXELS = 1 << 16;
+
+    static {
+        for (int i = 0; i < HALF_TO_FLOAT.length; i++)
+            HALF_TO_FLOAT[i] = ByteUtil.halfToFloat(i);
+    }
+
+    private int[] pixels; // low dynamic range images
+    private short[] halves; // high dynamic range images
+    private float[] floats; // high dynamic range images
     private int width;
     private int height;
     private boolean isHDR;
@@ -21,134 +49,10 @@ public class Bitmap {
     public Bitmap(String filename, boolean isLinear) throws IOException {
         if (filename.endsWith(".hdr")) {
             isHDR = true;
-            // load radiance rgbe file
-            FileInputStream f = new FileInputStream(filename);
-            // parse header
-            boolean parseWidth = false, parseHeight = false;
-            width = height = 0;
-            int last = 0;
-            while (width == 0 || height == 0 || last != '\n') {
-                int n = f.read();
-                switch (n) {
-                    case 'Y':
-                        parseHeight = last == '-';
-                        parseWidth = false;
-                        break;
-                    case 'X':
-                        parseHeight = false;
-                        parseWidth = last == '+';
-                        break;
-                    case ' ':
-                        parseWidth &= width == 0;
-                        parseHeight &= height == 0;
-                        break;
-                    case '0':
-                    case '1':
-                    case '2':
-                    case '3':
-                    case '4':
-                    case '5':
-                    case '6':
-                    case '7':
-                    case '8':
-                    case '9':
-                        if (parseHeight)
-                            height = 10 * height + (n - '0');
-                        else if (parseWidth)
-                            width = 10 * width + (n - '0');
-                        break;
-                    default:
-                        parseWidth = parseHeight = false;
-                        break;
-                }
-                last = n;
-            }
-            // allocate image
-            pixels = new int[width * height];
-            if ((width < 8) || (width > 0x7fff)) {
-                // run length encoding is not allowed so read flat
-                readFlatRGBE(f, 0, width * height);
-                return;
-            }
-            int rasterPos = 0;
-            int numScanlines = height;
-            int[] scanlineBuffer = new int[4 * width];
-            while (numScanlines > 0) {
-                int r = f.read();
-                int g = f.read();
-                int b = f.read();
-                int e = f.read();
-                if ((r != 2) || (g != 2) || ((b & 0x80) != 0)) {
-                    // this file is not run length encoded
-                    pixels[rasterPos] = (r << 24) | (g << 16) | (b << 8) | e;
-                    readFlatRGBE(f, rasterPos + 1, width * numScanlines - 1);
-                    return;
-                }
-
-                if (((b << 8) | e) != width) {
-                    System.out.println("Invalid scanline width");
-                    return;
-                }
-                int p = 0;
-                // read each of the four channels for the scanline into
-                // the buffer
-                for (int i = 0; i < 4; i++) {
-                    if (p % width != 0)
-                        System.out.println("Unaligned access to scanline data");
-                    int end = (i + 1) * width;
-                    while (p < end) {
-                        int b0 = f.read();
-                        int b1 = f.read();
-                        if (b0 > 128) {
-                            // a run of the same value
-                            int count = b0 - 128;
-                            if ((count == 0) || (count > (end - p))) {
-                                System.out.println("Bad scanline data - invalid RLE run");
-                                return;
-                            }
-                            while (count-- > 0) {
-                                scanlineBuffer[p] = b1;
-                                p++;
-                            }
-                        } else {
-                            // a non-run
-                            int count = b0;
-                            if ((count == 0) || (count > (end - p))) {
-                                System.out.println("Bad scanline data - invalid count");
-                                return;
-                            }
-                            scanlineBuffer[p] = b1;
-                            p++;
-                            if (--count > 0) {
-                                for (int x = 0; x < count; x++)
-                                    scanlineBuffer[p + x] = f.read();
-                                p += count;
-                            }
-                        }
-                    }
-                }
-                // now convert data from buffer into floats
-                for (int i = 0; i < width; i++) {
-                    r = scanlineBuffer[i];
-                    g = scanlineBuffer[i + width];
-                    b = scanlineBuffer[i + 2 * width];
-                    e = scanlineBuffer[i + 3 * width];
-                    pixels[rasterPos] = (r << 24) | (g << 16) | (b << 8) | e;
-                    rasterPos++;
-                }
-                numScanlines--;
-            }
-            // flip image
-            for (int y = 0, i = 0, ir = (height - 1) * width; y < height / 2; y++, ir -= width) {
-                for (int x = 0, i2 = ir; x < width; x++, i++, i2++) {
-                    int t = pixels[i];
-                    pixels[i] = pixels[i2];
-                    pixels[i2] = t;
-                }
-            }
+            readHDR(filename);
         } else if (filename.endsWith(".tga")) {
             isHDR = false;
-            FileInputStream f = new FileInputStream(filename);
+            InputStream f = new BufferedInputStream(new FileInputStream(filename));
             int pix_ptr = 0, pix = 0, r, j;
             byte[] read = new byte[4];
 
@@ -271,14 +175,228 @@ public class Bitmap {
             b.savePNG(filename);
     }
 
-    private void readFlatRGBE(FileInputStream f, int rasterPos, int numPixels) throws IOException {
-        while (numPixels-- > 0) {
-            int r = f.read();
-            int g = f.read();
-            int b = f.read();
-            int e = f.read();
-            pixels[rasterPos] = (r << 24) | (g << 16) | (b << 8) | e;
-            rasterPos++;
+    /**
+     * Reads a Radiance RGBE file. The whole file is read at once, then a quick
+     * pass locates the start of each scanline so the run length encoded
+     * scanlines can be decoded by several threads.
+     */
+    private void readHDR(String filename) throws IOException {
+        FileInputStream stream = new FileInputStream(filename);
+        final byte[] data;
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("HDR file \"" + filename + "\" is too large");
+            ByteBuffer buffer = ByteBuffer.wrap(data = new byte[(int) size]);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer) < 0)
+                    break;
+        } finally {
+            stream.close();
+        }
+        // parse header
+        boolean parseWidth = false, parseHeight = false;
+        width = height = 0;
+        int last = 0;
+        int pos = 0;
+        while (width == 0 || height == 0 || last != '\n') {
+            if (pos == data.length)
+                throw new IOException("Invalid HDR file \"" + filename + "\" - unexpected end of header");
+            int n = data[pos++] & 0xFF;
+            switch (n) {
+                case 'Y':
+                    parseHeight = last == '-';
+                    parseWidth = false;
+                    break;
+                case 'X':
+                    parseHeight = false;
+                    parseWidth = last == '+';
+                    break;
+                case ' ':
+                    parseWidth &= width == 0;
+                    parseHeight &= height == 0;
+                    break;
+                case '0':
+                case '1':
+                case '2':
+                case '3':
+                case '4':
+                case '5':
+                case '6':
+                case '7':
+                case '8':
+                case '9':
+                    if (parseHeight)
+                        height = 10 * height + (n - '0');
+                    else if (parseWidth)
+                        width = 10 * width + (n - '0');
+                    break;
+                default:
+                    parseWidth = parseHeight = false;
+                    break;
+            }
+            last = n;
+        }
+        // find where each scanline starts, scanlines from the first one which
+        // is not run length encoded onwards are stored flat
+        final int[] offsets = new int[height];
+        int numScanlines = 0;
+        if ((width >= 8) && (width <= 0x7fff)) {
+            scan: for (; numScanlines < height; numScanlines++) {
+                if (pos + 4 > data.length)
+                    break;
+                int r = data[pos] & 0xFF;
+                int g = data[pos + 1] & 0xFF;
+                int b = data[pos + 2] & 0xFF;
+                int e = data[pos + 3] & 0xFF;
+                if ((r != 2) || (g != 2) || ((b & 0x80) != 0))
+                    break;
+                if (((b << 8) | e) != width) {
+                    UI.printWarning(Module.IMG, "Invalid scanline width in HDR file \"%s\"", filename);
+                    pos = -1;
+                    break;
+                }
+                offsets[numScanlines] = pos;
+                pos += 4;
+                for (int i = 0; i < 4; i++) {
+                    for (int p = 0; p < width;) {
+                        if (pos + 2 > data.length) {
+                            UI.printWarning(Module.IMG, "HDR file \"%s\" is truncated", filename);
+                            pos = -1;
+                            break scan;
+                        }
+                        int count = data[pos] & 0xFF;
+                        if (count > 128) {
+                            count -= 128;
+                            pos += 2;
+                        } else
+                            pos += 1 + count;
+                        if ((count == 0) || (count > (width - p))) {
+                            UI.printWarning(Module.IMG, "Bad scanline data in HDR file \"%s\"", filename);
+                            pos = -1;
+                            break scan;
+                        }
+                        p += count;
+                    }
+                }
+            }
+        }
+        if (pos >= 0 && numScanlines < height && pos + 4L * width * (height - numScanlines) > data.length)
+            UI.printWarning(Module.IMG, "HDR file \"%s\" is truncated", filename);
+        final int encodedScanlines = numScanlines;
+        final int flatOffset = pos;
+        // decode to RGBE, bottom row first
+        final int[] rgbe = new int[width * height];
+        forEachRow(new RowTask() {
+            public void run(int row) {
+                int y = height - 1 - row;
+                if (row < encodedScanlines)
+                    decodeScanline(data, offsets[row] + 4, rgbe, y * width, width);
+                else if (flatOffset >= 0) {
+                    for (int x = 0, p = flatOffset + 4 * width * (row - encodedScanlines); x < width && p + 4 <= data.length; x++, p += 4)
+                        rgbe[y * width + x] = ((data[p] & 0xFF) << 24) | ((data[p + 1] & 0xFF) << 16) | ((data[p + 2] & 0xFF) << 8) | (data[p + 3] & 0xFF);
+                }
+            }
+        });
+        // convert to half floats if this is lossless
+        boolean exact = true;
+        for (int p : rgbe) {
+            int e = p & 0xFF;
+            if (e != 0 && (e < MIN_HALF_EXPONENT || e > MAX_HALF_EXPONENT)) {
+                exact = false;
+                break;
+            }
+        }
+        if (exact)
+            halves = new short[3 * width * height];
+        else
+            floats = new float[3 * width * height];
+        forEachRow(new RowTask() {
+            public void run(int y) {
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    int p = rgbe[i];
+                    float f = Color.EXPONENT[p & 0xFF];
+                    float r = f * ((p >>> 24) + 0.5f);
+                    float g = f * (((p >> 16) & 0xFF) + 0.5f);
+                    float b = f * (((p >> 8) & 0xFF) + 0.5f);
+                    if (halves != null) {
+                        halves[3 * i + 0] = (short) ByteUtil.floatToHalf(r);
+                        halves[3 * i + 1] = (short) ByteUtil.floatToHalf(g);
+                        halves[3 * i + 2] = (short) ByteUtil.floatToHalf(b);
+                    } else {
+                        floats[3 * i + 0] = r;
+                        floats[3 * i + 1] = g;
+                        floats[3 * i + 2] = b;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes a validated run length encoded scanline.
+     */
+    private static void decodeScanline(byte[] data, int pos, int[] rgbe, int offset, int width) {
+        for (int i = 0, shift = 24; i < 4; i++, shift -= 8) {
+            for (int p = offset, end = offset + width; p < end;) {
+                int count = data[pos++] & 0xFF;
+                if (count > 128) {
+                    // a run of the same value
+                    int v = (data[pos++] & 0xFF) << shift;
+                    for (count -= 128; count > 0; count--)
+                        rgbe[p++] |= v;
+                } else {
+                    // a non-run
+                    for (; count > 0; count--)
+                        rgbe[p++] |= (data[pos++] & 0xFF) << shift;
+                }
+            }
+        }
+    }
+
+    private interface RowTask {
+        void run(int y);
+    }
+
+    /**
+     * Runs a task on every row of the image, using several threads for large
+     * images.
+     */
+    private void forEachRow(final RowTask task) {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), height);
+        if (threads <= 1 || (long) width * height < MIN_PARALLEL_PIXELS) {
+            for (int y = 0; y < height; y++)
+                task.run(y);
+            return;
+        }
+        final int[] nextRow = { 0 };
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (true) {
+                        int y0;
+                        synchronized (nextRow) {
+                            y0 = nextRow[0];
+                            nextRow[0] += 16;
+                        }
+                        if (y0 >= height)
+                            return;
+                        for (int y = y0; y < Math.min(y0 + 16, height); y++)
+                            task.run(y);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -286,20 +404,74 @@ public class Bitmap {
         width = w;
         height = h;
         this.isHDR = isHDR;
-        pixels = new int[w * h];
+        if (isHDR)
+            floats = new float[3 * w * h];
+        else
+            pixels = new int[w * h];
     }
 
     public void setPixel(int x, int y, Color c) {
-        if ((x >= 0) && (x < width) && (y >= 0) && (y < height))
-            pixels[(y * width) + x] = isHDR ? c.toRGBE() : c.copy().toNonLinear().toRGB();
+        if ((x >= 0) && (x < width) && (y >= 0) && (y < height)) {
+            int i = (y * width) + x;
+            if (pixels != null)
+                pixels[i] = c.copy().toNonLinear().toRGB();
+            else {
+                float[] rgb = c.getRGB();
+                if (floats != null) {
+                    floats[3 * i + 0] = rgb[0];
+                    floats[3 * i + 1] = rgb[1];
+                    floats[3 * i + 2] = rgb[2];
+                } else {
+                    halves[3 * i + 0] = (short) ByteUtil.floatToHalf(rgb[0]);
+                    halves[3 * i + 1] = (short) ByteUtil.floatToHalf(rgb[1]);
+                    halves[3 * i + 2] = (short) ByteUtil.floatToHalf(rgb[2]);
+                }
+            }
+        }
     }
 
     public Color getPixel(int x, int y) {
-        if ((x >= 0) && (x < width) && (y >= 0) && (y < height))
-            return isHDR ? new Color().setRGBE(pixels[(y * width) + x]) : new Color(pixels[(y * width) + x]);
+        if ((x >= 0) && (x < width) && (y >= 0) && (y < height)) {
+            int i = (y * width) + x;
+            if (pixels != null)
+                return new Color(pixels[i]);
+            if (floats != null)
+                return new Color(floats[3 * i + 0], floats[3 * i + 1], floats[3 * i + 2]);
+            return new Color(HALF_TO_FLOAT[halves[3 * i + 0] & 0xFFFF], HALF_TO_FLOAT[halves[3 * i + 1] & 0xFFFF], HALF_TO_FLOAT[halves[3 * i + 2] & 0xFFFF]);
+        }
         return Color.BLACK;
     }
 
+    /**
+     * Gets the color of the specified pixel without allocating any objects.
+     * Pixels outside the image are black.
+     * 
+     * @param x horizontal pixel coordinate
+     * @param y vertical pixel coordinate, starting from the bottom
+     * @param rgb array receiving the red, green and blue components
+     */
+    public void getPixel(int x, int y, float[] rgb) {
+        if ((x < 0) || (x >= width) || (y < 0) || (y >= height)) {
+            rgb[0] = rgb[1] = rgb[2] = 0;
+            return;
+        }
+        int i = (y * width) + x;
+        if (pixels != null) {
+            int p = pixels[i];
+            rgb[0] = ((p >> 16) & 0xFF) / 255.0f;
+            rgb[1] = ((p >> 8) & 0xFF) / 255.0f;
+            rgb[2] = (p & 0xFF) / 255.0f;
+        } else if (floats != null) {
+            rgb[0] = floats[3 * i + 0];
+            rgb[1] = floats[3 * i + 1];
+            rgb[2] = floats[3 * i + 2];
+        } else {
+            rgb[0] = HALF_TO_FLOAT[halves[3 * i + 0] & 0xFFFF];
+            rgb[1] = HALF_TO_FLOAT[halves[3 * i + 1] & 0xFFFF];
+            rgb[2] = HALF_TO_FLOAT[halves[3 * i + 2] & 0xFFFF];
+        }
+    }
+
     public int getWidth() {
         return width;
     }
@@ -308,6 +480,57 @@ public class Bitmap {
         return height;
     }
 
+    public boolean isHDR() {
+        return isHDR;
+    }
+
+    /**
+     * Get the pixels in packed form, row by row starting from the bottom of the
+     * image. Low dynamic range images return their pixels directly, high
+     * dynamic range images are encoded to RGBE.
+     */
+    int[] getPacked() {
+        if (pixels != null)
+            return pixels;
+        final int[] rgbe = new int[width * height];
+        final float[] rgb = new float[3];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                getPixel(x, y, rgb);
+                rgbe[i] = encodeRGBE(rgb[0], rgb[1], rgb[2]);
+            }
+        }
+        return rgbe;
+    }
+
+    /**
+     * Encodes a color to RGBE, truncating the mantissas. Unlike
+     * {@link Color#toRGBE()}, this gives back the original encoding for
+     * colors decoded from normalized RGBE values.
+     */
+    private static int encodeRGBE(float r, float g, float b) {
+        float v = MathUtils.max(r, g, b);
+        if (!(v >= 1e-32f))
+            return 0;
+        // exponent which puts the largest mantissa in [128, 256)
+        int k = ((Float.floatToIntBits(v) >> 23) & 0xFF) - 127 - 7;
+        int e = k + 136;
+        if (e < 1)
+            return 0;
+        if (e > 255)
+            return 0xFFFFFFFF;
+        double scale = 1.0 / Color.EXPONENT[e];
+        // decoded RGBE values have mantissas ending in .5, a largest mantissa
+        // of 127 shows up as 255 with the next lower exponent
+        double m = v * scale;
+        if (m - (int) m != 0.5 && e < 255 && (m * 0.5) - (int) (m * 0.5) == 0.5)
+            scale = 1.0 / Color.EXPONENT[++e];
+        int ir = MathUtils.clamp((int) (r * scale), 0, 255);
+        int ig = MathUtils.clamp((int) (g * scale), 0, 255);
+        int ib = MathUtils.clamp((int) (b * scale), 0, 255);
+        return (ir << 24) | (ig << 16) | (ib << 8) | e;
+    }
+
     public void save(String filename) {
         if (filename.endsWith(".hdr"))
             saveHDR(filename);
@@ -339,7 +562,7 @@ public class Bitmap {
             f.write(("-Y " + height + " +X " + width + "\n").getBytes());
             for (int y = height - 1; y >= 0; y--) {
                 for (int x = 0; x < width; x++) {
-                    int rgbe = isHDR ? pixels[(y * width) + x] : new Color(pixels[(y * width) + x]).toRGBE();
+                    int rgbe = isHDR ? getPixel(x, y).toRGBE() : new Color(pixels[(y * width) + x]).toRGBE();
                     f.write(rgbe >> 24);
                     f.write(rgbe >> 16);
                     f.write(rgbe >> 8);
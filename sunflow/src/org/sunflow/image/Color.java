@@ -22,7 +22,7 @@ public final class Color {
         return new Color(1, 1, 1);
     }
 
-    private static final float[] EXPONENT = new float[256];
+    static final float[] EXPONENT = new float[256];
 
     static {
         EXPONENT[0] = 0;
@@ -135,6 +135,12 @@ public final class Color {
         return new float[] { r, g, b };
     }
 
+    public final void getRGB(float[] rgb, int index) {
+        rgb[index + 0] = r;
+        rgb[index + 1] = g;
+        rgb[index + 2] = b;
+    }
+
     public final int toRGB() {
         int ir = (int) (r * 255 + 0.5);
         int ig = (int) (g * 255 + 0.5);
@@ -0,0 +1,324 @@
+package org.sunflow.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * A mip-mapped bitmap split into square tiles. Pixels are stored in the same
+ * packed format as {@link Bitmap}: linear RGB for low dynamic range images and
+ * RGBE for high dynamic range images. The tiles either live in memory or in a
+ * tile file, from which they can be read one at a time. Tile files are created
+ * once from the source image and reused as long as the source is unchanged.
+ */
+public final class TiledBitmap {
+    public static final int TILE_BITS = 6;
+    public static final int TILE_SIZE = 1 << TILE_BITS;
+    public static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+
+    private static final int MAGIC = 0x58544653; // "SFTX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final boolean isHDR;
+    private final int[] widths;
+    private final int[] heights;
+    private final long[] levelOffsets; // in tiles, across all levels
+    private final int[][] tiles; // resident tiles, or null if paged
+    private final String filename;
+    private FileChannel channel;
+
+    private TiledBitmap(boolean isHDR, int width, int height, String filename, boolean resident) {
+        this.isHDR = isHDR;
+        int n = 1;
+        for (int w = width, h = height; w > 1 || h > 1; w = Math.max(1, w / 2), h = Math.max(1, h / 2))
+            n++;
+        widths = new int[n];
+        heights = new int[n];
+        levelOffsets = new long[n + 1];
+        for (int i = 0, w = width, h = height; i < n; i++, w = Math.max(1, w / 2), h = Math.max(1, h / 2)) {
+            widths[i] = w;
+            heights[i] = h;
+            levelOffsets[i + 1] = levelOffsets[i] + (long) getTilesX(i) * getTilesY(i);
+        }
+        tiles = resident ? new int[(int) levelOffsets[n]][] : null;
+        this.filename = filename;
+    }
+
+    /**
+     * Creates a memory resident tiled bitmap from the specified image.
+     * 
+     * @param bitmap source image
+     * @return a new tiled bitmap
+     */
+    public static TiledBitmap create(Bitmap bitmap) {
+        TiledBitmap t = new TiledBitmap(bitmap.isHDR(), bitmap.getWidth(), bitmap.getHeight(), null, true);
+        int[] pixels = bitmap.getPacked();
+        for (int i = 0; i < t.widths.length; i++) {
+            if (i > 0)
+                pixels = downsample(pixels, t.widths[i - 1], t.heights[i - 1], t.isHDR);
+            for (int ty = 0; ty < t.getTilesY(i); ty++)
+                for (int tx = 0; tx < t.getTilesX(i); tx++)
+                    t.tiles[(int) t.levelOffsets[i] + ty * t.getTilesX(i) + tx] = t.extractTile(pixels, i, tx, ty);
+        }
+        return t;
+    }
+
+    /**
+     * Opens the tile file for the specified image, creating it first if it is
+     * missing or out of date. Images with fewer pixels than the specified
+     * threshold are not worth paging and are kept in memory, as are images
+     * whose tile file can't be written.
+     * 
+     * @param source image file
+     * @param isLinear is the image gamma corrected already?
+     * @param minPagedPixels smallest image size for which a tile file is used
+     * @return a new tiled bitmap, or <code>null</code> if the image is empty
+     * @throws IOException if the source image can't be read
+     */
+    public static TiledBitmap open(String source, boolean isLinear, long minPagedPixels) throws IOException {
+        String filename = source + ".tiles";
+        File file = new File(source);
+        long key = file.length() ^ (file.lastModified() * 0x9E3779B97F4A7C15L) ^ (isLinear ? 1 : 0);
+        TiledBitmap t = readHeader(filename, key);
+        if (t != null)
+            return t;
+        Bitmap bitmap = new Bitmap(source, isLinear);
+        if (bitmap.getWidth() == 0 || bitmap.getHeight() == 0)
+            return null;
+        if ((long) bitmap.getWidth() * bitmap.getHeight() < minPagedPixels)
+            return create(bitmap);
+        UI.printInfo(Module.TEX, "Writing tile file \"%s\" ...", filename);
+        try {
+            return write(bitmap, filename, key);
+        } catch (IOException e) {
+            UI.printWarning(Module.TEX, "Unable to write tile file \"%s\": %s - keeping texture in memory", filename, e.getMessage());
+            new File(filename).delete();
+            return create(bitmap);
+        }
+    }
+
+    private static TiledBitmap readHeader(String filename, long key) {
+        File file = new File(filename);
+        if (!file.exists())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != key || in.readInt() != TILE_SIZE) {
+                    UI.printInfo(Module.TEX, "Tile file \"%s\" is out of date", filename);
+                    return null;
+                }
+                boolean isHDR = in.readInt() != 0;
+                int width = in.readInt();
+                int height = in.readInt();
+                TiledBitmap t = new TiledBitmap(isHDR, width, height, filename, false);
+                if (file.length() != HEADER_SIZE + 4L * TILE_PIXELS * t.levelOffsets[t.widths.length]) {
+                    UI.printWarning(Module.TEX, "Ignoring tile file \"%s\" - file is truncated", filename);
+                    return null;
+                }
+                UI.printInfo(Module.TEX, "Using tile file \"%s\"", filename);
+                return t;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.TEX, "Unable to read tile file \"%s\": %s", filename, e.getMessage());
+            return null;
+        }
+    }
+
+    private static TiledBitmap write(Bitmap bitmap, String filename, long key) throws IOException {
+        TiledBitmap t = new TiledBitmap(bitmap.isHDR(), bitmap.getWidth(), bitmap.getHeight(), filename, false);
+        // write under a temporary name so a partial file is never picked up
+        File temp = new File(filename + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(key);
+            out.writeInt(TILE_SIZE);
+            out.writeInt(t.isHDR ? 1 : 0);
+            out.writeInt(bitmap.getWidth());
+            out.writeInt(bitmap.getHeight());
+            int[] pixels = bitmap.getPacked();
+            for (int i = 0; i < t.widths.length; i++) {
+                if (i > 0)
+                    pixels = downsample(pixels, t.widths[i - 1], t.heights[i - 1], t.isHDR);
+                for (int ty = 0; ty < t.getTilesY(i); ty++) {
+                    for (int tx = 0; tx < t.getTilesX(i); tx++) {
+                        int[] tile = t.extractTile(pixels, i, tx, ty);
+                        for (int p : tile)
+                            out.writeInt(p);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        File file = new File(filename);
+        if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("unable to rename temporary file");
+        }
+        return t;
+    }
+
+    /**
+     * Halves the resolution of an image with a box filter.
+     */
+    private static int[] downsample(int[] pixels, int w, int h, boolean isHDR) {
+        int nw = Math.max(1, w / 2);
+        int nh = Math.max(1, h / 2);
+        int[] result = new int[nw * nh];
+        Color c = new Color();
+        Color t = new Color();
+        for (int y = 0, i = 0; y < nh; y++) {
+            int y0 = Math.min(2 * y, h - 1) * w;
+            int y1 = Math.min(2 * y + 1, h - 1) * w;
+            for (int x = 0; x < nw; x++, i++) {
+                int x0 = Math.min(2 * x, w - 1);
+                int x1 = Math.min(2 * x + 1, w - 1);
+                int p00 = pixels[y0 + x0];
+                int p01 = pixels[y0 + x1];
+                int p10 = pixels[y1 + x0];
+                int p11 = pixels[y1 + x1];
+                if (isHDR) {
+                    c.setRGBE(p00);
+                    c.add(t.setRGBE(p01));
+                    c.add(t.setRGBE(p10));
+                    c.add(t.setRGBE(p11));
+                    result[i] = c.mul(0.25f).toRGBE();
+                } else {
+                    int r = ((p00 >> 16) & 0xFF) + ((p01 >> 16) & 0xFF) + ((p10 >> 16) & 0xFF) + ((p11 >> 16) & 0xFF);
+                    int g = ((p00 >> 8) & 0xFF) + ((p01 >> 8) & 0xFF) + ((p10 >> 8) & 0xFF) + ((p11 >> 8) & 0xFF);
+                    int b = (p00 & 0xFF) + (p01 & 0xFF) + (p10 & 0xFF) + (p11 & 0xFF);
+                    result[i] = (((r + 2) >> 2) << 16) | (((g + 2) >> 2) << 8) | ((b + 2) >> 2);
+                }
+            }
+        }
+        return result;
+    }
+
+    private int[] extractTile(int[] pixels, int level, int tx, int ty) {
+        int w = widths[level];
+        int h = heights[level];
+        int[] tile = new int[TILE_PIXELS];
+        for (int y = 0; y < TILE_SIZE; y++) {
+            int sy = (ty << TILE_BITS) + y;
+            if (sy >= h)
+                break;
+            int sx = tx << TILE_BITS;
+            System.arraycopy(pixels, sy * w + sx, tile, y << TILE_BITS, Math.min(TILE_SIZE, w - sx));
+        }
+        return tile;
+    }
+
+    public boolean isHDR() {
+        return isHDR;
+    }
+
+    /**
+     * Are all tiles held in memory? Tiles of resident bitmaps should not be
+     * kept in a separate cache.
+     * 
+     * @return <code>true</code> if the bitmap is memory resident
+     */
+    public boolean isResident() {
+        return tiles != null;
+    }
+
+    public int getLevels() {
+        return widths.length;
+    }
+
+    public int getWidth(int level) {
+        return widths[level];
+    }
+
+    public int getHeight(int level) {
+        return heights[level];
+    }
+
+    public int getTilesX(int level) {
+        return (widths[level] + TILE_SIZE - 1) >> TILE_BITS;
+    }
+
+    public int getTilesY(int level) {
+        return (heights[level] + TILE_SIZE - 1) >> TILE_BITS;
+    }
+
+    /**
+     * Get the pixels of the specified tile, <code>TILE_SIZE</code> pixels per
+     * row. Parts of edge tiles which lie outside the image are black. Paged
+     * tiles are read from disk on every call.
+     * 
+     * @param level mip level, 0 is the full resolution image
+     * @param tx horizontal tile index
+     * @param ty vertical tile index
+     * @return tile pixels in packed format
+     */
+    public int[] getTile(int level, int tx, int ty) {
+        long index = levelOffsets[level] + ty * getTilesX(level) + tx;
+        if (tiles != null)
+            return tiles[(int) index];
+        int[] tile = new int[TILE_PIXELS];
+        ByteBuffer buffer = ByteBuffer.allocate(4 * TILE_PIXELS);
+        long pos = HEADER_SIZE + 4L * TILE_PIXELS * index;
+        for (int attempt = 0;; attempt++) {
+            try {
+                FileChannel c = getChannel();
+                buffer.clear();
+                while (buffer.hasRemaining())
+                    if (c.read(buffer, pos + buffer.position()) < 0)
+                        throw new IOException("unexpected end of file");
+                buffer.flip();
+                buffer.asIntBuffer().get(tile);
+                return tile;
+            } catch (IOException e) {
+                // the channel is closed if a reading thread gets interrupted,
+                // reopen it once before giving up
+                closeChannel();
+                if (attempt > 0) {
+                    UI.printError(Module.TEX, "Unable to read tile file \"%s\": %s", filename, e.getMessage());
+                    return tile;
+                }
+            }
+        }
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null)
+            channel = new RandomAccessFile(filename, "r").getChannel();
+        return channel;
+    }
+
+    private synchronized void closeChannel() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        channel = null;
+    }
+
+    /**
+     * Release the file handle held by a paged bitmap. The file is reopened if
+     * more tiles are read.
+     */
+    public void close() {
+        closeChannel();
+    }
+}
@@ -0,0 +1,166 @@
+package org.sunflow.math;
+
+/**
+ * Piecewise constant 2D distribution over a grid of cells, sampled in constant
+ * time through a marginal alias table over the columns and one conditional
+ * alias table per column. All tables are stored in flat primitive arrays, with
+ * the conditional tables of column <code>x</code> occupying indices
+ * <code>x * height</code> through <code>x * height + height - 1</code>.
+ */
+public final class AliasTable2D {
+    private final int width;
+    private final int height;
+    private final float[] marginalProb;
+    private final int[] marginalAlias;
+    private final float[] marginalPdf;
+    private final float[] conditionalProb;
+    private final int[] conditionalAlias;
+    private final float[] conditionalPdf;
+
+    /**
+     * Builds the sampling tables for the specified weights. Weights must be
+     * non-negative and are laid out column by column (index
+     * <code>x * height + y</code>). The weights array is not modified.
+     * 
+     * @param weights cell weights
+     * @param width number of columns
+     * @param height number of cells per column
+     */
+    public AliasTable2D(float[] weights, int width, int height) {
+        this.width = width;
+        this.height = height;
+        marginalProb = new float[width];
+        marginalAlias = new int[width];
+        marginalPdf = new float[width];
+        conditionalProb = new float[width * height];
+        conditionalAlias = new int[width * height];
+        conditionalPdf = new float[width * height];
+        int[] work = new int[Math.max(width, height)];
+        float[] scaled = new float[Math.max(width, height)];
+        float[] columns = new float[width];
+        for (int x = 0; x < width; x++) {
+            double sum = 0;
+            for (int y = 0, i = x * height; y < height; y++, i++)
+                sum += weights[i];
+            columns[x] = (float) sum;
+            build(weights, x * height, height, conditionalProb, conditionalAlias, conditionalPdf, work, scaled);
+        }
+        build(columns, 0, width, marginalProb, marginalAlias, marginalPdf, work, scaled);
+    }
+
+    /**
+     * Builds a single alias table using Vose's method. Rows with no weight
+     * fall back to a uniform distribution.
+     */
+    private static void build(float[] w, int offset, int n, float[] prob, int[] alias, float[] pdf, int[] work, float[] scaled) {
+        double sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += w[offset + i];
+        for (int i = 0; i < n; i++)
+            pdf[offset + i] = sum > 0 ? (float) (w[offset + i] / sum) : 1.0f / n;
+        // small entries are pushed from the front of the work array, large
+        // ones from the back
+        int ns = 0, nl = n;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = pdf[offset + i] * n;
+            if (scaled[i] < 1)
+                work[ns++] = i;
+            else
+                work[--nl] = i;
+        }
+        while (ns > 0 && nl < n) {
+            int s = work[--ns];
+            int l = work[nl++];
+            prob[offset + s] = scaled[s];
+            alias[offset + s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1;
+            if (scaled[l] < 1)
+                work[ns++] = l;
+            else
+                work[--nl] = l;
+        }
+        // leftovers are only due to round-off
+        while (ns > 0) {
+            int s = work[--ns];
+            prob[offset + s] = 1;
+            alias[offset + s] = s;
+        }
+        while (nl < n) {
+            int l = work[nl++];
+            prob[offset + l] = 1;
+            alias[offset + l] = l;
+        }
+    }
+
+    /**
+     * Get the number of columns in the grid.
+     * 
+     * @return grid width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the number of rows in the grid.
+     * 
+     * @return grid height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Sample a point in the unit square proportionally to the cell weights.
+     * The fractional part left over from the alias decision is reused to place
+     * the sample inside the chosen cell, so stratified inputs remain well
+     * distributed.
+     * 
+     * @param randX random value in [0,1) used to pick the column
+     * @param randY random value in [0,1) used to pick the row
+     * @param uv array of 2 values which receives the sampled coordinates
+     * @return probability density of the sampled point over the unit square
+     */
+    public float sample(double randX, double randY, float[] uv) {
+        // pick column
+        double sx = randX * width;
+        int x = Math.min((int) sx, width - 1);
+        double fx = sx - x;
+        float px = marginalProb[x];
+        if (fx < px)
+            fx /= px;
+        else {
+            fx = (fx - px) / (1 - px);
+            x = marginalAlias[x];
+        }
+        // pick row within the column
+        int base = x * height;
+        double sy = randY * height;
+        int y = Math.min((int) sy, height - 1);
+        double fy = sy - y;
+        float py = conditionalProb[base + y];
+        if (fy < py)
+            fy /= py;
+        else {
+            fy = (fy - py) / (1 - py);
+            y = conditionalAlias[base + y];
+        }
+        // keep the point strictly inside the chosen cell despite round-off
+        uv[0] = (float) ((x + Math.min(fx, 0.999)) / width);
+        uv[1] = (float) ((y + Math.min(fy, 0.999)) / height);
+        return marginalPdf[x] * conditionalPdf[base + y] * width * height;
+    }
+
+    /**
+     * Get the probability density of the specified point in the unit square.
+     * 
+     * @param u horizontal coordinate in [0,1)
+     * @param v vertical coordinate in [0,1)
+     * @return probability density of the point over the unit square
+     */
+    public float getDensity(float u, float v) {
+        int x = MathUtils.clamp((int) (u * width), 0, width - 1);
+        int y = MathUtils.clamp((int) (v * height), 0, height - 1);
+        return marginalPdf[x] * conditionalPdf[x * height + y] * width * height;
+    }
+}
@@ -159,6 +159,18 @@ public final class Matrix4 {
      *         invertible
      */
     public final Matrix4 inverse() {
+        return inverse(new Matrix4());
+    }
+
+    /**
+     * Compute the inverse of this matrix and store it into the specified
+     * matrix, which may be this one. If the matrix is not invertible,
+     * <code>dest</code> is left unchanged and <code>null</code> is returned.
+     * 
+     * @param dest matrix to store the inverse into
+     * @return <code>dest</code>, or <code>null</code> if not invertible
+     */
+    public final Matrix4 inverse(Matrix4 dest) {
         float A0 = m00 * m11 - m01 * m10;
         float A1 = m00 * m12 - m02 * m10;
         float A2 = m00 * m13 - m03 * m10;
@@ -177,24 +189,66 @@ public final class Matrix4 {
         if (Math.abs(det) < 1e-12f)
             return null; // matrix is not invertible
         float invDet = 1 / det;
-        Matrix4 inv = new Matrix4();
-        inv.m00 = (+m11 * B5 - m12 * B4 + m13 * B3) * invDet;
-        inv.m10 = (-m10 * B5 + m12 * B2 - m13 * B1) * invDet;
-        inv.m20 = (+m10 * B4 - m11 * B2 + m13 * B0) * invDet;
-        inv.m30 = (-m10 * B3 + m11 * B1 - m12 * B0) * invDet;
-        inv.m01 = (-m01 * B5 + m02 * B4 - m03 * B3) * invDet;
-        inv.m11 = (+m00 * B5 - m02 * B2 + m03 * B1) * invDet;
-        inv.m21 = (-m00 * B4 + m01 * B2 - m03 * B0) * invDet;
-        inv.m31 = (+m00 * B3 - m01 * B1 + m02 * B0) * invDet;
-        inv.m02 = (+m31 * A5 - m32 * A4 + m33 * A3) * invDet;
-        inv.m12 = (-m30 * A5 + m32 * A2 - m33 * A1) * invDet;
-        inv.m22 = (+m30 * A4 - m31 * A2 + m33 * A0) * invDet;
-        inv.m32 = (-m30 * A3 + m31 * A1 - m32 * A0) * invDet;
-        inv.m03 = (-m21 * A5 + m22 * A4 - m23 * A3) * invDet;
-        inv.m13 = (+m20 * A5 - m22 * A2 + m23 * A1) * invDet;
-        inv.m23 = (-m20 * A4 + m21 * A2 - m23 * A0) * invDet;
-        inv.m33 = (+m20 * A3 - m21 * A1 + m22 * A0) * invDet;
-        return inv;
+        // compute everything before writing, dest may be this matrix
+        float i00 = (+m11 * B5 - m12 * B4 + m13 * B3) * invDet;
+        float i10 = (-m10 * B5 + m12 * B2 - m13 * B1) * invDet;
+        float i20 = (+m10 * B4 - m11 * B2 + m13 * B0) * invDet;
+        float i30 = (-m10 * B3 + m11 * B1 - m12 * B0) * invDet;
+        float i01 = (-m01 * B5 + m02 * B4 - m03 * B3) * invDet;
+        float i11 = (+m00 * B5 - m02 * B2 + m03 * B1) * invDet;
+        float i21 = (-m00 * B4 + m01 * B2 - m03 * B0) * invDet;
+        float i31 = (+m00 * B3 - m01 * B1 + m02 * B0) * invDet;
+        float i02 = (+m31 * A5 - m32 * A4 + m33 * A3) * invDet;
+        float i12 = (-m30 * A5 + m32 * A2 - m33 * A1) * invDet;
+        float i22 = (+m30 * A4 - m31 * A2 + m33 * A0) * invDet;
+        float i32 = (-m30 * A3 + m31 * A1 - m32 * A0) * invDet;
+        float i03 = (-m21 * A5 + m22 * A4 - m23 * A3) * invDet;
+        float i13 = (+m20 * A5 - m22 * A2 + m23 * A1) * invDet;
+        float i23 = (-m20 * A4 + m21 * A2 - m23 * A0) * invDet;
+        float i33 = (+m20 * A3 - m21 * A1 + m22 * A0) * invDet;
+        dest.m00 = i00;
+        dest.m01 = i01;
+        dest.m02 = i02;
+        dest.m03 = i03;
+        dest.m10 = i10;
+        dest.m11 = i11;
+        dest.m12 = i12;
+        dest.m13 = i13;
+        dest.m20 = i20;
+        dest.m21 = i21;
+        dest.m22 = i22;
+        dest.m23 = i23;
+        dest.m30 = i30;
+        dest.m31 = i31;
+        dest.m32 = i32;
+        dest.m33 = i33;
+        return dest;
+    }
+
+    /**
+     * Copy the coefficients of the specified matrix into this one.
+     * 
+     * @param m matrix to copy
+     * @return this matrix
+     */
+    public final Matrix4 set(Matrix4 m) {
+        m00 = m.m00;
+        m01 = m.m01;
+        m02 = m.m02;
+        m03 = m.m03;
+        m10 = m.m10;
+        m11 = m.m11;
+        m12 = m.m12;
+        m13 = m.m13;
+        m20 = m.m20;
+        m21 = m.m21;
+        m22 = m.m22;
+        m23 = m.m23;
+        m30 = m.m30;
+        m31 = m.m31;
+        m32 = m.m32;
+        m33 = m.m33;
+        return this;
     }
 
     /**
@@ -239,12 +293,20 @@ public final class Matrix4 {
     public final BoundingBox transform(BoundingBox b) {
         if (b.isEmpty())
             return new BoundingBox();
-        // special case extreme corners
-        BoundingBox rb = new BoundingBox(transformP(b.getMinimum()));
-        rb.include(transformP(b.getMaximum()));
-        // do internal corners
-        for (int i = 1; i < 7; i++)
-            rb.include(transformP(b.getCorner(i)));
+        Point3 min = b.getMinimum();
+        Point3 max = b.getMaximum();
+        float[] x = new float[8];
+        float[] y = new float[8];
+        float[] z = new float[8];
+        for (int i = 0; i < 8; i++) {
+            x[i] = (i & 1) == 0 ? min.x : max.x;
+            y[i] = (i & 2) == 0 ? min.y : max.y;
+            z[i] = (i & 4) == 0 ? min.z : max.z;
+        }
+        transformP(x, y, z, 0, 8);
+        BoundingBox rb = new BoundingBox(x[0], y[0], z[0]);
+        for (int i = 1; i < 8; i++)
+            rb.include(x[i], y[i], z[i]);
         return rb;
     }
 
@@ -256,11 +318,24 @@ public final class Matrix4 {
      * @return a new Vector3 object equal to <code>this*v</code>
      */
     public final Vector3 transformV(Vector3 v) {
-        Vector3 rv = new Vector3();
-        rv.x = m00 * v.x + m01 * v.y + m02 * v.z;
-        rv.y = m10 * v.x + m11 * v.y + m12 * v.z;
-        rv.z = m20 * v.x + m21 * v.y + m22 * v.z;
-        return rv;
+        return transformV(v, new Vector3());
+    }
+
+    /**
+     * Computes this*v and stores the result in dest, which may be v itself.
+     * This method assumes the bottom row of the matrix is
+     * <code>[0,0,0,1]</code>.
+     * 
+     * @param v vector to multiply
+     * @param dest vector to store the result in
+     * @return dest, equal to <code>this*v</code>
+     */
+    public final Vector3 transformV(Vector3 v, Vector3 dest) {
+        float x = v.x, y = v.y, z = v.z;
+        dest.x = m00 * x + m01 * y + m02 * z;
+        dest.y = m10 * x + m11 * y + m12 * z;
+        dest.z = m20 * x + m21 * y + m22 * z;
+        return dest;
     }
 
     /**
@@ -271,11 +346,24 @@ public final class Matrix4 {
      * @return a new Vector3 object equal to <code>(this^T)*v</code>
      */
     public final Vector3 transformTransposeV(Vector3 v) {
-        Vector3 rv = new Vector3();
-        rv.x = m00 * v.x + m10 * v.y + m20 * v.z;
-        rv.y = m01 * v.x + m11 * v.y + m21 * v.z;
-        rv.z = m02 * v.x + m12 * v.y + m22 * v.z;
-        return rv;
+        return transformTransposeV(v, new Vector3());
+    }
+
+    /**
+     * Computes (this^T)*v and stores the result in dest, which may be v
+     * itself. This method assumes the bottom row of the matrix is
+     * <code>[0,0,0,1]</code>.
+     * 
+     * @param v vector to multiply
+     * @param dest vector to store the result in
+     * @return dest, equal to <code>(this^T)*v</code>
+     */
+    public final Vector3 transformTransposeV(Vector3 v, Vector3 dest) {
+        float x = v.x, y = v.y, z = v.z;
+        dest.x = m00 * x + m10 * y + m20 * z;
+        dest.y = m01 * x + m11 * y + m21 * z;
+        dest.z = m02 * x + m12 * y + m22 * z;
+        return dest;
     }
 
     /**
@@ -286,11 +374,103 @@ public final class Matrix4 {
      * @return a new Point3 object equal to <code>this*v</code>
      */
     public final Point3 transformP(Point3 p) {
-        Point3 rp = new Point3();
-        rp.x = m00 * p.x + m01 * p.y + m02 * p.z + m03;
-        rp.y = m10 * p.x + m11 * p.y + m12 * p.z + m13;
-        rp.z = m20 * p.x + m21 * p.y + m22 * p.z + m23;
-        return rp;
+        return transformP(p, new Point3());
+    }
+
+    /**
+     * Computes this*p and stores the result in dest, which may be p itself.
+     * This method assumes the bottom row of the matrix is
+     * <code>[0,0,0,1]</code>.
+     * 
+     * @param p point to multiply
+     * @param dest point to store the result in
+     * @return dest, equal to <code>this*p</code>
+     */
+    public final Point3 transformP(Point3 p, Point3 dest) {
+        float x = p.x, y = p.y, z = p.z;
+        dest.x = m00 * x + m01 * y + m02 * z + m03;
+        dest.y = m10 * x + m11 * y + m12 * z + m13;
+        dest.z = m20 * x + m21 * y + m22 * z + m23;
+        return dest;
+    }
+
+    /**
+     * Transforms a batch of points in place. The coordinates are stored in
+     * separate arrays so that the loop runs over contiguous memory without
+     * touching any objects. This method assumes the bottom row of the matrix
+     * is <code>[0,0,0,1]</code>.
+     * 
+     * @param x x coordinates of the points
+     * @param y y coordinates of the points
+     * @param z z coordinates of the points
+     * @param offset index of the first point to transform
+     * @param count number of points to transform
+     */
+    public final void transformP(float[] x, float[] y, float[] z, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            float px = x[i], py = y[i], pz = z[i];
+            x[i] = m00 * px + m01 * py + m02 * pz + m03;
+            y[i] = m10 * px + m11 * py + m12 * pz + m13;
+            z[i] = m20 * px + m21 * py + m22 * pz + m23;
+        }
+    }
+
+    /**
+     * Transforms a batch of vectors in place, ignoring the translation. The
+     * coordinates are stored in separate arrays as for
+     * {@link #transformP(float[], float[], float[], int, int)}.
+     * 
+     * @param x x coordinates of the vectors
+     * @param y y coordinates of the vectors
+     * @param z z coordinates of the vectors
+     * @param offset index of the first vector to transform
+     * @param count number of vectors to transform
+     */
+    public final void transformV(float[] x, float[] y, float[] z, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            float vx = x[i], vy = y[i], vz = z[i];
+            x[i] = m00 * vx + m01 * vy + m02 * vz;
+            y[i] = m10 * vx + m11 * vy + m12 * vz;
+            z[i] = m20 * vx + m21 * vy + m22 * vz;
+        }
+    }
+
+    /**
+     * Transforms a batch of normals in place by the transpose of this matrix,
+     * which should be the inverse of the transform applied to the points.
+     * 
+     * @param x x coordinates of the normals
+     * @param y y coordinates of the normals
+     * @param z z coordinates of the normals
+     * @param offset index of the first normal to transform
+     * @param count number of normals to transform
+     */
+    public final void transformTransposeV(float[] x, float[] y, float[] z, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            float vx = x[i], vy = y[i], vz = z[i];
+            x[i] = m00 * vx + m10 * vy + m20 * vz;
+            y[i] = m01 * vx + m11 * vy + m21 * vz;
+            z[i] = m02 * vx + m12 * vy + m22 * vz;
+        }
+    }
+
+    /**
+     * Checks if this matrix is the identity.
+     * 
+     * @return <code>true</code> if this matrix leaves all points unchanged
+     */
+    public final boolean isIdentity() {
+        return isTranslation() && m03 == 0 && m13 == 0 && m23 == 0;
+    }
+
+    /**
+     * Checks if this matrix is a pure translation, without any rotation,
+     * scale or projection. The identity is considered a translation.
+     * 
+     * @return <code>true</code> if this matrix only translates points
+     */
+    public final boolean isTranslation() {
+        return m00 == 1 && m01 == 0 && m02 == 0 && m10 == 0 && m11 == 1 && m12 == 0 && m20 == 0 && m21 == 0 && m22 == 1 && m30 == 0 && m31 == 0 && m32 == 0 && m33 == 1;
     }
 
     /**
@@ -561,7 +741,20 @@ public final class Matrix4 {
     }
 
     public final static Matrix4 blend(Matrix4 m0, Matrix4 m1, float t) {
-        Matrix4 m = new Matrix4();
+        return blend(m0, m1, t, new Matrix4());
+    }
+
+    /**
+     * Linearly blend two matrices and store the result into the specified
+     * matrix, which may be one of the inputs.
+     * 
+     * @param m0 matrix at <code>t=0</code>
+     * @param m1 matrix at <code>t=1</code>
+     * @param t blend factor
+     * @param m matrix to store the result into
+     * @return <code>m</code>
+     */
+    public final static Matrix4 blend(Matrix4 m0, Matrix4 m1, float t, Matrix4 m) {
         m.m00 = (1 - t) * m0.m00 + t * m1.m00;
         m.m01 = (1 - t) * m0.m01 + t * m1.m01;
         m.m02 = (1 - t) * m0.m02 + t * m1.m02;
@@ -7,6 +7,12 @@ public final class QMC {
     private static final int NUM = 128;
     private static final int[][] SIGMA = new int[NUM][];
     private static final int[] PRIMES = new int[NUM];
+    // the values of the lowest digits of the first dimensions are tabulated,
+    // each table holds the largest power of the base below this size
+    private static final int TABLE_DIMENSIONS = 32;
+    private static final int MAX_TABLE_SIZE = 4096;
+    private static final double[][] TABLES = new double[TABLE_DIMENSIONS][];
+    private static final double[] TABLE_SCALES = new double[TABLE_DIMENSIONS];
 
     static {
         UI.printInfo(Module.QMC, "Initializing Faure scrambling tables ...");
@@ -41,6 +47,23 @@ public final class QMC {
             SIGMA[i] = new int[p];
             System.arraycopy(table[p], 0, SIGMA[i], 0, p);
         }
+        for (int d = 1; d < TABLE_DIMENSIONS; d++) {
+            int base = PRIMES[d];
+            double inv = 1.0 / base;
+            // weight of the first digit past the table, accumulated the same
+            // way as in halton so the results are identical
+            int size = base;
+            double scale = inv * inv;
+            while (size * base <= MAX_TABLE_SIZE) {
+                size *= base;
+                scale *= inv;
+            }
+            double[] values = new double[size];
+            for (int i = 0; i < size; i++)
+                values[i] = halton(d, i);
+            TABLES[d] = values;
+            TABLE_SCALES[d] = scale;
+        }
     }
 
     private static final int nextPrime(int p) {
@@ -86,6 +109,8 @@ public final class QMC {
     }
 
     public static final double halton(int d, int i) {
+        if (d > 0 && d < TABLE_DIMENSIONS && i >= 0 && TABLES[d] != null)
+            return tabulatedHalton(d, i);
         // generalized Halton sequence
         switch (d) {
             case 0: {
@@ -118,6 +143,22 @@ public final class QMC {
         return v;
     }
 
+    private static final double tabulatedHalton(int d, int i) {
+        // look up the lowest digits, then add the remaining ones
+        double[] table = TABLES[d];
+        if (i < table.length)
+            return table[i];
+        int base = PRIMES[d];
+        int[] perm = SIGMA[d];
+        double v = table[i % table.length];
+        double inv = 1.0 / base;
+        double p;
+        int n;
+        for (p = TABLE_SCALES[d], n = i / table.length; n != 0; p *= inv, n /= base)
+            v += perm[n % base] * p;
+        return v;
+    }
+
     public static final double mod1(double x) {
         // assumes x >= 0
         return x - (int) x;
@@ -0,0 +1,325 @@
+package org.sunflow.system;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.sunflow.system.UI.Module;
+
+/**
+ * Versioned binary file holding named arrays of ints and floats derived from a
+ * source file. The cache is stored next to the source and is only considered
+ * valid if its key matches the one computed from the current contents of the
+ * source, so edits to the source invalidate it automatically, even if they
+ * keep its size and modification time. Existing caches are memory mapped and
+ * arrays are copied out of the mapping on request.
+ */
+public final class BinaryCache {
+    private static final int MAGIC = 0x43424653; // "SFBC"
+    private static final int VERSION = 1;
+    private static final byte INTS = 0;
+    private static final byte FLOATS = 1;
+
+    private final String filename;
+    private final long key;
+    private MappedByteBuffer map;
+    private final Map<String, Object> arrays;
+    private boolean modified;
+
+    /**
+     * Creates a cache for the specified source file. Nothing is read until
+     * {@link #load()} is called.
+     * 
+     * @param source name of the file the cached data is derived from
+     * @param seed additional value mixed into the key, for settings which
+     *            change the cached data
+     * @throws IOException if the source file could not be read
+     */
+    public BinaryCache(String source, long seed) throws IOException {
+        filename = source + ".cache";
+        key = hash(source, seed);
+        arrays = new LinkedHashMap<String, Object>();
+    }
+
+    /**
+     * Compute a key from the contents of a file. Reading the source costs
+     * little next to parsing it again.
+     * 
+     * @param source file to read
+     * @param seed value mixed into the key
+     * @return a 64-bit key
+     * @throws IOException if the file could not be read
+     */
+    private static long hash(String source, long seed) throws IOException {
+        CRC32 crc = new CRC32();
+        long length = 0;
+        FileInputStream stream = new FileInputStream(source);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = stream.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+                length += n;
+            }
+        }
+        finally {
+            stream.close();
+        }
+        return (crc.getValue() << 32) ^ length ^ (seed * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Map the cache file if it exists and matches the current source.
+     * 
+     * @return <code>true</code> if the cache was loaded, <code>false</code>
+     *         if it is missing, stale or unreadable
+     */
+    public boolean load() {
+        File file = new File(filename);
+        if (!file.exists())
+            return false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            finally {
+                raf.close();
+            }
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                UI.printWarning(Module.SYS, "Ignoring cache file \"%s\" - unsupported format", filename);
+                map = null;
+                return false;
+            }
+            if (map.getLong() != key) {
+                UI.printInfo(Module.SYS, "Cache file \"%s\" is out of date", filename);
+                map = null;
+                return false;
+            }
+            arrays.clear();
+            modified = false;
+            int n = map.getInt();
+            for (int i = 0; i < n; i++) {
+                char[] name = new char[map.getInt()];
+                for (int j = 0; j < name.length; j++)
+                    name[j] = (char) map.get();
+                byte type = map.get();
+                int length = map.getInt();
+                int offset = map.getInt();
+                if (length < 0 || offset < 0 || offset + 4L * length > map.capacity())
+                    throw new IOException("file is truncated");
+                arrays.put(new String(name), new Section(type, length, offset));
+            }
+            UI.printInfo(Module.SYS, "Loaded cache file \"%s\"", filename);
+            return true;
+        }
+        catch (Exception e) {
+            // truncated or unreadable files are simply rebuilt
+            UI.printWarning(Module.SYS, "Unable to read cache file \"%s\": %s", filename, e.getMessage());
+            map = null;
+            arrays.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Get the int array stored under the specified name.
+     * 
+     * @param name array name
+     * @return a copy of the array, or <code>null</code> if the cache contains
+     *         no int array with this name
+     */
+    public int[] getInts(String name) {
+        Object o = arrays.get(name);
+        if (o instanceof int[])
+            return (int[]) o;
+        if (o instanceof Section && ((Section) o).type == INTS) {
+            Section s = (Section) o;
+            int[] data = new int[s.length];
+            ByteBuffer buffer = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(s.offset);
+            buffer.asIntBuffer().get(data);
+            return data;
+        }
+        return null;
+    }
+
+    /**
+     * Get the float array stored under the specified name.
+     * 
+     * @param name array name
+     * @return a copy of the array, or <code>null</code> if the cache contains
+     *         no float array with this name
+     */
+    public float[] getFloats(String name) {
+        Object o = arrays.get(name);
+        if (o instanceof float[])
+            return (float[]) o;
+        if (o instanceof Section && ((Section) o).type == FLOATS) {
+            Section s = (Section) o;
+            float[] data = new float[s.length];
+            ByteBuffer buffer = map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(s.offset);
+            buffer.asFloatBuffer().get(data);
+            return data;
+        }
+        return null;
+    }
+
+    /**
+     * Store an int array. The data is only written to disk by
+     * {@link #save()}.
+     * 
+     * @param name array name
+     * @param data array to store, it is referenced, not copied
+     */
+    public void put(String name, int[] data) {
+        arrays.put(name, data);
+        modified = true;
+    }
+
+    /**
+     * Store a float array. The data is only written to disk by
+     * {@link #save()}.
+     * 
+     * @param name array name
+     * @param data array to store, it is referenced, not copied
+     */
+    public void put(String name, float[] data) {
+        arrays.put(name, data);
+        modified = true;
+    }
+
+    /**
+     * Check if arrays have been stored since the cache was loaded or saved.
+     * 
+     * @return <code>true</code> if the cache file needs to be written
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Write all arrays to the cache file. The file is written under a
+     * temporary name first so a partially written cache is never picked up.
+     * 
+     * @return <code>true</code> if the file was written successfully
+     */
+    public boolean save() {
+        // copy previously loaded arrays out of the mapping before replacing
+        // the file
+        for (Map.Entry<String, Object> e : arrays.entrySet()) {
+            if (e.getValue() instanceof Section) {
+                Section s = (Section) e.getValue();
+                e.setValue(s.type == INTS ? (Object) getInts(e.getKey()) : (Object) getFloats(e.getKey()));
+            }
+        }
+        map = null;
+        // layout the header
+        int headerSize = 20;
+        for (String name : arrays.keySet())
+            headerSize += 4 + name.length() + 1 + 4 + 4;
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(key);
+        header.putInt(arrays.size());
+        long offset = headerSize;
+        for (Map.Entry<String, Object> e : arrays.entrySet()) {
+            String name = e.getKey();
+            Object data = e.getValue();
+            int length = data instanceof int[] ? ((int[]) data).length : ((float[]) data).length;
+            if (offset + 4L * length > Integer.MAX_VALUE) {
+                UI.printWarning(Module.SYS, "Unable to write cache file \"%s\" - data is too large", filename);
+                return false;
+            }
+            header.putInt(name.length());
+            for (int i = 0; i < name.length(); i++)
+                header.put((byte) name.charAt(i));
+            header.put(data instanceof int[] ? INTS : FLOATS);
+            header.putInt(length);
+            header.putInt((int) offset);
+            offset += 4L * length;
+        }
+        header.flip();
+        File temp = new File(filename + ".tmp");
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                FileChannel channel = stream.getChannel();
+                channel.write(header);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                for (Object data : arrays.values()) {
+                    if (data instanceof int[]) {
+                        int[] a = (int[]) data;
+                        for (int i = 0; i < a.length;) {
+                            int n = Math.min(a.length - i, buffer.capacity() / 4);
+                            buffer.clear();
+                            buffer.asIntBuffer().put(a, i, n);
+                            buffer.limit(4 * n);
+                            while (buffer.hasRemaining())
+                                channel.write(buffer);
+                            i += n;
+                        }
+                    }
+                    else {
+                        float[] a = (float[]) data;
+                        for (int i = 0; i < a.length;) {
+                            int n = Math.min(a.length - i, buffer.capacity() / 4);
+                            buffer.clear();
+                            buffer.asFloatBuffer().put(a, i, n);
+                            buffer.limit(4 * n);
+                            while (buffer.hasRemaining())
+                                channel.write(buffer);
+                            i += n;
+                        }
+                    }
+                }
+            }
+            finally {
+                stream.close();
+            }
+            File file = new File(filename);
+            if (file.exists() && !file.delete()) {
+                UI.printWarning(Module.SYS, "Unable to replace cache file \"%s\"", filename);
+                temp.delete();
+                return false;
+            }
+            if (!temp.renameTo(file)) {
+                UI.printWarning(Module.SYS, "Unable to write cache file \"%s\"", filename);
+                temp.delete();
+                return false;
+            }
+            modified = false;
+            UI.printInfo(Module.SYS, "Wrote cache file \"%s\" (%s)", filename, Memory.bytesToString(offset));
+            return true;
+        }
+        catch (IOException e) {
+            UI.printWarning(Module.SYS, "Unable to write cache file \"%s\": %s", filename, e.getMessage());
+            temp.delete();
+            return false;
+        }
+    }
+
+    private static final class Section {
+        private final byte type;
+        private final int length;
+        private final int offset;
+
+        Section(byte type, int length, int offset) {
+            this.type = type;
+            this.length = length;
+            this.offset = offset;
+        }
+    }
+}
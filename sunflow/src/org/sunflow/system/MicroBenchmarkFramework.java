@@ -0,0 +1,131 @@
+package org.sunflow.system;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+import org.sunflow.system.UI.Module;
+
+/**
+ * This class runs small {@link BenchmarkTest} kernels which perform a known
+ * number of operations per call. Each kernel is first run for a warmup period
+ * so the JIT compiler has a chance to compile it, then timed over many calls.
+ * Besides the time per operation, the number of garbage collections and, on
+ * virtual machines which can measure it, the memory allocated by the calling
+ * thread per operation are reported.
+ */
+public class MicroBenchmarkFramework {
+    private double warmupTime; // seconds
+    private double measureTime; // seconds
+    private ThreadMXBean threadBean;
+    private Method allocatedBytes;
+
+    public MicroBenchmarkFramework(double warmupTime, double measureTime) {
+        this.warmupTime = warmupTime;
+        this.measureTime = measureTime;
+        threadBean = ManagementFactory.getThreadMXBean();
+        try {
+            // only available on Sun's virtual machines
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (c.isInstance(threadBean)) {
+                allocatedBytes = c.getMethod("getThreadAllocatedBytes", long.class);
+                if (getAllocatedBytes() < 0)
+                    allocatedBytes = null;
+            }
+        } catch (Exception e) {
+            allocatedBytes = null;
+        }
+        if (allocatedBytes == null)
+            UI.printWarning(Module.BENCH, "Allocation counters are not supported by this virtual machine");
+    }
+
+    /**
+     * Run the specified kernel and report the results.
+     * 
+     * @param name name of the kernel
+     * @param test kernel to run
+     * @param operations number of operations performed by each call to
+     *            {@link BenchmarkTest#kernelMain()}
+     */
+    public void execute(String name, BenchmarkTest test, int operations) {
+        // warmup
+        long startTime = System.nanoTime();
+        int warmupCalls = 0;
+        while ((System.nanoTime() - startTime) * 1e-9 < warmupTime || warmupCalls < 2) {
+            test.kernelBegin();
+            test.kernelMain();
+            test.kernelEnd();
+            warmupCalls++;
+        }
+        // measure
+        ArrayList<Double> times = new ArrayList<Double>();
+        long gcCount = getCollectionCount();
+        long gcTime = getCollectionTime();
+        long bytes = 0;
+        Timer timer = new Timer();
+        startTime = System.nanoTime();
+        while ((System.nanoTime() - startTime) * 1e-9 < measureTime || times.size() < 2) {
+            test.kernelBegin();
+            long b = getAllocatedBytes();
+            timer.start();
+            test.kernelMain();
+            timer.end();
+            bytes += getAllocatedBytes() - b;
+            test.kernelEnd();
+            times.add((double) timer.nanos() / operations);
+        }
+        gcCount = getCollectionCount() - gcCount;
+        gcTime = getCollectionTime() - gcTime;
+        // report stats
+        int n = times.size();
+        double avg = 0;
+        double min = Double.POSITIVE_INFINITY;
+        for (double t : times) {
+            avg += t;
+            min = Math.min(min, t);
+        }
+        avg /= n;
+        double stdDev = 0;
+        for (double t : times)
+            stdDev += (t - avg) * (t - avg);
+        stdDev = Math.sqrt(stdDev / n);
+        String alloc = allocatedBytes != null ? String.format("%10.1f B/op", (double) bytes / ((long) n * operations)) : "       n/a B/op";
+        UI.printInfo(Module.BENCH, "%-28s %12s/op +- %5.1f%% (min %s) %s %4d GCs (%dms) %6d calls", name, formatNanos(avg), 100 * stdDev / avg, formatNanos(min), alloc, gcCount, gcTime, n);
+    }
+
+    private static String formatNanos(double nanos) {
+        if (nanos < 1e3)
+            return String.format("%.2fns", nanos);
+        if (nanos < 1e6)
+            return String.format("%.2fus", nanos * 1e-3);
+        if (nanos < 1e9)
+            return String.format("%.2fms", nanos * 1e-6);
+        return String.format("%.2fs", nanos * 1e-9);
+    }
+
+    private long getAllocatedBytes() {
+        if (allocatedBytes == null)
+            return 0;
+        try {
+            return (Long) allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private static long getCollectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long getCollectionTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+}
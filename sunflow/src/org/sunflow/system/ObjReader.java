@@ -0,0 +1,450 @@
+package org.sunflow.system;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.sunflow.util.DoubleArray;
+import org.sunflow.util.FloatArray;
+import org.sunflow.util.IntArray;
+
+/**
+ * Reads vertex positions and polygons from Wavefront OBJ files. The file is
+ * memory mapped and split into chunks aligned on line boundaries which are
+ * parsed in parallel, decoding numbers directly from the mapped bytes. The
+ * results of all chunks are then concatenated in file order, so the output is
+ * identical to a sequential read. Only <code>v</code> and <code>f</code>
+ * statements are interpreted: texture and normal indices of face vertices are
+ * skipped, relative (negative) indices are resolved and every other statement
+ * is ignored. Vertex positions can optionally be kept in double precision
+ * for callers which need more than the seven significant digits of a float.
+ */
+public final class ObjReader {
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+            1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+            1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private final String filename;
+    private final boolean doublePrecision;
+    private float[] vertices;
+    private double[] verticesDouble;
+    private int[] faces;
+    private int[] faceSizes;
+
+    public ObjReader(String filename) {
+        this(filename, false);
+    }
+
+    /**
+     * Creates a reader for the specified file.
+     * 
+     * @param filename file to read
+     * @param doublePrecision <code>true</code> to parse vertex positions
+     *            into doubles, see {@link #getVerticesDouble()}
+     */
+    public ObjReader(String filename, boolean doublePrecision) {
+        this.filename = filename;
+        this.doublePrecision = doublePrecision;
+    }
+
+    /**
+     * Read the file using all available processors.
+     * 
+     * @throws IOException if the file could not be read or contains a syntax
+     *             error
+     */
+    public void read() throws IOException {
+        read(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Read the file using the specified number of threads.
+     * 
+     * @param threads number of threads to parse with
+     * @throws IOException if the file could not be read or contains a syntax
+     *             error
+     */
+    public void read(int threads) throws IOException {
+        FileInputStream stream = new FileInputStream(filename);
+        Chunk[] chunks;
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            // several chunks per thread to even out the work
+            long chunkSize = Math.max(MIN_CHUNK_SIZE, size / (4 * Math.max(threads, 1)));
+            chunkSize = Math.min(chunkSize, Integer.MAX_VALUE / 2);
+            int n = (int) ((size + chunkSize - 1) / chunkSize);
+            chunks = new Chunk[n];
+            long start = 0;
+            for (int i = 0; i < n && start < size; i++) {
+                long end = i == n - 1 ? size : nextLine(channel, start + chunkSize, size);
+                chunks[i] = new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), doublePrecision);
+                start = end;
+            }
+        } finally {
+            stream.close();
+        }
+        parse(chunks, Math.min(threads, chunks.length));
+        // report the first error in file order
+        for (int i = 0, line = 0; i < chunks.length && chunks[i] != null; i++) {
+            if (chunks[i].error != null)
+                throw new IOException(String.format("Syntax error at line %d: %s", line + chunks[i].lines + 1, chunks[i].error));
+            line += chunks[i].lines;
+        }
+        merge(chunks);
+    }
+
+    /**
+     * Find the start of the line following the specified position.
+     */
+    private static long nextLine(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (pos < size) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if (n <= 0)
+                break;
+            for (int i = 0; i < n; i++)
+                if (buffer.get(i) == '\n')
+                    return pos + i + 1;
+            pos += n;
+        }
+        return size;
+    }
+
+    private static void parse(final Chunk[] chunks, int threads) throws IOException {
+        if (threads <= 1) {
+            for (Chunk c : chunks)
+                if (c != null)
+                    c.parse();
+            return;
+        }
+        final int[] next = { 0 };
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (true) {
+                        int c;
+                        synchronized (next) {
+                            c = next[0]++;
+                        }
+                        if (c >= chunks.length || chunks[c] == null)
+                            return;
+                        chunks[c].parse();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while reading OBJ file");
+            }
+        }
+    }
+
+    private void merge(Chunk[] chunks) {
+        int numVerts = 0, numFaces = 0, numIndices = 0;
+        for (Chunk c : chunks) {
+            if (c == null)
+                continue;
+            numVerts += 3 * c.numVerts;
+            numFaces += c.sizes.getSize();
+            numIndices += c.indices.getSize();
+        }
+        if (doublePrecision)
+            verticesDouble = new double[numVerts];
+        else
+            vertices = new float[numVerts];
+        faceSizes = new int[numFaces];
+        faces = new int[numIndices];
+        int vi = 0, fi = 0, ii = 0;
+        for (Chunk c : chunks) {
+            if (c == null)
+                continue;
+            // relative indices were stored relative to the first vertex of
+            // the chunk
+            int[] indices = c.indices.trim();
+            for (int i = 0; i < c.relative.getSize(); i++)
+                indices[c.relative.get(i)] += vi / 3;
+            if (doublePrecision)
+                System.arraycopy(c.vertsDouble.trim(), 0, verticesDouble, vi, 3 * c.numVerts);
+            else
+                System.arraycopy(c.verts.trim(), 0, vertices, vi, 3 * c.numVerts);
+            System.arraycopy(c.sizes.trim(), 0, faceSizes, fi, c.sizes.getSize());
+            System.arraycopy(indices, 0, faces, ii, indices.length);
+            vi += 3 * c.numVerts;
+            fi += c.sizes.getSize();
+            ii += indices.length;
+        }
+    }
+
+    /**
+     * Get the vertex positions. Only available if the reader was not created
+     * in double precision mode.
+     * 
+     * @return array of xyz triplets
+     */
+    public float[] getVertices() {
+        return vertices;
+    }
+
+    /**
+     * Get the vertex positions in double precision. Only available if the
+     * reader was created in double precision mode.
+     * 
+     * @return array of xyz triplets
+     */
+    public double[] getVerticesDouble() {
+        return verticesDouble;
+    }
+
+    /**
+     * Get the vertex indices of all faces, one face after the other.
+     * 
+     * @return array of 0-based vertex indices
+     */
+    public int[] getFaces() {
+        return faces;
+    }
+
+    /**
+     * Get the number of vertices of each face.
+     * 
+     * @return array of face sizes
+     */
+    public int[] getFaceSizes() {
+        return faceSizes;
+    }
+
+    /**
+     * Split all faces into triangles. Polygons are turned into fans around
+     * their first vertex, faces with less than 3 vertices are dropped.
+     * 
+     * @return array of vertex index triplets
+     */
+    public int[] getTriangles() {
+        int numTris = 0;
+        for (int n : faceSizes)
+            numTris += Math.max(n - 2, 0);
+        int[] tris = new int[3 * numTris];
+        for (int f = 0, i = 0, t = 0; f < faceSizes.length; i += faceSizes[f], f++) {
+            for (int j = 2; j < faceSizes[f]; j++, t += 3) {
+                tris[t + 0] = faces[i];
+                tris[t + 1] = faces[i + j - 1];
+                tris[t + 2] = faces[i + j];
+            }
+        }
+        return tris;
+    }
+
+    /**
+     * A range of whole lines of the file, and the data parsed from it.
+     */
+    private static final class Chunk {
+        private final MappedByteBuffer data;
+        private final FloatArray verts;
+        private final DoubleArray vertsDouble;
+        private int numVerts;
+        private final IntArray indices;
+        private final IntArray sizes;
+        private final IntArray relative;
+        private int lines;
+        private String error;
+        private byte[] buf;
+        private int pos;
+        private int numberStart;
+
+        Chunk(MappedByteBuffer data, boolean doublePrecision) {
+            this.data = data;
+            verts = doublePrecision ? null : new FloatArray();
+            vertsDouble = doublePrecision ? new DoubleArray() : null;
+            indices = new IntArray();
+            sizes = new IntArray();
+            relative = new IntArray();
+        }
+
+        void parse() {
+            // copy the chunk out of the mapping once, array accesses are much
+            // cheaper than buffer accesses
+            buf = new byte[data.remaining()];
+            data.get(buf);
+            pos = 0;
+            try {
+                while (pos < buf.length) {
+                    skipSpaces();
+                    if (pos + 1 < buf.length && buf[pos] == 'v' && isSpace(buf[pos + 1])) {
+                        pos++;
+                        if (vertsDouble != null) {
+                            vertsDouble.add(parseDouble());
+                            vertsDouble.add(parseDouble());
+                            vertsDouble.add(parseDouble());
+                        } else {
+                            verts.add(parseFloat());
+                            verts.add(parseFloat());
+                            verts.add(parseFloat());
+                        }
+                        numVerts++;
+                    } else if (pos + 1 < buf.length && buf[pos] == 'f' && isSpace(buf[pos + 1])) {
+                        pos++;
+                        int n = 0;
+                        while (true) {
+                            skipSpaces();
+                            if (pos == buf.length || buf[pos] == '\n' || buf[pos] == '\r' || buf[pos] == '#')
+                                break;
+                            int index = parseInt();
+                            if (index < 0) {
+                                // relative to the last vertex read so far
+                                relative.add(indices.getSize());
+                                indices.add(numVerts + index);
+                            } else if (index > 0)
+                                indices.add(index - 1);
+                            else
+                                throw new NumberFormatException("invalid vertex index 0");
+                            n++;
+                            // skip texture and normal indices
+                            while (pos < buf.length && buf[pos] > ' ')
+                                pos++;
+                        }
+                        sizes.add(n);
+                    }
+                    skipLine();
+                }
+            } catch (NumberFormatException e) {
+                error = e.getMessage();
+            }
+            buf = null;
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\t';
+        }
+
+        private void skipSpaces() {
+            while (pos < buf.length && isSpace(buf[pos]))
+                pos++;
+        }
+
+        private void skipLine() {
+            while (pos < buf.length && buf[pos] != '\n')
+                pos++;
+            if (pos < buf.length) {
+                pos++;
+                lines++;
+            }
+        }
+
+        private String token(int start) {
+            int end = start;
+            while (end < buf.length && buf[end] > ' ')
+                end++;
+            return new String(buf, start, end - start);
+        }
+
+        private int parseInt() {
+            int start = pos;
+            boolean negative = pos < buf.length && buf[pos] == '-';
+            if (negative)
+                pos++;
+            int value = 0, digits = 0;
+            for (; pos < buf.length; pos++, digits++) {
+                int d = buf[pos] - '0';
+                if (d < 0 || d > 9)
+                    break;
+                value = value * 10 + d;
+            }
+            if (digits == 0 || digits > 9 || (pos < buf.length && buf[pos] > ' ' && buf[pos] != '/')) {
+                String s = token(start);
+                int slash = s.indexOf('/');
+                return Integer.parseInt(slash < 0 ? s : s.substring(0, slash));
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Parse a double in place. Values with up to 15 significant digits are
+         * converted with a single correctly rounded operation, anything else
+         * is handed to {@link Double#parseDouble(String)}.
+         */
+        private double parseDouble() {
+            skipSpaces();
+            int start = numberStart = pos;
+            boolean negative = false;
+            if (pos < buf.length && (buf[pos] == '-' || buf[pos] == '+')) {
+                negative = buf[pos] == '-';
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0, exponent = 0;
+            boolean any = false, exact = true;
+            for (; pos < buf.length; pos++) {
+                int d = buf[pos] - '0';
+                if (d < 0 || d > 9)
+                    break;
+                any = true;
+                mantissa = mantissa * 10 + d;
+                if (mantissa != 0 && ++digits > 15)
+                    exact = false;
+            }
+            if (pos < buf.length && buf[pos] == '.') {
+                for (pos++; pos < buf.length; pos++) {
+                    int d = buf[pos] - '0';
+                    if (d < 0 || d > 9)
+                        break;
+                    any = true;
+                    mantissa = mantissa * 10 + d;
+                    exponent--;
+                    if (mantissa != 0 && ++digits > 15)
+                        exact = false;
+                }
+            }
+            if (pos < buf.length && (buf[pos] == 'e' || buf[pos] == 'E')) {
+                pos++;
+                boolean negativeExponent = false;
+                if (pos < buf.length && (buf[pos] == '-' || buf[pos] == '+')) {
+                    negativeExponent = buf[pos] == '-';
+                    pos++;
+                }
+                int e = 0, n = 0;
+                for (; pos < buf.length; pos++, n++) {
+                    int d = buf[pos] - '0';
+                    if (d < 0 || d > 9)
+                        break;
+                    e = e * 10 + d;
+                }
+                if (n == 0 || n > 3)
+                    exact = false;
+                exponent += negativeExponent ? -e : e;
+            }
+            if (!any || !exact || (pos < buf.length && buf[pos] > ' ') || exponent < -22 || exponent > 22) {
+                pos = start;
+                String s = token(start);
+                pos += s.length();
+                return Double.parseDouble(s);
+            }
+            double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+
+        /**
+         * Parse a float in place, by rounding the double value whenever that
+         * gives the same result as {@link Float#parseFloat(String)}.
+         */
+        private float parseFloat() {
+            double value = Math.abs(parseDouble());
+            // rounding the double to a float is only correct away from
+            // subnormals and from midpoints between two floats
+            if (value != 0 && (value < 0x1.0p-126 || value > Float.MAX_VALUE || (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L))
+                return Float.parseFloat(new String(buf, numberStart, pos - numberStart));
+            float f = (float) value;
+            return buf[numberStart] == '-' ? -f : f;
+        }
+    }
+}
@@ -1,160 +1,485 @@
 package org.sunflow.system;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
+/**
+ * Streaming tokenizer for the text based scene formats. Tokens are separated
+ * by whitespace, double quotes group characters (including whitespace) into a
+ * single token on the same line, and <code>%</code> or <code>#</code> at the
+ * start of a token comments out the rest of the line. Tokens found between
+ * <code>/*</code> and <code>*&#47;</code> are skipped. Characters are scanned
+ * in place from a buffer which is refilled from a {@link Reader} or decoded
+ * from a memory mapped file, and numbers are decoded directly from that
+ * buffer, so reading numeric data does not create any objects.
+ */
 public class Parser {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+            1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+            1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+    
     private final Reader file;
-    private BufferedReader bf;
-    private String[] lineTokens;
-    private int index;
+    private ByteBuffer bytes;
+    private CharsetDecoder decoder;
+    private boolean ascii;
+    private byte[] scratch;
+    private char[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean closed;
+    private boolean inQuotes;
+    private int tokenStart;
+    private int tokenEnd;
+    private boolean pending;
     
     public Parser(Reader reader) throws FileNotFoundException {
         file = reader;
-        bf = new BufferedReader(file);
-        lineTokens = new String[0];
-        index = 0;
+        init();
     }
     
+    /**
+     * Creates a parser reading the specified file. The file is memory mapped
+     * when possible, otherwise it is read through a regular {@link Reader}.
+     * 
+     * @param filename name of the file to parse
+     * @throws FileNotFoundException if the file cannot be opened
+     */
     public Parser(String filename) throws FileNotFoundException {
-        file = new FileReader(filename);
-        bf = new BufferedReader(file);
-        lineTokens = new String[0];
-        index = 0;
+        FileInputStream stream = new FileInputStream(filename);
+        Reader reader = null;
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            if (size <= Integer.MAX_VALUE) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                // the mapping remains valid once the file is closed
+                stream.close();
+                Charset charset = Charset.defaultCharset();
+                decoder = charset.newDecoder();
+                decoder.onMalformedInput(CodingErrorAction.REPLACE);
+                decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+                // these encodings store ASCII characters as single bytes
+                // which never occur inside longer sequences
+                String name = charset.name();
+                ascii = name.equals("UTF-8") || name.equals("US-ASCII") || name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+            }
+            else
+                reader = new InputStreamReader(stream);
+        }
+        catch (IOException e) {
+            // mapping is not supported, fall back on regular reads
+            try {
+                stream.close();
+            }
+            catch (IOException e2) {
+            }
+            bytes = null;
+            decoder = null;
+            reader = new FileReader(filename);
+        }
+        file = reader;
+        init();
+    }
+    
+    private void init() {
+        buf = new char[BUFFER_SIZE];
+        pos = limit = 0;
+        eof = closed = inQuotes = pending = false;
+        tokenStart = tokenEnd = 0;
     }
     
     public void close() throws IOException {
         if (file != null)
             file.close();
-        bf = null;
+        bytes = null;
+        closed = true;
     }
     
-    public String getNextToken() throws IOException {
-        while (true) {
-            String tok = fetchNextToken();
-            if (tok == null)
-                return null;
-            if (tok.equals("/*")) {
-                do {
-                    tok = fetchNextToken();
-                    if (tok == null)
-                        return null;
-                } while (!tok.equals("*/"));
-            }
+    /**
+     * Refill the character buffer. Characters from the specified position
+     * onwards are kept at the start of the buffer, which grows if they fill it
+     * entirely.
+     * 
+     * @param keep index of the first character to keep, or -1 to discard the
+     *            whole buffer
+     * @return distance by which the kept characters moved towards the start of
+     *         the buffer, no characters were added if the end of the input has
+     *         been reached
+     */
+    private int fill(int keep) throws IOException {
+        if (eof || closed)
+            return 0;
+        int shift = keep < 0 ? limit : keep;
+        if (shift > 0) {
+            System.arraycopy(buf, shift, buf, 0, limit - shift);
+            pos -= shift;
+            limit -= shift;
+        }
+        else if (limit == buf.length) {
+            char[] newBuf = new char[buf.length * 2];
+            System.arraycopy(buf, 0, newBuf, 0, limit);
+            buf = newBuf;
+        }
+        int n = 0;
+        while (n == 0) {
+            if (bytes != null)
+                n = decode();
             else
-                return tok;
+                n = file.read(buf, limit, buf.length - limit);
         }
+        if (n < 0)
+            eof = true;
+        else
+            limit += n;
+        return shift;
     }
     
-    public boolean peekNextToken(String tok) throws IOException {
+    /**
+     * Decode characters from the mapped file into the free space of the
+     * buffer. ASCII characters are copied directly, anything else goes
+     * through the charset decoder.
+     * 
+     * @return number of characters decoded, or -1 if the whole file has been
+     *         decoded
+     */
+    private int decode() throws IOException {
+        if (!bytes.hasRemaining())
+            return -1;
+        if (ascii) {
+            if (scratch == null)
+                scratch = new byte[BUFFER_SIZE];
+            int n = Math.min(Math.min(bytes.remaining(), buf.length - limit), scratch.length);
+            int start = bytes.position();
+            bytes.get(scratch, 0, n);
+            for (int i = 0; i < n; i++) {
+                byte b = scratch[i];
+                if (b < 0) {
+                    // start of a multi-byte sequence
+                    bytes.position(start + i);
+                    n = i;
+                    break;
+                }
+                buf[limit + i] = (char) b;
+            }
+            if (n > 0)
+                return n;
+        }
+        while (true) {
+            // only decode a few characters at a time before going back to the
+            // fast path
+            CharBuffer out = CharBuffer.wrap(buf, limit, ascii ? Math.min(16, buf.length - limit) : buf.length - limit);
+            CoderResult result = decoder.decode(bytes, out, true);
+            if (result.isError())
+                result.throwException();
+            if (!bytes.hasRemaining())
+                decoder.flush(out);
+            int n = out.position() - limit;
+            if (n > 0 || !result.isOverflow())
+                return n;
+            // not enough room left for a single character
+            char[] newBuf = new char[buf.length * 2];
+            System.arraycopy(buf, 0, newBuf, 0, limit);
+            buf = newBuf;
+        }
+    }
+    
+    private boolean refill() throws IOException {
+        fill(-1);
+        return pos < limit;
+    }
+    
+    /**
+     * Scans the next token into the buffer, ignoring comment blocks.
+     * 
+     * @return <code>true</code> if a token was found, <code>false</code> if
+     *         the end of the input was reached
+     */
+    private boolean nextToken() throws IOException {
+        while (true) {
+            if (!fetchNextToken())
+                return false;
+            if (!tokenEquals("/*"))
+                return true;
+            do {
+                if (!fetchNextToken())
+                    return false;
+            } while (!tokenEquals("*/"));
+        }
+    }
+    
+    private boolean fetchNextToken() throws IOException {
+        if (pending) {
+            pending = false;
+            return true;
+        }
+        int start = -1;
         while (true) {
-            String t = fetchNextToken();
-            if (t == null)
-                return false; // nothing left
-            if (t.equals("/*")) {
+            if (pos == limit) {
+                int shift = fill(start);
+                if (start >= 0)
+                    start -= shift;
+                if (pos == limit)
+                    break;
+            }
+            char c = buf[pos];
+            if (c == '\n' || c == '\r') {
+                // end of line, quotes do not span lines
+                if (start >= 0)
+                    break;
+                inQuotes = false;
+                pos++;
+            }
+            else if (start < 0 && (c == '%' || c == '#')) {
+                // skip the rest of the line, leaving the line break
                 do {
-                    t = fetchNextToken();
-                    if (t == null)
-                        return false; // nothing left
-                } while (!t.equals("*/"));
+                    pos++;
+                    if (pos == limit && !refill())
+                        return false;
+                    c = buf[pos];
+                } while (c != '\n' && c != '\r');
             }
-            else if (t.equals(tok)) {
-                // we found the right token, keep parsing
-                return true;
+            else if (c == '\"') {
+                inQuotes = !inQuotes;
+                pos++;
+                if (start >= 0) {
+                    tokenStart = start;
+                    tokenEnd = pos - 1;
+                    return true;
+                }
             }
-            else {
-                // rewind the token so we can try again
-                index--;
-                return false;
+            else if (inQuotes || (c > ' ' && c < 0x80) || !Character.isWhitespace(c)) {
+                if (start < 0)
+                    start = pos;
+                pos++;
+                // quickly skip over the rest of a plain token
+                if (!inQuotes)
+                    while (pos < limit && (c = buf[pos]) > ' ' && c < 0x80 && c != '\"')
+                        pos++;
             }
+            else if (start >= 0)
+                break;
+            else
+                pos++;
         }
+        if (start < 0)
+            return false;
+        tokenStart = start;
+        tokenEnd = pos;
+        return true;
     }
     
-    private String fetchNextToken() throws IOException {
-        if (bf == null)
-            return null;
-        while (true) {
-            if (index < lineTokens.length)
-                return lineTokens[index++];
-            else if (!getNextLine())
-                return null;
+    private boolean tokenEquals(String tok) {
+        int n = tok.length();
+        if (tokenEnd - tokenStart != n)
+            return false;
+        for (int i = 0; i < n; i++)
+            if (buf[tokenStart + i] != tok.charAt(i))
+                return false;
+        return true;
+    }
+    
+    private String tokenString() {
+        return new String(buf, tokenStart, tokenEnd - tokenStart);
+    }
+    
+    public String getNextToken() throws IOException {
+        return nextToken() ? tokenString() : null;
+    }
+    
+    public boolean peekNextToken(String tok) throws IOException {
+        if (!nextToken())
+            return false; // nothing left
+        if (tokenEquals(tok)) {
+            // we found the right token, keep parsing
+            return true;
         }
+        // rewind the token so we can try again
+        pending = true;
+        return false;
     }
     
-    private boolean getNextLine() throws IOException {
-        String line = bf.readLine();
-        
-        if (line == null)
+    /**
+     * Reads characters up to the end of the current line, consuming the line
+     * break.
+     * 
+     * @param code if not <code>null</code>, receives the characters read
+     * @return <code>false</code> if the end of the input was reached before
+     *         any character could be read
+     */
+    private boolean readLine(StringBuilder code) throws IOException {
+        if (pos == limit && !refill())
             return false;
-        
-        ArrayList<String> tokenList = new ArrayList<String>();
-        String current = new String();
-        boolean inQuotes = false;
-        
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
-            if (current.length() == 0 && (c == '%' || c == '#'))
-                break;
-            
-            boolean quote = c == '\"';
-            inQuotes = inQuotes ^ quote;
-            
-            if (!quote && (inQuotes || !Character.isWhitespace(c)))
-                current += c;
-            else if (current.length() > 0) {
-                tokenList.add(current);
-                current = new String();
+        while (true) {
+            if (pos == limit && !refill())
+                return true;
+            char c = buf[pos++];
+            if (c == '\r') {
+                if (pos == limit && !refill())
+                    return true;
+                if (buf[pos] == '\n')
+                    pos++;
+                return true;
             }
+            if (c == '\n')
+                return true;
+            if (code != null)
+                code.append(c);
         }
-        
-        if (current.length() > 0)
-            tokenList.add(current);
-        lineTokens = tokenList.toArray(new String[0]);
-        index = 0;
-        return true;
     }
     
     public String getNextCodeBlock() throws ParserException, IOException {
         // read a java code block
-        String code = new String();
+        StringBuilder code = new StringBuilder();
         checkNextToken("<code>");
+        // the code starts on the next line
+        readLine(null);
+        inQuotes = false;
+        StringBuilder line = new StringBuilder();
         while (true) {
-            String line;
-            try {
-                line = bf.readLine();
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            }
-            if (line.trim().equals("</code>"))
-                return code;
-            code += line;
-            code += "\n";
+            line.setLength(0);
+            if (!readLine(line) || line.toString().trim().equals("</code>"))
+                return code.toString();
+            code.append(line);
+            code.append('\n');
         }
     }
     
     public boolean getNextBoolean() throws IOException {
-        return Boolean.valueOf(getNextToken()).booleanValue();
+        if (!nextToken() || tokenEnd - tokenStart != 4)
+            return false;
+        return Character.toLowerCase(buf[tokenStart]) == 't' && Character.toLowerCase(buf[tokenStart + 1]) == 'r' && Character.toLowerCase(buf[tokenStart + 2]) == 'u' && Character.toLowerCase(buf[tokenStart + 3]) == 'e';
     }
     
     public int getNextInt() throws IOException {
-        return Integer.parseInt(getNextToken());
+        if (!nextToken())
+            throw new NumberFormatException("Unexpected end of file");
+        int i = tokenStart;
+        boolean negative = i < tokenEnd && buf[i] == '-';
+        if (negative)
+            i++;
+        // up to 9 digits always fit, longer values go through the checked
+        // conversion
+        if (i == tokenEnd || tokenEnd - i > 9)
+            return Integer.parseInt(tokenString());
+        int value = 0;
+        for (; i < tokenEnd; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9)
+                return Integer.parseInt(tokenString());
+            value = value * 10 + d;
+        }
+        return negative ? -value : value;
     }
     
+    /**
+     * Parses the next token as a floating point value. Plain decimal values
+     * with up to 15 significant digits are converted directly from the buffer
+     * using a single correctly rounded operation. Anything else (special
+     * values, hexadecimal notation, long mantissas, extreme exponents) is
+     * handed to {@link Float#parseFloat(String)}, so results are always
+     * identical to it.
+     * 
+     * @return the parsed value
+     */
     public float getNextFloat() throws IOException {
-        return Float.parseFloat(getNextToken());
+        if (!nextToken())
+            throw new NumberFormatException("Unexpected end of file");
+        int i = tokenStart;
+        int end = tokenEnd;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        for (; i < end; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9)
+                break;
+            any = true;
+            mantissa = mantissa * 10 + d;
+            if (mantissa != 0)
+                digits++;
+            if (digits > 15)
+                return Float.parseFloat(tokenString());
+        }
+        if (i < end && buf[i] == '.') {
+            for (i++; i < end; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9)
+                    break;
+                any = true;
+                mantissa = mantissa * 10 + d;
+                exponent--;
+                if (mantissa != 0)
+                    digits++;
+                if (digits > 15)
+                    return Float.parseFloat(tokenString());
+            }
+        }
+        if (!any)
+            return Float.parseFloat(tokenString());
+        if (i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+                negativeExponent = buf[i] == '-';
+                i++;
+            }
+            if (i == end || end - i > 3)
+                return Float.parseFloat(tokenString());
+            int e = 0;
+            for (; i < end; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9)
+                    return Float.parseFloat(tokenString());
+                e = e * 10 + d;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != end)
+            return Float.parseFloat(tokenString());
+        // mantissa has at most 15 digits so it is exact, as are the powers of
+        // ten, and the result is rounded only once
+        double value;
+        if (mantissa == 0)
+            value = 0;
+        else if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+            value = mantissa * POWERS_OF_TEN[exponent];
+        else if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        else
+            return Float.parseFloat(tokenString());
+        // rounding the double to a float is only correct away from subnormals
+        // and from midpoints between two floats
+        if (value != 0 && (value < 0x1.0p-126 || value > Float.MAX_VALUE || (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L))
+            return Float.parseFloat(tokenString());
+        float f = (float) value;
+        return negative ? -f : f;
     }
     
     public void checkNextToken(String token) throws ParserException, IOException {
-        String found = getNextToken();
-        if (!token.equals(found)) {
+        boolean found = nextToken();
+        if (!found || !tokenEquals(token)) {
+            String tok = found ? tokenString() : null;
             close();
-            throw new ParserException(token, found);
+            throw new ParserException(token, tok);
         }
     }
     
@@ -164,4 +489,4 @@ public class Parser {
             super(String.format("Expecting %s found %s", token, found));
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package org.sunflow.util;
+
+public final class DoubleArray {
+    private double[] array;
+    private int size;
+
+    public DoubleArray() {
+        array = new double[10];
+        size = 0;
+    }
+
+    public DoubleArray(int capacity) {
+        array = new double[capacity];
+        size = 0;
+    }
+
+    /**
+     * Append a double to the end of the array.
+     * 
+     * @param d
+     */
+    public final void add(double d) {
+        if (size == array.length) {
+            double[] oldArray = array;
+            array = new double[(size * 3) / 2 + 1];
+            System.arraycopy(oldArray, 0, array, 0, size);
+        }
+        array[size] = d;
+        size++;
+    }
+
+    /**
+     * Write a value to the specified index. Assumes the array is already big
+     * enough.
+     * 
+     * @param index
+     * @param value
+     */
+    public final void set(int index, double value) {
+        array[index] = value;
+    }
+
+    /**
+     * Read value from the array.
+     * 
+     * @param index index into the array
+     * @return value at the specified index
+     */
+    public final double get(int index) {
+        return array[index];
+    }
+
+    /**
+     * Returns the number of elements added to the array.
+     * 
+     * @return current size of the array
+     */
+    public final int getSize() {
+        return size;
+    }
+
+    /**
+     * Return a copy of the array, trimmed to fit the size of its contents
+     * exactly.
+     * 
+     * @return a new array of exactly the right length
+     */
+    public final double[] trim() {
+        if (size < array.length) {
+            double[] oldArray = array;
+            array = new double[size];
+            System.arraycopy(oldArray, 0, array, 0, size);
+        }
+        return array;
+    }
+}
\ No newline at end of file
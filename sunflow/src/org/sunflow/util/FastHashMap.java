@@ -79,6 +79,15 @@ public class FastHashMap<K, V> implements Iterable<FastHashMap.Entry<K, V>> {
         return null;
     }
 
+    /**
+     * Get the number of entries in the map.
+     * 
+     * @return number of keys mapped to a value
+     */
+    public int size() {
+        return size;
+    }
+
     public V get(K k) {
         int hash = k.hashCode(), t = 0;
         for (;;) {
@@ -0,0 +1,50 @@
+package org.sunflow;
+
+import org.sunflow.core.InstanceTest;
+import org.sunflow.core.LightSelectorTest;
+import org.sunflow.core.RayDifferentialsTest;
+import org.sunflow.core.ShadingStateReuseTest;
+import org.sunflow.core.display.OpenExrDisplayTest;
+import org.sunflow.core.sequence.SampleSequenceTest;
+import org.sunflow.math.AliasTable2DTest;
+import org.sunflow.math.Matrix4Test;
+import org.sunflow.system.BinaryCacheTest;
+import org.sunflow.system.ObjReaderTest;
+import org.sunflow.system.UI;
+
+/**
+ * Runs all self-checking tests and exits with a non-zero status if any of
+ * them failed.
+ */
+public class AllTests {
+    public static void main(String[] args) {
+        // only report problems from the renderer itself
+        UI.verbosity(1);
+        UnitTest[] tests = { new LightSelectorTest(), new AliasTable2DTest(),
+                new SampleSequenceTest(), new Matrix4Test(),
+                new BinaryCacheTest(), new ObjReaderTest(),
+                new OpenExrDisplayTest(), new InstanceTest(),
+                new RayDifferentialsTest(), new ShadingStateReuseTest() };
+        int failed = 0;
+        for (UnitTest test : tests) {
+            System.out.format("%s%n", test.getName());
+            boolean ok;
+            try {
+                test.run();
+                ok = test.getFailures() == 0;
+                System.out.format("  %d checks, %d failed%n", test.getChecks(), test.getFailures());
+            } catch (Throwable t) {
+                ok = false;
+                System.out.format("  ERROR: %s%n", t);
+                t.printStackTrace(System.out);
+            }
+            if (!ok)
+                failed++;
+        }
+        if (failed > 0) {
+            System.out.format("%d of %d tests failed%n", failed, tests.length);
+            System.exit(1);
+        }
+        System.out.format("All %d tests passed%n", tests.length);
+    }
+}
@@ -0,0 +1,68 @@
+package org.sunflow;
+
+/**
+ * Base class of the self-checking tests run by {@link AllTests}. A test
+ * performs any number of checks, failed checks are reported and counted but
+ * do not stop the test.
+ */
+public abstract class UnitTest {
+    private int checks;
+    private int failures;
+
+    /**
+     * Run all checks of this test.
+     * 
+     * @throws Exception if the test could not complete
+     */
+    public abstract void run() throws Exception;
+
+    /**
+     * Get the name under which the test is reported.
+     * 
+     * @return test name
+     */
+    public String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * Record a check, reporting the formatted message if it failed.
+     * 
+     * @param condition result of the check
+     * @param format message format
+     * @param args message arguments
+     * @return value of <code>condition</code>
+     */
+    protected final boolean check(boolean condition, String format, Object... args) {
+        checks++;
+        if (!condition) {
+            failures++;
+            System.out.format("  FAILED: %s%n", String.format(format, args));
+        }
+        return condition;
+    }
+
+    /**
+     * Check that a value is within a tolerance of its expected value.
+     * 
+     * @param expected expected value
+     * @param actual computed value
+     * @param tolerance largest allowed absolute difference
+     * @param format message format
+     * @param args message arguments
+     * @return <code>true</code> if the check passed
+     */
+    protected final boolean checkEquals(double expected, double actual, double tolerance, String format, Object... args) {
+        if (Math.abs(expected - actual) <= tolerance)
+            return check(true, format, args);
+        return check(false, "%s (expected %s, got %s)", String.format(format, args), expected, actual);
+    }
+
+    final int getChecks() {
+        return checks;
+    }
+
+    final int getFailures() {
+        return failures;
+    }
+}
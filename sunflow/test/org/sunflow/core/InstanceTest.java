@@ -0,0 +1,95 @@
+package org.sunflow.core;
+
+import java.util.Random;
+
+import org.sunflow.SunflowAPI;
+import org.sunflow.UnitTest;
+import org.sunflow.core.ParameterList.InterpolationType;
+import org.sunflow.core.primitive.Sphere;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.Point3;
+
+/**
+ * Checks the blended transforms and swept bounds of motion blurred
+ * {@link Instance}s.
+ */
+public class InstanceTest extends UnitTest {
+    public void run() {
+        SunflowAPI api = new SunflowAPI();
+        api.geometry("sphere", new Sphere());
+        Matrix4[] steps = { Matrix4.translation(-3, 0, 1),
+                Matrix4.translation(2, 1, 0).multiply(Matrix4.rotateZ(1.2f)).multiply(Matrix4.scale(2, 0.5f, 1)),
+                Matrix4.translation(0, 4, -2).multiply(Matrix4.rotate(1, 1, 0, 2.5f)),
+                Matrix4.scale(0.25f) };
+        Random random = new Random(99);
+        for (int n = 2; n <= steps.length; n++) {
+            ParameterList pl = new ParameterList();
+            pl.addString("geometry", "sphere");
+            pl.addInteger("transform.steps", n);
+            for (int i = 0; i < n; i++)
+                pl.addMatrices(String.format("transform[%d]", i), InterpolationType.NONE, steps[i].asRowMajor());
+            Instance instance = new Instance();
+            if (!check(instance.update(pl, api), "%d steps: instance update", n))
+                continue;
+            instance.updateBounds();
+            check(instance.isMoving(), "%d steps: instance is moving", n);
+            BoundingBox bounds = instance.getBounds();
+            if (!check(bounds != null, "%d steps: instance has bounds", n))
+                continue;
+            // grow by a small relative epsilon for round-off in the transforms
+            BoundingBox grown = new BoundingBox(bounds);
+            float eps = 1e-5f * (1 + bounds.getExtents().length());
+            grown.include(new Point3(bounds.getMinimum().x - eps, bounds.getMinimum().y - eps, bounds.getMinimum().z - eps));
+            grown.include(new Point3(bounds.getMaximum().x + eps, bounds.getMaximum().y + eps, bounds.getMaximum().z + eps));
+            boolean inside = true;
+            boolean inverse = true;
+            for (int k = 0; k < 2000; k++) {
+                float t = k < 2 ? k * 0.99999f : random.nextFloat();
+                Matrix4 o2w = instance.getObjectToWorld(t);
+                Matrix4 w2o = instance.getWorldToObject(t);
+                // a random point on the unit sphere
+                double z = 2 * random.nextDouble() - 1;
+                double phi = 2 * Math.PI * random.nextDouble();
+                double r = Math.sqrt(1 - z * z);
+                Point3 p = new Point3((float) (r * Math.cos(phi)), (float) (r * Math.sin(phi)), (float) z);
+                Point3 w = o2w.transformP(p);
+                inside &= grown.contains(w);
+                Point3 back = w2o.transformP(w);
+                inverse &= p.distanceTo(back) < 1e-4f;
+            }
+            // the transforms cached by an intersection state follow its time
+            IntersectionState state = new IntersectionState();
+            Matrix4 o2w = new Matrix4();
+            Matrix4 w2o = new Matrix4();
+            boolean cached = true;
+            for (int k = 0; k < 20; k++) {
+                state.time = k % 3 == 0 ? 0.5f : random.nextFloat();
+                instance.getTransforms(state, o2w, w2o);
+                cached &= same(o2w, instance.getObjectToWorld(state.time)) && same(w2o, instance.getWorldToObject(state.time));
+            }
+            check(cached, "%d steps: transforms cached per intersection state", n);
+            boolean ends = same(instance.getObjectToWorld(0), steps[0]);
+            check(inside, "%d steps: sphere stays inside the swept bounds", n);
+            check(inverse, "%d steps: world to object is the inverse of object to world", n);
+            check(ends, "%d steps: first step at time 0", n);
+        }
+
+        // a static instance is not moving
+        ParameterList pl = new ParameterList();
+        pl.addString("geometry", "sphere");
+        pl.addMatrices("transform", InterpolationType.NONE, steps[1].asRowMajor());
+        Instance instance = new Instance();
+        check(instance.update(pl, api), "static instance update");
+        check(!instance.isMoving() && instance.getObjectToWorld(0.5f) == instance.getObjectToWorld(0), "static instance is not moving");
+    }
+
+    private static boolean same(Matrix4 a, Matrix4 b) {
+        float[] ma = a.asRowMajor();
+        float[] mb = b.asRowMajor();
+        for (int i = 0; i < ma.length; i++)
+            if (Math.abs(ma[i] - mb[i]) > 1e-6f)
+                return false;
+        return true;
+    }
+}
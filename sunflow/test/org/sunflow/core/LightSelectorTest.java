@@ -0,0 +1,100 @@
+package org.sunflow.core;
+
+import org.sunflow.SunflowAPI;
+import org.sunflow.UnitTest;
+import org.sunflow.image.Color;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+
+/**
+ * Checks that {@link LightSelector} picks lights in proportion to their power
+ * and never picks lights without power.
+ */
+public class LightSelectorTest extends UnitTest {
+    public void run() {
+        float[] powers = { 1, 0, 5, 0.25f, 12, 0, 3, 3, 0.001f, 7 };
+        LightSelector selector = new LightSelector(createLights(powers));
+        float total = 0;
+        for (float p : powers)
+            total += p;
+        checkEquals(total, selector.getTotalPower(), 1e-4, "total power");
+
+        // probabilities
+        double sum = 0;
+        int selectable = 0;
+        for (int i = 0; i < powers.length; i++) {
+            sum += selector.getProbability(i);
+            checkEquals(powers[i] / total, selector.getProbability(i), 1e-6, "probability of light %d", i);
+            if (powers[i] > 0)
+                selectable++;
+        }
+        checkEquals(1, sum, 1e-5, "probabilities sum to one");
+        check(selector.getNumSelectable() == selectable, "number of selectable lights");
+        int[] always = selector.getUnselectable();
+        check(always.length == powers.length - selectable, "number of unselectable lights");
+        for (int i : always)
+            check(powers[i] == 0, "light %d without power is unselectable", i);
+
+        // stratified samples should reproduce the probabilities closely
+        int n = 1 << 20;
+        int[] counts = new int[powers.length];
+        for (int i = 0; i < n; i++)
+            counts[selector.sample((i + 0.5) / n)]++;
+        for (int i = 0; i < powers.length; i++) {
+            if (powers[i] == 0)
+                check(counts[i] == 0, "light %d without power was sampled %d times", i, counts[i]);
+            else
+                checkEquals(selector.getProbability(i), (double) counts[i] / n, 1e-4, "sampling frequency of light %d", i);
+        }
+
+        // binary search over the cumulative power
+        for (int i = 0; i < powers.length; i++) {
+            float start = selector.getCumulativeStart(i);
+            float end = selector.getCumulativeEnd(i);
+            checkEquals(powers[i], end - start, 1e-4, "cumulative interval of light %d", i);
+            if (end > start)
+                check(selector.search(0.5 * (start + end)) == i, "search inside the interval of light %d", i);
+        }
+        check(selector.search(total) == -1, "search past the end");
+        check(new LightSelector(new LightSource[0]).search(0) == -1, "search in an empty table");
+
+        // a single light or only unpowered lights
+        LightSelector single = new LightSelector(createLights(new float[] { 0, 2 }));
+        check(single.sample(0) == 1 && single.sample(0.999) == 1, "single selectable light");
+        LightSelector none = new LightSelector(createLights(new float[] { 0, 0 }));
+        check(none.getNumSelectable() == 0 && none.getUnselectable().length == 2, "no selectable lights");
+    }
+
+    private static LightSource[] createLights(float[] powers) {
+        LightSource[] lights = new LightSource[powers.length];
+        for (int i = 0; i < powers.length; i++)
+            lights[i] = new ConstantPowerLight(powers[i]);
+        return lights;
+    }
+
+    private static class ConstantPowerLight implements LightSource {
+        private final float power;
+
+        ConstantPowerLight(float power) {
+            this.power = power;
+        }
+
+        public int getNumSamples() {
+            return 1;
+        }
+
+        public void getSamples(ShadingState state) {
+        }
+
+        public void getPhoton(double randX1, double randY1, double randX2, double randY2, Point3 p, Vector3 dir, Color power) {
+        }
+
+        public float getPower() {
+            return power;
+        }
+
+        public boolean update(ParameterList pl, SunflowAPI api) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.sunflow.core;
+
+import java.util.Random;
+
+import org.sunflow.UnitTest;
+import org.sunflow.math.Vector3;
+
+/**
+ * Checks the derivatives of specularly reflected and refracted directions
+ * used by the ray differentials of {@link ShadingState} against central finite
+ * differences, on flat, convex and concave surfaces.
+ */
+public class RayDifferentialsTest extends UnitTest {
+    private static final double H = 1e-4;
+
+    public void run() {
+        Random random = new Random(7);
+        double[] etas = { 1 / 1.5, 1.5, 1 / 1.33, 1.1 };
+        float[] curvatures = { 0, 0.7f, -0.4f };
+        int refractions = 0, reflections = 0;
+        for (int i = 0; i < 400; i++) {
+            double[] n = unit(gaussian(random));
+            double[] d = unit(gaussian(random));
+            if (dot(d, n) > 0)
+                d = scale(d, -1);
+            double[] dP = tangent(gaussian(random), n);
+            double[] dD = tangent(gaussian(random), d);
+            double eta = etas[i % etas.length];
+            float k = curvatures[(i / etas.length) % curvatures.length];
+            // stay away from grazing angles and total internal reflection
+            // where the derivatives blow up
+            if (-dot(d, n) < 0.1)
+                continue;
+            double[] t = refract(d, n, eta);
+            if (t == null || -dot(t, n) < 0.1)
+                continue;
+            Ray in = ray(d);
+            Vector3 normal = vector(n);
+            Vector3 fdP = vector(dP);
+            Vector3 fdD = vector(dD);
+            Vector3 result = new Vector3();
+            // the normal of a surface of curvature k turns by k dP along dP
+            if (check(ShadingState.refract(in, ray(t), normal, k, fdP, fdD, result), "refraction %d: derivative computed", i)) {
+                double[] tp = refract(unit(add(d, scale(dD, H))), unit(add(n, scale(dP, H * k))), eta);
+                double[] tm = refract(unit(add(d, scale(dD, -H))), unit(add(n, scale(dP, -H * k))), eta);
+                checkDerivative(scale(add(tp, scale(tm, -1)), 0.5 / H), result, "refraction %d (eta %.3f, k %.1f)", i, eta, k);
+                refractions++;
+            }
+            ShadingState.reflect(in, normal, in.dot(normal), k, fdP, fdD, result);
+            double[] rp = reflect(unit(add(d, scale(dD, H))), unit(add(n, scale(dP, H * k))));
+            double[] rm = reflect(unit(add(d, scale(dD, -H))), unit(add(n, scale(dP, -H * k))));
+            checkDerivative(scale(add(rp, scale(rm, -1)), 0.5 / H), result, "reflection %d (k %.1f)", i, k);
+            reflections++;
+        }
+        check(refractions > 100 && reflections > 100, "enough configurations tested (%d refractions, %d reflections)", refractions, reflections);
+        // at normal incidence the ratio of indices cannot be recovered and
+        // falls back to 1, the derivative must stay finite and tangent
+        double[] n = { 0, 0, 1 };
+        double[] d = { 0, 0, -1 };
+        Vector3 result = new Vector3();
+        check(ShadingState.refract(ray(d), ray(d), vector(n), 0, new Vector3(1, 0, 0), new Vector3(0, 1, 0), result) && result.z == 0 && result.x == 0, "normal incidence: derivative stays tangent");
+    }
+
+    private void checkDerivative(double[] expected, Vector3 actual, String format, Object... args) {
+        double error = Math.max(Math.abs(expected[0] - actual.x), Math.max(Math.abs(expected[1] - actual.y), Math.abs(expected[2] - actual.z)));
+        double size = Math.sqrt(dot(expected, expected));
+        check(error <= 1e-3 * (1 + size), "%s: finite difference (%.5f, %.5f, %.5f), derivative %s", String.format(format, args), expected[0], expected[1], expected[2], actual);
+    }
+
+    private static double[] refract(double[] d, double[] n, double eta) {
+        double c = -dot(d, n);
+        double s = 1 - eta * eta * (1 - c * c);
+        if (s < 0)
+            return null;
+        return add(scale(d, eta), scale(n, eta * c - Math.sqrt(s)));
+    }
+
+    private static double[] reflect(double[] d, double[] n) {
+        return add(d, scale(n, -2 * dot(d, n)));
+    }
+
+    private static double[] gaussian(Random random) {
+        return new double[] { random.nextGaussian(), random.nextGaussian(),
+                random.nextGaussian() };
+    }
+
+    private static double[] tangent(double[] v, double[] n) {
+        return add(v, scale(n, -dot(v, n)));
+    }
+
+    private static double[] unit(double[] v) {
+        return scale(v, 1 / Math.sqrt(dot(v, v)));
+    }
+
+    private static double[] add(double[] a, double[] b) {
+        return new double[] { a[0] + b[0], a[1] + b[1], a[2] + b[2] };
+    }
+
+    private static double[] scale(double[] v, double s) {
+        return new double[] { v[0] * s, v[1] * s, v[2] * s };
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static Ray ray(double[] d) {
+        return new Ray(0, 0, 0, (float) d[0], (float) d[1], (float) d[2]);
+    }
+
+    private static Vector3 vector(double[] v) {
+        return new Vector3((float) v[0], (float) v[1], (float) v[2]);
+    }
+}
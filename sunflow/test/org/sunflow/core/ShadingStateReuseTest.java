@@ -0,0 +1,100 @@
+package org.sunflow.core;
+
+import org.sunflow.SunflowAPI;
+import org.sunflow.UnitTest;
+import org.sunflow.core.camera.PinholeLens;
+import org.sunflow.core.primitive.Plane;
+import org.sunflow.core.primitive.Sphere;
+import org.sunflow.image.Color;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+
+/**
+ * Checks that shaders cannot observe the recycling of shading states: a final
+ * gather state stays unchanged while more rays are traced from the state which
+ * returned it.
+ */
+public class ShadingStateReuseTest extends UnitTest {
+    private int shaded;
+    private int failures;
+
+    public void run() {
+        SunflowAPI api = new SunflowAPI();
+        api.parameter("resolutionX", 4);
+        api.parameter("resolutionY", 4);
+        api.parameter("aa.min", 0);
+        api.parameter("aa.max", 0);
+        api.parameter("threads", 1);
+        api.options(SunflowAPI.DEFAULT_OPTIONS);
+        api.parameter("eye", new Point3(0, 1, 5));
+        api.parameter("target", new Point3(0, 1, 0));
+        api.parameter("up", new Vector3(0, 1, 0));
+        api.parameter("fov", 10.0f);
+        api.camera("camera", new PinholeLens());
+        api.parameter("camera", "camera");
+        api.options(SunflowAPI.DEFAULT_OPTIONS);
+        api.shader("gather", new GatherShader());
+        api.geometry("sphere", new Sphere());
+        api.parameter("shaders", new String[] { "gather" });
+        api.parameter("transform", Matrix4.translation(0, 1, 0));
+        api.instance("sphere.instance", "sphere");
+        api.parameter("center", new Point3(0, 0, 0));
+        api.parameter("normal", new Vector3(0, 1, 0));
+        api.geometry("plane", new Plane());
+        api.parameter("shaders", new String[] { "gather" });
+        api.instance("plane.instance", "plane");
+        api.render(SunflowAPI.DEFAULT_OPTIONS, new NullDisplay());
+        check(shaded > 0, "final gather rays traced (%d shading points)", shaded);
+        check(failures == 0, "%d of %d final gather states changed while held", failures, shaded);
+    }
+
+    /**
+     * Traces two final gather rays and a reflection ray towards the plane
+     * while holding on to the first final gather state.
+     */
+    private class GatherShader implements Shader {
+        public boolean update(ParameterList pl, SunflowAPI api) {
+            return true;
+        }
+
+        public Color getRadiance(ShadingState state) {
+            if (state.getDiffuseDepth() > 0 || state.getReflectionDepth() > 0 || state.getPoint().y < 0.5f)
+                return Color.BLACK;
+            Point3 p = state.getPoint();
+            ShadingState first = state.traceFinalGather(new Ray(p, new Vector3(0.3f, -1, 0.2f)), 0);
+            if (first == null)
+                return Color.BLACK;
+            first.getInstance().prepareShadingState(first);
+            Point3 expected = new Point3(first.getPoint());
+            ShadingState second = state.traceFinalGather(new Ray(p, new Vector3(-0.4f, -1, -0.1f)), 1);
+            if (second != null)
+                second.getInstance().prepareShadingState(second);
+            state.traceReflection(new Ray(p, new Vector3(0, -1, 0.3f)), 0);
+            shaded++;
+            if (second == first || first.getPoint().distanceTo(expected) != 0 || first.getDiffuseDepth() != 1)
+                failures++;
+            return Color.WHITE;
+        }
+
+        public void scatterPhoton(ShadingState state, Color power) {
+        }
+    }
+
+    private static class NullDisplay implements Display {
+        public void imageBegin(int w, int h, int bucketSize) {
+        }
+
+        public void imagePrepare(int x, int y, int w, int h, int id) {
+        }
+
+        public void imageUpdate(int x, int y, int w, int h, Color[] data) {
+        }
+
+        public void imageFill(int x, int y, int w, int h, Color c) {
+        }
+
+        public void imageEnd() {
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package org.sunflow.core.display;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal reader for single level tiled OpenEXR files with half or float
+ * channels, written from the file format specification independently of
+ * {@link OpenExrDisplay} so the two can be checked against each other.
+ * Supports no, RLE, ZIPS, ZIP and PIZ compression.
+ */
+class ExrReader {
+    private static final int NO_COMPRESSION = 0;
+    private static final int RLE_COMPRESSION = 1;
+    private static final int ZIPS_COMPRESSION = 2;
+    private static final int ZIP_COMPRESSION = 3;
+    private static final int PIZ_COMPRESSION = 4;
+
+    private final byte[] file;
+    private int pos;
+
+    private String[] channelNames;
+    private int[] channelTypes;
+    private int compression;
+    private int width, height;
+    private int tileWidth, tileHeight;
+    private float[][] pixels;
+
+    /**
+     * Read the specified file completely.
+     * 
+     * @param filename file to read
+     * @throws IOException if the file could not be read or is not supported
+     */
+    ExrReader(String filename) throws IOException {
+        File f = new File(filename);
+        file = new byte[(int) f.length()];
+        FileInputStream stream = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < file.length) {
+                int r = stream.read(file, n, file.length - n);
+                if (r < 0)
+                    throw new IOException("unexpected end of file");
+                n += r;
+            }
+        } finally {
+            stream.close();
+        }
+        readHeader();
+        readTiles();
+    }
+
+    int getCompression() {
+        return compression;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    String[] getChannelNames() {
+        return channelNames;
+    }
+
+    int[] getChannelTypes() {
+        return channelTypes;
+    }
+
+    /**
+     * Get the value of a channel at the specified pixel.
+     * 
+     * @param c channel index
+     * @param x pixel column
+     * @param y pixel row
+     * @return channel value
+     */
+    float get(int c, int x, int y) {
+        return pixels[c][x + y * width];
+    }
+
+    private void readHeader() throws IOException {
+        if (readInt() != 20000630)
+            throw new IOException("bad magic number");
+        int version = readInt();
+        if ((version & 0xFF) != 2 || (version & 0x200) == 0)
+            throw new IOException("only tiled version 2 files are supported");
+        boolean hasTiles = false;
+        boolean hasWindow = false;
+        while (true) {
+            String name = readString();
+            if (name.length() == 0)
+                break;
+            String type = readString();
+            int size = readInt();
+            int end = pos + size;
+            if (name.equals("channels") && type.equals("chlist")) {
+                ArrayList<String> names = new ArrayList<String>();
+                ArrayList<Integer> types = new ArrayList<Integer>();
+                while (true) {
+                    String c = readString();
+                    if (c.length() == 0)
+                        break;
+                    types.add(readInt());
+                    pos += 4; // pLinear and reserved
+                    if (readInt() != 1 || readInt() != 1)
+                        throw new IOException("subsampled channels are not supported");
+                    names.add(c);
+                }
+                // pixel data is stored in alphabetical channel order,
+                // whatever the order of the list
+                channelNames = names.toArray(new String[names.size()]);
+                Arrays.sort(channelNames);
+                channelTypes = new int[types.size()];
+                for (int i = 0; i < channelTypes.length; i++) {
+                    channelTypes[i] = types.get(names.indexOf(channelNames[i]));
+                    if (channelTypes[i] != 1 && channelTypes[i] != 2)
+                        throw new IOException("only half and float channels are supported");
+                }
+            } else if (name.equals("compression")) {
+                compression = file[pos] & 0xFF;
+            } else if (name.equals("dataWindow")) {
+                int x0 = readInt();
+                int y0 = readInt();
+                int x1 = readInt();
+                int y1 = readInt();
+                if (x0 != 0 || y0 != 0)
+                    throw new IOException("data window must start at the origin");
+                width = x1 + 1;
+                height = y1 + 1;
+                hasWindow = true;
+            } else if (name.equals("tiles")) {
+                tileWidth = readInt();
+                tileHeight = readInt();
+                if ((file[pos] & 0xF) != 0)
+                    throw new IOException("only single level files are supported");
+                hasTiles = true;
+            }
+            if (pos > end)
+                throw new IOException("attribute " + name + " is too short");
+            pos = end;
+        }
+        if (channelNames == null || !hasTiles || !hasWindow)
+            throw new IOException("missing required attributes");
+    }
+
+    private void readTiles() throws IOException {
+        int tilesX = (width + tileWidth - 1) / tileWidth;
+        int tilesY = (height + tileHeight - 1) / tileHeight;
+        long[] offsets = new long[tilesX * tilesY];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = readLong();
+        pixels = new float[channelNames.length][width * height];
+        int pixelSize = 0;
+        for (int t : channelTypes)
+            pixelSize += t == 1 ? 2 : 4;
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] <= 0 || offsets[i] >= file.length)
+                throw new IOException("tile " + i + " is missing");
+            pos = (int) offsets[i];
+            int tx = readInt();
+            int ty = readInt();
+            if (readInt() != 0 || readInt() != 0)
+                throw new IOException("unexpected tile level");
+            if (tx + ty * tilesX != i)
+                throw new IOException("tile " + i + " has coordinates " + tx + "," + ty);
+            int size = readInt();
+            int x0 = tx * tileWidth;
+            int y0 = ty * tileHeight;
+            int nx = Math.min(tileWidth, width - x0);
+            int ny = Math.min(tileHeight, height - y0);
+            int rawSize = nx * ny * pixelSize;
+            byte[] raw;
+            if (size == rawSize) {
+                raw = new byte[size];
+                System.arraycopy(file, pos, raw, 0, size);
+            } else {
+                switch (compression) {
+                    case RLE_COMPRESSION:
+                        raw = reorder(rleUncompress(pos, size, rawSize));
+                        break;
+                    case ZIPS_COMPRESSION:
+                    case ZIP_COMPRESSION:
+                        raw = reorder(zipUncompress(pos, size, rawSize));
+                        break;
+                    case PIZ_COMPRESSION:
+                        raw = pizUncompress(pos, size, nx, ny);
+                        break;
+                    case NO_COMPRESSION:
+                    default:
+                        throw new IOException("tile " + i + " has the wrong size");
+                }
+            }
+            // one scanline of each channel after the other
+            int p = 0;
+            for (int y = 0; y < ny; y++) {
+                for (int c = 0; c < channelNames.length; c++) {
+                    for (int x = 0; x < nx; x++) {
+                        float v;
+                        if (channelTypes[c] == 1) {
+                            v = halfToFloat((raw[p] & 0xFF) | ((raw[p + 1] & 0xFF) << 8));
+                            p += 2;
+                        } else {
+                            v = Float.intBitsToFloat(getInt(raw, p));
+                            p += 4;
+                        }
+                        pixels[c][x0 + x + (y0 + y) * width] = v;
+                    }
+                }
+            }
+        }
+    }
+
+    private byte[] rleUncompress(int start, int size, int rawSize) throws IOException {
+        byte[] out = new byte[rawSize];
+        int o = 0;
+        for (int p = start, end = start + size; p < end;) {
+            int count = file[p++];
+            if (count < 0) {
+                for (; count < 0; count++)
+                    out[o++] = file[p++];
+            } else {
+                byte b = file[p++];
+                for (; count >= 0; count--)
+                    out[o++] = b;
+            }
+        }
+        if (o != rawSize)
+            throw new IOException("bad rle data");
+        return out;
+    }
+
+    private byte[] zipUncompress(int start, int size, int rawSize) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(file, start, size);
+            byte[] out = new byte[rawSize];
+            int n = inflater.inflate(out);
+            if (n != rawSize || !inflater.finished())
+                throw new IOException("bad zip data");
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("bad zip data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Undo the predictor and interleave the two halves of the data, as done by
+     * the RLE and ZIP codecs.
+     */
+    private static byte[] reorder(byte[] data) {
+        for (int i = 1; i < data.length; i++)
+            data[i] = (byte) (data[i - 1] + data[i] - 128);
+        byte[] out = new byte[data.length];
+        int half = (data.length + 1) / 2;
+        for (int i = 0; i < data.length; i++)
+            out[i] = (i & 1) == 0 ? data[i / 2] : data[half + i / 2];
+        return out;
+    }
+
+    private byte[] pizUncompress(int start, int size, int nx, int ny) throws IOException {
+        pos = start;
+        int minNonZero = readShort();
+        int maxNonZero = readShort();
+        byte[] bitmap = new byte[8192];
+        if (minNonZero <= maxNonZero) {
+            System.arraycopy(file, pos, bitmap, minNonZero, maxNonZero - minNonZero + 1);
+            pos += maxNonZero - minNonZero + 1;
+        }
+        int[] lut = new int[1 << 16];
+        int k = 0;
+        for (int i = 0; i < lut.length; i++)
+            if (i == 0 || (bitmap[i >> 3] & (1 << (i & 7))) != 0)
+                lut[k++] = i;
+        int maxValue = k - 1;
+        int length = readInt();
+        int[] words = new int[channelWords(nx) * ny];
+        hufUncompress(pos, length, words);
+        if (pos - start != size)
+            throw new IOException("bad piz block size");
+        // wavelet decode each word of each channel
+        int offset = 0;
+        for (int c = 0; c < channelTypes.length; c++) {
+            int n = channelTypes[c] == 1 ? 1 : 2;
+            for (int j = 0; j < n; j++)
+                wav2Decode(words, offset + j, nx, n, ny, nx * n, maxValue);
+            offset += nx * n * ny;
+        }
+        for (int i = 0; i < words.length; i++)
+            words[i] = lut[words[i]];
+        // gather the channel blocks back into scanlines
+        byte[] out = new byte[2 * words.length];
+        int p = 0;
+        for (int y = 0; y < ny; y++) {
+            offset = 0;
+            for (int c = 0; c < channelTypes.length; c++) {
+                int lineWords = nx * (channelTypes[c] == 1 ? 1 : 2);
+                for (int i = offset + y * lineWords, e = i + lineWords; i < e; i++) {
+                    out[p++] = (byte) words[i];
+                    out[p++] = (byte) (words[i] >> 8);
+                }
+                offset += lineWords * ny;
+            }
+        }
+        return out;
+    }
+
+    private int channelWords(int nx) {
+        int n = 0;
+        for (int t : channelTypes)
+            n += nx * (t == 1 ? 1 : 2);
+        return n;
+    }
+
+    private void hufUncompress(int start, int size, int[] out) throws IOException {
+        pos = start;
+        int im = readInt();
+        int iM = readInt();
+        int tableLength = readInt();
+        int nBits = readInt();
+        pos += 4;
+        if (im < 0 || iM >= (1 << 16) + 1 || im > iM)
+            throw new IOException("bad huffman table range");
+        // code lengths
+        int[] lengths = new int[(1 << 16) + 1];
+        BitReader table = new BitReader(pos);
+        for (int i = im; i <= iM; i++) {
+            int l = table.read(6);
+            if (l == 63) {
+                int zerun = table.read(8) + 6;
+                i += zerun - 1;
+            } else if (l >= 59) {
+                i += l - 59 + 2 - 1;
+            } else
+                lengths[i] = l;
+        }
+        if (table.bytesUsed() > tableLength)
+            throw new IOException("bad huffman table length");
+        // canonical codes
+        long[] n = new long[59];
+        for (int l : lengths)
+            n[l]++;
+        long c = 0;
+        for (int i = 58; i > 0; i--) {
+            long nc = (c + n[i]) >> 1;
+            n[i] = c;
+            c = nc;
+        }
+        HashMap<Long, Integer> codes = new HashMap<Long, Integer>();
+        for (int i = 0; i < lengths.length; i++)
+            if (lengths[i] > 0)
+                codes.put(((long) lengths[i] << 58) | n[lengths[i]]++, i);
+        // data
+        BitReader data = new BitReader(start + 20 + tableLength);
+        int o = 0;
+        long code = 0;
+        int codeLength = 0;
+        for (int b = 0; b < nBits; b++) {
+            code = (code << 1) | data.read(1);
+            codeLength++;
+            Integer symbol = codes.get(((long) codeLength << 58) | code);
+            if (symbol == null)
+                continue;
+            if (symbol == iM) {
+                int run = data.read(8);
+                b += 8;
+                if (o == 0 || o + run > out.length)
+                    throw new IOException("bad huffman run");
+                for (; run > 0; run--, o++)
+                    out[o] = out[o - 1];
+            } else {
+                if (o >= out.length)
+                    throw new IOException("too much huffman data");
+                out[o++] = symbol;
+            }
+            code = 0;
+            codeLength = 0;
+        }
+        if (o != out.length || codeLength != 0)
+            throw new IOException("bad huffman data");
+        pos = start + size;
+    }
+
+    private static void wav2Decode(int[] in, int start, int nx, int ox, int ny, int oy, int mx) {
+        boolean w14 = mx < (1 << 14);
+        int n = Math.min(nx, ny);
+        int p = 1;
+        while (p <= n)
+            p <<= 1;
+        p >>= 1;
+        int p2 = p;
+        p >>= 1;
+        int[] t = new int[2];
+        while (p >= 1) {
+            int py = start;
+            int ey = start + oy * (ny - p2);
+            int oy1 = oy * p;
+            int oy2 = oy * p2;
+            int ox1 = ox * p;
+            int ox2 = ox * p2;
+            for (; py <= ey; py += oy2) {
+                int px = py;
+                int ex = py + ox * (nx - p2);
+                for (; px <= ex; px += ox2) {
+                    int p01 = px + ox1;
+                    int p10 = px + oy1;
+                    int p11 = p10 + ox1;
+                    wdec(in[px], in[p10], w14, t);
+                    int i00 = t[0];
+                    int i10 = t[1];
+                    wdec(in[p01], in[p11], w14, t);
+                    int i01 = t[0];
+                    int i11 = t[1];
+                    wdec(i00, i01, w14, t);
+                    in[px] = t[0];
+                    in[p01] = t[1];
+                    wdec(i10, i11, w14, t);
+                    in[p10] = t[0];
+                    in[p11] = t[1];
+                }
+                if ((nx & p) != 0) {
+                    int p10 = px + oy1;
+                    wdec(in[px], in[p10], w14, t);
+                    in[px] = t[0];
+                    in[p10] = t[1];
+                }
+            }
+            if ((ny & p) != 0) {
+                int ex = py + ox * (nx - p2);
+                for (int px = py; px <= ex; px += ox2) {
+                    int p01 = px + ox1;
+                    wdec(in[px], in[p01], w14, t);
+                    in[px] = t[0];
+                    in[p01] = t[1];
+                }
+            }
+            p2 = p;
+            p >>= 1;
+        }
+    }
+
+    private static void wdec(int l, int h, boolean w14, int[] ab) {
+        if (w14) {
+            int hi = (short) h;
+            int ai = (short) l + (hi & 1) + (hi >> 1);
+            ab[0] = ai & 0xFFFF;
+            ab[1] = (ai - hi) & 0xFFFF;
+        } else {
+            int bb = (l - (h >> 1)) & 0xFFFF;
+            ab[0] = (h + bb - (1 << 15)) & 0xFFFF;
+            ab[1] = bb;
+        }
+    }
+
+    static float halfToFloat(int h) {
+        int e = (h >> 10) & 31;
+        int m = h & 1023;
+        double v;
+        if (e == 0)
+            v = m * Math.pow(2, -24);
+        else if (e == 31)
+            v = m == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        else
+            v = (1 + m / 1024.0) * Math.pow(2, e - 15);
+        return (float) ((h & 0x8000) != 0 ? -v : v);
+    }
+
+    private String readString() {
+        int start = pos;
+        while (file[pos] != 0)
+            pos++;
+        return new String(file, start, pos++ - start);
+    }
+
+    private int readShort() {
+        int v = (file[pos] & 0xFF) | ((file[pos + 1] & 0xFF) << 8);
+        pos += 2;
+        return v;
+    }
+
+    private int readInt() {
+        int v = getInt(file, pos);
+        pos += 4;
+        return v;
+    }
+
+    private long readLong() {
+        long lo = readInt() & 0xFFFFFFFFL;
+        long hi = readInt() & 0xFFFFFFFFL;
+        return lo | (hi << 32);
+    }
+
+    private static int getInt(byte[] b, int p) {
+        return (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | ((b[p + 2] & 0xFF) << 16) | ((b[p + 3] & 0xFF) << 24);
+    }
+
+    private class BitReader {
+        private final int start;
+        private int p;
+        private long c;
+        private int lc;
+
+        BitReader(int start) {
+            this.start = start;
+            p = start;
+        }
+
+        int read(int n) {
+            while (lc < n) {
+                c = (c << 8) | (file[p++] & 0xFF);
+                lc += 8;
+            }
+            lc -= n;
+            return (int) ((c >> lc) & ((1L << n) - 1));
+        }
+
+        int bytesUsed() {
+            return p - start;
+        }
+    }
+}
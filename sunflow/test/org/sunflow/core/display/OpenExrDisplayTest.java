@@ -0,0 +1,116 @@
+package org.sunflow.core.display;
+
+import java.io.File;
+import java.util.Random;
+
+import org.sunflow.UnitTest;
+import org.sunflow.image.Color;
+
+/**
+ * Writes known images with every compression and channel type supported by
+ * {@link OpenExrDisplay} and decodes them with an independent reader.
+ */
+public class OpenExrDisplayTest extends UnitTest {
+    private static final String[] COMPRESSIONS = { "none", "rle", "zip",
+            "zips", "piz" };
+    private static final int[] COMPRESSION_IDS = { 0, 1, 3, 2, 4 };
+
+    public void run() throws Exception {
+        int width = 100;
+        int height = 70;
+        int bucketSize = 32;
+        for (int type = 0; type < 2; type++) {
+            boolean half = type == 0;
+            Color[] image = createImage(width, height, half);
+            for (int c = 0; c < COMPRESSIONS.length; c++) {
+                String name = String.format("%s/%s", COMPRESSIONS[c], half ? "half" : "float");
+                File file = File.createTempFile("sunflow", ".exr");
+                try {
+                    OpenExrDisplay display = new OpenExrDisplay(file.getPath(), COMPRESSIONS[c], half ? "half" : "float");
+                    display.imageBegin(width, height, bucketSize);
+                    // buckets arrive in no particular order
+                    for (int by = (height - 1) / bucketSize; by >= 0; by--) {
+                        for (int bx = 0; bx * bucketSize < width; bx++) {
+                            int x0 = bx * bucketSize;
+                            int y0 = by * bucketSize;
+                            int w = Math.min(bucketSize, width - x0);
+                            int h = Math.min(bucketSize, height - y0);
+                            Color[] bucket = new Color[w * h];
+                            for (int y = 0; y < h; y++)
+                                for (int x = 0; x < w; x++)
+                                    bucket[x + y * w] = image[x0 + x + (y0 + y) * width];
+                            display.imageUpdate(x0, y0, w, h, bucket);
+                        }
+                    }
+                    display.imageEnd();
+                    ExrReader reader = new ExrReader(file.getPath());
+                    check(reader.getCompression() == COMPRESSION_IDS[c], "%s: compression attribute", name);
+                    check(reader.getWidth() == width && reader.getHeight() == height, "%s: image size", name);
+                    String[] channels = reader.getChannelNames();
+                    check(channels.length == 3 && channels[0].equals("B") && channels[1].equals("G") && channels[2].equals("R"), "%s: channel list", name);
+                    boolean types = true;
+                    for (int t : reader.getChannelTypes())
+                        types &= t == (half ? 1 : 2);
+                    check(types, "%s: channel types", name);
+                    int errors = 0;
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            float[] rgb = image[x + y * width].getRGB();
+                            for (int k = 0; k < 3; k++)
+                                if (Float.floatToIntBits(rgb[2 - k]) != Float.floatToIntBits(reader.get(k, x, y)))
+                                    errors++;
+                        }
+                    }
+                    check(errors == 0, "%s: %d values differ", name, errors);
+                    if (c == 0)
+                        check(file.length() > 3 * width * height * (half ? 2 : 4), "%s: file holds the raw pixels", name);
+                } finally {
+                    file.delete();
+                }
+            }
+        }
+        check(ExrReader.halfToFloat(0x3C00) == 1 && ExrReader.halfToFloat(0xC000) == -2 && ExrReader.halfToFloat(0x0001) == (float) Math.pow(2, -24), "half decoding");
+    }
+
+    /**
+     * Creates an image mixing flat areas, smooth ramps, repeated patterns and
+     * noise so each codec takes all its paths. Values are exactly
+     * representable as halfs when requested.
+     */
+    private static Color[] createImage(int width, int height, boolean half) {
+        Random random = new Random(12345);
+        Color[] image = new Color[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float r, g, b;
+                if (x < 32 && y < 32) {
+                    // constant
+                    r = 0.5f;
+                    g = 0;
+                    b = 0.25f;
+                } else if (y < 32) {
+                    // ramps
+                    r = (x - 32) / 64.0f;
+                    g = -y / 16.0f;
+                    b = (x + y) / 8.0f;
+                } else if (x < 64) {
+                    // repeated pattern
+                    r = ((x * 7 + y * 13) % 97) / 64.0f;
+                    g = ((x * 3) % 5) / 4.0f;
+                    b = (x ^ y) & 1;
+                } else if (half) {
+                    // noise over many distinct half values
+                    r = (random.nextInt(4096) - 2048) / 64.0f;
+                    g = random.nextInt(2048) / 2048.0f;
+                    b = random.nextInt(2048) * 16.0f;
+                } else {
+                    r = random.nextFloat();
+                    g = (float) random.nextGaussian() * 1000;
+                    b = Float.intBitsToFloat(random.nextInt() & 0x7F7FFFFF);
+                }
+                image[x + y * width] = new Color(r, g, b);
+            }
+        }
+        return image;
+    }
+}
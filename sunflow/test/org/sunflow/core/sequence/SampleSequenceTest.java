@@ -0,0 +1,128 @@
+package org.sunflow.core.sequence;
+
+import java.util.Random;
+
+import org.sunflow.UnitTest;
+import org.sunflow.core.SampleSequence;
+import org.sunflow.math.QMC;
+
+/**
+ * Checks the table driven sample sequences against the reference radical
+ * inverse functions in {@link QMC}.
+ */
+public class SampleSequenceTest extends UnitTest {
+    private static final double TWO_POW_32 = 4294967296.0;
+
+    public void run() {
+        Random random = new Random(1234);
+        int[] indices = new int[20000];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = i < 5000 ? i : random.nextInt(Integer.MAX_VALUE);
+
+        // the first two sobol dimensions are the van der Corput and Sobol'
+        // radical inverses, shifted by the values at index 0
+        SobolSequence sobol = new SobolSequence();
+        int shift0 = toBits(sobol.get(0, 0));
+        int shift1 = toBits(sobol.get(1, 0));
+        boolean vdc = true;
+        boolean s = true;
+        for (int i : indices) {
+            vdc &= toBits(sobol.get(0, i)) == toBits(QMC.riVDC(i, shift0));
+            s &= toBits(sobol.get(1, i)) == (int) (QMC.riS(i, shift1) * TWO_POW_32);
+        }
+        check(vdc, "sobol dimension 0 matches QMC.riVDC");
+        check(s, "sobol dimension 1 matches QMC.riS");
+        checkRange(sobol, indices, "sobol");
+        checkBatches(sobol, indices, "sobol");
+
+        // halton
+        HaltonSequence halton = new HaltonSequence();
+        boolean same = true;
+        for (int i : indices)
+            for (int d = 0; d < 40; d++)
+                same &= halton.get(d, i) == QMC.halton(d, i);
+        check(same, "halton sequence matches QMC.halton");
+        checkRange(halton, indices, "halton");
+        checkBatches(halton, indices, "halton");
+
+        // the tabulated dimensions of QMC.halton must agree with the digit by
+        // digit definition: h(0) = 0, the single digit values are a
+        // permutation of the multiples of 1 / b and h(n * b + r) = h(r) + h(n)
+        // / b
+        boolean match = true;
+        for (int i : indices)
+            match &= QMC.halton(0, i) == QMC.riVDC(i, 0);
+        check(match, "halton dimension 0 is the van der Corput sequence");
+        match = true;
+        for (int i : indices) {
+            double v = 0;
+            double p = 1.0 / 3;
+            for (int n = i; n != 0; n /= 3, p /= 3)
+                v += (n % 3) * p;
+            match &= Math.abs(QMC.halton(1, i) - v) < 1e-12;
+        }
+        check(match, "halton dimension 1 is the base 3 radical inverse");
+        int[] primes = primes(40);
+        for (int d = 1; d < primes.length; d++) {
+            int b = primes[d];
+            check(QMC.halton(d, 0) == 0, "halton dimension %d starts at 0", d);
+            boolean[] digits = new boolean[b];
+            boolean permutation = true;
+            for (int r = 0; r < b; r++) {
+                double v = QMC.halton(d, r) * b;
+                int digit = (int) Math.round(v);
+                permutation &= Math.abs(v - digit) < 1e-9 && digit >= 0 && digit < b && !digits[digit];
+                if (digit >= 0 && digit < b)
+                    digits[digit] = true;
+            }
+            check(permutation, "halton dimension %d first digit is a permutation", d);
+            match = true;
+            for (int i : indices) {
+                int n = i / b;
+                int r = i % b;
+                match &= Math.abs(QMC.halton(d, i) - (QMC.halton(d, r) + QMC.halton(d, n) / b)) < 1e-12;
+            }
+            check(match, "halton dimension %d digit recurrence", d);
+        }
+    }
+
+    private void checkRange(SampleSequence sequence, int[] indices, String name) {
+        boolean inside = true;
+        for (int i : indices) {
+            for (int d = 0; d < 40; d++) {
+                double v = sequence.get(d, i);
+                inside &= v >= 0 && v < 1;
+            }
+        }
+        check(inside, "%s values lie in [0,1)", name);
+    }
+
+    private void checkBatches(SampleSequence sequence, int[] indices, String name) {
+        double[] values = new double[7];
+        boolean same = true;
+        for (int i : indices) {
+            for (int d = 0; d < 40; d += 3) {
+                sequence.get(d, i, values);
+                for (int k = 0; k < values.length; k++)
+                    same &= values[k] == sequence.get(d + k, i);
+            }
+        }
+        check(same, "%s batched values match single values", name);
+    }
+
+    private static int toBits(double v) {
+        return (int) (long) (v * TWO_POW_32);
+    }
+
+    private static int[] primes(int n) {
+        int[] primes = new int[n];
+        for (int i = 0, p = 2; i < n; p++) {
+            boolean prime = true;
+            for (int k = 0; k < i && primes[k] * primes[k] <= p; k++)
+                prime &= p % primes[k] != 0;
+            if (prime)
+                primes[i++] = p;
+        }
+        return primes;
+    }
+}
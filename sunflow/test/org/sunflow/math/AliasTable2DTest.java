@@ -0,0 +1,73 @@
+package org.sunflow.math;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.sunflow.UnitTest;
+
+/**
+ * Checks that {@link AliasTable2D} samples cells in proportion to their
+ * weights and reports matching densities.
+ */
+public class AliasTable2DTest extends UnitTest {
+    public void run() {
+        Random random = new Random(4711);
+        int width = 24;
+        int height = 13;
+        float[] weights = new float[width * height];
+        double sum = 0;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                float w = random.nextFloat();
+                // empty columns, empty rows and scattered empty cells
+                if (x == 3 || x == width - 1 || y == 5 || random.nextInt(6) == 0)
+                    w = 0;
+                else if (random.nextInt(10) == 0)
+                    w *= 50;
+                weights[x * height + y] = w;
+                sum += w;
+            }
+        }
+        float[] copy = weights.clone();
+        AliasTable2D table = new AliasTable2D(weights, width, height);
+        check(table.getWidth() == width && table.getHeight() == height, "table dimensions");
+        check(Arrays.equals(copy, weights), "weights are not modified");
+
+        // densities
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                double expected = weights[x * height + y] * width * height / sum;
+                float density = table.getDensity((x + 0.5f) / width, (y + 0.5f) / height);
+                checkEquals(expected, density, 1e-4 * Math.max(1, expected), "density of cell %d,%d", x, y);
+            }
+        }
+
+        // random samples, frequencies must match within a few standard
+        // deviations
+        int n = 1 << 22;
+        int[] counts = new int[width * height];
+        float[] uv = new float[2];
+        boolean pdfMatches = true;
+        boolean inside = true;
+        for (int i = 0; i < n; i++) {
+            float pdf = table.sample(random.nextDouble(), random.nextDouble(), uv);
+            inside &= uv[0] >= 0 && uv[0] < 1 && uv[1] >= 0 && uv[1] < 1;
+            int x = (int) (uv[0] * width);
+            int y = (int) (uv[1] * height);
+            counts[x * height + y]++;
+            pdfMatches &= Math.abs(pdf - table.getDensity(uv[0], uv[1])) <= 1e-5 * pdf;
+        }
+        check(inside, "samples lie in the unit square");
+        check(pdfMatches, "sampled density matches getDensity");
+        for (int i = 0; i < counts.length; i++) {
+            if (weights[i] == 0)
+                check(counts[i] == 0, "empty cell %d was sampled %d times", i, counts[i]);
+            else
+                checkEquals(weights[i] / sum, (double) counts[i] / n, 5 * Math.sqrt(weights[i] / sum / n), "sampling frequency of cell %d", i);
+        }
+
+        // a table without any weight falls back to uniform sampling
+        AliasTable2D empty = new AliasTable2D(new float[6], 2, 3);
+        checkEquals(1, empty.getDensity(0.2f, 0.7f), 1e-6, "density of an empty table");
+    }
+}
@@ -0,0 +1,138 @@
+package org.sunflow.math;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.sunflow.UnitTest;
+
+/**
+ * Checks the allocation free and batched transforms, inverses and blends of
+ * {@link Matrix4} against the allocating ones.
+ */
+public class Matrix4Test extends UnitTest {
+    public void run() {
+        Random random = new Random(42);
+        Matrix4[] matrices = { Matrix4.IDENTITY,
+                Matrix4.translation(1, -2, 3.5f),
+                Matrix4.rotate(1, 2, 3, 0.7f).multiply(Matrix4.scale(2, 0.5f, 3)),
+                Matrix4.translation(-4, 0, 1).multiply(Matrix4.rotateY(2.1f)).multiply(Matrix4.scale(0.1f)),
+                new Matrix4(1, 2, 0, 3, 0.5f, 1, 4, -1, 2, 0, 1, 7, 0, 0, 0, 1) };
+        for (int m = 0; m < matrices.length; m++) {
+            Matrix4 matrix = matrices[m];
+            int n = 100;
+            Point3[] points = new Point3[n];
+            float[] x = new float[n + 3];
+            float[] y = new float[n + 3];
+            float[] z = new float[n + 3];
+            for (int i = 0; i < n; i++) {
+                points[i] = new Point3(10 * random.nextFloat() - 5, 10 * random.nextFloat() - 5, 10 * random.nextFloat() - 5);
+                x[i + 3] = points[i].x;
+                y[i + 3] = points[i].y;
+                z[i + 3] = points[i].z;
+            }
+
+            // single points and vectors, into a destination and in place
+            boolean same = true;
+            for (Point3 p : points) {
+                Point3 expected = matrix.transformP(p);
+                Point3 dest = new Point3();
+                same &= equal(expected, matrix.transformP(p, dest)) && equal(expected, dest);
+                Point3 inPlace = new Point3(p);
+                same &= equal(expected, matrix.transformP(inPlace, inPlace));
+                Vector3 v = new Vector3(p.x, p.y, p.z);
+                Vector3 ev = matrix.transformV(v);
+                Vector3 et = matrix.transformTransposeV(v);
+                Vector3 dv = new Vector3();
+                same &= equal(ev, matrix.transformV(v, dv)) && equal(ev, dv);
+                same &= equal(et, matrix.transformTransposeV(v, dv)) && equal(et, dv);
+                Vector3 iv = new Vector3(v);
+                same &= equal(ev, matrix.transformV(iv, iv));
+                iv.set(v);
+                same &= equal(et, matrix.transformTransposeV(iv, iv));
+                same &= expected.x == matrix.transformPX(p.x, p.y, p.z) && expected.y == matrix.transformPY(p.x, p.y, p.z) && expected.z == matrix.transformPZ(p.x, p.y, p.z);
+            }
+            check(same, "matrix %d: destination and in place transforms", m);
+
+            // structure of arrays batches, leaving elements outside the range
+            // untouched
+            checkBatch(matrix, points, x, y, z, 0, m);
+            checkBatch(matrix, points, x, y, z, 1, m);
+            checkBatch(matrix, points, x, y, z, 2, m);
+
+            // bounding boxes contain their transformed corners
+            BoundingBox box = new BoundingBox(new Point3(-1, -2, -3));
+            box.include(new Point3(4, 0.5f, 2));
+            BoundingBox t = matrix.transform(box);
+            boolean inside = true;
+            for (int i = 0; i < 8; i++) {
+                Point3 c = matrix.transformP(box.getCorner(i));
+                inside &= t.contains(c);
+            }
+            check(inside, "matrix %d: transformed box contains the corners", m);
+
+            // inverse and blend into a destination and in place
+            Matrix4 other = matrices[(m + 1) % matrices.length];
+            Matrix4 dest = new Matrix4();
+            boolean sameInverse = Arrays.equals(matrix.inverse().asRowMajor(), matrix.inverse(dest).asRowMajor());
+            sameInverse &= Arrays.equals(dest.asRowMajor(), new Matrix4().set(matrix).inverse(dest).asRowMajor());
+            float[] blend = Matrix4.blend(matrix, other, 0.3f).asRowMajor();
+            boolean sameBlend = Arrays.equals(blend, Matrix4.blend(matrix, other, 0.3f, dest).asRowMajor());
+            sameBlend &= Arrays.equals(blend, Matrix4.blend(dest.set(matrix), other, 0.3f, dest).asRowMajor());
+            check(sameInverse, "matrix %d: destination and in place inverse", m);
+            check(sameBlend, "matrix %d: destination and in place blend", m);
+        }
+        Matrix4 dest = Matrix4.scale(3);
+        check(Matrix4.ZERO.inverse(dest) == null && Arrays.equals(dest.asRowMajor(), Matrix4.scale(3).asRowMajor()), "singular inverse leaves the destination unchanged");
+        check(Matrix4.IDENTITY.isIdentity() && Matrix4.IDENTITY.isTranslation(), "identity");
+        check(!Matrix4.translation(1, 0, 0).isIdentity() && Matrix4.translation(1, 0, 0).isTranslation(), "translation");
+        check(!Matrix4.rotateX(0.5f).isTranslation() && !Matrix4.scale(2).isTranslation(), "rotation and scale are not translations");
+    }
+
+    private void checkBatch(Matrix4 matrix, Point3[] points, float[] x, float[] y, float[] z, int kind, int m) {
+        float[] bx = x.clone();
+        float[] by = y.clone();
+        float[] bz = z.clone();
+        String name;
+        switch (kind) {
+            case 0:
+                name = "transformP";
+                matrix.transformP(bx, by, bz, 3, points.length);
+                break;
+            case 1:
+                name = "transformV";
+                matrix.transformV(bx, by, bz, 3, points.length);
+                break;
+            default:
+                name = "transformTransposeV";
+                matrix.transformTransposeV(bx, by, bz, 3, points.length);
+                break;
+        }
+        boolean same = bx[0] == 0 && by[1] == 0 && bz[2] == 0;
+        for (int i = 0; i < points.length; i++) {
+            Point3 p = points[i];
+            float ex, ey, ez;
+            if (kind == 0) {
+                Point3 e = matrix.transformP(p);
+                ex = e.x;
+                ey = e.y;
+                ez = e.z;
+            } else {
+                Vector3 v = new Vector3(p.x, p.y, p.z);
+                Vector3 e = kind == 1 ? matrix.transformV(v) : matrix.transformTransposeV(v);
+                ex = e.x;
+                ey = e.y;
+                ez = e.z;
+            }
+            same &= bx[i + 3] == ex && by[i + 3] == ey && bz[i + 3] == ez;
+        }
+        check(same, "matrix %d: batched %s", m, name);
+    }
+
+    private static boolean equal(Point3 a, Point3 b) {
+        return a.x == b.x && a.y == b.y && a.z == b.z;
+    }
+
+    private static boolean equal(Vector3 a, Vector3 b) {
+        return a.x == b.x && a.y == b.y && a.z == b.z;
+    }
+}
@@ -0,0 +1,108 @@
+package org.sunflow.system;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.sunflow.UnitTest;
+import org.sunflow.core.accel.BoundingIntervalHierarchy;
+import org.sunflow.core.accel.KDTree;
+import org.sunflow.core.primitive.Sphere;
+
+/**
+ * Checks that {@link BinaryCache} files round-trip their arrays and that stale
+ * or damaged files are rejected.
+ */
+public class BinaryCacheTest extends UnitTest {
+    public void run() throws IOException {
+        File source = File.createTempFile("sunflow", ".src");
+        File cache = new File(source.getPath() + ".cache");
+        try {
+            write(source, "some scene data");
+            Random random = new Random(7);
+            int[] ints = new int[100003];
+            float[] floats = new float[70001];
+            for (int i = 0; i < ints.length; i++)
+                ints[i] = random.nextInt();
+            for (int i = 0; i < floats.length; i++)
+                floats[i] = random.nextFloat() * 1000 - 500;
+            floats[1] = Float.NaN;
+            floats[2] = Float.NEGATIVE_INFINITY;
+
+            BinaryCache writer = new BinaryCache(source.getPath(), 3);
+            check(!writer.load(), "missing cache is not loaded");
+            writer.put("ints", ints);
+            writer.put("floats", floats);
+            writer.put("empty", new int[0]);
+            check(writer.isModified(), "cache is modified after put");
+            check(writer.save(), "cache is saved");
+            check(!writer.isModified(), "cache is not modified after save");
+
+            BinaryCache reader = new BinaryCache(source.getPath(), 3);
+            if (check(reader.load(), "cache is loaded")) {
+                check(Arrays.equals(ints, reader.getInts("ints")), "int array round-trip");
+                check(Arrays.equals(floats, reader.getFloats("floats")), "float array round-trip");
+                check(reader.getInts("empty").length == 0, "empty array round-trip");
+                check(reader.getFloats("ints") == null && reader.getInts("floats") == null, "arrays keep their type");
+                check(reader.getInts("missing") == null, "missing array");
+                // saving again keeps the previously loaded arrays
+                reader.put("more", new float[] { 1, 2, 3 });
+                check(reader.save(), "loaded cache is saved again");
+                BinaryCache again = new BinaryCache(source.getPath(), 3);
+                check(again.load() && Arrays.equals(ints, again.getInts("ints")) && again.getFloats("more").length == 3, "arrays survive a second save");
+            }
+
+            check(!new BinaryCache(source.getPath(), 4).load(), "different seed is rejected");
+            write(source, "some other scene data");
+            check(!new BinaryCache(source.getPath(), 3).load(), "changed source is rejected");
+            // an edit keeping the size and modification time, like a copy
+            // preserving timestamps
+            write(source, "some scene data");
+            writer = new BinaryCache(source.getPath(), 3);
+            writer.put("ints", ints);
+            writer.save();
+            long modified = source.lastModified();
+            write(source, "same scene data");
+            source.setLastModified(modified);
+            check(source.lastModified() == modified && !new BinaryCache(source.getPath(), 3).load(), "source edited in place is rejected");
+
+            // damaged files are rejected without throwing
+            write(source, "some scene data");
+            writer = new BinaryCache(source.getPath(), 3);
+            writer.put("ints", ints);
+            check(writer.save() && new BinaryCache(source.getPath(), 3).load(), "cache of the rewritten source is loaded");
+            long[] lengths = { cache.length() - 5, 30, 10, 0 };
+            for (long length : lengths) {
+                RandomAccessFile raf = new RandomAccessFile(cache, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+                check(!new BinaryCache(source.getPath(), 3).load(), "cache truncated to %d bytes is rejected", length);
+            }
+
+            // accelerator parameters of the wrong size are rejected
+            BinaryCache accel = new BinaryCache(source.getPath(), 0);
+            accel.put("kdtree.params", new int[] { 0 });
+            accel.put("bih.params", new int[0]);
+            check(!new KDTree().load(new Sphere(), accel), "short kd-tree parameters are rejected");
+            check(!new BoundingIntervalHierarchy().load(new Sphere(), accel), "short bih parameters are rejected");
+        } finally {
+            cache.delete();
+            source.delete();
+        }
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+}
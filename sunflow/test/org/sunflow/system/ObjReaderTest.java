@@ -0,0 +1,101 @@
+package org.sunflow.system;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.sunflow.UnitTest;
+
+/**
+ * Checks that {@link ObjReader} parses numbers exactly like the standard
+ * library in both precisions, and that faces split across parallel chunks are
+ * resolved in file order.
+ */
+public class ObjReaderTest extends UnitTest {
+    public void run() throws IOException {
+        File file = File.createTempFile("sunflow", ".obj");
+        try {
+            Random random = new Random(11);
+            // large enough to be split into several chunks
+            int n = 120000;
+            String[] numbers = new String[3 * n];
+            int[] expectedFaces = new int[3 * (n - 2)];
+            BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+            try {
+                writer.write("# test file\r\n");
+                for (int i = 0; i < n; i++) {
+                    writer.write("v");
+                    for (int j = 0; j < 3; j++) {
+                        String s = number(random);
+                        numbers[3 * i + j] = s;
+                        writer.write(" ");
+                        writer.write(s);
+                    }
+                    writer.write("\n");
+                    if (i >= 2) {
+                        // alternate between absolute and relative indices
+                        int f = 3 * (i - 2);
+                        expectedFaces[f + 0] = i - 2;
+                        expectedFaces[f + 1] = i - 1;
+                        expectedFaces[f + 2] = i;
+                        if ((i & 1) == 0)
+                            writer.write(String.format(Locale.US, "f %d/1 %d//2 %d/3/4\n", i - 1, i, i + 1));
+                        else
+                            writer.write("f -3 -2 -1 # relative\n");
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+
+            ObjReader floats = new ObjReader(file.getPath());
+            floats.read(4);
+            ObjReader doubles = new ObjReader(file.getPath(), true);
+            doubles.read(1);
+            if (check(floats.getVertices() != null && floats.getVertices().length == numbers.length, "float vertex count")) {
+                int errors = 0;
+                for (int i = 0; i < numbers.length; i++)
+                    if (Float.floatToIntBits(floats.getVertices()[i]) != Float.floatToIntBits(Float.parseFloat(numbers[i])))
+                        errors++;
+                check(errors == 0, "%d floats differ from Float.parseFloat", errors);
+            }
+            if (check(doubles.getVerticesDouble() != null && doubles.getVerticesDouble().length == numbers.length, "double vertex count")) {
+                int errors = 0;
+                for (int i = 0; i < numbers.length; i++)
+                    if (Double.doubleToLongBits(doubles.getVerticesDouble()[i]) != Double.doubleToLongBits(Double.parseDouble(numbers[i])))
+                        errors++;
+                check(errors == 0, "%d doubles differ from Double.parseDouble", errors);
+            }
+            check(floats.getVerticesDouble() == null && doubles.getVertices() == null, "only the requested precision is kept");
+            check(Arrays.equals(expectedFaces, floats.getFaces()), "faces read in parallel");
+            check(Arrays.equals(expectedFaces, doubles.getFaces()), "faces read sequentially");
+            check(Arrays.equals(expectedFaces, floats.getTriangles()), "triangles of triangular faces");
+            check(floats.getFaceSizes().length == n - 2, "face count");
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Formats a random number in one of the notations found in OBJ files.
+     */
+    private static String number(Random random) {
+        double d = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(9) - 4);
+        switch (random.nextInt(5)) {
+            case 0:
+                return Double.toString(d);
+            case 1:
+                return String.format(Locale.US, "%.6f", d);
+            case 2:
+                return String.format(Locale.US, "%.17g", d);
+            case 3:
+                return String.format(Locale.US, "%.9e", d);
+            default:
+                return Float.toString((float) d);
+        }
+    }
+}